@@ -17,6 +17,8 @@ public class BLConfigIndexing {
     
     int numberOfThreads = 2;
 
+    boolean packForwardIndex = false;
+
     public boolean isDownloadAllowed() {
         return downloadAllowed;
     }
@@ -69,5 +71,13 @@ public class BLConfigIndexing {
     public int getNumberOfThreads() {
         return numberOfThreads;
     }
+
+    public boolean isPackForwardIndex() {
+        return packForwardIndex;
+    }
+
+    public void setPackForwardIndex(boolean packForwardIndex) {
+        this.packForwardIndex = packForwardIndex;
+    }
     
 }
\ No newline at end of file
@@ -6,6 +6,12 @@ public class BLConfigLog {
     // (only applies to BLS, not BL in general)
     String sqliteDatabase = null;
 
+    // How many log writes may be waiting for the background writer (only applies to BLS)
+    int sqliteQueueSize = 10000;
+
+    // If the queue is full, drop log writes (true) or make the request wait (false)? (only applies to BLS)
+    boolean sqliteDropWhenQueueFull = true;
+
     public String getSqliteDatabase() {
         return sqliteDatabase;
     }
@@ -14,6 +20,22 @@ public class BLConfigLog {
         this.sqliteDatabase = sqliteDatabase;
     }
 
+    public int getSqliteQueueSize() {
+        return sqliteQueueSize;
+    }
+
+    public void setSqliteQueueSize(int sqliteQueueSize) {
+        this.sqliteQueueSize = sqliteQueueSize;
+    }
+
+    public boolean isSqliteDropWhenQueueFull() {
+        return sqliteDropWhenQueueFull;
+    }
+
+    public void setSqliteDropWhenQueueFull(boolean sqliteDropWhenQueueFull) {
+        this.sqliteDropWhenQueueFull = sqliteDropWhenQueueFull;
+    }
+
     public BLConfigTrace getTrace() {
         return trace;
     }
@@ -1,5 +1,6 @@
 package nl.inl.blacklab.config;
 
+import nl.inl.blacklab.contentstore.ContentStoreFixedBlockReader;
 import nl.inl.blacklab.search.BlackLabIndex;
 import nl.inl.blacklab.search.lucene.optimize.ClauseCombinerNfa;
 import nl.inl.blacklab.search.results.ContextSize;
@@ -15,6 +16,8 @@ public class BLConfigSearch {
     int maxHitsToCount = 10_000_000;
     
     long fiMatchFactor = ClauseCombinerNfa.DEFAULT_NFA_THRESHOLD;
+    
+    int contentStoreBlockCacheMegs = ContentStoreFixedBlockReader.DEFAULT_BLOCK_CACHE_SIZE_MEGS;
 
     public BLConfigCollator getCollator() {
         return collator;
@@ -56,6 +59,14 @@ public class BLConfigSearch {
         this.fiMatchFactor = fiMatchFactor;
     }
 
+    public int getContentStoreBlockCacheMegs() {
+        return contentStoreBlockCacheMegs;
+    }
+
+    public void setContentStoreBlockCacheMegs(int contentStoreBlockCacheMegs) {
+        this.contentStoreBlockCacheMegs = contentStoreBlockCacheMegs;
+    }
+
     public void apply(BlackLabIndex index) {
         index.setCollator(getCollator().get());
         index.setDefaultContextSize(ContextSize.get(getContextSize()));
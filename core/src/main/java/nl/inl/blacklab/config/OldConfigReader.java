@@ -45,6 +45,9 @@ public class OldConfigReader extends YamlJsonReader {
             case "fiMatchFactor":
                 config.setFiMatchFactor(integer(e));
                 break;
+            case "contentStoreBlockCacheMegs":
+                config.setContentStoreBlockCacheMegs(integer(e));
+                break;
             default:
                 throw new InvalidConfiguration("Unknown key " + e.getKey() + " in search section");
             }
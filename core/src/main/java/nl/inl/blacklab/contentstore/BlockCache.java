@@ -0,0 +1,202 @@
+package nl.inl.blacklab.contentstore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of decoded content store blocks.
+ *
+ * Popular documents are retrieved again and again (e.g. to show the document or
+ * to make snippets), and decompressing their blocks each time is expensive.
+ * This cache keeps the most recently used decoded blocks, up to a maximum total
+ * size in bytes.
+ *
+ * The cache is divided into segments, each with its own lock and its own
+ * least-recently-used eviction, so threads using different blocks don't block
+ * each other.
+ */
+public class BlockCache {
+
+    /** Number of segments; must be a power of two */
+    private static final int NUMBER_OF_SEGMENTS = 16;
+
+    /** Estimated overhead per cached block (String object, char array header, map entry, key) */
+    private static final int ENTRY_OVERHEAD_BYTES = 100;
+
+    /** A part of the cache, with its own lock and LRU order */
+    private static final class Segment {
+
+        /** Blocks in access order (least recently used first) */
+        private final LinkedHashMap<Long, String> blocks = new LinkedHashMap<>(16, 0.75f, true);
+
+        /** Estimated size of the blocks in this segment */
+        private long sizeBytes = 0;
+
+        synchronized String get(long key) {
+            return blocks.get(key);
+        }
+
+        synchronized void put(long key, String block, long maxSizeBytes) {
+            String prev = blocks.put(key, block);
+            if (prev != null)
+                sizeBytes -= sizeOf(prev);
+            sizeBytes += sizeOf(block);
+
+            // Evict least recently used blocks until we're within our budget
+            Iterator<String> it = blocks.values().iterator();
+            while (sizeBytes > maxSizeBytes && it.hasNext()) {
+                sizeBytes -= sizeOf(it.next());
+                it.remove();
+            }
+        }
+
+        synchronized void removeStore(int storeId) {
+            Iterator<Entry<Long, String>> it = blocks.entrySet().iterator();
+            while (it.hasNext()) {
+                Entry<Long, String> e = it.next();
+                if ((int) (e.getKey() >>> 32) == storeId) {
+                    sizeBytes -= sizeOf(e.getValue());
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            blocks.clear();
+            sizeBytes = 0;
+        }
+
+        synchronized long sizeBytes() {
+            return sizeBytes;
+        }
+
+        synchronized int numberOfBlocks() {
+            return blocks.size();
+        }
+    }
+
+    private static long sizeOf(String block) {
+        return ENTRY_OVERHEAD_BYTES + block.length() * 2L;
+    }
+
+    private final Segment[] segments = new Segment[NUMBER_OF_SEGMENTS];
+
+    /** Maximum size of each segment in bytes */
+    private volatile long maxSegmentSizeBytes;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a block cache.
+     *
+     * @param maxSizeBytes maximum total size of the cached blocks (0 to disable caching)
+     */
+    public BlockCache(long maxSizeBytes) {
+        for (int i = 0; i < NUMBER_OF_SEGMENTS; i++)
+            segments[i] = new Segment();
+        setMaxSizeBytes(maxSizeBytes);
+    }
+
+    /**
+     * Set the maximum size of the cache.
+     *
+     * If the cache is currently larger, blocks will be evicted as new blocks are
+     * added.
+     *
+     * @param maxSizeBytes maximum total size of the cached blocks (0 to disable caching)
+     */
+    public void setMaxSizeBytes(long maxSizeBytes) {
+        maxSegmentSizeBytes = Math.max(0, maxSizeBytes) / NUMBER_OF_SEGMENTS;
+        if (maxSegmentSizeBytes == 0)
+            clear();
+    }
+
+    public long maxSizeBytes() {
+        return maxSegmentSizeBytes * NUMBER_OF_SEGMENTS;
+    }
+
+    private static long key(int storeId, int blockNumber) {
+        return ((long) storeId << 32) | (blockNumber & 0xFFFFFFFFL);
+    }
+
+    private Segment segment(long key) {
+        long h = key * 0x9E3779B97F4A7C15L; // spread consecutive block numbers over the segments
+        return segments[(int) (h >>> 60) & (NUMBER_OF_SEGMENTS - 1)];
+    }
+
+    /**
+     * Get a decoded block from the cache.
+     *
+     * @param storeId id of the content store the block belongs to
+     * @param blockNumber block number
+     * @return the decoded block, or null if it wasn't cached
+     */
+    public String get(int storeId, int blockNumber) {
+        if (maxSegmentSizeBytes == 0)
+            return null;
+        long key = key(storeId, blockNumber);
+        String block = segment(key).get(key);
+        if (block == null)
+            misses.increment();
+        else
+            hits.increment();
+        return block;
+    }
+
+    /**
+     * Add a decoded block to the cache.
+     *
+     * @param storeId id of the content store the block belongs to
+     * @param blockNumber block number
+     * @param block the decoded block
+     */
+    public void put(int storeId, int blockNumber, String block) {
+        long maxSize = maxSegmentSizeBytes;
+        if (maxSize == 0 || sizeOf(block) > maxSize)
+            return;
+        long key = key(storeId, blockNumber);
+        segment(key).put(key, block, maxSize);
+    }
+
+    /**
+     * Remove all blocks for a content store (e.g. because it was closed).
+     *
+     * @param storeId id of the content store
+     */
+    public void removeStore(int storeId) {
+        for (Segment segment: segments)
+            segment.removeStore(storeId);
+    }
+
+    public void clear() {
+        for (Segment segment: segments)
+            segment.clear();
+    }
+
+    public long sizeBytes() {
+        long size = 0;
+        for (Segment segment: segments)
+            size += segment.sizeBytes();
+        return size;
+    }
+
+    public int numberOfBlocks() {
+        int n = 0;
+        for (Segment segment: segments)
+            n += segment.numberOfBlocks();
+        return n;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+}
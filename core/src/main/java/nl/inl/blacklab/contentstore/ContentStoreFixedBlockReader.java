@@ -16,19 +16,22 @@
 package nl.inl.blacklab.contentstore;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 import net.jcip.annotations.NotThreadSafe;
 import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
 import nl.inl.blacklab.exceptions.ErrorOpeningIndex;
+import nl.inl.blacklab.search.SearchStatistics;
 import nl.inl.util.SimpleResourcePool;
 
 /**
@@ -40,14 +43,60 @@ import nl.inl.util.SimpleResourcePool;
  * character offset associated with each block so we can quickly access the
  * data. Free blocks will be re-used to save space.
  * 
- * Thread-safety: not thread-safe in index mode, but thread-safe while searching
+ * Thread-safety: not thread-safe in index mode, but thread-safe while searching.
+ * Content is retrieved using positional reads on a single, long-lived file
+ * channel, so retrievals don't block each other. If a thread is interrupted
+ * while reading, the channel is closed for all threads; in that case, we
+ * reopen it and retry.
  */
 @NotThreadSafe // in index mode
 public class ContentStoreFixedBlockReader extends ContentStoreFixedBlock {
     //private static final Logger logger = LogManager.getLogger(ContentStoreDirFixedBlock.class);
 
+    /** Default maximum size of the decoded block cache */
+    public static final int DEFAULT_BLOCK_CACHE_SIZE_MEGS = 100;
+
+    /** Decoded blocks, shared by all content stores */
+    private static final BlockCache blockCache = new BlockCache(DEFAULT_BLOCK_CACHE_SIZE_MEGS * 1_000_000L);
+
+    /** Id to give the next content store we open (used in the block cache keys) */
+    private static final AtomicInteger nextStoreId = new AtomicInteger();
+
+    /**
+     * Get the cache of decoded blocks.
+     *
+     * @return the block cache
+     */
+    public static BlockCache blockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Set the maximum size of the decoded block cache.
+     *
+     * @param megs maximum size in megabytes, or 0 to disable the cache
+     */
+    public static void setBlockCacheMaxSizeMegs(int megs) {
+        blockCache.setMaxSizeBytes(megs * 1_000_000L);
+    }
+
+    /** Our id in the block cache */
+    private final int storeId = nextStoreId.getAndIncrement();
+
     SimpleResourcePool<Inflater> decompresserPool;
 
+    /** Buffers to read (compressed) blocks into */
+    SimpleResourcePool<ByteBuffer> blockBufferPool;
+
+    /** The contents file, opened for reading during initialization */
+    private RandomAccessFile contentsRaf;
+
+    /** Channel for the contents file. Positional reads on this are thread-safe. */
+    private volatile FileChannel contentsFileChannel;
+
+    /** Set when we're closed, so we know not to reopen the contents file anymore */
+    private volatile boolean closed = false;
+
     /**
      * @param dir content store dir
      * @throws ErrorOpeningIndex 
@@ -70,11 +119,45 @@ public class ContentStoreFixedBlockReader extends ContentStoreFixedBlock {
                 resource.end();
             }
         };
+        blockBufferPool = new SimpleResourcePool<ByteBuffer>(POOL_SIZE) {
+            @Override
+            public ByteBuffer createResource() {
+                return ByteBuffer.allocate(BLOCK_SIZE_BYTES);
+            }
+        };
     }
     
     @Override
     protected void performInitialization() {
         readToc();
+        try {
+            openContentsFile();
+        } catch (IOException e) {
+            throw BlackLabRuntimeException.wrap(e);
+        }
+    }
+
+    private synchronized void openContentsFile() throws IOException {
+        contentsRaf = new RandomAccessFile(contentsFile, "r");
+        contentsFileChannel = contentsRaf.getChannel();
+    }
+
+    /**
+     * Reopen the contents file after its channel was closed.
+     *
+     * This happens when a thread is interrupted during a read. Several threads may
+     * notice the closed channel at the same time; only the first one reopens it.
+     *
+     * @param closedChannel the channel we found was closed
+     * @throws IOException on error, or if the content store itself was closed
+     */
+    private synchronized void reopenContentsFile(FileChannel closedChannel) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        if (contentsFileChannel != closedChannel)
+            return; // another thread already reopened it
+        contentsRaf.close();
+        openContentsFile();
     }
 
     @Override
@@ -95,7 +178,18 @@ public class ContentStoreFixedBlockReader extends ContentStoreFixedBlock {
         if (!initialized)
             initialize();
         decompresserPool.close();
+        blockBufferPool.close();
+        blockCache.removeStore(storeId);
         closeMappedToc();
+        synchronized (this) {
+            closed = true;
+            try {
+                contentsFileChannel.close();
+                contentsRaf.close();
+            } catch (IOException e) {
+                throw BlackLabRuntimeException.wrap(e);
+            }
+        }
         super.close();
     }
 
@@ -114,7 +208,7 @@ public class ContentStoreFixedBlockReader extends ContentStoreFixedBlock {
     }
 
     @Override
-    public synchronized String[] retrieveParts(int contentId, int[] start, int[] end) {
+    public String[] retrieveParts(int contentId, int[] start, int[] end) {
         if (!initialized)
             initialize();
         try {
@@ -131,72 +225,48 @@ public class ContentStoreFixedBlockReader extends ContentStoreFixedBlock {
             // Create array for results
             String[] result = new String[n];
 
-            // Open the file
-            try (FileInputStream fileInputStream = new FileInputStream(contentsFile)) {
-                try (FileChannel fileChannel = fileInputStream.getChannel()) {
-                    // Retrieve the strings requested
-                    for (int i = 0; i < n; i++) {
-                        int a = start[i];
-                        int b = end[i];
-
-                        if (a == -1)
-                            a = 0;
-                        if (b == -1)
-                            b = e.entryLengthCharacters;
-
-                        // Check values
-                        if (a < 0 || b < 0) {
-                            throw new IllegalArgumentException("Illegal values, start = " + a + ", end = " + b);
-                        }
-                        if (a > e.entryLengthCharacters || b > e.entryLengthCharacters) {
-                            throw new IllegalArgumentException("Value(s) out of range, start = " + a
-                                    + ", end = " + b + ", content length = " + e.entryLengthCharacters);
-                        }
-                        if (b <= a) {
-                            throw new IllegalArgumentException(
-                                    "Tried to read empty or negative length snippet (from " + a
-                                            + " to " + b + ")");
-                        }
-
-                        // 1 - determine what blocks to read
-                        int firstBlock = -1, lastBlock = -1;
-                        int bl = 0;
-                        int charOffset = -1;
-                        for (int offs : e.blockCharOffsets) {
-                            if (offs <= a) {
-                                firstBlock = bl; // last block that starts before a
-                                charOffset = offs;
-                            }
-                            if (offs > b && lastBlock == -1) {
-                                lastBlock = bl - 1; // first block that ends after b
-                                break;
-                            }
-                            bl++;
-                        }
-                        if (lastBlock == -1)
-                            lastBlock = bl - 1; // last available block
-
-                        // 2 - read and decode blocks
-                        StringBuilder decoded = new StringBuilder();
-                        for (int j = firstBlock; j <= lastBlock; j++) {
-                            long blockNum = e.getBlockNumber(j);
-                            long readStartOffset = blockNum * BLOCK_SIZE_BYTES;
-                            int bytesToRead = BLOCK_SIZE_BYTES;
-                            ByteBuffer buffer = ByteBuffer.allocate(bytesToRead);
-                            int bytesRead = fileChannel.read(buffer, readStartOffset);
-                            if (bytesRead < bytesToRead) {
-                                // Apparently, something went wrong.
-                                throw new BlackLabRuntimeException("Not enough bytes read, " + bytesRead
-                                        + " < " + bytesToRead);
-                            }
-                            String decodedBlock = decodeBlock(buffer.array(), 0, bytesRead);
-                            decoded.append(decodedBlock);
-                        }
-
-                        // 3 - take just what we need
-                        int firstChar = a - charOffset;
-                        result[i] = decoded.substring(firstChar, firstChar + b - a);
+            // Retrieve the strings requested
+            for (int i = 0; i < n; i++) {
+                int a = start[i];
+                int b = end[i];
+
+                if (a == -1)
+                    a = 0;
+                if (b == -1)
+                    b = e.entryLengthCharacters;
+
+                // Check values
+                if (a < 0 || b < 0) {
+                    throw new IllegalArgumentException("Illegal values, start = " + a + ", end = " + b);
+                }
+                if (a > e.entryLengthCharacters || b > e.entryLengthCharacters) {
+                    throw new IllegalArgumentException("Value(s) out of range, start = " + a
+                            + ", end = " + b + ", content length = " + e.entryLengthCharacters);
+                }
+                if (b <= a) {
+                    throw new IllegalArgumentException(
+                            "Tried to read empty or negative length snippet (from " + a
+                                    + " to " + b + ")");
+                }
+
+                // 1 - determine what blocks to read (only those overlapping [a, b))
+                int[] charOffsets = e.blockCharOffsets;
+                int firstBlock = blockContaining(charOffsets, a);
+                int lastBlock = blockContaining(charOffsets, b - 1);
+
+                // 2 - read and decode blocks, taking just what we need
+                if (firstBlock == lastBlock) {
+                    int offset = charOffsets[firstBlock];
+                    result[i] = readBlock(e.getBlockNumber(firstBlock)).substring(a - offset, b - offset);
+                } else {
+                    StringBuilder decoded = new StringBuilder(b - a);
+                    for (int j = firstBlock; j <= lastBlock; j++) {
+                        String block = readBlock(e.getBlockNumber(j));
+                        int from = j == firstBlock ? a - charOffsets[j] : 0;
+                        int to = j == lastBlock ? b - charOffsets[j] : block.length();
+                        decoded.append(block, from, to);
                     }
+                    result[i] = decoded.toString();
                 }
             }
             return result;
@@ -205,6 +275,87 @@ public class ContentStoreFixedBlockReader extends ContentStoreFixedBlock {
         }
     }
 
+    /**
+     * Find the block containing a character position.
+     *
+     * @param blockCharOffsets first character stored in each block (ascending)
+     * @param charPos character position
+     * @return index of the last block starting at or before charPos
+     */
+    private static int blockContaining(int[] blockCharOffsets, int charPos) {
+        int lo = 0, hi = blockCharOffsets.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (blockCharOffsets[mid] <= charPos)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Read and decode a block from the contents file.
+     *
+     * Recently used blocks are kept in the block cache, so we don't have to read
+     * and decompress them again.
+     *
+     * @param blockNumber block to read
+     * @return the decoded block
+     * @throws IOException on error
+     */
+    protected String readBlock(int blockNumber) throws IOException {
+        String block = blockCache.get(storeId, blockNumber);
+        if (block == null) {
+            block = readAndDecodeBlock(blockNumber);
+            blockCache.put(storeId, blockNumber, block);
+        }
+        return block;
+    }
+
+    private String readAndDecodeBlock(int blockNumber) throws IOException {
+        ByteBuffer buffer = blockBufferPool.acquire();
+        try {
+            long readStartOffset = (long) blockNumber * BLOCK_SIZE_BYTES;
+            int bytesRead;
+            while (true) {
+                FileChannel channel = contentsFileChannel;
+                try {
+                    bytesRead = readFully(channel, buffer, readStartOffset);
+                    break;
+                } catch (ClosedByInterruptException e) {
+                    // We were interrupted; make sure other threads can still read, then give up
+                    reopenContentsFile(channel);
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    // Another thread was interrupted while reading; reopen and try again
+                    reopenContentsFile(channel);
+                }
+            }
+            SearchStatistics.addContentStoreBytesRead(bytesRead);
+            if (bytesRead < BLOCK_SIZE_BYTES) {
+                // Apparently, something went wrong.
+                throw new BlackLabRuntimeException("Not enough bytes read, " + bytesRead
+                        + " < " + BLOCK_SIZE_BYTES);
+            }
+            return decodeBlock(buffer.array(), 0, bytesRead);
+        } finally {
+            blockBufferPool.release(buffer);
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long readStartOffset) throws IOException {
+        buffer.clear();
+        int bytesRead = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, readStartOffset + bytesRead);
+            if (n < 0)
+                break;
+            bytesRead += n;
+        }
+        return bytesRead;
+    }
+
     protected String decodeBlock(byte[] buf, int offset, int length) throws IOException {
         if (!initialized)
             initialize();
@@ -24,12 +24,40 @@ public abstract class AnnotationForwardIndex {
      * 3. New terms and docs file format; added reverse sort index and case-insensitive index to terms file.
      * 4. Large terms file support
      * 5. New collators
+     * 6. Bit-packed tokens file (optional; otherwise identical to 5)
      */
 
     /**
      * Current forward index format version
      */
-    private static final String CURRENT_VERSION = "5";
+    static final String CURRENT_VERSION = "5";
+
+    /**
+     * Forward index format version with a bit-packed tokens file
+     */
+    static final String PACKED_TOKENS_VERSION = "6";
+
+    /** Should we write a bit-packed tokens file when closing a forward index we've written to? */
+    private static boolean packTokensFile = false;
+
+    /**
+     * Set whether to write a bit-packed tokens file when closing a forward index
+     * we've written to.
+     *
+     * A bit-packed tokens file is much smaller, especially for annotations with
+     * few distinct values, but converting the tokens file costs some time.
+     * Indexes with a bit-packed tokens file can't be read by older BlackLab
+     * versions.
+     *
+     * @param packTokensFile whether to write a bit-packed tokens file
+     */
+    public static void setPackTokensFile(boolean packTokensFile) {
+        AnnotationForwardIndex.packTokensFile = packTokensFile;
+    }
+
+    static boolean packTokensFile() {
+        return packTokensFile;
+    }
 
     /** The number of cached fiids we check to see if this field is set anywhere. */
     static final int NUMBER_OF_CACHE_ENTRIES_TO_CHECK = 1000;
@@ -101,7 +129,9 @@ public abstract class AnnotationForwardIndex {
         if (!indexMode || !create) {
             // We're opening an existing forward index. Check version.
             if (!VersionFile.isTypeVersion(dir, "fi", CURRENT_VERSION)) {
-                if (VersionFile.isTypeVersion(dir, "fi", "4")) {
+                if (VersionFile.isTypeVersion(dir, "fi", PACKED_TOKENS_VERSION)) {
+                    version = PACKED_TOKENS_VERSION;
+                } else if (VersionFile.isTypeVersion(dir, "fi", "4")) {
                     version = "4";
                 } else if (VersionFile.isTypeVersion(dir, "fi", "3")) {
                     version = "3";
@@ -120,6 +150,7 @@ public abstract class AnnotationForwardIndex {
         AnnotationForwardIndex fi;
         boolean largeTermsFileSupport = true;
         CollatorVersion collVersion = CollatorVersion.V2;
+        boolean packedTokens = false;
         switch (version) {
         case "2":
             throw new UnsupportedOperationException(
@@ -133,14 +164,17 @@ public abstract class AnnotationForwardIndex {
             break;
         case "5":
             break;
+        case PACKED_TOKENS_VERSION:
+            packedTokens = true;
+            break;
         }
         Collators collators = new Collators(collator, collVersion);
         if (indexMode)
-            fi = new AnnotationForwardIndexWriter(annotation, dir, collators, create, largeTermsFileSupport);
+            fi = new AnnotationForwardIndexWriter(annotation, dir, collators, create, largeTermsFileSupport, packedTokens);
         else {
             if (create)
                 throw new UnsupportedOperationException("create == true, but not in index mode!");
-            fi = new AnnotationForwardIndexReader(annotation, dir, collators, largeTermsFileSupport, buildTermIndexesOnInit);
+            fi = new AnnotationForwardIndexReader(annotation, dir, collators, largeTermsFileSupport, buildTermIndexesOnInit, packedTokens);
         }
         return fi;
     }
@@ -156,6 +190,9 @@ public abstract class AnnotationForwardIndex {
     /** The tokens file (stores indexes into terms.dat) */
     File tokensFile;
 
+    /** The bit-packed tokens file, used instead of the tokens file if the format version says so */
+    File packedTokensFile;
+
     /** The terms file (stores unique terms) */
     File termsFile;
 
@@ -193,6 +230,7 @@ public abstract class AnnotationForwardIndex {
         termsFile = new File(dir, "terms.dat");
         tocFile = new File(dir, "docs.dat");
         tokensFile = new File(dir, "tokens.dat");
+        packedTokensFile = new File(dir, "tokens-packed.dat");
         
         setLargeTermsFileSupport(largeTermsFileSupport);
     }
@@ -267,6 +305,37 @@ public abstract class AnnotationForwardIndex {
      */
     public abstract List<int[]> retrievePartsInt(int fiid, int[] start, int[] end);
 
+    /**
+     * Retrieve a part of the specified content into a caller-supplied array.
+     *
+     * Unlike {@link #retrievePartsInt(int, int[], int[])}, this doesn't allocate
+     * anything, so callers that retrieve many snippets (e.g. when building KWICs
+     * or sorting on context) can reuse their destination array.
+     *
+     * As with retrievePartsInt, -1 may be passed for start or end to indicate
+     * start or end of document, and end is clipped to the document length.
+     *
+     * The default implementation just delegates to retrievePartsInt; subclasses
+     * should override this with a more efficient version if possible.
+     *
+     * @param fiid forward index document id
+     * @param start the starting point of the part to retrieve (in words) (-1 for
+     *            start of document)
+     * @param end the end point (i.e. first token beyond) of the part to retrieve
+     *            (in words) (-1 for end of document)
+     * @param dest where to store the token ids
+     * @param destOffset where in dest to start storing the token ids
+     * @return number of token ids stored, or -1 if the document was deleted
+     */
+    public int retrievePartInt(int fiid, int start, int end, int[] dest, int destOffset) {
+        List<int[]> parts = retrievePartsInt(fiid, new int[] { start }, new int[] { end });
+        if (parts == null)
+            return -1;
+        int[] part = parts.get(0);
+        System.arraycopy(part, 0, dest, destOffset, part.length);
+        return part.length;
+    }
+
     /**
      * Get the Terms object in order to translate ids to token strings
      * 
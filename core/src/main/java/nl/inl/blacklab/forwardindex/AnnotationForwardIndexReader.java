@@ -36,6 +36,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
+import nl.inl.blacklab.search.SearchStatistics;
 import nl.inl.blacklab.search.indexmetadata.Annotation;
 
 /**
@@ -48,11 +49,22 @@ class AnnotationForwardIndexReader extends AnnotationForwardIndex {
 
     protected static final Logger logger = LogManager.getLogger(AnnotationForwardIndexReader.class);
 
-    /** Mapping into the tokens file */
-    private List<ByteBuffer> tokensFileChunks = null;
+    /**
+     * Mapping into the tokens file.
+     *
+     * NOTE: these buffers are shared between threads, so we should only ever use
+     * absolute reads on them, never change their position.
+     */
+    private List<IntBuffer> tokensFileChunks = null;
 
     /** Offsets of the mappings into the token file */
     private List<Long> tokensFileChunkOffsetBytes = null;
+
+    /** Is our tokens file bit-packed? */
+    private boolean packedTokens;
+
+    /** The bit-packed tokens, if our tokens file is bit-packed (otherwise null) */
+    private PackedTokens packed = null;
     
     /** Collators to use for terms file */
     private Collators collators;
@@ -72,7 +84,7 @@ class AnnotationForwardIndexReader extends AnnotationForwardIndex {
     /** Build term indexes right away or lazily? */
     private boolean buildTermIndexesOnInit;
 
-    AnnotationForwardIndexReader(Annotation annotation, File dir, Collators collators, boolean largeTermsFileSupport, boolean buildTermIndexesOnInit) {
+    AnnotationForwardIndexReader(Annotation annotation, File dir, Collators collators, boolean largeTermsFileSupport, boolean buildTermIndexesOnInit, boolean packedTokens) {
         super(annotation, dir, collators, largeTermsFileSupport);
         
         if (!dir.exists()) {
@@ -83,6 +95,7 @@ class AnnotationForwardIndexReader extends AnnotationForwardIndex {
             throw new IllegalArgumentException("No TOC found, and not in index mode!");
         this.collators = collators; // for reading terms file in initialize()
         this.buildTermIndexesOnInit = buildTermIndexesOnInit;
+        this.packedTokens = packedTokens;
     }
 
     /**
@@ -104,6 +117,16 @@ class AnnotationForwardIndexReader extends AnnotationForwardIndex {
         terms.initialize();
         //logger.debug("  END   Terms.initialize() " + tocFile);
         
+        if (packedTokens) {
+            try {
+                packed = new PackedTokens(packedTokensFile);
+            } catch (IOException e) {
+                throw BlackLabRuntimeException.wrap(e);
+            }
+            initialized = true;
+            return;
+        }
+
         //logger.debug("  START map tokens file " + tocFile);
         try (RandomAccessFile tokensFp = new RandomAccessFile(tokensFile, "r");
                 FileChannel tokensFileChannel = tokensFp.getChannel()) {
@@ -147,7 +170,7 @@ class AnnotationForwardIndexReader extends AnnotationForwardIndex {
 
                 ByteBuffer mapping = tokensFileChannel.map(FileChannel.MapMode.READ_ONLY, startOfNextMappingBytes,
                         sizeBytes);
-                tokensFileChunks.add(mapping);
+                tokensFileChunks.add(mapping.asIntBuffer());
                 tokensFileChunkOffsetBytes.add(startOfNextMappingBytes);
                 mappedBytes = startOfNextMappingBytes + sizeBytes;
             }
@@ -227,65 +250,123 @@ class AnnotationForwardIndexReader extends AnnotationForwardIndex {
         for (int i = 0; i < n; i++) {
             if (start[i] == -1)
                 start[i] = 0;
-            if (end[i] == -1)
-                end[i] = length[fiid];
-            if (start[i] < 0 || end[i] < 0) {
-                throw new IllegalArgumentException("Illegal values, start = " + start[i] + ", end = "
-                        + end[i]);
-            }
-            if (end[i] > length[fiid]) // Can happen while making KWICs because we don't know the
-                                   // doc length until here
+            if (end[i] == -1 || end[i] > length[fiid]) // Can happen while making KWICs because we don't know the
+                                                       // doc length until here
                 end[i] = length[fiid];
-            if (start[i] > length[fiid] || end[i] > length[fiid]) {
-                throw new IllegalArgumentException("Value(s) out of range, start = " + start[i]
-                        + ", end = " + end[i] + ", content length = " + length[fiid]);
-            }
-            if (end[i] <= start[i]) {
-                throw new IllegalArgumentException(
-                        "Tried to read empty or negative length snippet (from " + start[i]
-                                + " to " + end[i] + ")");
-            }
+            checkSnippet(fiid, start[i], end[i]);
+            int[] snippet = new int[end[i] - start[i]];
+            readSnippet(fiid, start[i], end[i], snippet, 0);
+            result.add(snippet);
+        }
 
-            // Get an IntBuffer to read the desired content
-            IntBuffer ib = null;
-            
-            // The tokens file has has been mapped to memory.
-            // Get an int buffer into the file.
-
-            // Figure out which chunk to access.
-            ByteBuffer whichChunk = null;
-            long chunkOffsetBytes = -1;
-            long entryOffsetBytes = offset[fiid] * SIZEOF_INT;
-            for (int j = 0; j < tokensFileChunkOffsetBytes.size(); j++) {
-                long offsetBytes = tokensFileChunkOffsetBytes.get(j);
-                ByteBuffer buffer = tokensFileChunks.get(j);
-                if (offsetBytes <= entryOffsetBytes + start[i] * SIZEOF_INT
-                        && offsetBytes + buffer.capacity() >= entryOffsetBytes + end[i]
-                                * SIZEOF_INT) {
-                    // This one!
-                    whichChunk = buffer;
-                    chunkOffsetBytes = offsetBytes;
-                    break;
-                }
-            }
+        return result;
+    }
+
+    @Override
+    public int retrievePartInt(int fiid, int start, int end, int[] dest, int destOffset) {
+        if (!initialized)
+            initialize();
+
+        if (deleted[fiid] != 0)
+            return -1;
+
+        if (start == -1)
+            start = 0;
+        if (end == -1 || end > length[fiid])
+            end = length[fiid];
+        checkSnippet(fiid, start, end);
+        readSnippet(fiid, start, end, dest, destOffset);
+        return end - start;
+    }
 
-            if (whichChunk == null) {
-                throw new BlackLabRuntimeException("Tokens file chunk containing document not found. fiid = " + fiid);
+    @Override
+    public int getToken(int fiid, int pos) {
+        if (!initialized)
+            initialize();
+        if (deleted[fiid] != 0 || pos < 0 || pos >= length[fiid])
+            throw new IllegalArgumentException("Illegal values, fiid = " + fiid + ", pos = " + pos);
+        if (packed != null)
+            return packed.get(offset[fiid] + pos);
+        int chunk = findChunk(fiid, pos, pos + 1);
+        return tokensFileChunks.get(chunk).get(chunkIndex(fiid, chunk) + pos);
+    }
+
+    private void checkSnippet(int fiid, int start, int end) {
+        if (start < 0 || end < 0) {
+            throw new IllegalArgumentException("Illegal values, start = " + start + ", end = "
+                    + end);
+        }
+        if (start > length[fiid] || end > length[fiid]) {
+            throw new IllegalArgumentException("Value(s) out of range, start = " + start
+                    + ", end = " + end + ", content length = " + length[fiid]);
+        }
+        if (end <= start) {
+            throw new IllegalArgumentException(
+                    "Tried to read empty or negative length snippet (from " + start
+                            + " to " + end + ")");
+        }
+    }
+
+    /**
+     * Copy a (validated) snippet from the tokens file into an array.
+     *
+     * We only use absolute reads on our shared buffers, never change their
+     * position, so this is safe to call from multiple threads at once without
+     * locking.
+     *
+     * @param fiid forward index id of the document
+     * @param start first token to read
+     * @param end first token not to read
+     * @param dest where to store the tokens
+     * @param destOffset where in dest to start storing
+     */
+    private void readSnippet(int fiid, int start, int end, int[] dest, int destOffset) {
+        if (packed != null) {
+            packed.get(offset[fiid] + start, dest, destOffset, end - start);
+            SearchStatistics.addForwardIndexBytesRead(packed.bytesForTokens(end - start));
+            return;
+        }
+        int chunk = findChunk(fiid, start, end);
+        IntBuffer ib = tokensFileChunks.get(chunk);
+        int index = chunkIndex(fiid, chunk) + start;
+        int snippetLength = end - start;
+        for (int i = 0; i < snippetLength; i++) {
+            dest[destOffset + i] = ib.get(index + i);
+        }
+        SearchStatistics.addForwardIndexBytesRead((long) snippetLength * SIZEOF_INT);
+    }
+
+    /**
+     * Figure out which tokens file chunk contains the requested snippet.
+     *
+     * @param fiid forward index id of the document
+     * @param start first token we need
+     * @param end first token we don't need
+     * @return index of the chunk
+     */
+    private int findChunk(int fiid, int start, int end) {
+        long entryOffsetBytes = offset[fiid] * SIZEOF_INT;
+        for (int j = 0; j < tokensFileChunkOffsetBytes.size(); j++) {
+            long offsetBytes = tokensFileChunkOffsetBytes.get(j);
+            IntBuffer buffer = tokensFileChunks.get(j);
+            if (offsetBytes <= entryOffsetBytes + (long)start * SIZEOF_INT
+                    && offsetBytes + (long)buffer.capacity() * SIZEOF_INT >= entryOffsetBytes + (long)end * SIZEOF_INT) {
+                // This one!
+                return j;
             }
-            whichChunk.position((int) (offset[fiid] * SIZEOF_INT - chunkOffsetBytes));
-            ib = whichChunk.asIntBuffer();
-
-            int snippetLength = end[i] - start[i];
-            int[] snippet = new int[snippetLength];
-            
-            // The file is mem-mapped (search mode).
-            // Position us at the correct place in the file.
-            ib.position(start[i]);
-            ib.get(snippet);
-            result.add(snippet);
         }
+        throw new BlackLabRuntimeException("Tokens file chunk containing document not found. fiid = " + fiid);
+    }
 
-        return result;
+    /**
+     * Get the index of the start of a document within a tokens file chunk.
+     *
+     * @param fiid forward index id of the document
+     * @param chunk index of the chunk
+     * @return index of the document's first token within the chunk
+     */
+    private int chunkIndex(int fiid, int chunk) {
+        return (int) (offset[fiid] - tokensFileChunkOffsetBytes.get(chunk) / SIZEOF_INT);
     }
 
     @Override
@@ -39,6 +39,7 @@ import org.apache.logging.log4j.Logger;
 import net.jcip.annotations.NotThreadSafe;
 import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
 import nl.inl.blacklab.search.indexmetadata.Annotation;
+import nl.inl.util.VersionFile;
 
 /**
  * Keeps a forward index of documents, to quickly answer the question "what word
@@ -69,6 +70,15 @@ class AnnotationForwardIndexWriter extends AnnotationForwardIndex {
     /** Has the table of contents been modified? */
     private boolean tocModified = false;
 
+    /**
+     * The bit-packed tokens, if we opened a bit-packed forward index and haven't
+     * needed to unpack it yet (otherwise null).
+     *
+     * We only unpack when we have to write tokens, so opening an existing index in
+     * index mode without adding documents leaves the packed file alone.
+     */
+    private PackedTokens packed = null;
+
     /**
      * The table of contents (where documents start in the tokens file and how long
      * they are)
@@ -78,7 +88,7 @@ class AnnotationForwardIndexWriter extends AnnotationForwardIndex {
     /** Deleted TOC entries. Always sorted by size. */
     List<TocEntry> deletedTocEntries = new ArrayList<>();
 
-    AnnotationForwardIndexWriter(Annotation annotation, File dir, Collators collators, boolean create, boolean largeTermsFileSupport) {
+    AnnotationForwardIndexWriter(Annotation annotation, File dir, Collators collators, boolean create, boolean largeTermsFileSupport, boolean packedTokens) {
         super(annotation, dir, collators, largeTermsFileSupport);
         
         if (!dir.exists()) {
@@ -91,12 +101,21 @@ class AnnotationForwardIndexWriter extends AnnotationForwardIndex {
         if (create) {
             if (tokensFile.exists() && !tokensFile.delete())
                 throw new BlackLabRuntimeException("Could not delete file: " + tokensFile);
+            if (packedTokensFile.exists() && !packedTokensFile.delete())
+                throw new BlackLabRuntimeException("Could not delete file: " + packedTokensFile);
             if (tocFile.exists() && !tocFile.delete())
                 throw new BlackLabRuntimeException("Could not delete file: " + tocFile);
             if (termsFile.exists() && !termsFile.delete())
                 throw new BlackLabRuntimeException("Could not delete file: " + termsFile);
+            File termIndexFile = TermsReaderMapped.termIndexFile(termsFile);
+            if (termIndexFile.exists() && !termIndexFile.delete())
+                throw new BlackLabRuntimeException("Could not delete file: " + termIndexFile);
         }
         try {
+            if (!create && packedTokens) {
+                // We can only add documents to a regular tokens file; we'll unpack it when needed
+                packed = new PackedTokens(packedTokensFile);
+            }
             if (tocFile.exists()) {
                 readToc();
                 terms = Terms.openForWriting(collators, termsFile, useBlockBasedTermsFile);
@@ -110,7 +129,8 @@ class AnnotationForwardIndexWriter extends AnnotationForwardIndex {
             }
             // Tricks to speed up reading
             // Index mode. Open for writing.
-            openTokensFileForWriting();
+            if (packed == null)
+                openTokensFileForWriting();
         } catch (IOException e) {
             throw BlackLabRuntimeException.wrap(e);
         }
@@ -130,6 +150,24 @@ class AnnotationForwardIndexWriter extends AnnotationForwardIndex {
         writeTokensFileChannel = writeTokensFp.getChannel();
     }
     
+    /**
+     * Unpack the bit-packed tokens file, if we haven't yet, so we can write to it.
+     *
+     * @throws IOException on error
+     */
+    private synchronized void unpackTokensFile() throws IOException {
+        if (packed == null)
+            return;
+        packed = null;
+        PackedTokens.unpack(packedTokensFile, tokensFile);
+        VersionFile.write(tocFile.getParentFile(), "fi", CURRENT_VERSION);
+        if (!packedTokensFile.delete()) {
+            // (e.g. on Windows, because it's still mapped; we'll overwrite it when packing)
+            logger.warn("Could not delete file: " + packedTokensFile);
+        }
+        openTokensFileForWriting();
+    }
+
     /**
      * Read the table of contents from the file
      */
@@ -191,6 +229,9 @@ class AnnotationForwardIndexWriter extends AnnotationForwardIndex {
         }
         if (termsFile.exists() && !termsFile.delete())
             throw new BlackLabRuntimeException("Could not delete file: " + termsFile);
+        File termIndexFile = TermsReaderMapped.termIndexFile(termsFile);
+        if (termIndexFile.exists() && !termIndexFile.delete())
+            throw new BlackLabRuntimeException("Could not delete file: " + termIndexFile);
         if (tocFile.exists() && !tocFile.delete())
             throw new BlackLabRuntimeException("Could not delete file: " + tocFile);
         if (toc != null)
@@ -255,11 +296,29 @@ class AnnotationForwardIndexWriter extends AnnotationForwardIndex {
             if (writeTokensFp != null)
                 writeTokensFp.close();
 
+            // If we never unpacked, the packed tokens file is still up to date
+            if (packed == null && packTokensFile())
+                writePackedTokensFile();
+
         } catch (Exception e) {
             throw BlackLabRuntimeException.wrap(e);
         }
     }
 
+    /**
+     * Replace the tokens file with a bit-packed tokens file.
+     *
+     * @throws IOException on error
+     */
+    private void writePackedTokensFile() throws IOException {
+        PackedTokens.pack(tokensFile, packedTokensFile, tokenFileEndPosition);
+        VersionFile.write(tocFile.getParentFile(), "fi", PACKED_TOKENS_VERSION);
+        if (!tokensFile.delete()) {
+            // (e.g. on Windows, because it's still mapped; we'll use the packed file anyway)
+            logger.warn("Could not delete file: " + tokensFile);
+        }
+    }
+
     /**
      * Find the best-fitting deleted entry for the specified length
      * 
@@ -277,7 +336,7 @@ class AnnotationForwardIndexWriter extends AnnotationForwardIndex {
     }
 
     @Override
-    public synchronized int addDocument(List<String> content, List<Integer> posIncr) {
+    public int addDocument(List<String> content, List<Integer> posIncr) {
         // Calculate the total number of tokens we need to store, based on the number
         // of positions (we store 1 token per position, regardless of whether we have
         // none, one or multiple values for that position)
@@ -293,6 +352,50 @@ class AnnotationForwardIndexWriter extends AnnotationForwardIndex {
             }
         }
 
+        // Determine the token ids. Terms can assign ids from several threads at once,
+        // so we do this before we lock the forward index to store the document.
+        int[] tokenIds = new int[numberOfTokens];
+        int tokenIdsIndex = 0;
+        Iterator<String> contentIt = content.iterator();
+        Iterator<Integer> posIncrIt = posIncr == null ? null : posIncr.iterator();
+        int emptyStringTokenId = posIncrIt != null ? terms.indexOf("") : -1;
+        while (contentIt.hasNext()) {
+            String token = contentIt.next();
+            int pi = posIncrIt == null ? 1 : posIncrIt.next();
+            if (pi == 0)
+                continue; // we only store the first token at any position
+            if (pi > 1) {
+                // Skipped a few tokens; add empty tokens for these positions
+                for (int i = 0; i < pi - 1; i++) {
+                    tokenIds[tokenIdsIndex] = emptyStringTokenId;
+                    tokenIdsIndex++;
+                }
+            }
+
+            tokenIds[tokenIdsIndex] = terms.indexOf(token);
+            tokenIdsIndex++;
+        }
+        if (tokenIdsIndex != numberOfTokens)
+            throw new BlackLabRuntimeException(
+                    "tokenIdsIndex != numberOfTokens (" + tokenIdsIndex + " != " + numberOfTokens + ")");
+
+        return storeDocument(tokenIds);
+    }
+
+    /**
+     * Store a document's token ids in the tokens file and update the ToC.
+     *
+     * @param tokenIds the document's token ids
+     * @return the document's forward index id
+     */
+    private synchronized int storeDocument(int[] tokenIds) {
+        try {
+            unpackTokensFile();
+        } catch (IOException e) {
+            throw BlackLabRuntimeException.wrap(e);
+        }
+        int numberOfTokens = tokenIds.length;
+
         // Decide where we're going to store this document,
         // and update ToC
         TocEntry gap = findBestFittingGap(numberOfTokens);
@@ -363,31 +466,6 @@ class AnnotationForwardIndexWriter extends AnnotationForwardIndex {
                 tokenFileEndPosition = end;
 
             // Write the token ids
-            // (first fill the buffer, then write the buffer in 1 call)
-            int[] tokenIds = new int[numberOfTokens];
-            int tokenIdsIndex = 0;
-            Iterator<String> contentIt = content.iterator();
-            Iterator<Integer> posIncrIt = posIncr == null ? null : posIncr.iterator();
-            int emptyStringTokenId = posIncrIt != null ? terms.indexOf("") : -1;
-            while (contentIt.hasNext()) {
-                String token = contentIt.next();
-                int pi = posIncrIt == null ? 1 : posIncrIt.next();
-                if (pi == 0)
-                    continue; // we only store the first token at any position
-                if (pi > 1) {
-                    // Skipped a few tokens; add empty tokens for these positions
-                    for (int i = 0; i < pi - 1; i++) {
-                        tokenIds[tokenIdsIndex] = emptyStringTokenId;
-                        tokenIdsIndex++;
-                    }
-                }
-
-                tokenIds[tokenIdsIndex] = terms.indexOf(token);
-                tokenIdsIndex++;
-            }
-            if (tokenIdsIndex != numberOfTokens)
-                throw new BlackLabRuntimeException(
-                        "tokenIdsIndex != numberOfTokens (" + tokenIdsIndex + " != " + numberOfTokens + ")");
             writeBuffer.put(tokenIds);
 
             return newDocumentFiid;
@@ -435,6 +513,12 @@ class AnnotationForwardIndexWriter extends AnnotationForwardIndex {
 
                 int snippetLength = end[i] - start[i];
                 int[] snippet = new int[snippetLength];
+                if (packed != null) {
+                    // Still bit-packed; read the token ids from there
+                    packed.get(e.offset + start[i], snippet, 0, snippetLength);
+                    result.add(snippet);
+                    continue;
+                }
                 // Chunks are not mapped (index mode).
                 // Explicitly read the part we require from disk into an int buffer.
                 long offset = e.offset + start[i];
@@ -4,8 +4,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
@@ -21,6 +22,46 @@ import nl.inl.blacklab.search.indexmetadata.Annotation;
  */
 public class FiidLookup {
 
+    /**
+     * Dense arrays of fiids, per index reader and fiid field.
+     *
+     * These are built once per IndexReader and shared between all FiidLookup instances, so
+     * looking up a fiid is just an array access, regardless of the number of segments.
+     * Index readers never change, so the arrays never have to be invalidated; they are
+     * garbage collected along with the reader.
+     *
+     * We only hold the lock on this map to find the map for a reader; each field's
+     * array is read while holding only the lock of its holder, so reading one
+     * field doesn't block lookups for other readers and fields.
+     */
+    private static final Map<IndexReader, Map<String, FiidsHolder>> fiidsPerReader = new WeakHashMap<>();
+
+    /**
+     * Reads the fiids for a field on first use.
+     *
+     * (Doesn't keep a reference to the reader, as that would prevent the
+     * WeakHashMap entry from ever being removed.)
+     */
+    private static final class FiidsHolder {
+
+        private final String fiidFieldName;
+
+        private int[] fiids;
+
+        FiidsHolder(String fiidFieldName) {
+            this.fiidFieldName = fiidFieldName;
+        }
+
+        synchronized int[] get(IndexReader reader) {
+            if (fiids == null)
+                fiids = readFiids(reader, fiidFieldName);
+            return fiids;
+        }
+    }
+
+    /** Value in fiidsPerReader if we don't have DocValues for the field (use stored field instead) */
+    private static final int[] NO_FIIDS = new int[0];
+
     /**
      * Index reader, for getting documents (for translating from Lucene doc id to
      * fiid)
@@ -33,14 +74,31 @@ public class FiidLookup {
      */
     private String fiidFieldName;
 
-    /** The DocValues per segment (keyed by docBase) */
-    private Map<Integer, NumericDocValues> cachedFiids;
+    /** The fiid for each Lucene document id, or null if we have to use the stored field */
+    private int[] cachedFiids;
 
     public FiidLookup(IndexReader reader, Annotation annotation) {
         this.fiidFieldName = annotation.forwardIndexIdField();
         this.reader = reader;
-        cachedFiids = new TreeMap<>();
+        Map<String, FiidsHolder> fiidsPerField;
+        synchronized (fiidsPerReader) {
+            fiidsPerField = fiidsPerReader.computeIfAbsent(reader, r -> new ConcurrentHashMap<>());
+        }
+        int[] fiids = fiidsPerField.computeIfAbsent(fiidFieldName, FiidsHolder::new).get(reader);
+        cachedFiids = fiids == NO_FIIDS ? null : fiids;
+    }
+
+    /**
+     * Read all fiids from the DocValues into a dense array.
+     *
+     * @param reader index reader
+     * @param fiidFieldName fiid field
+     * @return array of fiids indexed by Lucene document id, or NO_FIIDS if there are no DocValues
+     */
+    private static int[] readFiids(IndexReader reader, String fiidFieldName) {
         try {
+            int[] fiids = new int[reader.maxDoc()];
+            boolean foundDocValues = false;
             for (LeafReaderContext rc : reader.leaves()) {
                 LeafReader r = rc.reader();
                 NumericDocValues numericDocValues = r.getNumericDocValues(fiidFieldName);
@@ -53,43 +111,33 @@ public class FiidLookup {
                     numericDocValues = uninv.getNumericDocValues(fiidFieldName);
                 }
                 if (numericDocValues != null) {
-                    cachedFiids.put(rc.docBase, numericDocValues);
+                    foundDocValues = true;
+                    for (int i = 0; i < r.maxDoc(); i++) {
+                        fiids[rc.docBase + i] = (int)numericDocValues.get(i);
+                    }
                 }
             }
-            if (cachedFiids.isEmpty()) {
+            if (!foundDocValues) {
                 // We don't actually have DocValues.
-                cachedFiids = null;
-            } else {
-                // See if there are actual values stored
-                // [this check was introduced when we used the old FieldCache, no longer necessary?]
-                int numToCheck = Math.min(AnnotationForwardIndex.NUMBER_OF_CACHE_ENTRIES_TO_CHECK, reader.maxDoc());
-                if (!hasFiids(numToCheck))
-                    cachedFiids = null;
+                return NO_FIIDS;
             }
+            // See if there are actual values stored
+            // [this check was introduced when we used the old FieldCache, no longer necessary?]
+            // (NOTE: we don't check if document wasn't deleted, but that shouldn't matter here)
+            int numToCheck = Math.min(AnnotationForwardIndex.NUMBER_OF_CACHE_ENTRIES_TO_CHECK, fiids.length);
+            for (int i = 0; i < numToCheck; i++) {
+                if (fiids[i] != 0)
+                    return fiids;
+            }
+            return NO_FIIDS;
         } catch (IOException e) {
-            BlackLabRuntimeException.wrap(e);
+            throw BlackLabRuntimeException.wrap(e);
         }
     }
 
     public int get(int docId) {
-        if (cachedFiids != null) {
-            // Find the fiid in the correct segment
-            Entry<Integer, NumericDocValues> prev = null;
-            for (Entry<Integer, NumericDocValues> e : cachedFiids.entrySet()) {
-                Integer docBase = e.getKey();
-                if (docBase > docId) {
-                    // Previous segment (the highest docBase lower than docId) is the right one
-                    Integer prevDocBase = prev.getKey();
-                    NumericDocValues prevDocValues = prev.getValue();
-                    return (int)prevDocValues.get(docId - prevDocBase);
-                }
-                prev = e;
-            }
-            // Last segment is the right one
-            Integer prevDocBase = prev.getKey();
-            NumericDocValues prevDocValues = prev.getValue();
-            return (int)prevDocValues.get(docId - prevDocBase);
-        }
+        if (cachedFiids != null)
+            return cachedFiids[docId];
 
         // Not cached; find fiid by reading stored value from Document now
         try {
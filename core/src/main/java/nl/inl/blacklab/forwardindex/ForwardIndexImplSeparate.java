@@ -192,7 +192,10 @@ public class ForwardIndexImplSeparate implements ForwardIndex {
         return afi;
     }
 
-    /** For common annotations, always build term indexes right away. For less common ones, do it on demand. Saves memory and startup time. */
+    /**
+     * For common annotations, always build term indexes right away. For less common ones, do it on demand. Saves memory and startup time.
+     * (only applies to older indexes; if the term index was written at index time, we just map it)
+     */
     private static final Set<String> BUILD_TERMINDEXES_ON_INIT = new HashSet<>(Arrays.asList("word", "lemma", "pos")); 
 
     private static boolean buildTermIndexesOnInit(Annotation annotation) {
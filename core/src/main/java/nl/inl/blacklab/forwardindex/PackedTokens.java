@@ -0,0 +1,181 @@
+package nl.inl.blacklab.forwardindex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A tokens file with each token id bit-packed to the number of bits needed for
+ * the largest token id in the file.
+ *
+ * Low-cardinality annotations (e.g. part of speech, punctuation) need only a few
+ * bits per token instead of 32, so the forward index causes a lot less I/O and
+ * takes up a lot less room in the page cache.
+ *
+ * Because each token takes the same number of bits, the tokens file layout is
+ * the same as that of the regular tokens file (including the gaps left by
+ * deleted documents), so the ToC offsets remain valid and we can still read any
+ * token directly. The file is mapped in chunks; the chunk table serves as our
+ * block index.
+ *
+ * File format: int bits per token, long number of tokens, then the packed token
+ * ids plus one (so -1, "no token", is stored as 0), most significant bit first,
+ * followed by padding so we can always read a long at the position of any
+ * token.
+ *
+ * Instances are immutable and may be used from several threads.
+ */
+class PackedTokens {
+
+    /** Size of the header: bits per token and number of tokens */
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+    /** Padding at the end of the file */
+    private static final int PADDING = Long.BYTES;
+
+    /**
+     * Pack a regular tokens file.
+     *
+     * @param tokensFile tokens file to pack
+     * @param packedFile where to write the packed tokens file
+     * @param numberOfTokens number of tokens in the tokens file (the file may be longer)
+     * @throws IOException on error
+     */
+    static void pack(File tokensFile, File packedFile, long numberOfTokens) throws IOException {
+        // Find the largest token id, so we know how many bits we need
+        int maxValue = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tokensFile)))) {
+            for (long i = 0; i < numberOfTokens; i++)
+                maxValue = Math.max(maxValue, in.readInt() + 1);
+        }
+        int bitsPerToken = Math.max(1, Integer.SIZE - Integer.numberOfLeadingZeros(maxValue));
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tokensFile)));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(packedFile)))) {
+            out.writeInt(bitsPerToken);
+            out.writeLong(numberOfTokens);
+            long bits = 0;
+            int numberOfBits = 0;
+            for (long i = 0; i < numberOfTokens; i++) {
+                bits = (bits << bitsPerToken) | (in.readInt() + 1);
+                numberOfBits += bitsPerToken;
+                while (numberOfBits >= Byte.SIZE) {
+                    numberOfBits -= Byte.SIZE;
+                    out.write((int) (bits >>> numberOfBits));
+                }
+                bits &= (1L << numberOfBits) - 1;
+            }
+            if (numberOfBits > 0)
+                out.write((int) (bits << (Byte.SIZE - numberOfBits)));
+            out.write(new byte[PADDING]);
+        }
+    }
+
+    /**
+     * Unpack a packed tokens file into a regular tokens file.
+     *
+     * @param packedFile packed tokens file
+     * @param tokensFile where to write the regular tokens file
+     * @throws IOException on error
+     */
+    static void unpack(File packedFile, File tokensFile) throws IOException {
+        PackedTokens packed = new PackedTokens(packedFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tokensFile)))) {
+            for (long i = 0; i < packed.numberOfTokens; i++)
+                out.writeInt(packed.get(i));
+        }
+    }
+
+    /** Number of bits per token */
+    private final int bitsPerToken;
+
+    /** Mask for the bits of a token */
+    private final long mask;
+
+    /** Number of tokens in the file */
+    private final long numberOfTokens;
+
+    /** Size of our chunks in bytes (not counting the overlap with the next chunk) */
+    private final int chunkSize;
+
+    /**
+     * Mappings of the packed tokens. Each overlaps the next one by the size of the
+     * padding, so we can always read a long.
+     *
+     * NOTE: these buffers are shared between threads, so we should only ever use
+     * absolute reads on them, never change their position.
+     */
+    private final ByteBuffer[] chunks;
+
+    /**
+     * Map a packed tokens file.
+     *
+     * @param packedFile packed tokens file
+     * @throws IOException on error
+     */
+    PackedTokens(File packedFile) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(packedFile, "r");
+                FileChannel fc = raf.getChannel()) {
+            ByteBuffer header = fc.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+            bitsPerToken = header.getInt();
+            numberOfTokens = header.getLong();
+            mask = (1L << bitsPerToken) - 1;
+            chunkSize = AnnotationForwardIndex.preferredChunkSizeBytes - PADDING;
+            long dataSize = fc.size() - HEADER_SIZE - PADDING;
+            int numberOfChunks = (int) Math.max(1, (dataSize + chunkSize - 1) / chunkSize);
+            chunks = new ByteBuffer[numberOfChunks];
+            for (int i = 0; i < numberOfChunks; i++) {
+                long start = (long) i * chunkSize;
+                long size = Math.min(chunkSize, dataSize - start) + PADDING;
+                chunks[i] = fc.map(MapMode.READ_ONLY, HEADER_SIZE + start, size);
+            }
+        }
+    }
+
+    /**
+     * Get a token id.
+     *
+     * @param index position of the token in the file
+     * @return token id
+     */
+    int get(long index) {
+        long bitPosition = index * bitsPerToken;
+        long bytePosition = bitPosition >>> 3;
+        int shift = (int) (bitPosition & 7);
+        long bits = chunks[(int) (bytePosition / chunkSize)].getLong((int) (bytePosition % chunkSize));
+        return (int) ((bits >>> (Long.SIZE - shift - bitsPerToken)) & mask) - 1;
+    }
+
+    /**
+     * Get a number of consecutive token ids.
+     *
+     * @param index position of the first token in the file
+     * @param dest where to store the token ids
+     * @param destOffset where in dest to start storing
+     * @param n number of tokens to get
+     */
+    void get(long index, int[] dest, int destOffset, int n) {
+        for (int i = 0; i < n; i++)
+            dest[destOffset + i] = get(index + i);
+    }
+
+    /**
+     * Get the number of bytes needed to store a number of tokens.
+     *
+     * @param n number of tokens
+     * @return number of bytes
+     */
+    long bytesForTokens(int n) {
+        return ((long) n * bitsPerToken + 7) / 8;
+    }
+
+}
@@ -235,6 +235,8 @@ public abstract class Terms {
     protected abstract void setBlockBasedFile(boolean useBlockBasedTermsFile);
 
     public static Terms openForReading(Collators collators, File termsFile, boolean useBlockBasedTermsFile, boolean buildTermIndexesOnInit) {
+        if (useBlockBasedTermsFile && TermsReaderMapped.canOpen(termsFile))
+            return new TermsReaderMapped(collators, termsFile);
         return new TermsReader(collators, termsFile, useBlockBasedTermsFile, buildTermIndexesOnInit);
     }
 
@@ -242,9 +242,14 @@ class TermsReader extends Terms {
             // terms to find a specific one. (only needed to deserialize sort/group criteria from URL)
             idPerSortPosition = new int[numberOfTerms];
             idPerSortPositionInsensitive = new int[numberOfTerms];
+            Arrays.fill(idPerSortPosition, -1);
             Arrays.fill(idPerSortPositionInsensitive, -1);
             for (int i = 0; i < numberOfTerms; i++) {
-                idPerSortPosition[sortPositionPerId[i]] = i;
+                // (terms the collator considers identical have the same sort position)
+                int y = sortPositionPerId[i];
+                while (idPerSortPosition[y] >= 0)
+                    y++;
+                idPerSortPosition[y] = i;
                 int x = sortPositionPerIdInsensitive[i];
                 // Multiple terms can have the same (case-insensitive)
                 // sort position. Skip over previous terms so each term is
@@ -0,0 +1,438 @@
+package nl.inl.blacklab.forwardindex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.collections.api.set.primitive.MutableIntSet;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
+import nl.inl.blacklab.search.indexmetadata.MatchSensitivity;
+
+/**
+ * Terms implementation that keeps the terms file memory-mapped instead of
+ * reading it into the heap.
+ *
+ * Term strings are decoded from the mapped blocks when asked for, and the sort
+ * position arrays are read from the mapping directly. A term index file
+ * written next to the terms file at index time (see
+ * {@link #writeTermIndex(File, String[], int[], int[], long)}) is mapped as
+ * well. It contains an open-addressing hash table to look up term ids, and the
+ * groups of terms that are equal case- and diacritics-insensitively, in sort
+ * order, to look those up. This means opening a forward index costs almost no
+ * time or heap (no collation keys are calculated), no matter how many terms it
+ * has.
+ *
+ * Only the block-based terms file format is supported. If there's no term
+ * index file, or it doesn't match the terms file, we use {@link TermsReader}.
+ *
+ * This implementation is thread-safe.
+ */
+class TermsReaderMapped extends Terms {
+
+    protected static final Logger logger = LogManager.getLogger(TermsReaderMapped.class);
+
+    /** Version of the term index file format */
+    private static final int TERM_INDEX_VERSION = 2;
+
+    /** Term index header: version, number of terms, terms file length, hash table size, number of groups */
+    private static final int TERM_INDEX_HEADER_SIZE = 4 * BYTES_PER_INT + Long.BYTES;
+
+    /** Hash table slot that doesn't contain a term */
+    private static final int EMPTY_SLOT = -1;
+
+    /**
+     * Get the term index file belonging to a terms file.
+     *
+     * @param termsFile terms file
+     * @return term index file
+     */
+    static File termIndexFile(File termsFile) {
+        String name = termsFile.getName().replaceAll("\\.dat$", "");
+        return new File(termsFile.getParentFile(), name + ".idx");
+    }
+
+    /**
+     * Write the structures we use to look up terms.
+     *
+     * After the header, the file contains:
+     * - the hash table to look up term ids. Slots contain a term id or -1. A term
+     *   is in the first free slot at or after the one its hash points to.
+     * - the first case-insensitive sort position of each group of terms that are
+     *   equal insensitively (followed by the number of terms, so the number of
+     *   terms in a group is the difference with the next one)
+     * - the term id for each case-insensitive sort position
+     *
+     * @param termIndexFile where to write the term index
+     * @param terms the terms, by id
+     * @param idPerSortPositionInsensitive term id for each case-insensitive sort position
+     * @param sortPositionPerIdInsensitive case-insensitive sort position for each term id
+     * @param termsFileLength length of the terms file this index belongs to
+     * @throws IOException on error
+     */
+    static void writeTermIndex(File termIndexFile, String[] terms, int[] idPerSortPositionInsensitive,
+            int[] sortPositionPerIdInsensitive, long termsFileLength) throws IOException {
+        int tableSize = hashTableSize(terms.length);
+        if (tableSize < 0) {
+            // Too many terms to map the table; we'll read the terms into memory instead
+            if (termIndexFile.exists() && !termIndexFile.delete())
+                throw new BlackLabRuntimeException("Could not delete file: " + termIndexFile);
+            return;
+        }
+        int[] table = new int[tableSize];
+        Arrays.fill(table, EMPTY_SLOT);
+        for (int id = 0; id < terms.length; id++) {
+            int slot = hash(terms[id]) & (tableSize - 1);
+            while (table[slot] != EMPTY_SLOT)
+                slot = (slot + 1) & (tableSize - 1);
+            table[slot] = id;
+        }
+        IntArrayList groupFirst = new IntArrayList();
+        for (int i = 0; i < terms.length; i++) {
+            if (sortPositionPerIdInsensitive[idPerSortPositionInsensitive[i]] == i)
+                groupFirst.add(i); // first term with this sort position
+        }
+        groupFirst.add(terms.length);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(termIndexFile)))) {
+            out.writeInt(TERM_INDEX_VERSION);
+            out.writeInt(terms.length);
+            out.writeLong(termsFileLength);
+            out.writeInt(tableSize);
+            out.writeInt(groupFirst.size() - 1);
+            for (int slot: table)
+                out.writeInt(slot);
+            for (int i = 0; i < groupFirst.size(); i++)
+                out.writeInt(groupFirst.getInt(i));
+            for (int id: idPerSortPositionInsensitive)
+                out.writeInt(id);
+        }
+    }
+
+    /**
+     * Can we open this terms file with this class?
+     *
+     * @param termsFile terms file
+     * @return true if there's a term index that matches the terms file
+     */
+    static boolean canOpen(File termsFile) {
+        File termIndexFile = termIndexFile(termsFile);
+        if (!termsFile.exists() || !termIndexFile.exists())
+            return false;
+        try (DataInputStream indexIn = new DataInputStream(new FileInputStream(termIndexFile));
+                DataInputStream termsIn = new DataInputStream(new FileInputStream(termsFile))) {
+            if (indexIn.readInt() != TERM_INDEX_VERSION)
+                return false;
+            int n = indexIn.readInt();
+            long termsFileLength = indexIn.readLong();
+            // (on Windows, the terms file isn't truncated, so it may be longer)
+            boolean lengthMatches = File.separatorChar == '\\' ? termsFile.length() >= termsFileLength : termsFile.length() == termsFileLength;
+            return lengthMatches && termsIn.readInt() == n;
+        } catch (IOException e) {
+            logger.warn("Could not read term index " + termIndexFile + ", reading terms into memory", e);
+            return false;
+        }
+    }
+
+    /**
+     * Size of the hash table for a number of terms: a power of two, at most half full.
+     *
+     * @param n number of terms
+     * @return hash table size, or -1 if the table would be too large to map
+     */
+    private static int hashTableSize(int n) {
+        long size = Long.highestOneBit(Math.max(1, 2L * n - 1)) << 1;
+        return size * BYTES_PER_INT > DEFAULT_MAX_MAP_SIZE ? -1 : (int) size;
+    }
+
+    private static int hash(String term) {
+        int h = term.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private final File termsFile;
+
+    /** Have we mapped the files? */
+    private volatile boolean initialized = false;
+
+    /** Id of the first term in each block */
+    private int[] blockFirstTerm;
+
+    /** Each block of the terms file: number of terms, offsets, data length, data */
+    private ByteBuffer[] blocks;
+
+    /** The sorting position for each term id */
+    private IntBuffer sortPositionPerId;
+
+    /** The case-insensitive sorting position for each term id */
+    private IntBuffer sortPositionPerIdInsensitive;
+
+    /** Hash table with term ids */
+    private IntBuffer hashTable;
+
+    /** Number of groups of terms that are equal insensitively */
+    private int numberOfGroups;
+
+    /** First case-insensitive sorting position of each group (plus the number of terms at the end) */
+    private IntBuffer groupFirstSortPosition;
+
+    /** The term id for each case-insensitive sorting position */
+    private IntBuffer idPerSortPositionInsensitive;
+
+    TermsReaderMapped(Collators collators, File termsFile) {
+        this.collator = collators.get(MatchSensitivity.SENSITIVE);
+        this.collatorInsensitive = collators.get(MatchSensitivity.INSENSITIVE);
+        setBlockBasedFile(true);
+        if (termsFile == null || !termsFile.exists())
+            throw new IllegalArgumentException("Terms file not found: " + termsFile);
+        this.termsFile = termsFile;
+    }
+
+    @Override
+    public synchronized void initialize() {
+        if (initialized)
+            return;
+        try (RandomAccessFile raf = new RandomAccessFile(termsFile, "r");
+                FileChannel fc = raf.getChannel()) {
+            // Map each block of terms
+            int n = readInt(fc, 0);
+            int[] firstTerm = new int[1];
+            ByteBuffer[] blockBufs = new ByteBuffer[1];
+            int numberOfBlocks = 0;
+            long position = BYTES_PER_INT;
+            int currentTerm = 0;
+            while (currentTerm < n) {
+                int numTermsThisBlock = readInt(fc, position);
+                if (numTermsThisBlock <= 0)
+                    throw new BlackLabRuntimeException("Error in terms file " + termsFile + ": empty block");
+                int dataBlockSize = readInt(fc, position + (long) BYTES_PER_INT * (numTermsThisBlock + 1));
+                long blockLength = (long) BYTES_PER_INT * (numTermsThisBlock + 2) + dataBlockSize;
+                if (numberOfBlocks == blockBufs.length) {
+                    firstTerm = Arrays.copyOf(firstTerm, numberOfBlocks * 2);
+                    blockBufs = Arrays.copyOf(blockBufs, numberOfBlocks * 2);
+                }
+                firstTerm[numberOfBlocks] = currentTerm;
+                blockBufs[numberOfBlocks] = fc.map(MapMode.READ_ONLY, position, blockLength);
+                numberOfBlocks++;
+                currentTerm += numTermsThisBlock;
+                position += blockLength;
+            }
+            blockFirstTerm = Arrays.copyOf(firstTerm, numberOfBlocks);
+            blocks = Arrays.copyOf(blockBufs, numberOfBlocks);
+
+            // Map the sort position arrays (skipping the unused arrays before each)
+            long arrayLength = (long) BYTES_PER_INT * n;
+            sortPositionPerId = fc.map(MapMode.READ_ONLY, position + arrayLength, arrayLength).asIntBuffer();
+            sortPositionPerIdInsensitive = fc.map(MapMode.READ_ONLY, position + 3 * arrayLength, arrayLength).asIntBuffer();
+
+            mapTermIndex(n);
+            numberOfTerms = n;
+        } catch (IOException e) {
+            throw BlackLabRuntimeException.wrap(e);
+        }
+        initialized = true;
+    }
+
+    private void mapTermIndex(int n) throws IOException {
+        File termIndexFile = termIndexFile(termsFile);
+        try (RandomAccessFile raf = new RandomAccessFile(termIndexFile, "r");
+                FileChannel fc = raf.getChannel()) {
+            if (readInt(fc, 0) != TERM_INDEX_VERSION || readInt(fc, BYTES_PER_INT) != n)
+                throw new BlackLabRuntimeException("Term index " + termIndexFile + " doesn't match terms file");
+            int tableSize = readInt(fc, TERM_INDEX_HEADER_SIZE - 2 * BYTES_PER_INT);
+            numberOfGroups = readInt(fc, TERM_INDEX_HEADER_SIZE - BYTES_PER_INT);
+            long position = TERM_INDEX_HEADER_SIZE;
+            hashTable = fc.map(MapMode.READ_ONLY, position, (long) BYTES_PER_INT * tableSize).asIntBuffer();
+            position += (long) BYTES_PER_INT * tableSize;
+            groupFirstSortPosition = fc.map(MapMode.READ_ONLY, position, (long) BYTES_PER_INT * (numberOfGroups + 1)).asIntBuffer();
+            position += (long) BYTES_PER_INT * (numberOfGroups + 1);
+            idPerSortPositionInsensitive = fc.map(MapMode.READ_ONLY, position, (long) BYTES_PER_INT * n).asIntBuffer();
+        }
+    }
+
+    private static int readInt(FileChannel fc, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BYTES_PER_INT);
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, position + buf.position()) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+        return buf.getInt(0);
+    }
+
+    @Override
+    public int indexOf(String term) {
+        if (!initialized)
+            initialize();
+        byte[] termBytes = term.getBytes(DEFAULT_CHARSET);
+        int mask = hashTable.capacity() - 1;
+        int slot = hash(term) & mask;
+        while (true) {
+            int id = hashTable.get(slot);
+            if (id == EMPTY_SLOT)
+                return NO_TERM; // term not found
+            if (termBytesEqual(id, termBytes))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @Override
+    public void indexOf(MutableIntSet results, String term, MatchSensitivity sensitivity) {
+        if (!initialized)
+            initialize();
+
+        // NOTE: we don't do diacritics and case-sensitivity separately, but could in the future.
+        //  right now, diacSensitive is ignored and caseSensitive is used for both.
+        if (sensitivity.isCaseSensitive()) {
+            // Case-/accent-sensitive. Look up the term's id.
+            results.add(indexOf(term));
+            return;
+        }
+
+        // Case-/accent-insensitive. Binary search for the matching group (comparing
+        // to the group's first term), then add all the terms in that group.
+        int lo = 0, hi = numberOfGroups - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int start = groupFirstSortPosition.get(mid);
+            int cmp = collatorInsensitive.compare(term, get(idPerSortPositionInsensitive.get(start)));
+            if (cmp < 0) {
+                hi = mid - 1;
+            } else if (cmp > 0) {
+                lo = mid + 1;
+            } else {
+                int end = groupFirstSortPosition.get(mid + 1);
+                for (int i = start; i < end; i++) {
+                    results.add(idPerSortPositionInsensitive.get(i));
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean termsEqual(int[] termId, MatchSensitivity sensitivity) {
+        if (!initialized)
+            initialize();
+
+        // NOTE: we don't do diacritics and case-sensitivity separately, but could in the future.
+        //  right now, diacSensitive is ignored and caseSensitive is used for both.
+        IntBuffer idLookup = sensitivity.isCaseSensitive() ? sortPositionPerId : sortPositionPerIdInsensitive;
+        int id0 = idLookup.get(termId[0]);
+        for (int i = 1; i < termId.length; i++) {
+            if (termId[i] == -1 || id0 != idLookup.get(termId[i]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        throw new BlackLabRuntimeException("Cannot clear, not in index mode");
+    }
+
+    @Override
+    public void write(File termsFile) {
+        throw new BlackLabRuntimeException("Term.write(): not in index mode!");
+    }
+
+    private int blockIndex(int id) {
+        int block = Arrays.binarySearch(blockFirstTerm, id);
+        return block >= 0 ? block : -block - 2;
+    }
+
+    /**
+     * Check whether a term's bytes are equal to the given bytes.
+     *
+     * @param id term id
+     * @param termBytes bytes to compare with
+     * @return true if they are equal
+     */
+    private boolean termBytesEqual(int id, byte[] termBytes) {
+        int block = blockIndex(id);
+        ByteBuffer buf = blocks[block];
+        int i = id - blockFirstTerm[block];
+        int offset = buf.getInt(BYTES_PER_INT * (i + 1));
+        int length = buf.getInt(BYTES_PER_INT * (i + 2)) - offset;
+        if (length != termBytes.length)
+            return false;
+        int dataStart = BYTES_PER_INT * (buf.getInt(0) + 2) + offset;
+        for (int j = 0; j < length; j++) {
+            if (buf.get(dataStart + j) != termBytes[j])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String get(int index) {
+        if (!initialized)
+            initialize();
+        assert index >= 0 && index < numberOfTerms : "Term index out of range (" + index + ", numterms = "
+                + numberOfTerms + ")";
+        int block = blockIndex(index);
+        // (duplicate so we can read the data without affecting other threads)
+        ByteBuffer buf = blocks[block].duplicate();
+        int i = index - blockFirstTerm[block];
+        int offset = buf.getInt(BYTES_PER_INT * (i + 1));
+        byte[] termBytes = new byte[buf.getInt(BYTES_PER_INT * (i + 2)) - offset];
+        buf.position(BYTES_PER_INT * (buf.getInt(0) + 2) + offset);
+        buf.get(termBytes);
+        return new String(termBytes, DEFAULT_CHARSET);
+    }
+
+    @Override
+    public int numberOfTerms() {
+        if (!initialized)
+            initialize();
+        return numberOfTerms;
+    }
+
+    @Override
+    public void toSortOrder(int[] tokenId, int[] sortOrder, MatchSensitivity sensitivity) {
+        if (!initialized)
+            initialize();
+        IntBuffer sortPositions = sensitivity.isCaseSensitive() ? sortPositionPerId : sortPositionPerIdInsensitive;
+        for (int i = 0; i < tokenId.length; i++) {
+            if (tokenId[i] == NO_TERM)
+                sortOrder[i] = NO_TERM;
+            else
+                sortOrder[i] = sortPositions.get(tokenId[i]);
+        }
+    }
+
+    @Override
+    public int compareSortPosition(int tokenId1, int tokenId2, MatchSensitivity sensitivity) {
+        if (!initialized)
+            initialize();
+        IntBuffer sortPositions = sensitivity.isCaseSensitive() ? sortPositionPerId : sortPositionPerIdInsensitive;
+        return sortPositions.get(tokenId1) - sortPositions.get(tokenId2);
+    }
+
+    @Override
+    public int idToSortPosition(int id, MatchSensitivity sensitivity) {
+        if (!initialized)
+            initialize();
+        return sensitivity.isCaseSensitive() ? sortPositionPerId.get(id) : sortPositionPerIdInsensitive.get(id);
+    }
+
+    @Override
+    protected void setBlockBasedFile(boolean useBlockBasedTermsFile) {
+        if (!useBlockBasedTermsFile)
+            throw new UnsupportedOperationException("Only the block-based terms file is supported");
+        this.useBlockBasedTermsFile = true;
+    }
+
+}
@@ -26,13 +26,13 @@ import java.text.CollationKey;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.collections.api.set.primitive.MutableIntSet;
 
-import net.jcip.annotations.NotThreadSafe;
 import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
 import nl.inl.blacklab.search.indexmetadata.MatchSensitivity;
 
@@ -44,9 +44,11 @@ import nl.inl.blacklab.search.indexmetadata.MatchSensitivity;
  * This version of the class stores the terms in a more efficient way so it
  * saves and loads faster, and includes the case-insensitive sorting order.
  * 
- * This implementation is not thread-safe.
+ * Term ids may be assigned from several threads at once: terms are kept in a
+ * concurrent hash map, and collation and sorting are deferred until we write
+ * the terms file. Other methods should not be called while terms are being
+ * added.
  */
-@NotThreadSafe
 class TermsWriter extends Terms {
 
     protected static final Logger logger = LogManager.getLogger(TermsWriter.class);
@@ -61,10 +63,13 @@ class TermsWriter extends Terms {
     private static final int NUM_SORT_BUFFERS = 4;
 
     /**
-     * Mapping from term to its unique index number. We use a SortedMap because we
-     * wish to store the sorted index numbers later (to speed up sorting).
+     * Mapping from term to its unique index number. We determine the sort order
+     * when writing the terms file.
      */
-    Map<CollationKey, Integer> termIndex;
+    Map<String, Integer> termIndex;
+
+    /** Index number to assign to the next new term */
+    private AtomicInteger nextTermId = new AtomicInteger();
 
     /**
      * The maximum block size to use while writing the terms file. Usually around
@@ -76,9 +81,7 @@ class TermsWriter extends Terms {
         this.collator = collators.get(MatchSensitivity.SENSITIVE);
         this.collatorInsensitive = collators.get(MatchSensitivity.INSENSITIVE);
 
-        // Index mode: create a SortedMap based on the specified Collator.
-        // (used later to get the terms in sort order)
-        this.termIndex = new TreeMap<>();
+        this.termIndex = new ConcurrentHashMap<>();
 
         setBlockBasedFile(useBlockBasedTermsFile);
         if (termsFile != null && termsFile.exists())
@@ -87,23 +90,19 @@ class TermsWriter extends Terms {
         // We need to find id for term quickly while indexing
         // Build the case-sensitive term index.
         for (int i = 0; i < numberOfTerms; i++) {
-            termIndex.put(collator.getCollationKey(terms[i]), i);
+            termIndex.put(terms[i], i);
         }
+        nextTermId.set(termIndex.size());
         terms = null; // useless in index mode because we can't add to it, and we don't need it anyway
     }
 
     @Override
     public int indexOf(String term) {
-        synchronized (this) {
-            // Yes, use the available term index.
-            CollationKey key = this.collator.getCollationKey(term);
-            Integer index = termIndex.get(key);
-            if (index != null)
-                return index;
-            index = termIndex.size();
-            termIndex.put(key, index);
+        Integer index = termIndex.get(term);
+        if (index != null)
             return index;
-        }
+        // New term (or another thread just added it); only assigns an id once
+        return termIndex.computeIfAbsent(term, k -> nextTermId.getAndIncrement());
     }
 
     @Override
@@ -119,10 +118,10 @@ class TermsWriter extends Terms {
     @Override
     public synchronized void clear() {
         termIndex.clear();
+        nextTermId.set(0);
     }
 
     private synchronized void read(File termsFile) {
-        termIndex.clear();
         try {
             try (RandomAccessFile raf = new RandomAccessFile(termsFile, "r")) {
                 try (FileChannel fc = raf.getChannel()) {
@@ -137,6 +136,8 @@ class TermsWriter extends Terms {
 
     @Override
     public synchronized void write(File termsFile) {
+        int[] idPerSortPositionInsensitive;
+        int[] sortPositionPerIdInsensitive;
         try {
             // Open the terms file
             try (RandomAccessFile raf = new RandomAccessFile(termsFile, "rw")) {
@@ -146,8 +147,8 @@ class TermsWriter extends Terms {
                     // Fill the terms[] array
                     terms = new String[n];
                     long termStringsByteSize = 0;
-                    for (Map.Entry<CollationKey, Integer> entry : termIndex.entrySet()) {
-                        String term = entry.getKey().getSourceString();
+                    for (Map.Entry<String, Integer> entry : termIndex.entrySet()) {
+                        String term = entry.getKey();
                         terms[entry.getValue()] = term;
                         termStringsByteSize += term.getBytes(DEFAULT_CHARSET).length;
                     }
@@ -272,18 +273,25 @@ class TermsWriter extends Terms {
                             fc.truncate(fileLength);
                     }
 
-                    // Write the case-sensitive sort order
-                    // Because termIndex is a SortedMap, values are returned in key-sorted order.
-                    // In other words, the index numbers are in order of sorted terms, so the id
-                    // for 'aardvark' comes before the id for 'ape', etc.
-                    int i = 0;
-                    int[] sortPositionPerId = new int[n];
+                    // Sort the terms and write the case-sensitive sort order
+                    // (comparing collation keys, which is much faster than using the collator
+                    // for each comparison). Terms the collator considers identical get
+                    // identical sort positions.
+                    CollationKey[] keys = new CollationKey[n];
                     Integer[] insensitive = new Integer[n];
-                    for (int id : termIndex.values()) {
-                        sortPositionPerId[id] = i;
-                        insensitive[i] = id; // fill this so we can re-sort later, faster b/c already partially sorted
-                        i++;
+                    for (int id = 0; id < n; id++) {
+                        keys[id] = collator.getCollationKey(terms[id]);
+                        insensitive[id] = id;
                     }
+                    Arrays.sort(insensitive, (a, b) -> keys[a].compareTo(keys[b]));
+                    int i;
+                    int[] sortPositionPerId = new int[n];
+                    for (i = 0; i < n; i++) {
+                        boolean sameAsPrevious = i > 0 && keys[insensitive[i - 1]].compareTo(keys[insensitive[i]]) == 0;
+                        sortPositionPerId[insensitive[i]] = sameAsPrevious ? sortPositionPerId[insensitive[i - 1]] : i;
+                    }
+                    // (the insensitive array is now in sensitive sort order, so re-sorting it
+                    // below is faster because it is already partially sorted)
                     ib.put(new int[n]); // NOT USED ANYMORE, JUST FOR FILE COMPATIBILITY
                     ib.put(sortPositionPerId);
 
@@ -296,7 +304,8 @@ class TermsWriter extends Terms {
                     });
                     // Copy into the sortPositionPerIdInsensitive array, making sure that
                     // identical values get identical sort positions!
-                    int[] sortPositionPerIdInsensitive = new int[n];
+                    idPerSortPositionInsensitive = new int[n];
+                    sortPositionPerIdInsensitive = new int[n];
                     int sortPos = 0;
                     for (i = 0; i < n; i++) {
                         if (i == 0
@@ -306,11 +315,19 @@ class TermsWriter extends Terms {
                             sortPos = i;
                         }
                         sortPositionPerIdInsensitive[insensitive[i]] = sortPos;
+                        idPerSortPositionInsensitive[i] = insensitive[i];
                     }
                     ib.put(new int[n]); // NOT USED ANYMORE, JUST FOR FILE COMPATIBILITY
                     ib.put(sortPositionPerIdInsensitive);
                 }
             }
+
+            // Write the term index that allows us to map the terms file instead of reading it
+            File termIndexFile = TermsReaderMapped.termIndexFile(termsFile);
+            if (useBlockBasedTermsFile)
+                TermsReaderMapped.writeTermIndex(termIndexFile, terms, idPerSortPositionInsensitive, sortPositionPerIdInsensitive, termsFile.length());
+            else if (termIndexFile.exists() && !termIndexFile.delete())
+                throw new BlackLabRuntimeException("Could not delete file: " + termIndexFile);
         } catch (IOException e) {
             throw BlackLabRuntimeException.wrap(e);
         }
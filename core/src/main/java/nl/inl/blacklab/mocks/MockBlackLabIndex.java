@@ -24,6 +24,7 @@ import nl.inl.blacklab.search.ContentAccessor;
 import nl.inl.blacklab.search.Doc;
 import nl.inl.blacklab.search.DocImpl;
 import nl.inl.blacklab.search.DocTask;
+import nl.inl.blacklab.search.MetadataFieldOrdinals;
 import nl.inl.blacklab.search.QueryExecutionContext;
 import nl.inl.blacklab.search.QueryExplanation;
 import nl.inl.blacklab.search.TermFrequencyList;
@@ -196,6 +197,11 @@ public class MockBlackLabIndex implements BlackLabIndex {
         return null;
     }
 
+    @Override
+    public MetadataFieldOrdinals metadataFieldOrdinals(String fieldName) {
+        return null;
+    }
+
     @Override
     public MatchSensitivity defaultMatchSensitivity() {
         return MatchSensitivity.CASE_INSENSITIVE;
@@ -16,24 +16,17 @@
 package nl.inl.blacklab.resultproperty;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.index.LeafReader;
-import org.apache.lucene.index.LeafReaderContext;
-import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.util.BytesRef;
 
 import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
 import nl.inl.blacklab.search.BlackLabIndex;
 import nl.inl.blacklab.search.BlackLabIndexImpl;
+import nl.inl.blacklab.search.MetadataFieldOrdinals;
 import nl.inl.blacklab.search.indexmetadata.FieldType;
 import nl.inl.blacklab.search.indexmetadata.MetadataField;
 import nl.inl.blacklab.search.results.DocResult;
@@ -53,8 +46,8 @@ public class DocPropertyStoredField extends DocProperty {
     /** Display name for the field */
     private String friendlyName;
 
-    /** The DocValues per segment (keyed by docBase), or null if we don't have docValues */
-    private Map<Integer, SortedSetDocValues> docValues = null;
+    /** Value ordinals (read from DocValues), or null if we don't have DocValues */
+    private MetadataFieldOrdinals ordinals = null;
 
     /** Our index */
     private BlackLabIndex index;
@@ -64,6 +57,7 @@ public class DocPropertyStoredField extends DocProperty {
         this.index = prop.index;
         this.fieldName = prop.fieldName;
         this.friendlyName = prop.friendlyName;
+        this.ordinals = prop.ordinals;
     }
 
     public DocPropertyStoredField(BlackLabIndex index, String fieldName) {
@@ -75,61 +69,59 @@ public class DocPropertyStoredField extends DocProperty {
         this.fieldName = fieldName;
         this.friendlyName = friendlyName;
 
-        if (!fieldName.endsWith("Numeric")) { // TODO: use actual data from IndexMetadata
-            docValues = new TreeMap<>();
-            try {
-                if (index.reader() != null) { // skip for MockIndex (testing)
-                    for (LeafReaderContext rc : index.reader().leaves()) {
-                        LeafReader r = rc.reader();
-                        SortedSetDocValues sortedDocValues = r.getSortedSetDocValues(fieldName);
-                        if (sortedDocValues != null) {
-                            docValues.put(rc.docBase, sortedDocValues);
-                        }
-                    }
-                }
-                if (docValues.isEmpty()) {
-                    // We don't actually have DocValues.
-                    docValues = null;
-                }
-            } catch (IOException e) {
-                BlackLabRuntimeException.wrap(e);
-            }
+        if (!fieldName.endsWith("Numeric") && index.reader() != null) { // TODO: use actual data from IndexMetadata; skip for MockIndex (testing)
+            ordinals = index.metadataFieldOrdinals(fieldName);
         }
     }
 
+    /**
+     * Get the Lucene field name.
+     *
+     * @return field name
+     */
+    public String fieldName() {
+        return fieldName;
+    }
+
+    /**
+     * Are the values read from DocValues (as opposed to stored fields)?
+     *
+     * @return true if we have DocValues for this field
+     */
+    public boolean hasDocValues() {
+        return ordinals != null;
+    }
+
+    /**
+     * Get a document's value ordinal.
+     *
+     * Two documents have the same ordinal if and only if they have the same
+     * value. Only call this if {@link #hasDocValues()} returns true.
+     *
+     * @param docId Lucene document id
+     * @return ordinal
+     */
+    public int ordinal(int docId) {
+        return ordinals.ordinal(docId);
+    }
+
+    /**
+     * Get a document's sort key.
+     *
+     * Comparing sort keys is equivalent to comparing values (not taking
+     * reverse into account). Only call this if {@link #hasDocValues()} returns
+     * true.
+     *
+     * @param docId Lucene document id
+     * @return sort key
+     */
+    public int sortKey(int docId) {
+        return ordinals.sortKey(docId);
+    }
+
     public String get(int docId) {
-        if  (docValues != null) {
-            // Find the fiid in the correct segment
-            Entry<Integer, SortedSetDocValues> prev = null;
-            for (Entry<Integer, SortedSetDocValues> e : docValues.entrySet()) {
-                Integer docBase = e.getKey();
-                if (docBase > docId) {
-                    // Previous segment (the highest docBase lower than docId) is the right one
-                    Integer prevDocBase = prev.getKey();
-                    SortedSetDocValues prevDocValues = prev.getValue();
-                    prevDocValues.setDocument(docId - prevDocBase);
-                    long ord = prevDocValues.nextOrd();
-                    if (ord != SortedSetDocValues.NO_MORE_ORDS) {
-                        // Return first value
-                        BytesRef val = prevDocValues.lookupOrd(ord);
-                        return new String(val.bytes, val.offset, val.length, StandardCharsets.UTF_8);
-                    }
-                    return ""; // no values for this field in this doc
-                }
-                prev = e;
-            }
-            // Last segment is the right one
-            Integer prevDocBase = prev.getKey();
-            SortedSetDocValues prevDocValues = prev.getValue();
-            prevDocValues.setDocument(docId - prevDocBase);
-            long ord = prevDocValues.nextOrd();
-            if (ord != SortedSetDocValues.NO_MORE_ORDS) {
-                // Return first value
-                BytesRef val = prevDocValues.lookupOrd(ord);
-                return new String(val.bytes, val.offset, val.length, StandardCharsets.UTF_8);
-            }
-            return ""; // no values for this field in this doc
-        }
+        if (ordinals != null)
+            return ordinals.value(docId);
         // We don't have DocValues; just get the property from the document.
         try {
             String value = index.reader().document(docId).get(fieldName);
@@ -140,7 +132,7 @@ public class DocPropertyStoredField extends DocProperty {
     }
 
     public String get(PropertyValueDoc doc) {
-        if (doc.value().isLuceneDocCached()) {
+        if (ordinals == null && doc.value().isLuceneDocCached()) {
             // We have the Document already, get the property from there
             return doc.luceneDoc().get(fieldName);
         }
@@ -160,6 +152,10 @@ public class DocPropertyStoredField extends DocProperty {
      * @return 0 if equal, negative if a < b, positive if a > b.
      */
     public int compare(int docId1, int docId2) {
+        if (ordinals != null) {
+            int cmp = Integer.compare(ordinals.sortKey(docId1), ordinals.sortKey(docId2));
+            return reverse ? -cmp : cmp;
+        }
         String sa = get(docId1);
         String sb = get(docId2);
         if (sa.isEmpty()) { // sort empty string at the end
@@ -182,6 +178,8 @@ public class DocPropertyStoredField extends DocProperty {
      */
     @Override
     public int compare(DocResult a, DocResult b) {
+        if (ordinals != null)
+            return compare(a.identity().id(), b.identity().id());
         String sa = a.identity().luceneDoc().get(fieldName);
         if (sa == null)
             sa = "";
@@ -31,6 +31,7 @@ import nl.inl.blacklab.search.results.ContextSize;
 import nl.inl.blacklab.search.results.Contexts;
 import nl.inl.blacklab.search.results.Hit;
 import nl.inl.blacklab.search.results.Hits;
+import nl.inl.blacklab.search.results.HitsArrays;
 import nl.inl.blacklab.search.results.Results;
 
 /**
@@ -189,7 +190,7 @@ public abstract class HitProperty implements ResultProperty<Hit> {
     
             // Unless the client sets different context indices, assume we got the ones we wanted in the correct order
             if (contexts != null)
-                this.contextIndices = IntStream.range(0, contexts.size()).boxed().collect(Collectors.toList());
+                this.contextIndices = IntStream.range(0, contexts.annotations().size()).boxed().collect(Collectors.toList());
         }
         return this;
     }
@@ -224,6 +225,104 @@ public abstract class HitProperty implements ResultProperty<Hit> {
         return hitPropValueA.compareTo(hitPropValueB);
     }
 
+    /**
+     * Compare two hits stored in a HitsArrays.
+     *
+     * Same as {@link #compare(Hit, Hit)}, but properties can override this to read
+     * the arrays directly instead of creating Hit objects, which matters when
+     * sorting many hits.
+     *
+     * @param hits hits
+     * @param a position of the first hit
+     * @param b position of the second hit
+     * @return comparison result
+     */
+    public int compare(HitsArrays hits, int a, int b) {
+        return compare(hits.get(a), hits.get(b));
+    }
+
+    /**
+     * Does this property provide sort keys?
+     *
+     * @return true if {@link #sortKey(Hit)} may be called
+     * @see #sortKey(Hit)
+     */
+    public boolean hasSortKey() {
+        return false;
+    }
+
+    /**
+     * Get a sort key for a hit.
+     *
+     * Sort keys allow us to sort large numbers of hits faster: each hit's key is
+     * determined once, and only hits with equal keys need to be compared using
+     * {@link #compare(Hit, Hit)}. So keys must agree with compare(): if a's key is
+     * less than b's key, compare(a, b) must be negative. Keys take the sort order
+     * (reverse or not) into account.
+     *
+     * Only call this if {@link #hasSortKey()} returns true.
+     *
+     * @param hit hit to get the sort key for
+     * @return sort key
+     */
+    public long sortKey(Hit hit) {
+        throw new UnsupportedOperationException("No sort key for " + getClass().getSimpleName());
+    }
+
+    /**
+     * Get a sort key for a hit stored in a HitsArrays.
+     *
+     * Same as {@link #sortKey(Hit)}, but without creating a Hit object if the
+     * property overrides it.
+     *
+     * @param hits hits
+     * @param i position of the hit
+     * @return sort key
+     */
+    public long sortKey(HitsArrays hits, int i) {
+        return sortKey(hits.get(i));
+    }
+
+    /**
+     * Can {@link #compare(Hit, Hit)} and {@link #sortKey(Hit)} be called from
+     * multiple threads at the same time?
+     *
+     * If so, we can sort in parallel. Properties that keep state while comparing
+     * (e.g. Lucene DocValues iterators) should return false.
+     *
+     * @return true if comparing is thread-safe
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Does this property provide group keys?
+     *
+     * @return true if {@link #groupKey(Hit)} may be called
+     * @see #groupKey(Hit)
+     */
+    public boolean hasGroupKey() {
+        return false;
+    }
+
+    /**
+     * Get a compact key for the group a hit belongs to.
+     *
+     * Group keys allow us to group large numbers of hits without creating a
+     * PropertyValue for each hit. Two hits must have equal keys (according to
+     * Arrays.equals()) if and only if {@link #get(Hit)} returns equal values for
+     * them.
+     *
+     * Only call this if {@link #hasGroupKey()} returns true.
+     *
+     * @param hit hit to get the group key for
+     * @return group key
+     */
+    public int[] groupKey(Hit hit) {
+        throw new UnsupportedOperationException("No group key for " + getClass().getSimpleName());
+    }
+
     /**
      * Retrieve context from which field(s) prior to sorting/grouping on this
      * property?
@@ -98,6 +98,69 @@ public abstract class HitPropertyContextBase extends HitProperty {
         this.contextSize = contextSize == null ? index.defaultContextSize() : contextSize;
     }
 
+    @Override
+    public boolean hasSortKey() {
+        return true;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    /**
+     * Make a sort key from the first (up to) two words we compare on.
+     *
+     * The key contains the sort positions of the words, plus one so a missing
+     * word (i.e. the context ran out) sorts before any actual word, like it does
+     * in compare().
+     *
+     * @param termId1 first word to compare on, or Terms.NO_TERM if none
+     * @param termId2 second word to compare on, or Terms.NO_TERM if none
+     * @return sort key
+     */
+    protected long sortKey(int termId1, int termId2) {
+        long key = termId1 == Terms.NO_TERM ? 0 : terms.idToSortPosition(termId1, sensitivity) + 1L;
+        key = key << 32 | (termId2 == Terms.NO_TERM ? 0 : terms.idToSortPosition(termId2, sensitivity) + 1L);
+        return reverse ? -key : key;
+    }
+
+    @Override
+    public boolean hasGroupKey() {
+        return true;
+    }
+
+    /**
+     * Make a group key from part of a context.
+     *
+     * The key contains the sort positions of the words, so words that are equal
+     * with our sensitivity get the same key, like they do in get().
+     *
+     * @param context context array
+     * @param start where the words start in the array
+     * @param n number of words
+     * @param backwards if true, put the words in the key in reverse order
+     * @return group key
+     */
+    protected int[] groupKey(int[] context, int start, int n, boolean backwards) {
+        int[] key = new int[Math.max(0, n)];
+        for (int i = 0; i < key.length; i++) {
+            int termId = context[backwards ? start + n - 1 - i : start + i];
+            key[i] = terms.idToSortPosition(termId, sensitivity);
+        }
+        return key;
+    }
+
+    /**
+     * Make a group key from a single word.
+     *
+     * @param termId word, or Terms.NO_TERM if none
+     * @return group key
+     */
+    protected int[] groupKey(int termId) {
+        return new int[] { termId < 0 ? termId : terms.idToSortPosition(termId, sensitivity) };
+    }
+
     @Override
     public List<Annotation> needsContext() {
         return Arrays.asList(annotation);
@@ -273,10 +273,11 @@ public class HitPropertyContextWords extends HitProperty {
 
     @Override
     public PropertyValueContextWords get(Hit hit) {
-        int[] context = contexts.get(hit);
-        int contextHitStart = context[Contexts.HIT_START_INDEX];
-        int contextRightStart = context[Contexts.RIGHT_START_INDEX];
-        int contextLength = context[Contexts.LENGTH_INDEX];
+        int[] context = contexts.data();
+        int offset = contexts.offset(hit);
+        int contextHitStart = context[offset + Contexts.HIT_START_INDEX];
+        int contextRightStart = context[offset + Contexts.RIGHT_START_INDEX];
+        int contextLength = context[offset + Contexts.LENGTH_INDEX];
 
         int[] dest = new int[totalWords];
         int destIndex = 0;
@@ -325,7 +326,7 @@ public class HitPropertyContextWords extends HitProperty {
             }
             // Copy the words we want to our dest array
             int valuesCopied = 0;
-            int contextStartIndex = contextLength * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
+            int contextStartIndex = offset + contextLength * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
             if (valuesToCopy) {
                 for (int srcIndex = firstWordSrcIndex; srcIndex != firstInvalidSrcIndex; srcIndex += srcDirection) {
                     dest[destIndex] = context[contextStartIndex + srcIndex];
@@ -344,6 +345,11 @@ public class HitPropertyContextWords extends HitProperty {
 
     // OPT: provide specific compare() method that compares contexts in-place
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     @Override
     public List<Annotation> needsContext() {
         return Arrays.asList(annotation);
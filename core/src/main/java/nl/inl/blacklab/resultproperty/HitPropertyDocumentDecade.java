@@ -21,6 +21,7 @@ import nl.inl.blacklab.search.BlackLabIndex;
 import nl.inl.blacklab.search.indexmetadata.MetadataField;
 import nl.inl.blacklab.search.results.Contexts;
 import nl.inl.blacklab.search.results.Hit;
+import nl.inl.blacklab.search.results.HitsArrays;
 import nl.inl.blacklab.search.results.Results;
 
 /**
@@ -77,6 +78,13 @@ public class HitPropertyDocumentDecade extends HitProperty {
         return reverse ? bDecade - aDecade : aDecade - bDecade;
     }
 
+    @Override
+    public int compare(HitsArrays hits, int a, int b) {
+        int aDecade = docPropertyDocumentDecade.get(hits.doc(a));
+        int bDecade = docPropertyDocumentDecade.get(hits.doc(b));
+        return reverse ? bDecade - aDecade : aDecade - bDecade;
+    }
+
     @Override
     public String name() {
         return "document: " + docPropertyDocumentDecade.name();
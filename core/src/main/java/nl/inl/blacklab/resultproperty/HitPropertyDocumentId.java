@@ -17,6 +17,7 @@ package nl.inl.blacklab.resultproperty;
 
 import nl.inl.blacklab.search.results.Contexts;
 import nl.inl.blacklab.search.results.Hit;
+import nl.inl.blacklab.search.results.HitsArrays;
 import nl.inl.blacklab.search.results.Results;
 
 /**
@@ -59,6 +60,41 @@ public class HitPropertyDocumentId extends HitProperty {
         return reverse ? b.doc() - a.doc() : a.doc() - b.doc();
     }
 
+    @Override
+    public int compare(HitsArrays hits, int a, int b) {
+        return reverse ? hits.doc(b) - hits.doc(a) : hits.doc(a) - hits.doc(b);
+    }
+
+    @Override
+    public boolean hasSortKey() {
+        return true;
+    }
+
+    @Override
+    public long sortKey(Hit hit) {
+        return reverse ? -hit.doc() : hit.doc();
+    }
+
+    @Override
+    public long sortKey(HitsArrays hits, int i) {
+        return reverse ? -hits.doc(i) : hits.doc(i);
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean hasGroupKey() {
+        return true;
+    }
+
+    @Override
+    public int[] groupKey(Hit hit) {
+        return new int[] { hit.doc() };
+    }
+
     @Override
     public String serialize() {
         return serializeReverse() + "docid";
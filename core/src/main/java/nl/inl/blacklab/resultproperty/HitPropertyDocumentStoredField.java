@@ -18,6 +18,7 @@ package nl.inl.blacklab.resultproperty;
 import nl.inl.blacklab.search.BlackLabIndex;
 import nl.inl.blacklab.search.results.Contexts;
 import nl.inl.blacklab.search.results.Hit;
+import nl.inl.blacklab.search.results.HitsArrays;
 import nl.inl.blacklab.search.results.Results;
 
 /**
@@ -66,6 +67,45 @@ public class HitPropertyDocumentStoredField extends HitProperty {
         return reverse ? -result : result;
     }
 
+    @Override
+    public int compare(HitsArrays hits, int a, int b) {
+        int result = docPropStoredField.compare(hits.doc(a), hits.doc(b));
+        return reverse ? -result : result;
+    }
+
+    @Override
+    public boolean hasSortKey() {
+        return docPropStoredField.hasDocValues();
+    }
+
+    @Override
+    public long sortKey(Hit hit) {
+        int key = docPropStoredField.sortKey(hit.doc());
+        return reverse ? -key : key;
+    }
+
+    @Override
+    public long sortKey(HitsArrays hits, int i) {
+        int key = docPropStoredField.sortKey(hits.doc(i));
+        return reverse ? -key : key;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        // (values are read from immutable ordinals, not from DocValues iterators)
+        return docPropStoredField.hasDocValues();
+    }
+
+    @Override
+    public boolean hasGroupKey() {
+        return docPropStoredField.hasDocValues();
+    }
+
+    @Override
+    public int[] groupKey(Hit hit) {
+        return new int[] { docPropStoredField.ordinal(hit.doc()) };
+    }
+
     @Override
     public String name() {
         return "document: " + docPropStoredField.name();
@@ -17,6 +17,7 @@ package nl.inl.blacklab.resultproperty;
 
 import nl.inl.blacklab.search.results.Contexts;
 import nl.inl.blacklab.search.results.Hit;
+import nl.inl.blacklab.search.results.HitsArrays;
 import nl.inl.blacklab.search.results.Results;
 
 /**
@@ -59,6 +60,37 @@ public class HitPropertyHitPosition extends HitProperty {
         return reverse ? b.start() - a.start() : a.start() - b.start();
     }
 
+    @Override
+    public int compare(HitsArrays hits, int a, int b) {
+        int aStart = hits.start(a);
+        int bStart = hits.start(b);
+        if (aStart == bStart)
+            return reverse ? hits.end(b) - hits.end(a) : hits.end(a) - hits.end(b);
+        return reverse ? bStart - aStart : aStart - bStart;
+    }
+
+    @Override
+    public boolean hasSortKey() {
+        return true;
+    }
+
+    @Override
+    public long sortKey(Hit hit) {
+        long key = (long) hit.start() << 32 | hit.end();
+        return reverse ? -key : key;
+    }
+
+    @Override
+    public long sortKey(HitsArrays hits, int i) {
+        long key = (long) hits.start(i) << 32 | hits.end(i);
+        return reverse ? -key : key;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     @Override
     public String serialize() {
         return serializeReverse() + "hitposition";
@@ -15,6 +15,7 @@
  *******************************************************************************/
 package nl.inl.blacklab.resultproperty;
 
+import nl.inl.blacklab.forwardindex.Terms;
 import nl.inl.blacklab.search.BlackLabIndex;
 import nl.inl.blacklab.search.indexmetadata.AnnotatedField;
 import nl.inl.blacklab.search.indexmetadata.Annotation;
@@ -22,6 +23,7 @@ import nl.inl.blacklab.search.indexmetadata.MatchSensitivity;
 import nl.inl.blacklab.search.results.ContextSize;
 import nl.inl.blacklab.search.results.Contexts;
 import nl.inl.blacklab.search.results.Hit;
+import nl.inl.blacklab.search.results.HitsArrays;
 import nl.inl.blacklab.search.results.Results;
 
 /**
@@ -65,31 +67,40 @@ public class HitPropertyHitText extends HitPropertyContextBase {
 
     @Override
     public PropertyValueContextWords get(Hit result) {
-        int[] context = contexts.get(result);
-        int contextHitStart = context[Contexts.HIT_START_INDEX];
-        int contextRightStart = context[Contexts.RIGHT_START_INDEX];
-        int contextLength = context[Contexts.LENGTH_INDEX];
+        int[] context = contexts.data();
+        int offset = contexts.offset(result);
+        int contextHitStart = context[offset + Contexts.HIT_START_INDEX];
+        int contextRightStart = context[offset + Contexts.RIGHT_START_INDEX];
+        int contextLength = context[offset + Contexts.LENGTH_INDEX];
 
         // Copy the desired part of the context
         int n = contextRightStart - contextHitStart;
         if (n <= 0)
             return new PropertyValueContextWords(index, annotation, sensitivity, new int[0], false);
         int[] dest = new int[n];
-        int contextStart = contextLength * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
+        int contextStart = offset + contextLength * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
         System.arraycopy(context, contextStart + contextHitStart, dest, 0, n);
         return new PropertyValueContextWords(index, annotation, sensitivity, dest, false);
     }
 
     @Override
     public int compare(Hit a, Hit b) {
-        int[] ca = contexts.get(a);
-        int caHitStart = ca[Contexts.HIT_START_INDEX];
-        int caRightStart = ca[Contexts.RIGHT_START_INDEX];
-        int caLength = ca[Contexts.LENGTH_INDEX];
-        int[] cb = contexts.get(b);
-        int cbHitStart = cb[Contexts.HIT_START_INDEX];
-        int cbRightStart = cb[Contexts.RIGHT_START_INDEX];
-        int cbLength = cb[Contexts.LENGTH_INDEX];
+        return compareContexts(contexts.offset(a), contexts.offset(b));
+    }
+
+    @Override
+    public int compare(HitsArrays hits, int a, int b) {
+        return compareContexts(contexts.offset(hits.index(a)), contexts.offset(hits.index(b)));
+    }
+
+    private int compareContexts(int oa, int ob) {
+        int[] context = contexts.data();
+        int caHitStart = context[oa + Contexts.HIT_START_INDEX];
+        int caRightStart = context[oa + Contexts.RIGHT_START_INDEX];
+        int caLength = context[oa + Contexts.LENGTH_INDEX];
+        int cbHitStart = context[ob + Contexts.HIT_START_INDEX];
+        int cbRightStart = context[ob + Contexts.RIGHT_START_INDEX];
+        int cbLength = context[ob + Contexts.LENGTH_INDEX];
 
         // Compare the hit context for these two hits
         int contextIndex = contextIndices.get(0);
@@ -97,8 +108,8 @@ public class HitPropertyHitText extends HitPropertyContextBase {
         int bi = cbHitStart;
         while (ai < caRightStart && bi < cbRightStart) {
             int cmp = terms.compareSortPosition(
-                    ca[contextIndex * caLength + ai + Contexts.NUMBER_OF_BOOKKEEPING_INTS],
-                    cb[contextIndex * cbLength + bi + Contexts.NUMBER_OF_BOOKKEEPING_INTS], sensitivity);
+                    context[oa + contextIndex * caLength + ai + Contexts.NUMBER_OF_BOOKKEEPING_INTS],
+                    context[ob + contextIndex * cbLength + bi + Contexts.NUMBER_OF_BOOKKEEPING_INTS], sensitivity);
             if (cmp != 0)
                 return reverse ? -cmp : cmp;
             ai++;
@@ -114,5 +125,35 @@ public class HitPropertyHitText extends HitPropertyContextBase {
         }
         return reverse ? -1 : 1; // a longer than b => a > b
     }
+
+    @Override
+    public long sortKey(Hit hit) {
+        return sortKeyAt(contexts.offset(hit));
+    }
+
+    @Override
+    public long sortKey(HitsArrays hits, int i) {
+        return sortKeyAt(contexts.offset(hits.index(i)));
+    }
+
+    private long sortKeyAt(int offset) {
+        int[] context = contexts.data();
+        int contextHitStart = context[offset + Contexts.HIT_START_INDEX];
+        int contextRightStart = context[offset + Contexts.RIGHT_START_INDEX];
+        int contextStart = offset + context[offset + Contexts.LENGTH_INDEX] * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
+        int termId1 = contextHitStart < contextRightStart ? context[contextStart + contextHitStart] : Terms.NO_TERM;
+        int termId2 = contextHitStart + 1 < contextRightStart ? context[contextStart + contextHitStart + 1] : Terms.NO_TERM;
+        return sortKey(termId1, termId2);
+    }
+
+    @Override
+    public int[] groupKey(Hit hit) {
+        int[] context = contexts.data();
+        int offset = contexts.offset(hit);
+        int contextHitStart = context[offset + Contexts.HIT_START_INDEX];
+        int contextRightStart = context[offset + Contexts.RIGHT_START_INDEX];
+        int contextStart = offset + context[offset + Contexts.LENGTH_INDEX] * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
+        return groupKey(context, contextStart + contextHitStart, contextRightStart - contextHitStart, false);
+    }
     
 }
@@ -30,6 +30,7 @@ import nl.inl.blacklab.search.indexmetadata.Annotation;
 import nl.inl.blacklab.search.results.ContextSize;
 import nl.inl.blacklab.search.results.Contexts;
 import nl.inl.blacklab.search.results.Hit;
+import nl.inl.blacklab.search.results.HitsArrays;
 import nl.inl.blacklab.search.results.Results;
 
 /**
@@ -208,6 +209,71 @@ public class HitPropertyMultiple extends HitProperty implements Iterable<HitProp
         return 0;
     }
 
+    @Override
+    public int compare(HitsArrays hits, int a, int b) {
+        for (HitProperty crit: properties) {
+            int cmp = reverse ? crit.compare(hits, b, a) : crit.compare(hits, a, b);
+            if (cmp != 0)
+                return cmp;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean hasSortKey() {
+        // The first criterion's key decides the order, unless keys are equal
+        return properties.get(0).hasSortKey();
+    }
+
+    @Override
+    public long sortKey(Hit hit) {
+        long key = properties.get(0).sortKey(hit);
+        return reverse ? -key : key;
+    }
+
+    @Override
+    public long sortKey(HitsArrays hits, int i) {
+        long key = properties.get(0).sortKey(hits, i);
+        return reverse ? -key : key;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        for (HitProperty crit: properties) {
+            if (!crit.isThreadSafe())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasGroupKey() {
+        for (HitProperty crit: properties) {
+            if (!crit.hasGroupKey())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int[] groupKey(Hit hit) {
+        // Concatenate the keys, each preceded by its length
+        int[][] keys = new int[properties.size()][];
+        int length = 0;
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = properties.get(i).groupKey(hit);
+            length += keys[i].length + 1;
+        }
+        int[] key = new int[length];
+        int j = 0;
+        for (int[] k: keys) {
+            key[j] = k.length;
+            System.arraycopy(k, 0, key, j + 1, k.length);
+            j += k.length + 1;
+        }
+        return key;
+    }
+
     @Override
     public String name() {
         StringBuilder b = new StringBuilder();
@@ -23,6 +23,7 @@ import nl.inl.blacklab.search.indexmetadata.MatchSensitivity;
 import nl.inl.blacklab.search.results.ContextSize;
 import nl.inl.blacklab.search.results.Contexts;
 import nl.inl.blacklab.search.results.Hit;
+import nl.inl.blacklab.search.results.HitsArrays;
 import nl.inl.blacklab.search.results.Results;
 
 /**
@@ -62,26 +63,35 @@ public class HitPropertyWordLeft extends HitPropertyContextBase {
 
     @Override
     public PropertyValueContextWord get(Hit result) {
-        int[] context = contexts.get(result);
-        int contextHitStart = context[Contexts.HIT_START_INDEX];
-        //int contextRightStart = context[Contexts.CONTEXTS_RIGHT_START_INDEX];
-        int contextLength = context[Contexts.LENGTH_INDEX];
+        int[] context = contexts.data();
+        int offset = contexts.offset(result);
+        int contextHitStart = context[offset + Contexts.HIT_START_INDEX];
+        //int contextRightStart = context[offset + Contexts.CONTEXTS_RIGHT_START_INDEX];
+        int contextLength = context[offset + Contexts.LENGTH_INDEX];
 
         if (contextHitStart <= 0)
             return new PropertyValueContextWord(index, annotation, sensitivity, Terms.NO_TERM);
-        int contextStart = contextLength * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
+        int contextStart = offset + contextLength * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
         return new PropertyValueContextWord(index, annotation, sensitivity, context[contextStart
                         + contextHitStart - 1]);
     }
 
     @Override
     public int compare(Hit a, Hit b) {
-        int[] ca = contexts.get(a);
-        int caHitStart = ca[Contexts.HIT_START_INDEX];
-        int caLength = ca[Contexts.LENGTH_INDEX];
-        int[] cb = contexts.get(b);
-        int cbHitStart = cb[Contexts.HIT_START_INDEX];
-        int cbLength = cb[Contexts.LENGTH_INDEX];
+        return compareContexts(contexts.offset(a), contexts.offset(b));
+    }
+
+    @Override
+    public int compare(HitsArrays hits, int a, int b) {
+        return compareContexts(contexts.offset(hits.index(a)), contexts.offset(hits.index(b)));
+    }
+
+    private int compareContexts(int oa, int ob) {
+        int[] context = contexts.data();
+        int caHitStart = context[oa + Contexts.HIT_START_INDEX];
+        int caLength = context[oa + Contexts.LENGTH_INDEX];
+        int cbHitStart = context[ob + Contexts.HIT_START_INDEX];
+        int cbLength = context[ob + Contexts.LENGTH_INDEX];
 
         if (caHitStart <= 0)
             return cbHitStart <= 0 ? 0 : (reverse ? 1 : -1);
@@ -91,10 +101,39 @@ public class HitPropertyWordLeft extends HitPropertyContextBase {
         int contextIndex = contextIndices.get(0);
 
         int cmp = terms.compareSortPosition(
-                ca[contextIndex * caLength + caHitStart - 1 + Contexts.NUMBER_OF_BOOKKEEPING_INTS],
-                cb[contextIndex * cbLength + cbHitStart - 1 + Contexts.NUMBER_OF_BOOKKEEPING_INTS],
+                context[oa + contextIndex * caLength + caHitStart - 1 + Contexts.NUMBER_OF_BOOKKEEPING_INTS],
+                context[ob + contextIndex * cbLength + cbHitStart - 1 + Contexts.NUMBER_OF_BOOKKEEPING_INTS],
                 sensitivity);
         return reverse ? -cmp : cmp;
     }
 
+    @Override
+    public long sortKey(Hit hit) {
+        return sortKeyAt(contexts.offset(hit));
+    }
+
+    @Override
+    public long sortKey(HitsArrays hits, int i) {
+        return sortKeyAt(contexts.offset(hits.index(i)));
+    }
+
+    private long sortKeyAt(int offset) {
+        int[] context = contexts.data();
+        int contextHitStart = context[offset + Contexts.HIT_START_INDEX];
+        int contextStart = offset + context[offset + Contexts.LENGTH_INDEX] * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
+        int termId = contextHitStart > 0 ? context[contextStart + contextHitStart - 1] : Terms.NO_TERM;
+        return sortKey(termId, Terms.NO_TERM);
+    }
+
+    @Override
+    public int[] groupKey(Hit hit) {
+        int[] context = contexts.data();
+        int offset = contexts.offset(hit);
+        int contextHitStart = context[offset + Contexts.HIT_START_INDEX];
+        if (contextHitStart <= 0)
+            return groupKey(Terms.NO_TERM);
+        int contextStart = offset + context[offset + Contexts.LENGTH_INDEX] * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
+        return groupKey(context[contextStart + contextHitStart - 1]);
+    }
+
 }
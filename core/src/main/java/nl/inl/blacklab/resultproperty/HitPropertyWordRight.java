@@ -23,6 +23,7 @@ import nl.inl.blacklab.search.indexmetadata.MatchSensitivity;
 import nl.inl.blacklab.search.results.ContextSize;
 import nl.inl.blacklab.search.results.Contexts;
 import nl.inl.blacklab.search.results.Hit;
+import nl.inl.blacklab.search.results.HitsArrays;
 import nl.inl.blacklab.search.results.Results;
 
 /**
@@ -62,24 +63,33 @@ public class HitPropertyWordRight extends HitPropertyContextBase {
 
     @Override
     public PropertyValueContextWord get(Hit result) {
-        int[] context = contexts.get(result);
-        int contextRightStart = context[Contexts.RIGHT_START_INDEX];
-        int contextLength = context[Contexts.LENGTH_INDEX];
+        int[] context = contexts.data();
+        int offset = contexts.offset(result);
+        int contextRightStart = context[offset + Contexts.RIGHT_START_INDEX];
+        int contextLength = context[offset + Contexts.LENGTH_INDEX];
 
         if (contextLength <= contextRightStart)
             return new PropertyValueContextWord(index, annotation, sensitivity, Terms.NO_TERM);
-        int contextStart = contextLength * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
+        int contextStart = offset + contextLength * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
         return new PropertyValueContextWord(index, annotation, sensitivity, context[contextStart + contextRightStart]);
     }
 
     @Override
     public int compare(Hit a, Hit b) {
-        int[] ca = contexts.get(a);
-        int caRightStart = ca[Contexts.RIGHT_START_INDEX];
-        int caLength = ca[Contexts.LENGTH_INDEX];
-        int[] cb = contexts.get(b);
-        int cbRightStart = cb[Contexts.RIGHT_START_INDEX];
-        int cbLength = cb[Contexts.LENGTH_INDEX];
+        return compareContexts(contexts.offset(a), contexts.offset(b));
+    }
+
+    @Override
+    public int compare(HitsArrays hits, int a, int b) {
+        return compareContexts(contexts.offset(hits.index(a)), contexts.offset(hits.index(b)));
+    }
+
+    private int compareContexts(int oa, int ob) {
+        int[] context = contexts.data();
+        int caRightStart = context[oa + Contexts.RIGHT_START_INDEX];
+        int caLength = context[oa + Contexts.LENGTH_INDEX];
+        int cbRightStart = context[ob + Contexts.RIGHT_START_INDEX];
+        int cbLength = context[ob + Contexts.LENGTH_INDEX];
 
         if (caLength <= caRightStart)
             return cbLength <= cbRightStart ? 0 : (reverse ? 1 : -1);
@@ -88,10 +98,41 @@ public class HitPropertyWordRight extends HitPropertyContextBase {
         // Compare one word to the right of the hit
         int contextIndex = contextIndices.get(0);
         int cmp = terms.compareSortPosition(
-                ca[contextIndex * caLength + caRightStart + Contexts.NUMBER_OF_BOOKKEEPING_INTS],
-                cb[contextIndex * cbLength + cbRightStart + Contexts.NUMBER_OF_BOOKKEEPING_INTS],
+                context[oa + contextIndex * caLength + caRightStart + Contexts.NUMBER_OF_BOOKKEEPING_INTS],
+                context[ob + contextIndex * cbLength + cbRightStart + Contexts.NUMBER_OF_BOOKKEEPING_INTS],
                 sensitivity);
         return reverse ? -cmp : cmp;
     }
 
+    @Override
+    public long sortKey(Hit hit) {
+        return sortKeyAt(contexts.offset(hit));
+    }
+
+    @Override
+    public long sortKey(HitsArrays hits, int i) {
+        return sortKeyAt(contexts.offset(hits.index(i)));
+    }
+
+    private long sortKeyAt(int offset) {
+        int[] context = contexts.data();
+        int contextRightStart = context[offset + Contexts.RIGHT_START_INDEX];
+        int contextLength = context[offset + Contexts.LENGTH_INDEX];
+        int contextStart = offset + contextLength * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
+        int termId = contextRightStart < contextLength ? context[contextStart + contextRightStart] : Terms.NO_TERM;
+        return sortKey(termId, Terms.NO_TERM);
+    }
+
+    @Override
+    public int[] groupKey(Hit hit) {
+        int[] context = contexts.data();
+        int offset = contexts.offset(hit);
+        int contextRightStart = context[offset + Contexts.RIGHT_START_INDEX];
+        int contextLength = context[offset + Contexts.LENGTH_INDEX];
+        if (contextLength <= contextRightStart)
+            return groupKey(Terms.NO_TERM);
+        int contextStart = offset + contextLength * contextIndices.get(0) + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
+        return groupKey(context[contextStart + contextRightStart]);
+    }
+
 }
@@ -15,7 +15,9 @@ import org.apache.lucene.index.IndexReader;
 import nl.inl.blacklab.config.BLConfigIndexing;
 import nl.inl.blacklab.config.BLConfigLog;
 import nl.inl.blacklab.config.BlackLabConfig;
+import nl.inl.blacklab.contentstore.ContentStoreFixedBlockReader;
 import nl.inl.blacklab.exceptions.ErrorOpeningIndex;
+import nl.inl.blacklab.forwardindex.AnnotationForwardIndex;
 import nl.inl.blacklab.index.DownloadCache;
 import nl.inl.blacklab.index.PluginManager;
 import nl.inl.blacklab.index.ZipHandleManager;
@@ -275,6 +277,10 @@ public final class BlackLab {
             if (indexing.getDownloadCacheDir() != null)
                     DownloadCache.setDir(new File(indexing.getDownloadCacheDir()));
             ZipHandleManager.setMaxOpen(indexing.getZipFilesMaxOpen());
+            AnnotationForwardIndex.setPackTokensFile(indexing.isPackForwardIndex());
+            
+            // Search settings that apply to all indexes
+            ContentStoreFixedBlockReader.setBlockCacheMaxSizeMegs(blackLabConfig.getSearch().getContentStoreBlockCacheMegs());
             
             // Plugins settings
             PluginManager.initPlugins(blackLabConfig.getPlugins());
@@ -382,6 +382,16 @@ public interface BlackLabIndex extends Closeable {
      */
     ForwardIndex forwardIndex(AnnotatedField field);
 
+    /**
+     * Get the value ordinals for a metadata field, for sorting and grouping on it.
+     *
+     * These are read from the field's DocValues the first time they're requested.
+     *
+     * @param fieldName metadata field
+     * @return ordinals, or null if the field has no (sorted set) DocValues
+     */
+    MetadataFieldOrdinals metadataFieldOrdinals(String fieldName);
+
 
     
     // Information about the index
@@ -66,6 +66,7 @@ import nl.inl.blacklab.search.indexmetadata.MatchSensitivity;
 import nl.inl.blacklab.search.indexmetadata.MetadataField;
 import nl.inl.blacklab.search.lucene.BLSpanQuery;
 import nl.inl.blacklab.search.lucene.SpanQueryFiltered;
+import nl.inl.blacklab.search.lucene.optimize.OptimizationContext;
 import nl.inl.blacklab.search.results.ContextSize;
 import nl.inl.blacklab.search.results.DocResults;
 import nl.inl.blacklab.search.results.Hits;
@@ -286,6 +287,9 @@ public class BlackLabIndexImpl implements BlackLabIndex, BlackLabIndexWriter {
      */
     protected Map<AnnotatedField, ForwardIndex> forwardIndices = new HashMap<>();
 
+    /** Value ordinals for metadata fields, read when first needed (null if a field has no DocValues) */
+    private Map<String, MetadataFieldOrdinals> metadataFieldOrdinals = new HashMap<>();
+
     protected SearchSettings searchSettings;
 
     /** Should we default to case-/diacritics-sensitive searching? [default: both insensitive] */
@@ -485,7 +489,7 @@ public class BlackLabIndexImpl implements BlackLabIndex, BlackLabIndexWriter {
         try {
             IndexReader indexReader = reader();
             query.setQueryInfo(QueryInfo.create(this, fieldFromQuery(query), true, searchLogger));
-            return new QueryExplanation(query, query.optimize(indexReader).rewrite(indexReader));
+            return new QueryExplanation(query, OptimizationContext.defaults().optimizeAndRewrite(query, indexReader));
         } catch (IOException e) {
             throw BlackLabRuntimeException.wrap(e);
         }
@@ -549,6 +553,20 @@ public class BlackLabIndexImpl implements BlackLabIndex, BlackLabIndexWriter {
         }
     }
 
+    @Override
+    public MetadataFieldOrdinals metadataFieldOrdinals(String fieldName) {
+        synchronized (metadataFieldOrdinals) {
+            if (!metadataFieldOrdinals.containsKey(fieldName)) {
+                try {
+                    metadataFieldOrdinals.put(fieldName, MetadataFieldOrdinals.read(reader(), fieldName, defaultCollator()));
+                } catch (IOException e) {
+                    throw BlackLabRuntimeException.wrap(e);
+                }
+            }
+            return metadataFieldOrdinals.get(fieldName);
+        }
+    }
+
     @Override
     public AnnotationForwardIndex annotationForwardIndex(Annotation annotation) {
         return forwardIndex(annotation.field()).get(annotation);
@@ -1002,7 +1020,14 @@ public class BlackLabIndexImpl implements BlackLabIndex, BlackLabIndexWriter {
 
     @Override
     public TermFrequencyList termFrequencies(AnnotationSensitivity annotSensitivity, Query filterQuery, Set<String> terms) {
-        Map<String, Integer> freq = LuceneUtil.termFrequencies(searcher(), filterQuery, annotSensitivity, terms);
+        Map<String, Integer> freq;
+        if (filterQuery != null && annotSensitivity.annotation().hasForwardIndex()) {
+            // Count the terms in the matching documents' forward index
+            freq = new TermFrequencyCounter(this, annotSensitivity, filterQuery).count(terms);
+        } else {
+            // Use the index statistics (or term vectors if the annotation has no forward index)
+            freq = LuceneUtil.termFrequencies(searcher(), filterQuery, annotSensitivity, terms);
+        }
         return new TermFrequencyList(QueryInfo.create(this, annotSensitivity.annotation().field()), freq, true);
     }
 
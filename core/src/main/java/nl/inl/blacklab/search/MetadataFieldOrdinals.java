@@ -0,0 +1,146 @@
+package nl.inl.blacklab.search;
+
+import java.io.IOException;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+
+/**
+ * Maps each document to an int ordinal for its value of a metadata field.
+ *
+ * Built once per index reader from the field's SortedSetDocValues (see
+ * {@link BlackLabIndex#metadataFieldOrdinals(String)}). This allows us to sort
+ * and group documents or hits by a metadata field by comparing ints; the value
+ * strings are only needed for output.
+ *
+ * Ordinals are assigned in sort order (according to the collator), with the
+ * empty value (also used for documents without a value) last. Values the
+ * collator considers equal have different ordinals but the same sort key.
+ *
+ * Instances are immutable and may be used from several threads.
+ */
+public class MetadataFieldOrdinals {
+
+    /**
+     * Read the ordinals for a field.
+     *
+     * @param reader index reader
+     * @param fieldName metadata field
+     * @param collator collator to determine sort order with
+     * @return ordinals, or null if the field has no SortedSetDocValues
+     * @throws IOException on error
+     */
+    public static MetadataFieldOrdinals read(IndexReader reader, String fieldName, Collator collator) throws IOException {
+        SortedSetDocValues docValues = MultiDocValues.getSortedSetValues(reader, fieldName);
+        if (docValues == null)
+            return null;
+        return new MetadataFieldOrdinals(reader.maxDoc(), docValues, collator);
+    }
+
+    /** Ordinal per document */
+    private final int[] docOrdinals;
+
+    /** Value per ordinal */
+    private final String[] values;
+
+    /** Sort key per ordinal (equal for values the collator considers equal) */
+    private final int[] sortKeys;
+
+    private MetadataFieldOrdinals(int maxDoc, SortedSetDocValues docValues, Collator collator) {
+        // Get the distinct values (plus the empty value) and sort them
+        int valueCount = (int) docValues.getValueCount();
+        Integer[] order = new Integer[valueCount + 1];
+        String[] globalValues = new String[valueCount + 1];
+        for (int i = 0; i < valueCount; i++) {
+            globalValues[i] = docValues.lookupOrd(i).utf8ToString();
+            order[i] = i;
+        }
+        int noValue = valueCount;
+        globalValues[noValue] = "";
+        order[noValue] = noValue;
+        Comparator<String> cmp = (a, b) -> {
+            if (a.isEmpty() || b.isEmpty()) // sort empty value at the end
+                return Boolean.compare(a.isEmpty(), b.isEmpty());
+            return collator.compare(a, b);
+        };
+        Arrays.sort(order, (a, b) -> cmp.compare(globalValues[a], globalValues[b]));
+
+        // Assign ordinals in that order (merging all empty values)
+        int[] globalToOrdinal = new int[valueCount + 1];
+        String[] sortedValues = new String[valueCount + 1];
+        int[] keys = new int[valueCount + 1];
+        int n = 0;
+        for (int i = 0; i < order.length; i++) {
+            String value = globalValues[order[i]];
+            if (n > 0 && value.isEmpty() && sortedValues[n - 1].isEmpty()) {
+                globalToOrdinal[order[i]] = n - 1;
+                continue;
+            }
+            sortedValues[n] = value;
+            keys[n] = n > 0 && cmp.compare(sortedValues[n - 1], value) == 0 ? keys[n - 1] : n;
+            globalToOrdinal[order[i]] = n;
+            n++;
+        }
+        values = Arrays.copyOf(sortedValues, n);
+        sortKeys = Arrays.copyOf(keys, n);
+
+        // Determine each document's ordinal (from its first value, like DocPropertyStoredField)
+        docOrdinals = new int[maxDoc];
+        for (int docId = 0; docId < maxDoc; docId++) {
+            docValues.setDocument(docId);
+            long ord = docValues.nextOrd();
+            docOrdinals[docId] = globalToOrdinal[ord == SortedSetDocValues.NO_MORE_ORDS ? noValue : (int) ord];
+        }
+    }
+
+    /**
+     * Get a document's ordinal.
+     *
+     * Two documents have the same ordinal if and only if they have the same
+     * value.
+     *
+     * @param docId Lucene document id
+     * @return ordinal
+     */
+    public int ordinal(int docId) {
+        return docOrdinals[docId];
+    }
+
+    /**
+     * Get a document's sort key.
+     *
+     * Comparing sort keys is equivalent to comparing the values using the
+     * collator, with the empty value last.
+     *
+     * @param docId Lucene document id
+     * @return sort key
+     */
+    public int sortKey(int docId) {
+        return sortKeys[docOrdinals[docId]];
+    }
+
+    /**
+     * Get a document's value.
+     *
+     * @param docId Lucene document id
+     * @return value, or the empty string if the document has no value
+     */
+    public String value(int docId) {
+        return values[docOrdinals[docId]];
+    }
+
+    /**
+     * Get the value for an ordinal.
+     *
+     * @param ordinal ordinal
+     * @return value
+     */
+    public String valueForOrdinal(int ordinal) {
+        return values[ordinal];
+    }
+
+}
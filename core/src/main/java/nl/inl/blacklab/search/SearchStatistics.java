@@ -0,0 +1,92 @@
+package nl.inl.blacklab.search;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters for what searches spend their time and I/O on.
+ *
+ * These are cheap to update from many threads at once. They only ever go up;
+ * applications (e.g. BlackLab Server) can publish them to a metrics system,
+ * which will compute rates from them.
+ */
+public final class SearchStatistics {
+
+    private static final LongAdder optimizeRewriteNanos = new LongAdder();
+
+    private static final LongAdder spanIterationNanos = new LongAdder();
+
+    private static final LongAdder hitsRetrieved = new LongAdder();
+
+    private static final LongAdder forwardIndexBytesRead = new LongAdder();
+
+    private static final LongAdder contentStoreBytesRead = new LongAdder();
+
+    private SearchStatistics() {
+    }
+
+    /**
+     * Record time spent optimizing and rewriting a query.
+     *
+     * @param nanos time spent
+     */
+    public static void addOptimizeRewriteNanos(long nanos) {
+        optimizeRewriteNanos.add(nanos);
+    }
+
+    /**
+     * Record time spent iterating over spans to find hits.
+     *
+     * @param nanos time spent
+     */
+    public static void addSpanIterationNanos(long nanos) {
+        spanIterationNanos.add(nanos);
+    }
+
+    /**
+     * Record hits read from the index.
+     *
+     * @param n number of hits
+     */
+    public static void addHitsRetrieved(long n) {
+        hitsRetrieved.add(n);
+    }
+
+    /**
+     * Record bytes read from a forward index.
+     *
+     * @param n number of bytes
+     */
+    public static void addForwardIndexBytesRead(long n) {
+        forwardIndexBytesRead.add(n);
+    }
+
+    /**
+     * Record bytes read from a content store.
+     *
+     * @param n number of bytes
+     */
+    public static void addContentStoreBytesRead(long n) {
+        contentStoreBytesRead.add(n);
+    }
+
+    public static long optimizeRewriteNanos() {
+        return optimizeRewriteNanos.sum();
+    }
+
+    public static long spanIterationNanos() {
+        return spanIterationNanos.sum();
+    }
+
+    public static long hitsRetrieved() {
+        return hitsRetrieved.sum();
+    }
+
+    public static long forwardIndexBytesRead() {
+        return forwardIndexBytesRead.sum();
+    }
+
+    public static long contentStoreBytesRead() {
+        return contentStoreBytesRead.sum();
+    }
+
+}
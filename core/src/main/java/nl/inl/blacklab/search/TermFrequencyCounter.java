@@ -0,0 +1,211 @@
+package nl.inl.blacklab.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+
+import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
+import nl.inl.blacklab.exceptions.InterruptedSearch;
+import nl.inl.blacklab.forwardindex.AnnotationForwardIndex;
+import nl.inl.blacklab.forwardindex.FiidLookup;
+import nl.inl.blacklab.forwardindex.Terms;
+import nl.inl.blacklab.search.indexmetadata.AnnotationSensitivity;
+import nl.inl.blacklab.search.indexmetadata.MatchSensitivity;
+
+/**
+ * Counts term frequencies in a set of documents using the forward index.
+ *
+ * The documents matching the filter query are read per index segment, in
+ * parallel. Each task counts the term ids in the documents' forward index
+ * token arrays into its own array; these are added up at the end. Only then
+ * do we determine the terms, adding up the counts of terms that are equal at
+ * the requested sensitivity.
+ *
+ * This is much faster than retrieving the term vector for each document, and
+ * doesn't require term vectors.
+ */
+class TermFrequencyCounter {
+
+    private BlackLabIndex index;
+
+    private AnnotationSensitivity annotSensitivity;
+
+    private AnnotationForwardIndex forwardIndex;
+
+    private FiidLookup fiidLookup;
+
+    private Weight weight;
+
+    private List<LeafReaderContext> segments;
+
+    /** Next segment to count */
+    private AtomicInteger nextSegment = new AtomicInteger();
+
+    /** Set if something went wrong, so other tasks stop */
+    private volatile boolean stop = false;
+
+    /**
+     * Prepare to count term frequencies.
+     *
+     * @param index our index
+     * @param annotSensitivity annotation (must have a forward index) and sensitivity to count terms for
+     * @param filterQuery documents to count terms in
+     */
+    TermFrequencyCounter(BlackLabIndex index, AnnotationSensitivity annotSensitivity, Query filterQuery) {
+        this.index = index;
+        this.annotSensitivity = annotSensitivity;
+        forwardIndex = index.annotationForwardIndex(annotSensitivity.annotation());
+        fiidLookup = new FiidLookup(index.reader(), annotSensitivity.annotation());
+        try {
+            weight = index.searcher().createNormalizedWeight(filterQuery, false);
+        } catch (IOException e) {
+            throw BlackLabRuntimeException.wrap(e);
+        }
+        segments = index.reader().leaves();
+    }
+
+    /**
+     * Count the term frequencies.
+     *
+     * @param searchTerms terms to retrieve frequencies for, or null/empty to retrieve frequencies for all terms
+     * @return frequency per term
+     */
+    Map<String, Integer> count(Set<String> searchTerms) {
+        // Count segments in parallel, helping out in the calling thread.
+        int threads = Math.min(index.blackLab().maxThreadsPerSearch(), segments.size());
+        List<Future<int[]>> futures = new ArrayList<>();
+        ExecutorService executorService = index.blackLab().searchExecutorService();
+        for (int i = 1; i < threads; i++) {
+            futures.add(executorService.submit(this::countSegments));
+        }
+        int[] counts;
+        try {
+            counts = countSegments();
+            for (Future<int[]> future: futures) {
+                int[] taskCounts = future.get();
+                for (int i = 0; i < counts.length; i++)
+                    counts[i] += taskCounts[i];
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedSearch(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedSearch)
+                throw (InterruptedSearch) e.getCause();
+            throw BlackLabRuntimeException.wrap(e.getCause());
+        } finally {
+            // Make sure other tasks stop if something went wrong
+            stop = true;
+        }
+
+        Map<String, Integer> freq = termFrequencies(forwardIndex.terms(), annotSensitivity.sensitivity(), counts);
+        if (searchTerms != null && !searchTerms.isEmpty()) {
+            Map<String, Integer> requested = new HashMap<>();
+            for (String term: searchTerms)
+                requested.put(term, freq.getOrDefault(term, 0));
+            return requested;
+        }
+        return freq;
+    }
+
+    /**
+     * Keep counting the next segment until all segments are done.
+     *
+     * @return number of occurrences per term id
+     */
+    private int[] countSegments() {
+        int[] counts = new int[forwardIndex.terms().numberOfTerms()];
+        try {
+            int[] tokens = new int[0];
+            while (!stop) {
+                int segment = nextSegment.getAndIncrement();
+                if (segment >= segments.size())
+                    break;
+                tokens = countSegment(segments.get(segment), counts, tokens);
+            }
+        } catch (InterruptedException e) {
+            stop = true;
+            throw new InterruptedSearch(e);
+        } catch (IOException e) {
+            stop = true;
+            throw BlackLabRuntimeException.wrap(e);
+        } catch (RuntimeException e) {
+            stop = true;
+            throw e;
+        }
+        return counts;
+    }
+
+    /**
+     * Count the terms in the matching documents in a segment.
+     *
+     * @param context the segment
+     * @param counts where to add the number of occurrences per term id
+     * @param tokens buffer for reading tokens
+     * @return buffer for reading tokens (may have been reallocated)
+     * @throws IOException on error
+     * @throws InterruptedException if we were interrupted
+     */
+    private int[] countSegment(LeafReaderContext context, int[] counts, int[] tokens) throws IOException, InterruptedException {
+        Scorer scorer = weight.scorer(context);
+        if (scorer == null)
+            return tokens; // no matching documents
+        Bits liveDocs = context.reader().getLiveDocs();
+        DocIdSetIterator documents = scorer.iterator();
+        int doc;
+        while ((doc = documents.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            if (liveDocs != null && !liveDocs.get(doc))
+                continue;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (stop)
+                break; // another task failed
+            int fiid = fiidLookup.get(context.docBase + doc);
+            int length = forwardIndex.docLength(fiid);
+            if (length > tokens.length)
+                tokens = new int[length];
+            length = forwardIndex.retrievePartInt(fiid, -1, -1, tokens, 0);
+            for (int i = 0; i < length; i++) {
+                if (tokens[i] >= 0)
+                    counts[tokens[i]]++;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Determine the terms for the term ids and add up their frequencies.
+     *
+     * Each term is desensitized as it would be in the index; several ids may map to
+     * the same desensitized term, so their counts are added up. (We don't use the
+     * sort positions for this, because the collator may consider terms equal that
+     * aren't the same after desensitizing, e.g. terms differing only by a dash.)
+     *
+     * @param terms terms in the forward index
+     * @param sensitivity sensitivity we're counting at
+     * @param counts number of occurrences per term id
+     * @return frequency per term
+     */
+    static Map<String, Integer> termFrequencies(Terms terms, MatchSensitivity sensitivity, int[] counts) {
+        Map<String, Integer> freq = new HashMap<>();
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] > 0)
+                freq.merge(sensitivity.desensitize(terms.get(id)), counts[id], Integer::sum);
+        }
+        return freq;
+    }
+
+}
@@ -12,6 +12,8 @@ import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
 import org.eclipse.collections.api.tuple.primitive.IntIntPair;
 import org.eclipse.collections.impl.factory.primitive.IntIntMaps;
 
+import it.unimi.dsi.fastutil.ints.IntIterator;
+
 import nl.inl.blacklab.forwardindex.FiidLookup;
 import nl.inl.blacklab.forwardindex.Terms;
 import nl.inl.blacklab.resultproperty.PropertyValue;
@@ -59,12 +61,14 @@ public class TermFrequencyList extends Results<TermFrequency> {
         List<FiidLookup> fiidLookups = FiidLookup.getList(annotations, hits.queryInfo().index().reader());
         Contexts contexts = new Contexts(hits, annotations, contextSize, fiidLookups);
         MutableIntIntMap coll = IntIntMaps.mutable.empty();
-        for (int[] context: contexts) {
+        int[] context = contexts.data();
+        for (IntIterator it = contexts.offsets(); it.hasNext(); ) {
             // Count words
-            int contextHitStart = context[Contexts.HIT_START_INDEX];
-            int contextRightStart = context[Contexts.RIGHT_START_INDEX];
-            int contextLength = context[Contexts.LENGTH_INDEX];
-            int indexInContent = Contexts.NUMBER_OF_BOOKKEEPING_INTS;
+            int offset = it.nextInt();
+            int contextHitStart = context[offset + Contexts.HIT_START_INDEX];
+            int contextRightStart = context[offset + Contexts.RIGHT_START_INDEX];
+            int contextLength = context[offset + Contexts.LENGTH_INDEX];
+            int indexInContent = offset + Contexts.NUMBER_OF_BOOKKEEPING_INTS;
             for (int i = 0; i < contextLength; i++, indexInContent++) {
                 if (i >= contextHitStart && i < contextRightStart)
                     continue; // don't count words in hit itself, just around [option..?]
@@ -207,4 +211,14 @@ public class TermFrequencyList extends Results<TermFrequency> {
         return getResults().size();
     }
 
+    @Override
+    public long estimateMemoryBytes() {
+        long bytes = BYTES_PER_OBJECT * 2L;
+        for (TermFrequency tf: getResults()) {
+            // reference, TermFrequency object, String object and its characters
+            bytes += BYTES_PER_REFERENCE + BYTES_PER_OBJECT * 3L + 2L * tf.term.length();
+        }
+        return bytes;
+    }
+
 }
@@ -54,6 +54,18 @@ public abstract class ForwardIndexAccessor {
      */
     public abstract int numberOfAnnotations();
 
+    /**
+     * Get the number of terms in an annotation.
+     *
+     * Term ids are always smaller than this number.
+     *
+     * @param annotIndex annotation number
+     * @return number of terms, or -1 if unknown
+     */
+    public int numberOfTerms(int annotIndex) {
+        return -1;
+    }
+
     /**
      * Get an accessor for forward index documents from this leafreader.
      *
@@ -78,6 +90,9 @@ public abstract class ForwardIndexAccessor {
          * Get a token source, which we can use to get tokens from a document for
          * different annotations.
          *
+         * The token source may be reused for the next document requested, so
+         * don't use it after calling this method again.
+         *
          * @param docId Lucene document id
          * @return the token source
          */
@@ -98,9 +113,9 @@ public abstract class ForwardIndexAccessor {
          * @param docId Lucene document id
          * @param start first token to get
          * @param end one more than the last token to get
-         * @return document length in tokens
+         * @param dest where to store the tokens (starting at index 0)
          */
-        abstract int[] getChunk(int annotIndex, int docId, int start, int end);
+        abstract void getChunk(int annotIndex, int docId, int start, int end, int[] dest);
 
         /**
          * Get the forward index id for the specified annotation and document.
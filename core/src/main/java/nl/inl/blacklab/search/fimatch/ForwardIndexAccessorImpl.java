@@ -96,6 +96,11 @@ class ForwardIndexAccessorImpl extends ForwardIndexAccessor {
         return fis.size();
     }
 
+    @Override
+    public int numberOfTerms(int annotIndex) {
+        return terms.get(annotIndex).numberOfTerms();
+    }
+
     @Override
     public ForwardIndexAccessorLeafReader getForwardIndexAccessorLeafReader(LeafReader reader) {
         return new ForwardIndexAccessorLeafReaderImpl(reader);
@@ -105,6 +110,9 @@ class ForwardIndexAccessorImpl extends ForwardIndexAccessor {
 
         private List<DocIntFieldGetter> fiidGetters;
 
+        /** Token source for the current document (reused for the next document) */
+        private ForwardIndexDocumentImpl currentDoc;
+
         ForwardIndexAccessorLeafReaderImpl(LeafReader reader) {
             super(reader);
             fiidGetters = new ArrayList<>();
@@ -131,7 +139,11 @@ class ForwardIndexAccessorImpl extends ForwardIndexAccessor {
          */
         @Override
         public ForwardIndexDocument getForwardIndexDoc(int id) {
-            return new ForwardIndexDocumentImpl(this, id);
+            if (currentDoc == null)
+                currentDoc = new ForwardIndexDocumentImpl(this, id);
+            else
+                currentDoc.setDocument(id);
+            return currentDoc;
         }
 
         @Override
@@ -141,15 +153,10 @@ class ForwardIndexAccessorImpl extends ForwardIndexAccessor {
             return fis.get(0).docLength(getFiid(0, docId)) - 1;
         }
 
-        int[] starts = { 0 };
-        int[] ends = { 0 };
-
         @Override
-        public int[] getChunk(int annotIndex, int docId, int start, int end) {
-            starts[0] = start;
-            ends[0] = end;
+        public void getChunk(int annotIndex, int docId, int start, int end, int[] dest) {
             int fiid = fiidGetter(annotIndex).getFieldValue(docId);
-            return fis.get(annotIndex).retrievePartsInt(fiid, starts, ends).get(0);
+            fis.get(annotIndex).retrievePartInt(fiid, start, end, dest, 0);
         }
 
         @Override
@@ -1,6 +1,7 @@
 package nl.inl.blacklab.search.fimatch;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import nl.inl.blacklab.forwardindex.Terms;
@@ -24,18 +25,35 @@ class ForwardIndexDocumentImpl extends ForwardIndexDocument {
 
     /**
      * Chunks of the document from the forward index, for each of the annotations.
+     *
+     * The arrays are kept when we move to another document, so we can reuse them.
      */
     private List<List<int[]>> allAnnotChunks = new ArrayList<>();
 
+    /** Which chunks we've fetched for the current document, for each of the annotations. */
+    private List<BitSet> allAnnotChunksFetched = new ArrayList<>();
+
     public ForwardIndexDocumentImpl(ForwardIndexAccessorLeafReader fiAccessor, int docId) {
         this.fiAccessor = fiAccessor;
-        this.docId = docId;
-        this.docLengthTokens = fiAccessor.getDocLength(docId);
 
         // Create empty lists of chunks for each annotation
         for (int i = 0; i < fiAccessor.getNumberOfAnnotations(); i++) {
             allAnnotChunks.add(new ArrayList<int[]>());
+            allAnnotChunksFetched.add(new BitSet());
         }
+        setDocument(docId);
+    }
+
+    /**
+     * Move to another document, reusing the chunk arrays we've allocated so far.
+     *
+     * @param docId Lucene document id
+     */
+    void setDocument(int docId) {
+        this.docId = docId;
+        this.docLengthTokens = fiAccessor.getDocLength(docId);
+        for (BitSet fetched: allAnnotChunksFetched)
+            fetched.clear();
     }
 
     @Override
@@ -53,15 +71,20 @@ class ForwardIndexDocumentImpl extends ForwardIndexDocument {
 
         // Make sure we have the chunk we need:
         // First, make sure the list is long enough.
-        // (we fill with nulls to avoid fetching chunks we don't need)
+        // (we fill with nulls to avoid allocating chunks we don't need)
         while (chunks.size() <= whichChunk)
             chunks.add(null);
         // Now, see if we have the chunk we want, and fetch it if not
         int[] chunk = chunks.get(whichChunk);
+        BitSet fetched = allAnnotChunksFetched.get(annotIndex);
         if (chunk == null) {
-            chunk = fetchChunk(annotIndex, whichChunk);
+            chunk = new int[CHUNK_SIZE];
             chunks.set(whichChunk, chunk);
         }
+        if (!fetched.get(whichChunk)) {
+            fetchChunk(annotIndex, whichChunk, chunk);
+            fetched.set(whichChunk);
+        }
 
         return chunk[posWithinChunk];
 
@@ -72,15 +95,15 @@ class ForwardIndexDocumentImpl extends ForwardIndexDocument {
      * 
      * @param annotIndex which annotation we want a forward index chunk for
      * @param number the chunk number to fetch
-     * @return the chunk
+     * @param chunk where to store the chunk
      */
-    protected int[] fetchChunk(int annotIndex, int number) {
+    protected void fetchChunk(int annotIndex, int number, int[] chunk) {
         int start = number * CHUNK_SIZE;
         int end = start + CHUNK_SIZE;
         if (end > docLengthTokens) {
             end = docLengthTokens;
         }
-        return fiAccessor.getChunk(annotIndex, docId, start, end);
+        fiAccessor.getChunk(annotIndex, docId, start, end, chunk);
     }
 
     @Override
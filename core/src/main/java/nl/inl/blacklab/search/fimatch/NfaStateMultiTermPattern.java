@@ -32,6 +32,13 @@ public abstract class NfaStateMultiTermPattern extends NfaState {
     /** Match case-/diacritics-sensitively? */
     private MatchSensitivity sensitivity;
 
+    /**
+     * Which term ids we know match or don't match our pattern, so we only have to
+     * match each term once per query. Only valid after lookupPropertyNumber() called,
+     * and null if we don't know the number of terms.
+     */
+    private TermIdMatches termIdMatches;
+
     public NfaStateMultiTermPattern(String luceneField, String pattern, NfaState nextState) {
         this.luceneField = luceneField;
         this.sensitivity = AnnotatedFieldNameUtil.sensitivity(luceneField);
@@ -52,15 +59,30 @@ public abstract class NfaStateMultiTermPattern extends NfaState {
     public boolean findMatchesInternal(ForwardIndexDocument fiDoc, int pos, int direction, Set<Integer> matchEnds) {
         // Token state. Check if it matches token from token source, and if so, continue.
         int actualToken = fiDoc.getToken(propertyNumber, pos);
-        if (actualToken >= 0) {
-            String tokenString = fiDoc.getTermString(propertyNumber, actualToken);
-            if (matchesPattern(desensitize(tokenString))) {
-                return nextState.findMatchesInternal(fiDoc, pos + direction, direction, matchEnds);
-            }
+        if (actualToken >= 0 && termMatches(fiDoc, actualToken)) {
+            return nextState.findMatchesInternal(fiDoc, pos + direction, direction, matchEnds);
         }
         return false;
     }
 
+    /**
+     * Does a term match our pattern?
+     *
+     * @param fiDoc where to read the term from if we don't know yet
+     * @param termId term id
+     * @return true if it matches
+     */
+    private boolean termMatches(ForwardIndexDocument fiDoc, int termId) {
+        int known = termIdMatches == null ? TermIdMatches.UNKNOWN : termIdMatches.get(termId);
+        if (known != TermIdMatches.UNKNOWN)
+            return known == TermIdMatches.MATCHES;
+        String tokenString = fiDoc.getTermString(propertyNumber, termId);
+        boolean matches = matchesPattern(desensitize(tokenString));
+        if (termIdMatches != null)
+            termIdMatches.set(termId, matches);
+        return matches;
+    }
+
     private String desensitize(String tokenString) {
         if (!sensitivity.isCaseSensitive())
             tokenString = tokenString.toLowerCase();
@@ -140,6 +162,8 @@ public abstract class NfaStateMultiTermPattern extends NfaState {
         String[] comp = AnnotatedFieldNameUtil.getNameComponents(luceneField);
         String propertyName = comp[1];
         propertyNumber = fiAccessor.getAnnotationNumber(propertyName);
+        int numberOfTerms = fiAccessor.numberOfTerms(propertyNumber);
+        termIdMatches = numberOfTerms < 0 ? null : new TermIdMatches(numberOfTerms);
         if (nextState != null)
             nextState.lookupPropertyNumbers(fiAccessor, statesVisited);
     }
@@ -0,0 +1,70 @@
+package nl.inl.blacklab.search.fimatch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers which term ids match a pattern and which don't.
+ *
+ * Uses two bits per term id: whether we know, and whether it matches. Both are
+ * set in a single atomic update, so this may be used from several threads at
+ * once without locking.
+ */
+class TermIdMatches {
+
+    /** We haven't matched this term yet */
+    static final int UNKNOWN = 0;
+
+    /** This term matches */
+    static final int MATCHES = 3;
+
+    /** This term doesn't match */
+    static final int NO_MATCH = 1;
+
+    /** Number of terms per long (2 bits each) */
+    private static final int TERMS_PER_LONG = Long.SIZE / 2;
+
+    /** Known and matches bits for each term id */
+    private final AtomicLongArray bits;
+
+    /** Number of terms we have room for */
+    private final int numberOfTerms;
+
+    TermIdMatches(int numberOfTerms) {
+        this.numberOfTerms = numberOfTerms;
+        bits = new AtomicLongArray((numberOfTerms + TERMS_PER_LONG - 1) / TERMS_PER_LONG);
+    }
+
+    /**
+     * Do we know whether a term matches?
+     *
+     * @param termId term id
+     * @return UNKNOWN, MATCHES or NO_MATCH
+     */
+    int get(int termId) {
+        if (termId >= numberOfTerms)
+            return UNKNOWN;
+        return (int) (bits.get(termId / TERMS_PER_LONG) >>> shift(termId)) & 3;
+    }
+
+    /**
+     * Remember whether a term matches.
+     *
+     * @param termId term id
+     * @param matches whether it matches
+     */
+    void set(int termId, boolean matches) {
+        if (termId >= numberOfTerms)
+            return;
+        int i = termId / TERMS_PER_LONG;
+        long value = (long) (matches ? MATCHES : NO_MATCH) << shift(termId);
+        long current;
+        do {
+            current = bits.get(i);
+        } while (!bits.compareAndSet(i, current, current | value));
+    }
+
+    private static int shift(int termId) {
+        return (termId % TERMS_PER_LONG) * 2;
+    }
+
+}
@@ -42,6 +42,7 @@ import nl.inl.blacklab.search.fimatch.Nfa;
 import nl.inl.blacklab.search.lucene.SpanQueryExpansion.Direction;
 import nl.inl.blacklab.search.lucene.SpansSequenceWithGap.Gap;
 import nl.inl.blacklab.search.lucene.optimize.ClauseCombiner;
+import nl.inl.blacklab.search.lucene.optimize.OptimizationContext;
 
 /**
  * Combines spans, keeping only combinations of hits that occur one after the
@@ -299,6 +300,7 @@ public class SpanQuerySequence extends BLSpanQueryAbstract {
         if (index instanceof BlackLabIndexImpl) {
             canDoNfaMatching = ((BlackLabIndexImpl)index).canDoNfaMatching();
         }
+        Set<ClauseCombiner> combiners = ClauseCombiner.all(canDoNfaMatching, OptimizationContext.current());
         boolean anyRewritten = false;
 
         // Make a copy, because our methods rewrite things in-place.
@@ -320,7 +322,7 @@ public class SpanQuerySequence extends BLSpanQueryAbstract {
         // By doing it before rewriting, we save the time to expand the regex to all its matching
         // terms, as well
         // as dealing with each of these (sometimes frequent) terms, which can be significant.
-        anyRewritten |= combineAdjacentClauses(cl, reader, getField(), ClauseCombiner.all(canDoNfaMatching));
+        anyRewritten |= combineAdjacentClauses(cl, reader, getField(), combiners);
 
         // Optimize each clause, and flatten again if necessary
         anyRewritten |= optimizeClauses(cl, reader);
@@ -342,6 +344,7 @@ public class SpanQuerySequence extends BLSpanQueryAbstract {
         if (index instanceof BlackLabIndexImpl) {
             canDoNfaMatching = ((BlackLabIndexImpl)index).canDoNfaMatching();
         }
+        Set<ClauseCombiner> combiners = ClauseCombiner.all(canDoNfaMatching, OptimizationContext.current());
         boolean anyRewritten = false;
 
         // Make a copy, because our methods rewrite things in-place.
@@ -363,7 +366,7 @@ public class SpanQuerySequence extends BLSpanQueryAbstract {
         // By doing it before rewriting, we save the time to expand the regex to all its matching
         // terms, as well
         // as dealing with each of these (sometimes frequent) terms, which can be significant.
-        anyRewritten |= combineAdjacentClauses(cl, reader, getField(), ClauseCombiner.all(canDoNfaMatching));
+        anyRewritten |= combineAdjacentClauses(cl, reader, getField(), combiners);
 
         // Rewrite each clause, and flatten again if necessary
         anyRewritten |= rewriteClauses(cl, reader);
@@ -373,7 +376,7 @@ public class SpanQuerySequence extends BLSpanQueryAbstract {
         // Again, try to combine adjacent clauses into more efficient ones. Rewriting clauses may
         // have
         // generated new opportunities for combining clauses.
-        anyRewritten |= combineAdjacentClauses(cl, reader, getField(), ClauseCombiner.all(canDoNfaMatching));
+        anyRewritten |= combineAdjacentClauses(cl, reader, getField(), combiners);
 
         // If any part of the sequence matches the empty sequence, we must
         // rewrite it to several alternatives combined with OR. Do so now.
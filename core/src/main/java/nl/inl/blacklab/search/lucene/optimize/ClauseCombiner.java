@@ -19,14 +19,21 @@ public abstract class ClauseCombiner {
         return priority(left, right, reader) != CANNOT_COMBINE;
     }
 
-    public static Set<ClauseCombiner> all(boolean nfa) {
+    /**
+     * Get all clause combiners.
+     *
+     * @param nfa whether to include the NFA combiner
+     * @param context settings for the query we're optimizing
+     * @return clause combiners
+     */
+    public static Set<ClauseCombiner> all(boolean nfa, OptimizationContext context) {
         HashSet<ClauseCombiner> all = new HashSet<>();
         all.add(new ClauseCombinerRepetition());
         all.add(new ClauseCombinerInternalisation());
         all.add(new ClauseCombinerAnyExpansion());
         all.add(new ClauseCombinerNot());
         if (nfa)
-            all.add(new ClauseCombinerNfa());
+            all.add(new ClauseCombinerNfa(context));
         return all;
     }
     
@@ -61,27 +61,49 @@ public class ClauseCombinerNfa extends ClauseCombiner {
     private static final long COST_RATIO_CONSTANT_FACTOR = 1000;
 
     /**
-     * The ratio of estimated numbers of hits that we use to decide whether or not
-     * to try NFA-matching with two clauses / subsequences. The lower the number,
-     * the more we use NFA-matching.
+     * The default ratio of estimated numbers of hits that we use to decide whether
+     * or not to try NFA-matching with two clauses / subsequences. The lower the
+     * number, the more we use NFA-matching.
+     *
+     * Individual searches may override this using an {@link OptimizationContext}.
      */
-    private static long nfaThreshold = DEFAULT_NFA_THRESHOLD;
+    private static long defaultNfaThreshold = DEFAULT_NFA_THRESHOLD;
 
+    /**
+     * Set the default NFA threshold (used if a search doesn't specify one).
+     *
+     * @param nfaThreshold the new default
+     */
     public static void setNfaThreshold(long nfaThreshold) {
-        ClauseCombinerNfa.nfaThreshold = nfaThreshold;
+        ClauseCombinerNfa.defaultNfaThreshold = nfaThreshold;
     }
 
+    /**
+     * Get the default NFA threshold (used if a search doesn't specify one).
+     *
+     * @return the default
+     */
     public static long getNfaThreshold() {
-        return ClauseCombinerNfa.nfaThreshold;
+        return ClauseCombinerNfa.defaultNfaThreshold;
     }
 
     public static void setNfaMatchingEnabled(boolean doNfaMatching) {
-        boolean doingNfaMatching = nfaThreshold != NO_NFA_MATCHING;
+        boolean doingNfaMatching = defaultNfaThreshold != NO_NFA_MATCHING;
         if (doNfaMatching != doingNfaMatching)
-            nfaThreshold = doNfaMatching ? DEFAULT_NFA_THRESHOLD : NO_NFA_MATCHING;
+            defaultNfaThreshold = doNfaMatching ? DEFAULT_NFA_THRESHOLD : NO_NFA_MATCHING;
+    }
+
+    /** NFA threshold for the query we're optimizing */
+    private final long nfaThreshold;
+
+    /**
+     * @param context settings for the query we're optimizing
+     */
+    public ClauseCombinerNfa(OptimizationContext context) {
+        this.nfaThreshold = context.nfaThreshold();
     }
 
-    private static long getFactor(BLSpanQuery left, BLSpanQuery right, IndexReader reader) {
+    private long getFactor(BLSpanQuery left, BLSpanQuery right, IndexReader reader) {
         if (nfaThreshold == NO_NFA_MATCHING)
             return 0;
         boolean leftEmpty = left.matchesEmptySequence();
@@ -0,0 +1,122 @@
+package nl.inl.blacklab.search.lucene.optimize;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+
+import nl.inl.blacklab.requestlogging.LogLevel;
+import nl.inl.blacklab.search.SearchStatistics;
+import nl.inl.blacklab.search.lucene.BLSpanQuery;
+import nl.inl.blacklab.search.results.QueryInfo;
+
+/**
+ * Settings that influence how a query is optimized and rewritten, such as the
+ * NFA threshold for forward index matching.
+ *
+ * Because rewrite(IndexReader) is defined by Lucene, we can't pass this to each
+ * query. Instead, {@link #optimizeAndRewrite(BLSpanQuery, IndexReader)} makes it
+ * the current context for the calling thread while optimizing and rewriting, so
+ * concurrent queries with different settings don't influence each other.
+ * Queries that optimize or rewrite outside of that use the default settings.
+ */
+public final class OptimizationContext {
+
+    /** The context for the query being optimized/rewritten on this thread, if any */
+    private static final ThreadLocal<OptimizationContext> current = new ThreadLocal<>();
+
+    /**
+     * Get the default context.
+     *
+     * @return context with the default settings
+     */
+    public static OptimizationContext defaults() {
+        return new OptimizationContext(ClauseCombinerNfa.getNfaThreshold());
+    }
+
+    /**
+     * Get the context for the query being optimized/rewritten on this thread.
+     *
+     * @return current context, or the default context if there is none
+     */
+    public static OptimizationContext current() {
+        OptimizationContext context = current.get();
+        return context == null ? defaults() : context;
+    }
+
+    /**
+     * The ratio of estimated numbers of hits that we use to decide whether or not
+     * to try NFA-matching with two clauses / subsequences. The lower the number,
+     * the more we use NFA-matching.
+     */
+    private final long nfaThreshold;
+
+    private OptimizationContext(long nfaThreshold) {
+        this.nfaThreshold = nfaThreshold;
+    }
+
+    public long nfaThreshold() {
+        return nfaThreshold;
+    }
+
+    /**
+     * Get a copy of this context with a different NFA threshold.
+     *
+     * @param nfaThreshold NFA threshold to use
+     * @return new context
+     */
+    public OptimizationContext withNfaThreshold(long nfaThreshold) {
+        return new OptimizationContext(nfaThreshold);
+    }
+
+    /**
+     * Optimize and rewrite a query using this context.
+     *
+     * @param query query to optimize and rewrite
+     * @param reader index reader
+     * @return rewritten query
+     * @throws IOException on error
+     */
+    public BLSpanQuery optimizeAndRewrite(BLSpanQuery query, IndexReader reader) throws IOException {
+        OptimizationContext previous = current.get();
+        current.set(this);
+        long startTime = System.nanoTime();
+        try {
+            query.log(LogLevel.EXPLAIN, "Query before optimize()/rewrite(): " + query);
+
+            BLSpanQuery optimized = query.optimize(reader);
+            query.log(LogLevel.EXPLAIN, "Query after optimize(): " + optimized);
+
+            BLSpanQuery rewritten = optimized.rewrite(reader);
+            query.log(LogLevel.EXPLAIN, "Query after rewrite(): " + rewritten);
+            return rewritten;
+        } finally {
+            SearchStatistics.addOptimizeRewriteNanos(System.nanoTime() - startTime);
+            if (previous == null)
+                current.remove();
+            else
+                current.set(previous);
+        }
+    }
+
+    /**
+     * Get the context for a search.
+     *
+     * @param queryInfo query info, used to log if we override the default
+     * @param fiMatchFactor NFA threshold override for this search, or -1 for default
+     * @return context
+     */
+    public static OptimizationContext forSearch(QueryInfo queryInfo, long fiMatchFactor) {
+        OptimizationContext context = defaults();
+        if (fiMatchFactor != -1 && fiMatchFactor != context.nfaThreshold()) {
+            queryInfo.log(LogLevel.OPT, "setting NFA threshold for this query to " + fiMatchFactor);
+            context = context.withNfaThreshold(fiMatchFactor);
+        }
+        return context;
+    }
+
+    @Override
+    public String toString() {
+        return "OptimizationContext(nfaThreshold=" + nfaThreshold + ")";
+    }
+
+}
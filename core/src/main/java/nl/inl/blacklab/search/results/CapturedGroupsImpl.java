@@ -1,44 +1,134 @@
 package nl.inl.blacklab.search.results;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import nl.inl.blacklab.search.Span;
 
-/** Captured group information for a list of hits. */
+/**
+ * Captured group information for a list of hits.
+ *
+ * The groups are stored in a flat int array of start/end pairs, indexed by hit
+ * index (see {@link Hit#index()}). Because hits keep their index when they are
+ * sorted, windowed, sampled or grouped, all Hits instances derived from the
+ * original hits can share this object, instead of copying or looking up the
+ * groups by hit.
+ */
 public class CapturedGroupsImpl implements CapturedGroups {
-    
-    /** The captured groups per hit. */
-    private Map<Hit, Span[]> capturedGroups;
-    
+
+    /** Start value for a group that didn't capture anything */
+    private static final int NO_GROUP = -1;
+
+    /** Initial number of hits to reserve room for */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The captured groups: for each hit index, start and end of each group.
+     *
+     * So the start of group g for hit h is found at (h * numberOfGroups + g) * 2,
+     * and its end right after that.
+     */
+    private int[] capturedGroups;
+
     /** Capture group names. */
     private List<String> capturedGroupNames;
 
+    /** Number of capture groups per hit */
+    private int numberOfGroups;
+
+    /**
+     * Highest hit index we've stored groups for, plus one.
+     *
+     * Volatile so groups are safely published to other threads when they are added.
+     */
+    private volatile int hitIndexLimit = 0;
+
     public CapturedGroupsImpl(List<String> capturedGroupNames) {
         this.capturedGroupNames = capturedGroupNames;
-        capturedGroups = new HashMap<>();
+        numberOfGroups = capturedGroupNames.size();
+        capturedGroups = new int[DEFAULT_CAPACITY * numberOfGroups * 2];
+        Arrays.fill(capturedGroups, NO_GROUP);
+    }
+
+    /**
+     * Estimate how much memory the captured groups use.
+     *
+     * @return estimated memory use in bytes
+     */
+    public long estimateMemoryBytes() {
+        return SearchResult.BYTES_PER_OBJECT * 2L + (long) capturedGroups.length * SearchResult.BYTES_PER_INT;
     }
 
     public CapturedGroupsImpl(CapturedGroupsImpl toCopy) {
         this.capturedGroupNames = toCopy.capturedGroupNames;
-        this.capturedGroups = new HashMap<>(toCopy.capturedGroups);
+        this.numberOfGroups = toCopy.numberOfGroups;
+        this.capturedGroups = toCopy.capturedGroups.clone();
+        this.hitIndexLimit = toCopy.hitIndexLimit;
+    }
+
+    private void ensureCapacity(int hitIndex) {
+        int length = (hitIndex + 1) * numberOfGroups * 2;
+        if (length > capturedGroups.length) {
+            int oldLength = capturedGroups.length;
+            capturedGroups = IntArrays.grow(capturedGroups, length);
+            Arrays.fill(capturedGroups, oldLength, capturedGroups.length, NO_GROUP);
+        }
+    }
+
+    private void setLimit(int hitIndex) {
+        if (hitIndex >= hitIndexLimit)
+            hitIndexLimit = hitIndex + 1; // publish
     }
 
     /**
      * Add groups for a hit
-     * 
-     * @param hit the hit 
+     *
+     * @param hit the hit
      * @param groups groups for thishit
      */
     public void put(Hit hit, Span[] groups) {
-        capturedGroups.put(hit, groups);
+        put(hit.index(), groups);
+    }
+
+    /**
+     * Add groups for a hit
+     *
+     * @param hitIndex index of the hit
+     * @param groups groups for this hit
+     */
+    public void put(int hitIndex, Span[] groups) {
+        ensureCapacity(hitIndex);
+        int offset = hitIndex * numberOfGroups * 2;
+        for (int i = 0; i < numberOfGroups; i++) {
+            Span group = groups[i];
+            capturedGroups[offset] = group == null ? NO_GROUP : group.start();
+            capturedGroups[offset + 1] = group == null ? NO_GROUP : group.end();
+            offset += 2;
+        }
+        setLimit(hitIndex);
+    }
+
+    /**
+     * Copy the groups for a hit from another instance.
+     *
+     * @param hitIndex index of the hit in this instance
+     * @param source where to copy the groups from
+     * @param sourceHitIndex index of the hit in source
+     */
+    public void put(int hitIndex, CapturedGroupsImpl source, int sourceHitIndex) {
+        ensureCapacity(hitIndex);
+        int n = numberOfGroups * 2;
+        if (sourceHitIndex < source.hitIndexLimit)
+            System.arraycopy(source.capturedGroups, sourceHitIndex * n, capturedGroups, hitIndex * n, n);
+        setLimit(hitIndex);
     }
-    
+
     /**
      * Get the group names
-     * 
+     *
      * @return group names
      */
     @Override
@@ -48,32 +138,74 @@ public class CapturedGroupsImpl implements CapturedGroups {
 
     /**
      * Get the captured groups.
-     * 
+     *
      * @param hit hit to get groups for
      * @return groups
      */
     @Override
     public Span[] get(Hit hit) {
-        if (capturedGroups == null)
+        return get(hit.index());
+    }
+
+    /**
+     * Get the captured groups.
+     *
+     * @param hitIndex index of the hit to get groups for
+     * @return groups, or null if we don't have groups for this hit
+     */
+    public Span[] get(int hitIndex) {
+        if (hitIndex < 0 || hitIndex >= hitIndexLimit)
             return null;
-        return capturedGroups.get(hit);
+        Span[] result = new Span[numberOfGroups];
+        int offset = hitIndex * numberOfGroups * 2;
+        for (int i = 0; i < numberOfGroups; i++) {
+            int start = capturedGroups[offset];
+            if (start != NO_GROUP)
+                result[i] = new Span(start, capturedGroups[offset + 1]);
+            offset += 2;
+        }
+        return result;
+    }
+
+    /**
+     * Get the start of a captured group.
+     *
+     * @param hitIndex index of the hit
+     * @param group group number
+     * @return start of the group, or -1 if the group didn't capture anything
+     */
+    public int start(int hitIndex, int group) {
+        if (hitIndex < 0 || hitIndex >= hitIndexLimit)
+            return NO_GROUP;
+        return capturedGroups[(hitIndex * numberOfGroups + group) * 2];
+    }
+
+    /**
+     * Get the end of a captured group.
+     *
+     * @param hitIndex index of the hit
+     * @param group group number
+     * @return end of the group, or -1 if the group didn't capture anything
+     */
+    public int end(int hitIndex, int group) {
+        if (hitIndex < 0 || hitIndex >= hitIndexLimit)
+            return NO_GROUP;
+        return capturedGroups[(hitIndex * numberOfGroups + group) * 2 + 1];
     }
 
     /**
      * Get a map of the captured groups.
-     * 
+     *
      * Relatively slow. If you care about performance, prefer {@link #get(Hit)}.
-     * 
+     *
      * @param hit hit to get groups for
      * @return groups
      */
     @Override
     public Map<String, Span> getMap(Hit hit) {
-        if (capturedGroups == null)
-            return null;
         Map<String, Span> result = new TreeMap<>(); // TreeMap to maintain group ordering
         List<String> names = names();
-        Span[] groups = capturedGroups.get(hit);
+        Span[] groups = get(hit);
         if (groups == null)
             return null;
         for (int i = 0; i < names.size(); i++) {
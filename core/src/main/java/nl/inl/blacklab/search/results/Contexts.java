@@ -2,24 +2,28 @@ package nl.inl.blacklab.search.results;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.IdentityHashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 
 import org.apache.commons.lang3.StringUtils;
 
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+
 import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
 import nl.inl.blacklab.exceptions.InterruptedSearch;
 import nl.inl.blacklab.forwardindex.AnnotationForwardIndex;
 import nl.inl.blacklab.forwardindex.FiidLookup;
 import nl.inl.blacklab.forwardindex.Terms;
+import nl.inl.blacklab.search.BlackLabIndex;
 import nl.inl.blacklab.search.Kwic;
 import nl.inl.blacklab.search.indexmetadata.AnnotatedField;
 import nl.inl.blacklab.search.indexmetadata.Annotation;
 
-public class Contexts implements Iterable<int[]> {
+public class Contexts {
 
     /** In context arrays, how many bookkeeping ints are stored at the start? */
     public final static int NUMBER_OF_BOOKKEEPING_INTS = 3;
@@ -166,35 +170,31 @@ public class Contexts implements Iterable<int[]> {
         int[][] contexts = new int[list.size()][];
         for (AnnotationForwardIndex forwardIndex: contextSources) {
             FiidLookup fiidLookup = fiidLookups.get(fiNumber);
-            // Get all the words from the forward index
-            List<int[]> words;
-            if (forwardIndex != null) {
-                // We have a forward index for this field. Use it.
-                int fiid = fiidLookup.get(doc);
-                words = forwardIndex.retrievePartsInt(fiid, startsOfSnippets, endsOfSnippets);
-            } else {
+            if (forwardIndex == null)
                 throw new BlackLabRuntimeException("Cannot get context without a forward index");
-            }
-    
-            // Build the actual concordances
-            Iterator<int[]> wordsIt = words.iterator();
+
+            // We have a forward index for this field. Use it.
+            // Read the words straight into the context arrays, so we don't need to allocate
+            // and copy temporary arrays.
+            int fiid = fiidLookup.get(doc);
+            int docLength = forwardIndex.docLength(fiid);
             int hitNum = 0;
             for (Hit hit: list) {
-                int[] theseWords = wordsIt.next();
-    
                 int firstWordIndex = startsOfSnippets[hitNum];
-    
+                // (end may be beyond the end of the document, because we don't know the doc length in advance)
+                int contextLength = Math.min(endsOfSnippets[hitNum], docLength) - firstWordIndex;
+
                 if (fiNumber == 0) {
                     // Allocate context array and set hit and right start and context length
                     contexts[hitNum] = new int[NUMBER_OF_BOOKKEEPING_INTS
-                            + theseWords.length * contextSources.size()];
+                            + contextLength * contextSources.size()];
                     contexts[hitNum][HIT_START_INDEX] = hit.start() - firstWordIndex;
                     contexts[hitNum][RIGHT_START_INDEX] = hit.end() - firstWordIndex;
-                    contexts[hitNum][LENGTH_INDEX] = theseWords.length;
+                    contexts[hitNum][LENGTH_INDEX] = contextLength;
                 }
-                // Copy the context we just retrieved into the context array
-                int start = fiNumber * theseWords.length + NUMBER_OF_BOOKKEEPING_INTS;
-                System.arraycopy(theseWords, 0, contexts[hitNum], start, theseWords.length);
+                // Copy the context into the context array
+                int start = fiNumber * contextLength + NUMBER_OF_BOOKKEEPING_INTS;
+                forwardIndex.retrievePartInt(fiid, firstWordIndex, firstWordIndex + contextLength, contexts[hitNum], start);
                 hitNum++;
             }
     
@@ -203,21 +203,46 @@ public class Contexts implements Iterable<int[]> {
         return contexts;
     }
 
+    /** Offset value for hit indexes we don't have a context for */
+    private static final int NO_CONTEXT = -1;
+
+    /** Largest array we can safely allocate */
+    private static final int MAX_DATA_LENGTH = Integer.MAX_VALUE - 8;
+
     /**
-     * The hit contexts.
-     *
-     * There may be multiple contexts for each hit. Each
-     * int array starts with three bookkeeping integers, followed by the contexts
-     * information. The bookkeeping integers are: * 0 = hit start, index of the hit
-     * word (and length of the left context), counted from the start the context * 1
-     * = right start, start of the right context, counted from the start the context
-     * * 2 = context length, length of 1 context. As stated above, there may be
-     * multiple contexts.
+     * The hit contexts, all stored in one array.
      *
-     * The first context therefore starts at index 3.
+     * For each hit, there's a record starting with three bookkeeping integers,
+     * followed by the contexts. The bookkeeping integers are: 0 = hit start, index
+     * of the hit word (and length of the left context), counted from the start the
+     * context; 1 = right start, start of the right context, counted from the start
+     * the context; 2 = context length, length of 1 context. There may be multiple
+     * contexts (one per annotation), each of the same length.
      *
+     * Use {@link #offset(Hit)} to find the start of the record for a hit.
+     */
+    private int[] data;
+
+    /** Number of ints used in data */
+    private int dataLength = 0;
+
+    /**
+     * Offset of each hit's record in data, by hit index minus firstHitIndex (or
+     * NO_CONTEXT if we don't have that hit). Null if we use offsetsMap.
+     */
+    private int[] offsets;
+
+    /** Lowest hit index we have a context for */
+    private int firstHitIndex;
+
+    /**
+     * Offset of each hit's record in data, by hit index. Only used if the hit
+     * indexes are too sparse for the offsets array (e.g. a window on sorted hits).
      */
-    private Map<Hit, int[]> contexts;
+    private Int2IntMap offsetsMap;
+
+    /** Number of hits we have contexts for */
+    private int numberOfHits;
 
     /**
      * If we have context information, this specifies the annotation(s) (i.e. word,
@@ -225,69 +250,54 @@ public class Contexts implements Iterable<int[]> {
      */
     private List<Annotation> annotations;
 
+    /** Forward indexes for our annotations (only kept if we retrieve contexts per document) */
+    private List<AnnotationForwardIndex> fis;
+
+    /** Size of the contexts to retrieve (only kept if we retrieve contexts per document) */
+    private ContextSize contextSize;
+
+    /** How to look up the fiids (only kept if we retrieve contexts per document) */
+    private List<FiidLookup> fiidLookups;
+
+    /** Hit starts and ends (only kept if we retrieve contexts per document) */
+    private int[] starts, ends;
+
     // Methods that read data
     //------------------------------------------------------------------------------
 
-    /**
-     * Return a new Contexts instance that only includes the specified annotations
-     * in the specified order.
-     * 
-     * @param annotations annotations we want
-     */
-    @SuppressWarnings("unused")
-    private Contexts(Contexts source, List<Annotation> annotations) {
-        // Determine which contexts we want
-        List<Integer> contextsToSelect = new ArrayList<>();
-        for (int i = 0; i < source.annotations.size(); i++) {
-            if (annotations.contains(source.annotations.get(i)))
-                contextsToSelect.add(i);
-        }
-        if (contextsToSelect.size() < annotations.size())
-            throw new BlackLabRuntimeException("Not all requested contexts were present");
-    
-        // Copy only the requested contexts
-        int numberOfHits = source.contexts.size();
-        contexts = new IdentityHashMap<>(numberOfHits);
-        for (Entry<Hit, int[]> e: source.contexts.entrySet()) {
-            int[] context = e.getValue();
-            int hitContextLength = (context.length - NUMBER_OF_BOOKKEEPING_INTS)
-                    / source.annotations.size();
-            int[] result = new int[NUMBER_OF_BOOKKEEPING_INTS + hitContextLength * annotations.size()];
-            System.arraycopy(context, 0, result, 0, NUMBER_OF_BOOKKEEPING_INTS);
-            int resultContextNumber = 0;
-            for (Integer sourceContextNumber: contextsToSelect) {
-                System.arraycopy(context,
-                        NUMBER_OF_BOOKKEEPING_INTS + sourceContextNumber * hitContextLength, result,
-                        NUMBER_OF_BOOKKEEPING_INTS + resultContextNumber * hitContextLength,
-                        NUMBER_OF_BOOKKEEPING_INTS);
-                resultContextNumber++;
-            }
-            contexts.put(e.getKey(), result); 
-        }
-        this.annotations = annotations;
-    }
-
     /**
      * Retrieve context words for the hits.
      * 
+     * The contexts for all hits in a document are read in one go, for all
+     * annotations, straight into one large array. Hit properties can then compare
+     * contexts in-place, without allocating or hashing anything per hit.
+     * 
      * @param hits hits to find contexts for
      * @param annotations the field and annotations to use for the context
      * @param contextSize how large the contexts need to be
      * @param fiidLookups how to look up the fiids for each annotation
      */
     public Contexts(Results<Hit> hits, List<Annotation> annotations, ContextSize contextSize, List<FiidLookup> fiidLookups) {
-        hits.size(); // make sure all hits have been read
+        numberOfHits = hits.size(); // make sure all hits have been read
 
-        List<AnnotationForwardIndex> fis = new ArrayList<>();
-        for (Annotation annotation: annotations) {
-            fis.add(hits.index().annotationForwardIndex(annotation));
-        }
+        List<AnnotationForwardIndex> fis = forwardIndexes(hits.index(), annotations);
+
+        // Reserve room for the largest possible contexts (assuming one-word hits);
+        // the array will grow if we need more.
+        long recordLength = NUMBER_OF_BOOKKEEPING_INTS + (2L * contextSize.left() + 1) * fis.size();
+        data = new int[(int) Math.min(recordLength * numberOfHits, MAX_DATA_LENGTH)];
+
+        // Remember where each hit's context starts (by position in hits)
+        int[] hitIndexes = new int[numberOfHits];
+        int[] hitOffsets = new int[numberOfHits];
 
         // Get the context
         // Group hits per document
-        List<Hit> hitsInSameDoc = new ArrayList<>();
+        int docStart = 0;
         int currentDoc = -1;
-        contexts = new IdentityHashMap<>(hits.size());
+        int[] starts = new int[numberOfHits];
+        int[] ends = new int[numberOfHits];
+        int i = 0;
         for (Hit hit: hits) {
             if (hit.doc() != currentDoc) {
                 if (currentDoc >= 0) {
@@ -298,35 +308,170 @@ public class Contexts implements Iterable<int[]> {
                     }
 
                     // Find context for the hits in the current document
-                    int[][] docContextArray = getContextWordsSingleDocument(hitsInSameDoc, contextSize, fis, fiidLookups);
-
-                    // Copy the contexts from the temporary Hits object to this one
-                    int i = 0;
-                    for (Hit hitInDoc: hitsInSameDoc) {
-                        contexts.put(hitInDoc, docContextArray[i]);
-                        i++;
-                    }
-
-                    // Reset hits list for next doc
-                    hitsInSameDoc.clear();
+                    addContextsSingleDocument(currentDoc, starts, ends, docStart, i, contextSize, fis, fiidLookups, hitOffsets);
                 }
                 currentDoc = hit.doc(); // start a new document
+                docStart = i;
             }
-            hitsInSameDoc.add(hit);
+            hitIndexes[i] = hit.index();
+            starts[i] = hit.start();
+            ends[i] = hit.end();
+            i++;
+        }
+        if (i > docStart) {
+            // Find context for the hits in the last document
+            addContextsSingleDocument(currentDoc, starts, ends, docStart, i, contextSize, fis, fiidLookups, hitOffsets);
         }
-        if (!hitsInSameDoc.isEmpty()) {
-            // Find context for the hits in the current document
-            int[][] docContextArray = getContextWordsSingleDocument(hitsInSameDoc, contextSize, fis, fiidLookups);
+        makeOffsetLookup(hitIndexes, hitOffsets);
 
-            // Copy the contexts from the temporary Hits object to this one
-            int i = 0;
-            for (Hit hitInDoc: hitsInSameDoc) {
-                contexts.put(hitInDoc, docContextArray[i]);
-                i++;
+        this.annotations = new ArrayList<>(annotations);
+    }
+
+    /**
+     * Prepare to retrieve context words for the hits in one document at a time.
+     *
+     * Call {@link #retrieveForDocument(HitsArrays)} for each document. The arrays
+     * are reused for each document, so this is cheaper than creating a Contexts
+     * object per document.
+     *
+     * @param index our index
+     * @param annotations the field and annotations to use for the context
+     * @param contextSize how large the contexts need to be
+     * @param fiidLookups how to look up the fiids for each annotation
+     */
+    Contexts(BlackLabIndex index, List<Annotation> annotations, ContextSize contextSize, List<FiidLookup> fiidLookups) {
+        this.fis = forwardIndexes(index, annotations);
+        this.contextSize = contextSize;
+        this.fiidLookups = fiidLookups;
+        this.annotations = new ArrayList<>(annotations);
+        data = new int[0];
+        starts = ends = offsets = new int[0];
+    }
+
+    /**
+     * Retrieve context words for the hits in one document.
+     *
+     * Replaces the contexts for the previous document. Only for Contexts objects
+     * created with {@link #Contexts(BlackLabIndex, List, ContextSize, List)}.
+     *
+     * @param docHits the hits in the document, with hit indexes equal to their positions
+     */
+    void retrieveForDocument(HitsArrays docHits) {
+        int n = docHits.size();
+        if (n > starts.length) {
+            starts = IntArrays.grow(starts, n);
+            ends = IntArrays.grow(ends, n);
+            offsets = IntArrays.grow(offsets, n);
+        }
+        for (int i = 0; i < n; i++) {
+            starts[i] = docHits.start(i);
+            ends[i] = docHits.end(i);
+        }
+        numberOfHits = n;
+        dataLength = 0;
+        firstHitIndex = 0;
+        if (n > 0)
+            addContextsSingleDocument(docHits.doc(0), starts, ends, 0, n, contextSize, fis, fiidLookups, offsets);
+    }
+
+    private static List<AnnotationForwardIndex> forwardIndexes(BlackLabIndex index, List<Annotation> annotations) {
+        List<AnnotationForwardIndex> fis = new ArrayList<>();
+        for (Annotation annotation: annotations) {
+            AnnotationForwardIndex forwardIndex = index.annotationForwardIndex(annotation);
+            if (forwardIndex == null)
+                throw new BlackLabRuntimeException("Cannot get context without a forward index");
+            fis.add(forwardIndex);
+        }
+        return fis;
+    }
+
+    /**
+     * Make sure data can hold the specified number of ints.
+     * 
+     * @param length number of ints needed
+     */
+    private void ensureCapacity(long length) {
+        if (length > MAX_DATA_LENGTH)
+            throw new BlackLabRuntimeException("Too many hits to retrieve contexts for");
+        if (length > data.length)
+            data = IntArrays.grow(data, (int) length);
+    }
+
+    /**
+     * Read the contexts for the hits in one document, for all annotations.
+     *
+     * The hits are found in starts and ends, from position first to position
+     * last (exclusive). The records are appended to data, and the offset of each
+     * record is stored in hitOffsets (by position).
+     */
+    private void addContextsSingleDocument(int doc, int[] starts, int[] ends, int first, int last,
+            ContextSize contextSize, List<AnnotationForwardIndex> fis, List<FiidLookup> fiidLookups,
+            int[] hitOffsets) {
+        // Determine the forward index id and length of the document for each annotation
+        int numberOfAnnotations = fis.size();
+        int[] fiids = new int[numberOfAnnotations];
+        int docLength = Integer.MAX_VALUE;
+        for (int j = 0; j < numberOfAnnotations; j++) {
+            fiids[j] = fiidLookups.get(j).get(doc);
+            docLength = Math.min(docLength, fis.get(j).docLength(fiids[j]));
+        }
+
+        int contextSz = contextSize.left();
+        for (int i = first; i < last; i++) {
+            int start = starts[i];
+            int end = ends[i];
+            int firstWordIndex = contextSz >= start ? 0 : start - contextSz;
+            // (end may be beyond the end of the document, because we don't know the doc length in advance)
+            int contextLength = Math.max(0, Math.min(end + contextSz, docLength) - firstWordIndex);
+
+            // Set hit and right start and context length
+            int offset = dataLength;
+            ensureCapacity((long) offset + NUMBER_OF_BOOKKEEPING_INTS + (long) contextLength * numberOfAnnotations);
+            data[offset + HIT_START_INDEX] = start - firstWordIndex;
+            data[offset + RIGHT_START_INDEX] = end - firstWordIndex;
+            data[offset + LENGTH_INDEX] = contextLength;
+
+            // Read the words straight into the data array, so we don't need to allocate
+            // and copy temporary arrays.
+            int contextStart = offset + NUMBER_OF_BOOKKEEPING_INTS;
+            for (int j = 0; j < numberOfAnnotations; j++) {
+                if (contextLength > 0)
+                    fis.get(j).retrievePartInt(fiids[j], firstWordIndex, firstWordIndex + contextLength, data, contextStart);
+                contextStart += contextLength;
             }
+            hitOffsets[i] = offset;
+            dataLength = contextStart;
         }
+    }
 
-        this.annotations = new ArrayList<>(annotations);
+    /**
+     * Build the structure to look up a record offset by hit index.
+     *
+     * Usually the hit indexes we see are (close to) a contiguous range, so we can
+     * use an array. If not, we use a hash map.
+     *
+     * @param hitIndexes index of each hit (by position)
+     * @param hitOffsets record offset of each hit (by position)
+     */
+    private void makeOffsetLookup(int[] hitIndexes, int[] hitOffsets) {
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int hitIndex: hitIndexes) {
+            min = Math.min(min, hitIndex);
+            max = Math.max(max, hitIndex);
+        }
+        long range = (long) max - min + 1;
+        if (hitIndexes.length == 0 || range <= 2L * hitIndexes.length + 1024) {
+            firstHitIndex = hitIndexes.length == 0 ? 0 : min;
+            offsets = new int[hitIndexes.length == 0 ? 0 : (int) range];
+            Arrays.fill(offsets, NO_CONTEXT);
+            for (int i = 0; i < hitIndexes.length; i++)
+                offsets[hitIndexes[i] - firstHitIndex] = hitOffsets[i];
+        } else {
+            offsetsMap = new Int2IntOpenHashMap(hitIndexes.length);
+            offsetsMap.defaultReturnValue(NO_CONTEXT);
+            for (int i = 0; i < hitIndexes.length; i++)
+                offsetsMap.put(hitIndexes[i], hitOffsets[i]);
+        }
     }
 
     /**
@@ -339,29 +484,122 @@ public class Contexts implements Iterable<int[]> {
     }
 
     /**
-     * Return the context(s) for the specified hit number
+     * Get the array containing the contexts for all hits.
+     *
+     * Use {@link #offset(Hit)} to find a hit's context in this array. Don't modify
+     * the array.
+     *
+     * @return contexts array
+     */
+    public int[] data() {
+        return data;
+    }
+
+    /**
+     * Return the offset of the context(s) for the specified hit in the array
+     * returned by {@link #data()}.
+     * 
+     * At the offset, you will find the bookkeeping ints (see
+     * {@link #HIT_START_INDEX}, {@link #RIGHT_START_INDEX} and
+     * {@link #LENGTH_INDEX}), followed by the context(s).
+     * 
+     * @param hit which hit we want the context(s) for
+     * @return offset of the context(s)
+     */
+    public int offset(Hit hit) {
+        int offset = offsetByHitIndex(hit.index());
+        if (offset == NO_CONTEXT)
+            throw new BlackLabRuntimeException("No context retrieved for hit " + hit);
+        return offset;
+    }
+
+    /**
+     * Return the offset of the context(s) for the hit with the specified index.
+     *
+     * Same as {@link #offset(Hit)}, but doesn't need a Hit object.
+     *
+     * @param hitIndex index of the hit in the query results
+     * @return offset of the context(s)
+     */
+    public int offset(int hitIndex) {
+        int offset = offsetByHitIndex(hitIndex);
+        if (offset == NO_CONTEXT)
+            throw new BlackLabRuntimeException("No context retrieved for hit with index " + hitIndex);
+        return offset;
+    }
+
+    private int offsetByHitIndex(int hitIndex) {
+        if (offsets == null)
+            return offsetsMap.get(hitIndex);
+        int i = hitIndex - firstHitIndex;
+        return i < 0 || i >= offsets.length ? NO_CONTEXT : offsets[i];
+    }
+
+    /**
+     * Return a copy of the context(s) for the specified hit.
+     * 
+     * Prefer {@link #data()} and {@link #offset(Hit)} if you care about performance.
      * 
      * @param hit which hit we want the context(s) for
-     * @return the context(s)
+     * @return the context(s), or null if we don't have them
      */
     public int[] get(Hit hit) {
-        return contexts.get(hit);
+        int offset = offsetByHitIndex(hit.index());
+        if (offset == NO_CONTEXT)
+            return null;
+        int length = NUMBER_OF_BOOKKEEPING_INTS + data[offset + LENGTH_INDEX] * annotations.size();
+        return Arrays.copyOfRange(data, offset, offset + length);
     }
 
+    /**
+     * How many hits do we have contexts for?
+     * 
+     * @return number of hits
+     */
     public int size() {
-        return contexts.size();
+        return numberOfHits;
+    }
+
+    /**
+     * Estimate how much memory the contexts use.
+     *
+     * @return estimated memory use in bytes
+     */
+    public long estimateMemoryBytes() {
+        long ints = data.length;
+        if (offsets != null)
+            ints += offsets.length;
+        if (offsetsMap != null)
+            ints += 4L * offsetsMap.size(); // keys and values, hash table at most half full
+        return SearchResult.BYTES_PER_OBJECT * 4L + ints * SearchResult.BYTES_PER_INT;
     }
 
     /**
-     * Iterate over the context arrays.
+     * Iterate over the offsets of the contexts in the array returned by
+     * {@link #data()}.
      * 
      * Note that the order is unspecified.
      * 
      * @return iterator
      */
-    @Override
-    public Iterator<int[]> iterator() {
-        return contexts.values().iterator();
+    public IntIterator offsets() {
+        return new IntIterator() {
+            int offset = 0;
+
+            @Override
+            public boolean hasNext() {
+                return offset < dataLength;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                int current = offset;
+                offset += NUMBER_OF_BOOKKEEPING_INTS + data[current + LENGTH_INDEX] * annotations.size();
+                return current;
+            }
+        };
     }
     
     @Override
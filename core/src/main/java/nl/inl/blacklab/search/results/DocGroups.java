@@ -51,6 +51,8 @@ public class DocGroups extends Results<DocGroup> implements ResultGroups<DocResu
     
     private int resultObjects = 0;
 
+    private long memoryBytes = 0;
+
     private DocProperty groupBy;
     
     private WindowStats windowStats;
@@ -67,6 +69,7 @@ public class DocGroups extends Results<DocGroup> implements ResultGroups<DocResu
                 largestGroupSize = group.size();
             totalResults += group.size();
             resultObjects += group.numberOfStoredHits() + 1;
+            memoryBytes += group.estimateMemoryBytes() + BYTES_PER_MAP_ENTRY + BYTES_PER_REFERENCE;
             getResults().add(group);
             this.groups.put(group.identity(), group);
         }
@@ -170,4 +173,9 @@ public class DocGroups extends Results<DocGroup> implements ResultGroups<DocResu
     public int numberOfResultObjects() {
         return resultObjects;
     }
+
+    @Override
+    public long estimateMemoryBytes() {
+        return BYTES_PER_OBJECT * 4L + memoryBytes;
+    }
 }
@@ -40,6 +40,7 @@ import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
 import nl.inl.blacklab.exceptions.InterruptedSearch;
 import nl.inl.blacklab.resultproperty.DocProperty;
 import nl.inl.blacklab.resultproperty.DocPropertyAnnotatedFieldLength;
+import nl.inl.blacklab.resultproperty.DocPropertyStoredField;
 import nl.inl.blacklab.resultproperty.HitPropertyDoc;
 import nl.inl.blacklab.resultproperty.PropertyValue;
 import nl.inl.blacklab.resultproperty.PropertyValueDoc;
@@ -161,6 +162,8 @@ public class DocResults extends Results<DocResult> implements ResultGroups<Hit>
 
     private int resultObjects = 0;
 
+    private long memoryBytes = 0;
+
     private WindowStats windowStats;
 
     private SampleParameters sampleParameters;
@@ -218,6 +221,8 @@ public class DocResults extends Results<DocResult> implements ResultGroups<Hit>
         this.setResults(results);
         this.sampleParameters = sampleParameters;
         this.windowStats = windowStats;
+        for (DocResult result: results)
+            memoryBytes += result.estimateMemoryBytes() + BYTES_PER_REFERENCE;
     }
 
     private DocResults(QueryInfo queryInfo, Query query) {
@@ -231,6 +236,8 @@ public class DocResults extends Results<DocResult> implements ResultGroups<Hit>
         } catch (IOException e) {
             throw BlackLabRuntimeException.wrap(e);
         }
+        for (DocResult result: getResults())
+            memoryBytes += result.estimateMemoryBytes() + BYTES_PER_REFERENCE;
     }
 
     @Override
@@ -359,28 +366,37 @@ public class DocResults extends Results<DocResult> implements ResultGroups<Hit>
             mostHitsInDocument = docHits.size();
         totalHits += docHits.size();
         resultObjects += docHits.numberOfResultObjects() + 1;
+        memoryBytes += docResult.estimateMemoryBytes() + BYTES_PER_REFERENCE;
     }
 
     @Override
     public DocGroups group(ResultProperty<DocResult> groupBy, int maxResultsToStorePerGroup) {
-        Map<PropertyValue, List<DocResult>> groupLists = new HashMap<>();
-        Map<PropertyValue, Integer> groupSizes = new HashMap<>();
-        Map<PropertyValue, Long> groupTokenSizes = new HashMap<>();
+        // If we're grouping on a metadata field with DocValues, we can group on value ordinals
+        // and only determine the value once per group.
+        DocPropertyStoredField ordinalProp = null;
+        if (groupBy instanceof DocPropertyStoredField && ((DocPropertyStoredField) groupBy).hasDocValues())
+            ordinalProp = (DocPropertyStoredField) groupBy;
+
+        Map<Object, PropertyValue> groupIds = new HashMap<>();
+        Map<Object, List<DocResult>> groupLists = new HashMap<>();
+        Map<Object, Integer> groupSizes = new HashMap<>();
+        Map<Object, Long> groupTokenSizes = new HashMap<>();
         
         String tokenLengthFieldName = queryInfo().index().mainAnnotatedField().tokenLengthField();
         DocPropertyAnnotatedFieldLength fieldLengthProp = new DocPropertyAnnotatedFieldLength(queryInfo().index(), tokenLengthFieldName);
         
         for (DocResult r : this) {
-            PropertyValue groupId = groupBy.get(r);
-            List<DocResult> group = groupLists.get(groupId);
+            Object key = ordinalProp != null ? ordinalProp.ordinal(r.identity().id()) : groupBy.get(r);
+            List<DocResult> group = groupLists.get(key);
             if (group == null) {
                 group = new ArrayList<>();
-                groupLists.put(groupId, group);
+                groupLists.put(key, group);
+                groupIds.put(key, ordinalProp != null ? groupBy.get(r) : (PropertyValue) key);
             }
             if (maxResultsToStorePerGroup < 0 || group.size() < maxResultsToStorePerGroup)
                 group.add(r);
-            Integer groupSize = groupSizes.get(groupId);
-            Long groupTokenSize = groupTokenSizes.get(groupId);
+            Integer groupSize = groupSizes.get(key);
+            Long groupTokenSize = groupTokenSizes.get(key);
             long docLengthTokens = fieldLengthProp.get(r.identity().id());
             if (groupSize == null) {
                 groupSize = 1;
@@ -389,12 +405,13 @@ public class DocResults extends Results<DocResult> implements ResultGroups<Hit>
                 groupSize++;
                 groupTokenSize += docLengthTokens;
             }
-            groupSizes.put(groupId, groupSize);
-            groupTokenSizes.put(groupId, groupTokenSize);
+            groupSizes.put(key, groupSize);
+            groupTokenSizes.put(key, groupTokenSize);
         }
         List<DocGroup> results = new ArrayList<>();
-        for (Map.Entry<PropertyValue, List<DocResult>> e : groupLists.entrySet()) {
-            DocGroup docGroup = DocGroup.fromList(queryInfo(), e.getKey(), e.getValue(), groupSizes.get(e.getKey()), groupTokenSizes.get(e.getKey()));
+        for (Map.Entry<Object, List<DocResult>> e : groupLists.entrySet()) {
+            Object key = e.getKey();
+            DocGroup docGroup = DocGroup.fromList(queryInfo(), groupIds.get(key), e.getValue(), groupSizes.get(key), groupTokenSizes.get(key));
             results.add(docGroup);
         }
         return DocGroups.fromList(queryInfo(), results, (DocProperty)groupBy, (SampleParameters)null, (WindowStats)null);
@@ -502,6 +519,11 @@ public class DocResults extends Results<DocResult> implements ResultGroups<Hit>
         return resultObjects;
     }
 
+    @Override
+    public long estimateMemoryBytes() {
+        return BYTES_PER_OBJECT * 4L + memoryBytes;
+    }
+
     /**
      * Count total number of tokens in matching documents.
      *
@@ -1,11 +1,15 @@
 package nl.inl.blacklab.search.results;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import nl.inl.blacklab.resultproperty.DocProperty;
 
+/**
+ * Counts of the values of several document properties (facets) in a set of documents.
+ *
+ * All facets are counted in a single pass over the documents (see {@link FacetsCollector}).
+ */
 public class Facets implements SearchResult {
     
     private List<DocProperty> facets;
@@ -14,13 +18,14 @@ public class Facets implements SearchResult {
     
     private int resultObjects = 0;
 
+    private long memoryBytes = 0;
+
     public Facets(DocResults source, List<DocProperty> facets) {
         this.facets = facets;
-        counts = new HashMap<>();
-        for (DocProperty facetBy : facets) {
-            DocGroups groups = source.group(facetBy, 0);
-            counts.put(facetBy, groups);
+        counts = new FacetsCollector(source, facets).execute();
+        for (DocGroups groups : counts.values()) {
             resultObjects += groups.size();
+            memoryBytes += groups.estimateMemoryBytes() + BYTES_PER_MAP_ENTRY;
         }
     }
 
@@ -37,4 +42,9 @@ public class Facets implements SearchResult {
         return resultObjects;
     }
 
+    @Override
+    public long estimateMemoryBytes() {
+        return BYTES_PER_OBJECT * 2L + memoryBytes;
+    }
+
 }
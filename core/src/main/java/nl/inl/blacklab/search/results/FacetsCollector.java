@@ -0,0 +1,331 @@
+package nl.inl.blacklab.search.results;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedSetDocValues;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
+import nl.inl.blacklab.exceptions.InterruptedSearch;
+import nl.inl.blacklab.resultproperty.DocProperty;
+import nl.inl.blacklab.resultproperty.DocPropertyAnnotatedFieldLength;
+import nl.inl.blacklab.resultproperty.DocPropertyStoredField;
+import nl.inl.blacklab.resultproperty.PropertyValue;
+import nl.inl.blacklab.resultproperty.PropertyValueString;
+import nl.inl.blacklab.search.BlackLabIndex;
+import nl.inl.blacklab.search.indexmetadata.AnnotatedField;
+
+/**
+ * Counts the values of several document properties (facets) in one pass over
+ * a set of documents.
+ *
+ * The documents are processed per index segment, in parallel if all facets
+ * allow it. Stored fields with DocValues are counted by ordinal; we only look
+ * up the values that actually occur once a segment is done. Other properties
+ * are determined per document. The segment counts are merged at the end.
+ *
+ * The groups are the same as those from {@link DocResults#group(nl.inl.blacklab.resultproperty.ResultProperty, int)}
+ * with no stored results.
+ */
+class FacetsCollector {
+
+    /**
+     * If a segment has more than this many values per document we count, we
+     * count ordinals in a hash map instead of an array.
+     */
+    private static final int MAX_VALUES_PER_DOC_FOR_ARRAY = 4;
+
+    /** Number of documents and tokens with a value */
+    private static final class Count {
+
+        int docs = 0;
+
+        long tokens = 0;
+
+        void add(int docs, long tokens) {
+            this.docs += docs;
+            this.tokens += tokens;
+        }
+    }
+
+    /** Counts a facet's DocValues ordinals in one segment */
+    private static final class OrdinalCounts {
+
+        /** DocValues for this segment, or null if no document in it has a value */
+        private final SortedSetDocValues docValues;
+
+        /** Documents per ordinal + 1 (0 meaning no value), or null if we use a map */
+        private final int[] docs;
+
+        /** Tokens per ordinal + 1 (0 meaning no value), or null if we use a map */
+        private final long[] tokens;
+
+        /** Counts per ordinal (-1 meaning no value), or null if we use arrays */
+        private final Long2ObjectMap<Count> counts;
+
+        OrdinalCounts(SortedSetDocValues docValues, int docsToCount) {
+            this.docValues = docValues;
+            long valueCount = docValues == null ? 0 : docValues.getValueCount();
+            if (valueCount <= (long) MAX_VALUES_PER_DOC_FOR_ARRAY * docsToCount) {
+                docs = new int[(int) valueCount + 1];
+                tokens = new long[(int) valueCount + 1];
+                counts = null;
+            } else {
+                docs = null;
+                tokens = null;
+                counts = new Long2ObjectOpenHashMap<>();
+            }
+        }
+
+        void add(int segmentDocId, long docLength) {
+            long ord = -1;
+            if (docValues != null) {
+                docValues.setDocument(segmentDocId);
+                ord = docValues.nextOrd(); // first value (NO_MORE_ORDS == -1 if none)
+            }
+            if (counts == null) {
+                docs[(int) ord + 1]++;
+                tokens[(int) ord + 1] += docLength;
+            } else {
+                Count count = counts.get(ord);
+                if (count == null) {
+                    count = new Count();
+                    counts.put(ord, count);
+                }
+                count.add(1, docLength);
+            }
+        }
+
+        void addTo(Map<PropertyValue, Count> result) {
+            if (counts == null) {
+                for (int i = 0; i < docs.length; i++) {
+                    if (docs[i] > 0)
+                        addTo(result, i - 1, docs[i], tokens[i]);
+                }
+            } else {
+                for (Long2ObjectMap.Entry<Count> e: counts.long2ObjectEntrySet())
+                    addTo(result, e.getLongKey(), e.getValue().docs, e.getValue().tokens);
+            }
+        }
+
+        private void addTo(Map<PropertyValue, Count> result, long ord, int docs, long tokens) {
+            String value = ord < 0 ? "" : docValues.lookupOrd(ord).utf8ToString();
+            result.computeIfAbsent(new PropertyValueString(value), k -> new Count()).add(docs, tokens);
+        }
+    }
+
+    private QueryInfo queryInfo;
+
+    /** What to count */
+    private List<DocProperty> facets;
+
+    /** For each facet, the DocValues field to count ordinals of, or null to use the property */
+    private String[] ordinalFields;
+
+    private List<LeafReaderContext> segments;
+
+    /** Documents to count per segment, in document order */
+    private List<List<DocResult>> docsPerSegment;
+
+    /** Field containing document lengths, if it has DocValues (or null if it doesn't) */
+    private String tokenLengthField;
+
+    /** Gets document lengths if we can't get them from the segment (created when needed) */
+    private DocPropertyAnnotatedFieldLength fieldLengthProp;
+
+    /** Can we count segments in parallel? */
+    private boolean parallel;
+
+    /** Next segment to count */
+    private AtomicInteger nextSegment = new AtomicInteger();
+
+    /** Set if something went wrong, so other tasks stop */
+    private volatile boolean stop = false;
+
+    /** Counts for each facet (merged from all segments done so far) */
+    private List<Map<PropertyValue, Count>> merged;
+
+    /**
+     * Prepare to count facets.
+     *
+     * @param source documents to count
+     * @param facets properties to count the values of
+     */
+    FacetsCollector(DocResults source, List<DocProperty> facets) {
+        this.queryInfo = source.queryInfo();
+        this.facets = facets;
+        BlackLabIndex index = queryInfo.index();
+        AnnotatedField field = index.mainAnnotatedField();
+        tokenLengthField = field.hasTokenLengthDocValues() ? field.tokenLengthField() : null;
+        parallel = tokenLengthField != null;
+        ordinalFields = new String[facets.size()];
+        merged = new ArrayList<>(facets.size());
+        for (int i = 0; i < facets.size(); i++) {
+            DocProperty facet = facets.get(i);
+            if (facet instanceof DocPropertyStoredField && ((DocPropertyStoredField) facet).hasDocValues())
+                ordinalFields[i] = ((DocPropertyStoredField) facet).fieldName();
+            else
+                parallel = false; // we can't tell if the property can be used from several threads
+            merged.add(new HashMap<>());
+        }
+
+        segments = index.reader().leaves();
+        docsPerSegment = new ArrayList<>(segments.size());
+        for (int i = 0; i < segments.size(); i++)
+            docsPerSegment.add(new ArrayList<>());
+        for (DocResult doc: source) {
+            docsPerSegment.get(ReaderUtil.subIndex(doc.identity().id(), segments)).add(doc);
+        }
+        for (List<DocResult> docs: docsPerSegment)
+            docs.sort((a, b) -> Integer.compare(a.identity().id(), b.identity().id()));
+    }
+
+    /**
+     * Count the facets.
+     *
+     * @return groups for each facet
+     */
+    Map<DocProperty, DocGroups> execute() {
+        // Count segments in parallel (if our facets can be used from several threads),
+        // helping out in the calling thread.
+        int threads = parallel ? Math.min(queryInfo.index().blackLab().maxThreadsPerSearch(), segments.size()) : 1;
+        List<Future<?>> futures = new ArrayList<>();
+        ExecutorService executorService = queryInfo.index().blackLab().searchExecutorService();
+        for (int i = 1; i < threads; i++) {
+            futures.add(executorService.submit(this::countSegments));
+        }
+        try {
+            countSegments();
+            for (Future<?> future: futures)
+                future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedSearch(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedSearch)
+                throw (InterruptedSearch) e.getCause();
+            throw BlackLabRuntimeException.wrap(e.getCause());
+        } finally {
+            // Make sure other tasks stop if something went wrong
+            stop = true;
+        }
+
+        Map<DocProperty, DocGroups> result = new HashMap<>();
+        for (int i = 0; i < facets.size(); i++) {
+            List<DocGroup> groups = new ArrayList<>(merged.get(i).size());
+            for (Map.Entry<PropertyValue, Count> e: merged.get(i).entrySet()) {
+                Count count = e.getValue();
+                groups.add(DocGroup.fromList(queryInfo, e.getKey(), new ArrayList<>(), count.docs, count.tokens));
+            }
+            result.put(facets.get(i), DocGroups.fromList(queryInfo, groups, facets.get(i), (SampleParameters)null, (WindowStats)null));
+        }
+        return result;
+    }
+
+    /**
+     * Keep counting the next segment until all segments are done.
+     */
+    private void countSegments() {
+        try {
+            while (!stop) {
+                int segment = nextSegment.getAndIncrement();
+                if (segment >= segments.size())
+                    break;
+                segmentDone(countSegment(segment));
+            }
+        } catch (InterruptedException e) {
+            stop = true;
+            throw new InterruptedSearch(e);
+        } catch (IOException e) {
+            stop = true;
+            throw BlackLabRuntimeException.wrap(e);
+        } catch (RuntimeException e) {
+            stop = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Count the facets for the documents in a segment.
+     *
+     * @param segment segment number
+     * @return counts for each facet
+     * @throws IOException on error
+     * @throws InterruptedException if we were interrupted
+     */
+    private List<Map<PropertyValue, Count>> countSegment(int segment) throws IOException, InterruptedException {
+        LeafReaderContext context = segments.get(segment);
+        List<DocResult> docs = docsPerSegment.get(segment);
+        List<Map<PropertyValue, Count>> result = new ArrayList<>(facets.size());
+        OrdinalCounts[] ordinalCounts = new OrdinalCounts[facets.size()];
+        for (int i = 0; i < facets.size(); i++) {
+            result.add(new HashMap<>());
+            if (ordinalFields[i] != null && !docs.isEmpty())
+                ordinalCounts[i] = new OrdinalCounts(context.reader().getSortedSetDocValues(ordinalFields[i]), docs.size());
+        }
+        NumericDocValues lengths = tokenLengthField == null || docs.isEmpty() ? null : context.reader().getNumericDocValues(tokenLengthField);
+        for (DocResult doc: docs) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (stop)
+                break; // another task failed
+            int docId = doc.identity().id();
+            int segmentDocId = docId - context.docBase;
+            // (subtract the closing token, like DocPropertyAnnotatedFieldLength)
+            long docLength = lengths != null ? lengths.get(segmentDocId) - 1 : fallbackDocLength(docId);
+            for (int i = 0; i < facets.size(); i++) {
+                if (ordinalCounts[i] != null)
+                    ordinalCounts[i].add(segmentDocId, docLength);
+                else
+                    result.get(i).computeIfAbsent(facets.get(i).get(doc), k -> new Count()).add(1, docLength);
+            }
+        }
+        for (int i = 0; i < facets.size(); i++) {
+            if (ordinalCounts[i] != null)
+                ordinalCounts[i].addTo(result.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Get a document's length if we can't get it from the segment.
+     *
+     * @param docId Lucene document id
+     * @return length in tokens
+     */
+    private synchronized long fallbackDocLength(int docId) {
+        if (fieldLengthProp == null) {
+            String lengthField = queryInfo.index().mainAnnotatedField().tokenLengthField();
+            fieldLengthProp = new DocPropertyAnnotatedFieldLength(queryInfo.index(), lengthField);
+        }
+        return fieldLengthProp.get(docId);
+    }
+
+    /**
+     * A segment was counted; merge its counts.
+     *
+     * @param segmentCounts counts for each facet in the segment
+     */
+    private synchronized void segmentDone(List<Map<PropertyValue, Count>> segmentCounts) {
+        if (stop)
+            return;
+        for (int i = 0; i < facets.size(); i++) {
+            Map<PropertyValue, Count> counts = merged.get(i);
+            for (Map.Entry<PropertyValue, Count> e: segmentCounts.get(i).entrySet()) {
+                counts.computeIfAbsent(e.getKey(), k -> new Count()).add(e.getValue().docs, e.getValue().tokens);
+            }
+        }
+    }
+
+}
@@ -52,6 +52,15 @@ public abstract class Group<T> implements Result<Group<T>> {
         return totalSize;
     }
 
+    /**
+     * Estimate how much memory this group holds on to.
+     *
+     * @return estimated memory use in bytes
+     */
+    public long estimateMemoryBytes() {
+        return SearchResult.BYTES_PER_OBJECT + SearchResult.BYTES_PER_GROUP_IDENTITY + storedResults.estimateMemoryBytes();
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "(id=" + identity() + ", size=" + size() + ")";
@@ -0,0 +1,364 @@
+package nl.inl.blacklab.search.results;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.search.spans.SpanWeight.Postings;
+import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.util.Bits;
+
+import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
+import nl.inl.blacklab.exceptions.InterruptedSearch;
+import nl.inl.blacklab.exceptions.WildcardTermTooBroad;
+import nl.inl.blacklab.requestlogging.LogLevel;
+import nl.inl.blacklab.search.BlackLabIndex;
+import nl.inl.blacklab.search.lucene.BLSpanQuery;
+import nl.inl.blacklab.search.lucene.BLSpans;
+import nl.inl.blacklab.search.lucene.HitQueryContext;
+import nl.inl.blacklab.search.lucene.optimize.OptimizationContext;
+import nl.inl.util.ThreadPauser;
+
+/**
+ * Counts the hits and documents for a query without retrieving the hits.
+ *
+ * Like {@link HitsFromQueryParallel}, this reads the index segments in parallel
+ * using SpansReaders, but the readers don't store any hits; only the numbers of
+ * hits and documents are kept. So counting uses a fixed amount of memory, no
+ * matter how many hits there are.
+ *
+ * The numbers of hits and documents processed are reported as the numbers a
+ * Hits object for the same search would have retrieved, i.e. those for the first
+ * maxHitsToProcess hits.
+ */
+public class HitCountFromQuery {
+
+    /** Query info, for our index */
+    private QueryInfo queryInfo;
+
+    /** Settings such as max. hits to process/count. */
+    private SearchSettings searchSettings;
+
+    /** Pauser for this count */
+    private ThreadPauser threadPauser = ThreadPauser.create();
+
+    /** Hit and document counts, updated by the SpansReaders */
+    private SpansReader.Counts counts;
+
+    /** Our query's weight, so we can get Spans for each segment; null if we're done. */
+    private SpanWeight weight;
+
+    /** Readers for each segment (which never store any hits), or null if we're done. */
+    private volatile List<SpansReader> spansReaders;
+
+    /** The segment each of our readers reads, or null if we're done. */
+    private List<LeafReaderContext> spansReaderContexts;
+
+    /** Have we started tasks to count in parallel? */
+    private boolean tasksStarted = false;
+
+    /** Have we counted all hits (or reached maxHitsToCount)? */
+    private volatile boolean done = false;
+
+    /** Were we interrupted? */
+    private volatile boolean interrupted = false;
+
+    /** Number of documents in the first maxHitsToProcess hits (only valid if done) */
+    private volatile int docsProcessed = 0;
+
+    /** Hit stats */
+    private ResultsStats hitsStats = new ResultsStats() {
+
+        @Override
+        public boolean processedAtLeast(int lowerBound) {
+            if (processedSoFar() < lowerBound)
+                countAll();
+            return processedSoFar() >= lowerBound;
+        }
+
+        @Override
+        public int processedTotal() {
+            countAll();
+            return processedSoFar();
+        }
+
+        @Override
+        public int processedSoFar() {
+            int maxHitsToProcess = searchSettings.maxHitsToProcess();
+            int hitsCounted = counts.hitsCounted();
+            return maxHitsToProcess < 0 ? hitsCounted : Math.min(hitsCounted, maxHitsToProcess);
+        }
+
+        @Override
+        public int countedSoFar() {
+            return counts.hitsCounted();
+        }
+
+        @Override
+        public int countedTotal() {
+            countAll();
+            return countedSoFar();
+        }
+
+        @Override
+        public boolean done() {
+            return HitCountFromQuery.this.done();
+        }
+
+        @Override
+        public MaxStats maxStats() {
+            return HitCountFromQuery.this.maxStats();
+        }
+
+        @Override
+        public boolean wasInterrupted() {
+            return interrupted;
+        }
+
+    };
+
+    /** Document stats */
+    private ResultsStats docsStats = new ResultsStats() {
+
+        @Override
+        public boolean processedAtLeast(int lowerBound) {
+            if (processedSoFar() < lowerBound)
+                countAll();
+            return processedSoFar() >= lowerBound;
+        }
+
+        @Override
+        public int processedTotal() {
+            countAll();
+            return processedSoFar();
+        }
+
+        @Override
+        public int processedSoFar() {
+            return done ? docsProcessed : counts.docsCounted();
+        }
+
+        @Override
+        public int countedSoFar() {
+            return counts.docsCounted();
+        }
+
+        @Override
+        public int countedTotal() {
+            countAll();
+            return countedSoFar();
+        }
+
+        @Override
+        public boolean done() {
+            return HitCountFromQuery.this.done();
+        }
+
+        @Override
+        public MaxStats maxStats() {
+            return HitCountFromQuery.this.maxStats();
+        }
+
+        @Override
+        public boolean wasInterrupted() {
+            return interrupted;
+        }
+
+    };
+
+    /**
+     * Construct a count from a SpanQuery.
+     *
+     * @param queryInfo query info
+     * @param sourceQuery the query to count the hits for
+     * @param searchSettings search settings
+     * @throws WildcardTermTooBroad if the query is overly broad (expands to too many terms)
+     */
+    public HitCountFromQuery(QueryInfo queryInfo, BLSpanQuery sourceQuery, SearchSettings searchSettings) throws WildcardTermTooBroad {
+        this.queryInfo = queryInfo;
+        this.searchSettings = searchSettings;
+        counts = new SpansReader.Counts(searchSettings.maxHitsToCount());
+        try {
+            BlackLabIndex index = queryInfo.index();
+            IndexReader reader = index.reader();
+
+            // Optimize and rewrite the query (possibly with a different FI match threshold; debug use only!)
+            sourceQuery.setQueryInfo(queryInfo);
+            OptimizationContext optimizationContext = OptimizationContext.forSearch(queryInfo, searchSettings.fiMatchFactor());
+            BLSpanQuery spanQuery = optimizationContext.optimizeAndRewrite(sourceQuery, reader);
+            spanQuery = BLSpanQuery.ensureSortedUnique(spanQuery);
+            weight = spanQuery.createWeight(index.searcher(), false);
+
+            HitQueryContext hitQueryContext = new HitQueryContext();
+            List<SpansReader> readers = new ArrayList<>();
+            List<LeafReaderContext> contexts = new ArrayList<>();
+            for (LeafReaderContext context: reader.leaves()) {
+                BLSpans spans = (BLSpans) weight.getSpans(context, Postings.OFFSETS);
+                if (readers.isEmpty())
+                    queryInfo.log(LogLevel.EXPLAIN, "got Spans: " + spans);
+                if (spans != null) {
+                    // (maxHitsToProcess 0: only count, never store hits)
+                    readers.add(new SpansReader(spans, context, hitQueryContext, counts, 0, threadPauser));
+                    contexts.add(context);
+                }
+            }
+            spansReaderContexts = contexts;
+            spansReaders = readers;
+        } catch (IOException e) {
+            throw BlackLabRuntimeException.wrap(e);
+        }
+    }
+
+    public ThreadPauser threadPauser() {
+        return threadPauser;
+    }
+
+    public ResultsStats hitsStats() {
+        return hitsStats;
+    }
+
+    public ResultsStats docsStats() {
+        return docsStats;
+    }
+
+    private boolean done() {
+        return done || interrupted;
+    }
+
+    private MaxStats maxStats() {
+        MaxStats maxStats = new MaxStats();
+        int maxHitsToProcess = searchSettings.maxHitsToProcess();
+        if (interrupted || maxHitsToProcess >= 0 && counts.hitsCounted() >= maxHitsToProcess)
+            maxStats.setHitsProcessedExceededMaximum();
+        if (interrupted || counts.maxHitsCounted())
+            maxStats.setHitsCountedExceededMaximum();
+        return maxStats;
+    }
+
+    /**
+     * Count all hits (up to maxHitsToCount).
+     *
+     * Starts tasks to count the segments in parallel, and helps them along in the
+     * calling thread. Returns when all segments have been counted.
+     */
+    private void countAll() {
+        List<SpansReader> readers = spansReaders;
+        if (done || readers == null)
+            return;
+        startTasks(readers);
+        try {
+            for (SpansReader reader: readers)
+                reader.ensureResultsRead(Results.NO_LIMIT);
+            setFinished();
+        } catch (InterruptedSearch e) {
+            interrupted = true;
+            for (SpansReader reader: readers)
+                reader.interrupt();
+            throw e;
+        }
+    }
+
+    /**
+     * Start tasks to count the segments in parallel.
+     *
+     * @param readers our segment readers
+     */
+    private synchronized void startTasks(List<SpansReader> readers) {
+        if (tasksStarted)
+            return;
+        tasksStarted = true;
+        int tasksToStart = Math.min(queryInfo.index().blackLab().maxThreadsPerSearch(), readers.size());
+        if (tasksToStart <= 1)
+            return; // the calling thread will count everything
+        ExecutorService executorService = queryInfo.index().blackLab().searchExecutorService();
+        for (int i = 0; i < tasksToStart; i++) {
+            // Interleave the segments over the tasks
+            List<SpansReader> taskReaders = new ArrayList<>();
+            for (int j = i; j < readers.size(); j += tasksToStart) {
+                taskReaders.add(readers.get(j));
+            }
+            executorService.submit(() -> {
+                for (SpansReader reader: taskReaders) {
+                    reader.ensureResultsRead(Results.NO_LIMIT);
+                }
+            });
+        }
+    }
+
+    /**
+     * Determine the number of documents processed and mark the count as done.
+     */
+    private synchronized void setFinished() {
+        if (done)
+            return;
+        int maxHitsToProcess = searchSettings.maxHitsToProcess();
+        if (maxHitsToProcess >= 0 && counts.hitsCounted() > maxHitsToProcess) {
+            // A Hits object would have stopped retrieving after the first maxHitsToProcess hits
+            // (in segment order); count the documents those hits are in.
+            docsProcessed = docsInFirstHits(maxHitsToProcess);
+        } else {
+            docsProcessed = counts.docsCounted();
+        }
+        done = true;
+
+        // We no longer need these; allow them to be GC'ed
+        weight = null;
+        spansReaders = null;
+        spansReaderContexts = null;
+    }
+
+    /**
+     * Count the documents the first hits (in segment order) occur in.
+     *
+     * We know the number of hits and documents in each segment we've read
+     * completely, so we only have to read again the segment in which we reach
+     * numberOfHits (and any segment we didn't read completely), and only up to
+     * that point.
+     *
+     * @param numberOfHits number of hits
+     * @return number of documents
+     */
+    private int docsInFirstHits(int numberOfHits) {
+        int hits = 0, docs = 0;
+        try {
+            for (int i = 0; i < spansReaders.size() && hits < numberOfHits; i++) {
+                SpansReader reader = spansReaders.get(i);
+                if (reader.fullyRead() && hits + reader.hitsCountedInSegment() < numberOfHits) {
+                    // All of this segment's hits are included
+                    hits += reader.hitsCountedInSegment();
+                    docs += reader.docsCountedInSegment();
+                    continue;
+                }
+                LeafReaderContext context = spansReaderContexts.get(i);
+                BLSpans spans = (BLSpans) weight.getSpans(context, Postings.OFFSETS);
+                spans.setHitQueryContext(new HitQueryContext(spans)); // let captured groups register themselves
+                Bits liveDocs = context.reader().getLiveDocs();
+                while (hits < numberOfHits && spans.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    if (liveDocs != null && !liveDocs.get(spans.docID()))
+                        continue;
+                    threadPauser.waitIfPaused();
+                    docs++;
+                    while (hits < numberOfHits && spans.nextStartPosition() != Spans.NO_MORE_POSITIONS) {
+                        hits++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw BlackLabRuntimeException.wrap(e);
+        } catch (InterruptedException e) {
+            throw new InterruptedSearch(e);
+        }
+        return docs;
+    }
+
+    @Override
+    public String toString() {
+        return "HitCountFromQuery(done=" + done + ", hitsCounted=" + counts.hitsCounted() + ")";
+    }
+
+}
@@ -20,11 +20,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import nl.inl.blacklab.exceptions.WildcardTermTooBroad;
 import nl.inl.blacklab.forwardindex.FiidLookup;
 import nl.inl.blacklab.resultproperty.HitProperty;
 import nl.inl.blacklab.resultproperty.PropertyValue;
 import nl.inl.blacklab.resultproperty.ResultProperty;
 import nl.inl.blacklab.search.indexmetadata.Annotation;
+import nl.inl.blacklab.search.lucene.BLSpanQuery;
+import nl.inl.util.ThreadPauser;
 
 /**
  * Groups results on the basis of a list of criteria.
@@ -61,6 +64,41 @@ public class HitGroups extends Results<HitGroup> implements ResultGroups<Hit> {
         return new HitGroups(hits, criteria, maxResultsToStorePerGroup);
     }
 
+    /**
+     * Group the hits for a query, without retrieving all hits first.
+     *
+     * Uses memory proportional to the number of groups (plus the stored hits),
+     * not the number of hits. The groups are the same as when grouping the Hits
+     * for this query.
+     *
+     * @param queryInfo query info
+     * @param query query to group the hits of
+     * @param searchSettings search settings
+     * @param criteria criteria to group by
+     * @param maxResultsToStorePerGroup max results to store
+     * @return grouped hits
+     * @throws WildcardTermTooBroad if the query is overly broad (expands to too many terms)
+     */
+    public static HitGroups fromQuery(QueryInfo queryInfo, BLSpanQuery query, SearchSettings searchSettings, HitProperty criteria, int maxResultsToStorePerGroup) throws WildcardTermTooBroad {
+        return fromQuery(queryInfo, query, searchSettings, criteria, maxResultsToStorePerGroup, ThreadPauser.create());
+    }
+
+    /**
+     * Group the hits for a query, without retrieving all hits first.
+     *
+     * @param queryInfo query info
+     * @param query query to group the hits of
+     * @param searchSettings search settings
+     * @param criteria criteria to group by
+     * @param maxResultsToStorePerGroup max results to store
+     * @param threadPauser pauser for the search; also becomes the pauser of the resulting groups
+     * @return grouped hits
+     * @throws WildcardTermTooBroad if the query is overly broad (expands to too many terms)
+     */
+    public static HitGroups fromQuery(QueryInfo queryInfo, BLSpanQuery query, SearchSettings searchSettings, HitProperty criteria, int maxResultsToStorePerGroup, ThreadPauser threadPauser) throws WildcardTermTooBroad {
+        return new HitGroupsFromQuery(queryInfo, query, searchSettings, criteria, maxResultsToStorePerGroup, threadPauser).execute();
+    }
+
     private HitProperty criteria;
 
     /**
@@ -84,6 +122,8 @@ public class HitGroups extends Results<HitGroup> implements ResultGroups<Hit> {
 
     private int resultObjects;
 
+    private long memoryBytes = 0;
+
     /**
      * Construct a ResultsGrouper object, by grouping the supplied hits.
      *
@@ -134,6 +174,7 @@ public class HitGroups extends Results<HitGroup> implements ResultGroups<Hit> {
             HitGroup group = HitGroup.fromList(queryInfo(), groupId, hitList, hits.capturedGroups(), groupSize);
             groups.put(groupId, group);
             getResults().add(group);
+            memoryBytes += group.estimateMemoryBytes() + BYTES_PER_MAP_ENTRY + BYTES_PER_REFERENCE;
         }
     }
 
@@ -150,6 +191,7 @@ public class HitGroups extends Results<HitGroup> implements ResultGroups<Hit> {
             getResults().add(group);
             this.groups.put(group.identity(), group);
             resultObjects += group.numberOfStoredResults() + 1;
+            memoryBytes += group.estimateMemoryBytes() + BYTES_PER_MAP_ENTRY + BYTES_PER_REFERENCE;
         }
     }
 
@@ -271,5 +313,10 @@ public class HitGroups extends Results<HitGroup> implements ResultGroups<Hit> {
     public int numberOfResultObjects() {
         return resultObjects;
     }
+
+    @Override
+    public long estimateMemoryBytes() {
+        return BYTES_PER_OBJECT * 4L + memoryBytes;
+    }
     
 }
@@ -0,0 +1,432 @@
+package nl.inl.blacklab.search.results;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.search.spans.SpanWeight.Postings;
+import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.util.Bits;
+
+import it.unimi.dsi.fastutil.Hash.Strategy;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenCustomHashMap;
+import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
+import nl.inl.blacklab.exceptions.InterruptedSearch;
+import nl.inl.blacklab.exceptions.WildcardTermTooBroad;
+import nl.inl.blacklab.forwardindex.FiidLookup;
+import nl.inl.blacklab.requestlogging.LogLevel;
+import nl.inl.blacklab.resultproperty.HitProperty;
+import nl.inl.blacklab.resultproperty.PropertyValue;
+import nl.inl.blacklab.search.BlackLabIndex;
+import nl.inl.blacklab.search.SearchStatistics;
+import nl.inl.blacklab.search.Span;
+import nl.inl.blacklab.search.indexmetadata.Annotation;
+import nl.inl.blacklab.search.lucene.BLSpanQuery;
+import nl.inl.blacklab.search.lucene.BLSpans;
+import nl.inl.blacklab.search.lucene.HitQueryContext;
+import nl.inl.blacklab.search.lucene.optimize.OptimizationContext;
+import nl.inl.util.ThreadPauser;
+
+/**
+ * Groups the hits for a query without retrieving all hits first.
+ *
+ * The index segments are grouped in parallel (if the group criteria allow it).
+ * Each segment is read one document at a time: we retrieve the contexts the
+ * criteria need for just that document's hits, and add each hit to its group.
+ * Only the group sizes and the first maxResultsToStorePerGroup hits of each
+ * group are kept, so the memory needed is proportional to the number of groups,
+ * not the number of hits.
+ *
+ * If the criteria provide group keys (see {@link HitProperty#groupKey(Hit)}),
+ * we group on those instead of creating a PropertyValue for each hit.
+ *
+ * The groups are the same as those from {@link HitGroups#fromHits(Hits, HitProperty, int)}
+ * for the same search: only the first maxHitsToProcess hits (in segment order)
+ * are grouped, and each group stores its first hits (with their captured
+ * groups, if any).
+ */
+class HitGroupsFromQuery {
+
+    /** Hashes our map keys: group keys (int arrays) or property values */
+    private static final Strategy<Object> KEY_STRATEGY = new Strategy<Object>() {
+        @Override
+        public int hashCode(Object o) {
+            if (o instanceof int[])
+                return Arrays.hashCode((int[]) o);
+            return o == null ? 0 : o.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object a, Object b) {
+            if (a instanceof int[] && b instanceof int[])
+                return Arrays.equals((int[]) a, (int[]) b);
+            return a == null ? b == null : a.equals(b);
+        }
+    };
+
+    /** A group we're building */
+    private static final class GroupBuilder {
+
+        /** Group identity */
+        final PropertyValue identity;
+
+        /** The first hits in this group */
+        final HitsArrays storedHits = new HitsArrays(4);
+
+        /** Captured groups for the stored hits, or null if there are none */
+        final CapturedGroupsImpl capturedGroups;
+
+        /** Total number of hits in this group */
+        int size = 0;
+
+        GroupBuilder(PropertyValue identity, List<String> capturedGroupNames) {
+            this.identity = identity;
+            this.capturedGroups = capturedGroupNames == null ? null : new CapturedGroupsImpl(capturedGroupNames);
+        }
+    }
+
+    /** The groups for some of the hits (e.g. one segment) */
+    private static final class PartialGroups {
+
+        /** Groups by key */
+        final Map<Object, GroupBuilder> groups = new Object2ObjectOpenCustomHashMap<>(KEY_STRATEGY);
+
+        /** Number of hits grouped */
+        int hits = 0;
+    }
+
+    private QueryInfo queryInfo;
+
+    /** What to group on */
+    private HitProperty criteria;
+
+    /** Do we group on the criteria's group keys, or on property values? */
+    private boolean useGroupKeys;
+
+    /** Annotations we need context for, or null if none */
+    private List<Annotation> contextAnnotations;
+
+    /** Size of the context we need */
+    private ContextSize contextSize;
+
+    /** How to find the forward index ids for the context annotations */
+    private List<FiidLookup> fiidLookups;
+
+    /** Maximum number of hits to store per group (-1 for all) */
+    private int maxResultsToStorePerGroup;
+
+    /** Maximum number of hits to group (-1 for all) */
+    private int maxHitsToProcess;
+
+    /** Our query's weight, so we can get Spans for each segment */
+    private SpanWeight weight;
+
+    /** Our index segments */
+    private List<LeafReaderContext> segments;
+
+    /** Pauser of the search we're part of */
+    private ThreadPauser threadPauser;
+
+    /** Names of the query's captured groups, or null if it has none (set by the first segment with hits) */
+    private volatile List<String> capturedGroupNames;
+
+    /** Next segment to group */
+    private AtomicInteger nextSegment = new AtomicInteger();
+
+    /** Groups for segments that are done but not merged yet, by segment number */
+    private PartialGroups[] segmentGroups;
+
+    /** Next segment to merge (we merge in segment order) */
+    private int nextSegmentToMerge = 0;
+
+    /** Is a thread merging segments right now? (only one thread merges at a time) */
+    private boolean merging = false;
+
+    /** The merged groups (only accessed by the merging thread) */
+    private PartialGroups merged = new PartialGroups();
+
+    /** Should we stop grouping (because we're done, or something went wrong)? */
+    private volatile boolean stop = false;
+
+    /**
+     * Prepare to group the hits for a query.
+     *
+     * @param queryInfo query info
+     * @param sourceQuery query to group the hits of
+     * @param searchSettings search settings
+     * @param criteria what to group on
+     * @param maxResultsToStorePerGroup maximum number of hits to store per group (-1 for all)
+     * @param threadPauser pauser of the search we're part of
+     * @throws WildcardTermTooBroad if the query is overly broad (expands to too many terms)
+     */
+    HitGroupsFromQuery(QueryInfo queryInfo, BLSpanQuery sourceQuery, SearchSettings searchSettings, HitProperty criteria, int maxResultsToStorePerGroup, ThreadPauser threadPauser) throws WildcardTermTooBroad {
+        if (criteria == null)
+            throw new IllegalArgumentException("Must have criteria to group on");
+        this.queryInfo = queryInfo;
+        this.threadPauser = threadPauser;
+        this.criteria = criteria;
+        this.useGroupKeys = criteria.hasGroupKey();
+        this.maxResultsToStorePerGroup = maxResultsToStorePerGroup;
+        this.maxHitsToProcess = searchSettings.maxHitsToProcess();
+        BlackLabIndex index = queryInfo.index();
+        contextAnnotations = criteria.needsContext();
+        contextSize = criteria.needsContextSize(index);
+        fiidLookups = FiidLookup.getList(contextAnnotations, index.reader());
+        try {
+            IndexReader reader = index.reader();
+            sourceQuery.setQueryInfo(queryInfo);
+            OptimizationContext optimizationContext = OptimizationContext.forSearch(queryInfo, searchSettings.fiMatchFactor());
+            BLSpanQuery spanQuery = optimizationContext.optimizeAndRewrite(sourceQuery, reader);
+            spanQuery = BLSpanQuery.ensureSortedUnique(spanQuery);
+            queryInfo.log(LogLevel.EXPLAIN, "grouping hits for: " + spanQuery);
+            weight = spanQuery.createWeight(index.searcher(), false);
+            segments = reader.leaves();
+        } catch (IOException e) {
+            throw BlackLabRuntimeException.wrap(e);
+        }
+        segmentGroups = new PartialGroups[segments.size()];
+    }
+
+    /**
+     * Group the hits.
+     *
+     * @return the groups
+     */
+    HitGroups execute() {
+        // Group segments in parallel (if our criteria can be used from several threads),
+        // helping out in the calling thread.
+        int threads = criteria.isThreadSafe() ? Math.min(queryInfo.index().blackLab().maxThreadsPerSearch(), segments.size()) : 1;
+        List<Future<?>> futures = new ArrayList<>();
+        ExecutorService executorService = queryInfo.index().blackLab().searchExecutorService();
+        for (int i = 1; i < threads; i++) {
+            futures.add(executorService.submit(this::groupSegments));
+        }
+        try {
+            groupSegments();
+            for (Future<?> future: futures)
+                future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedSearch(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedSearch)
+                throw (InterruptedSearch) e.getCause();
+            throw BlackLabRuntimeException.wrap(e.getCause());
+        } finally {
+            // Make sure other tasks stop if something went wrong
+            stop = true;
+        }
+
+        List<HitGroup> groups = new ArrayList<>(merged.groups.size());
+        for (GroupBuilder group: merged.groups.values()) {
+            groups.add(HitGroup.fromList(queryInfo, group.identity, group.storedHits, group.capturedGroups, group.size));
+        }
+        HitGroups result = HitGroups.fromList(queryInfo, groups, criteria, (SampleParameters)null, (WindowStats)null);
+        result.threadPauser = threadPauser; // pausing the groups pauses the search they came from
+        return result;
+    }
+
+    /**
+     * Keep grouping the next segment until all segments are done.
+     */
+    private void groupSegments() {
+        try {
+            while (!stop) {
+                int segment = nextSegment.getAndIncrement();
+                if (segment >= segments.size())
+                    break;
+                segmentDone(segment, groupSegment(segment, maxHitsToProcess));
+            }
+        } catch (InterruptedException e) {
+            stop = true;
+            throw new InterruptedSearch(e);
+        } catch (IOException e) {
+            stop = true;
+            throw BlackLabRuntimeException.wrap(e);
+        } catch (RuntimeException e) {
+            stop = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Group the hits in a segment.
+     *
+     * @param segment segment number
+     * @param maxHits maximum number of hits to group (-1 for all)
+     * @return the groups
+     * @throws IOException on error
+     * @throws InterruptedException if we were interrupted
+     */
+    private PartialGroups groupSegment(int segment, int maxHits) throws IOException, InterruptedException {
+        PartialGroups result = new PartialGroups();
+        LeafReaderContext context = segments.get(segment);
+        BLSpans spans = (BLSpans) weight.getSpans(context, Postings.OFFSETS);
+        if (spans == null)
+            return result;
+        HitQueryContext hitQueryContext = new HitQueryContext(spans);
+        spans.setHitQueryContext(hitQueryContext); // let captured groups register themselves
+        Span[] capturedGroupsBuffer = null;
+        if (hitQueryContext.numberOfCapturedGroups() > 0) {
+            capturedGroupNames = hitQueryContext.getCapturedGroupNames();
+            capturedGroupsBuffer = new Span[hitQueryContext.numberOfCapturedGroups()];
+        }
+
+        // We reuse the same hits list, contexts and property for each document
+        HitsArrays docHits = new HitsArrays();
+        Span[][] docCapturedGroups = new Span[0][];
+        Contexts contexts = contextAnnotations == null ? null : new Contexts(queryInfo.index(), contextAnnotations, contextSize, fiidLookups);
+        HitProperty prop = criteria.copyWith(Hits.fromList(queryInfo, docHits), contexts);
+
+        Bits liveDocs = context.reader().getLiveDocs();
+        while (spans.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            if (liveDocs != null && !liveDocs.get(spans.docID()))
+                continue;
+            threadPauser.waitIfPaused();
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (stop)
+                break; // we're done (or another task failed); this segment won't be merged
+            int doc = context.docBase + spans.docID();
+            docHits.clear();
+            long startTime = System.nanoTime();
+            while ((maxHits < 0 || result.hits + docHits.size() < maxHits) && spans.nextStartPosition() != Spans.NO_MORE_POSITIONS) {
+                docHits.add(doc, spans.startPosition(), spans.endPosition());
+                if (capturedGroupsBuffer != null) {
+                    if (docHits.size() > docCapturedGroups.length)
+                        docCapturedGroups = Arrays.copyOf(docCapturedGroups, Math.max(16, docCapturedGroups.length * 2));
+                    Arrays.fill(capturedGroupsBuffer, null);
+                    hitQueryContext.getCapturedGroups(capturedGroupsBuffer);
+                    docCapturedGroups[docHits.size() - 1] = capturedGroupsBuffer.clone();
+                }
+            }
+            SearchStatistics.addSpanIterationNanos(System.nanoTime() - startTime);
+            SearchStatistics.addHitsRetrieved(docHits.size());
+            if (contexts != null)
+                contexts.retrieveForDocument(docHits);
+            groupDocument(docHits, capturedGroupsBuffer == null ? null : docCapturedGroups, prop, result);
+            if (maxHits >= 0 && result.hits >= maxHits)
+                break;
+        }
+        return result;
+    }
+
+    /**
+     * Add the hits in one document to their groups.
+     *
+     * @param docHits the hits
+     * @param docCapturedGroups captured groups for each hit, or null if there are none
+     * @param prop property to group on (using the contexts for this document)
+     * @param result groups to add them to
+     */
+    private void groupDocument(HitsArrays docHits, Span[][] docCapturedGroups, HitProperty prop, PartialGroups result) {
+        for (int i = 0; i < docHits.size(); i++) {
+            Hit hit = docHits.get(i);
+            PropertyValue identity = useGroupKeys ? null : prop.get(hit);
+            Object key = useGroupKeys ? prop.groupKey(hit) : identity;
+            GroupBuilder group = result.groups.get(key);
+            if (group == null) {
+                group = new GroupBuilder(identity == null ? prop.get(hit) : identity, docCapturedGroups == null ? null : capturedGroupNames);
+                result.groups.put(key, group);
+            }
+            if (maxResultsToStorePerGroup < 0 || group.storedHits.size() < maxResultsToStorePerGroup) {
+                group.storedHits.add(hit.doc(), hit.start(), hit.end());
+                if (group.capturedGroups != null)
+                    group.capturedGroups.put(group.storedHits.size() - 1, docCapturedGroups[i]);
+            }
+            group.size++;
+        }
+        result.hits += docHits.size();
+    }
+
+    /**
+     * A segment was grouped; merge it (and any following segments that are done).
+     *
+     * We merge segments in order, so the stored hits in each group are the first
+     * ones, and we know when we've reached maxHitsToProcess.
+     *
+     * Only one thread merges at a time, and it doesn't hold our lock while
+     * merging, so other threads can hand in their segments and continue grouping.
+     * If another thread is already merging, it will merge our segment as well.
+     *
+     * @param segment segment number
+     * @param groups the segment's groups
+     * @throws IOException on error
+     * @throws InterruptedException if we were interrupted
+     */
+    private void segmentDone(int segment, PartialGroups groups) throws IOException, InterruptedException {
+        synchronized (this) {
+            segmentGroups[segment] = groups;
+            if (merging)
+                return;
+            merging = true;
+        }
+        boolean stillMerging = true;
+        try {
+            while (true) {
+                int segmentToMerge;
+                PartialGroups toMerge;
+                synchronized (this) {
+                    segmentToMerge = nextSegmentToMerge;
+                    if (stop || segmentToMerge >= segmentGroups.length || segmentGroups[segmentToMerge] == null) {
+                        merging = stillMerging = false;
+                        return;
+                    }
+                    toMerge = segmentGroups[segmentToMerge];
+                    segmentGroups[segmentToMerge] = null;
+                }
+                if (maxHitsToProcess >= 0 && merged.hits + toMerge.hits > maxHitsToProcess) {
+                    // We only need the first hits in this segment; group those again
+                    toMerge = groupSegment(segmentToMerge, maxHitsToProcess - merged.hits);
+                }
+                merge(toMerge);
+                synchronized (this) {
+                    nextSegmentToMerge++;
+                    if (maxHitsToProcess >= 0 && merged.hits >= maxHitsToProcess)
+                        stop = true; // we have all the hits we want
+                }
+            }
+        } finally {
+            if (stillMerging) {
+                synchronized (this) {
+                    merging = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge groups into the merged groups.
+     *
+     * @param groups groups to merge
+     */
+    private void merge(PartialGroups groups) {
+        for (Entry<Object, GroupBuilder> e: groups.groups.entrySet()) {
+            GroupBuilder other = e.getValue();
+            GroupBuilder group = merged.groups.get(e.getKey());
+            if (group == null) {
+                merged.groups.put(e.getKey(), other);
+                continue;
+            }
+            HitsArrays stored = other.storedHits;
+            for (int i = 0; i < stored.size() && (maxResultsToStorePerGroup < 0 || group.storedHits.size() < maxResultsToStorePerGroup); i++) {
+                group.storedHits.add(stored.doc(i), stored.start(i), stored.end(i));
+                if (group.capturedGroups != null)
+                    group.capturedGroups.put(group.storedHits.size() - 1, other.capturedGroups, i);
+            }
+            group.size += other.size;
+        }
+        merged.hits += groups.hits;
+    }
+
+}
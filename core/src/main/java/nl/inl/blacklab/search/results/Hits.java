@@ -5,10 +5,14 @@ import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.stream.IntStream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+
 import nl.inl.blacklab.exceptions.WildcardTermTooBroad;
 import nl.inl.blacklab.forwardindex.FiidLookup;
 import nl.inl.blacklab.resultproperty.HitProperty;
@@ -111,11 +115,10 @@ public abstract class Hits extends Results<Hit> {
         // We can later provide an optimized version that uses a HitsSampleCopy or somesuch
         // (this class could save memory by only storing the hits we're interested in)
         
-        List<Hit> results = new ArrayList<>();
+        List<Hit> results = new HitsArrays();
         int hitsCounted = 0;
         int docsRetrieved = 0;
         int docsCounted = 0;
-        CapturedGroupsImpl capturedGroups = null;
 
         Random random = new Random(sampleParameters.seed());
         int numberOfHitsToSelect = sampleParameters.numberOfHits(size());
@@ -133,9 +136,8 @@ public abstract class Hits extends Results<Hit> {
         }
         
         // Add the hits in order of their index
+        // (hits keep their index, so we can just share our captured groups with the sample)
         int previousDoc = -1;
-        if (hasCapturedGroups())
-            capturedGroups = new CapturedGroupsImpl(capturedGroups().names());
         for (Integer hitIndex : chosenHitIndices) {
             Hit hit = get(hitIndex);
             if (hit.doc() != previousDoc) {
@@ -144,12 +146,10 @@ public abstract class Hits extends Results<Hit> {
                 previousDoc = hit.doc();
             }
             results.add(hit);
-            if (capturedGroups != null)
-                capturedGroups.put(hit, capturedGroups().get(hit));
             hitsCounted++;
         }
         
-        return Hits.fromList(queryInfo(), results, null, sampleParameters, hitsCounted, docsRetrieved, docsCounted, null);
+        return Hits.fromList(queryInfo(), results, null, sampleParameters, hitsCounted, docsRetrieved, docsCounted, capturedGroups());
     }
 
     /**
@@ -227,6 +227,7 @@ public abstract class Hits extends Results<Hit> {
     
     public Hits(QueryInfo queryInfo) {
         super(queryInfo);
+        setResults(new HitsArrays());
     }
 
     // Inherited from Results
@@ -248,13 +249,12 @@ public abstract class Hits extends Results<Hit> {
      */
     @Override
     public Hits window(int first, int windowSize) {
-        CapturedGroupsImpl capturedGroups = null;
         int hitsCounted = 0;
         int docsRetrieved = 0;
         int docsCounted = 0;
 
         // Error if first out of range
-        List<Hit> results = new ArrayList<>();
+        List<Hit> results = new HitsArrays();
         WindowStats windowStats;
         boolean emptyResultSet = !hitsProcessedAtLeast(1);
         if (first < 0 || (emptyResultSet && first > 0) ||
@@ -269,15 +269,12 @@ public abstract class Hits extends Results<Hit> {
             number = size() - first;
 
         // Copy the hits we're interested in.
-        if (hasCapturedGroups())
-            capturedGroups = new CapturedGroupsImpl(capturedGroups().names());
+        // (hits keep their index, so we can just share our captured groups with the window)
         int prevDoc = -1;
         hitsCounted = 0;
         for (int i = first; i < first + number; i++) {
             Hit hit = get(i);
             results.add(hit);
-            if (capturedGroups != null)
-                capturedGroups.put(hit, capturedGroups().get(hit));
             // OPT: copy context as well..?
             
             if (hit.doc() != prevDoc) {
@@ -288,7 +285,7 @@ public abstract class Hits extends Results<Hit> {
         }
         boolean hasNext = hitsProcessedAtLeast(first + windowSize + 1);
         windowStats = new WindowStats(hasNext, first, windowSize, number);
-        return Hits.fromList(queryInfo(), results, windowStats, null, hitsCounted, docsRetrieved, docsCounted, capturedGroups);
+        return Hits.fromList(queryInfo(), results, windowStats, null, hitsCounted, docsRetrieved, docsCounted, capturedGroups());
     }
 
     /**
@@ -377,7 +374,7 @@ public abstract class Hits extends Results<Hit> {
 
     public Hits getHitsInDoc(int docid) {
         ensureAllResultsRead();
-        List<Hit> hitsInDoc = new ArrayList<>();
+        List<Hit> hitsInDoc = new HitsArrays();
         for (Hit hit : getResults()) {
             if (hit.doc() == docid)
                 hitsInDoc.add(hit);
@@ -469,7 +466,9 @@ public abstract class Hits extends Results<Hit> {
             throw new UnsupportedOperationException("Can only sort Hits by an instance of HitProperty!");
         HitProperty hitProp = (HitProperty)sortProp;
         
-        List<Hit> sorted = new ArrayList<>(resultsList());
+        ensureAllResultsRead();
+        List<Hit> results = getResults();
+        HitsArrays unsorted = results instanceof HitsArrays ? (HitsArrays) results : new HitsArrays(results);
 
         // We need a HitProperty with the correct Hits object
         // If we need context, make sure we have it.
@@ -479,7 +478,10 @@ public abstract class Hits extends Results<Hit> {
                 requiredContext == null ? null : new Contexts(this, requiredContext, hitProp.needsContextSize(index()), fiidLookups));
 
         // Perform the actual sort.
-        sorted.sort(hitProp);
+        int[] order = sortOrder(unsorted, hitProp);
+        HitsArrays sorted = new HitsArrays(order.length); // store the sorted hits compactly
+        for (int i: order)
+            sorted.add(unsorted.doc(i), unsorted.start(i), unsorted.end(i), unsorted.index(i));
 
         CapturedGroupsImpl capturedGroups = capturedGroups();
         int hitsCounted = hitsCountedSoFar();
@@ -488,6 +490,51 @@ public abstract class Hits extends Results<Hit> {
         return Hits.fromList(queryInfo(), sorted, null, null, hitsCounted, docsRetrieved, docsCounted, capturedGroups);
     }
     
+    /**
+     * Determine the order of the hits according to a property.
+     *
+     * If the property provides sort keys, we determine each hit's key once and
+     * only compare hits with equal keys using the property. If the property is
+     * thread-safe, we sort in parallel.
+     *
+     * Hits that the property considers equal keep their original order, as with a
+     * stable sort.
+     *
+     * @param hits hits to sort
+     * @param hitProp property to sort on
+     * @return positions of the hits in sorted order
+     */
+    private static int[] sortOrder(HitsArrays hits, HitProperty hitProp) {
+        int n = hits.size();
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        boolean parallel = hitProp.isThreadSafe();
+
+        IntComparator comparator;
+        if (hitProp.hasSortKey()) {
+            long[] keys = new long[n];
+            IntStream positions = IntStream.range(0, n);
+            (parallel ? positions.parallel() : positions).forEach(i -> keys[i] = hitProp.sortKey(hits, i));
+            comparator = (a, b) -> {
+                int cmp = Long.compare(keys[a], keys[b]);
+                if (cmp == 0)
+                    cmp = hitProp.compare(hits, a, b);
+                return cmp == 0 ? Integer.compare(a, b) : cmp;
+            };
+        } else {
+            comparator = (a, b) -> {
+                int cmp = hitProp.compare(hits, a, b);
+                return cmp == 0 ? Integer.compare(a, b) : cmp;
+            };
+        }
+        if (parallel)
+            IntArrays.parallelQuickSort(order, comparator);
+        else
+            IntArrays.quickSort(order, comparator);
+        return order;
+    }
+
     // Captured groups
     //--------------------------------------------------------------------
     
@@ -535,6 +582,19 @@ public abstract class Hits extends Results<Hit> {
         return hitsProcessedSoFar();
     }
 
+    @Override
+    public long estimateMemoryBytes() {
+        long bytes = BYTES_PER_OBJECT * 2L;
+        List<Hit> results = getResults();
+        if (results instanceof HitsArrays)
+            bytes += ((HitsArrays) results).estimateMemoryBytes();
+        else if (results != null)
+            bytes += (long) results.size() * (BYTES_PER_REFERENCE + BYTES_PER_OBJECT + 3 * BYTES_PER_INT); // Hit objects
+        if (capturedGroups != null)
+            bytes += capturedGroups.estimateMemoryBytes();
+        return bytes;
+    }
+
     protected int getHitsCounted() {
         return hitsCounted;
     }
@@ -0,0 +1,204 @@
+package nl.inl.blacklab.search.results;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+/**
+ * A compact list of hits, stored in columns.
+ *
+ * Instead of keeping a Hit object per hit, we store doc, start and end in
+ * parallel int arrays. Hit objects are only created when a hit is requested
+ * from the list. This takes about a third of the memory of a list of Hit objects,
+ * and doesn't burden the garbage collector with millions of small objects.
+ *
+ * Hit indexes (see {@link Hit#index()}) are usually equal to the position of the
+ * hit in this list, so we only store them if a hit is added with a different
+ * index (e.g. when hits are sorted or filtered).
+ *
+ * Appending a hit is not atomic with respect to other writers, but readers may
+ * safely access hits below size() while a (single) writer appends hits.
+ */
+public class HitsArrays extends AbstractList<Hit> implements RandomAccess {
+
+    /** Initial capacity if none was specified */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /** Document ids */
+    private int[] docs;
+
+    /** Hit starts */
+    private int[] starts;
+
+    /** Hit ends */
+    private int[] ends;
+
+    /** Hit indexes, or null if each hit's index is equal to its position in the list */
+    private int[] indexes;
+
+    /**
+     * Number of hits in the list.
+     *
+     * Volatile so hits are safely published to other threads when they are added.
+     */
+    private volatile int size = 0;
+
+    public HitsArrays() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Estimate how much memory this list uses.
+     *
+     * @return estimated memory use in bytes
+     */
+    public long estimateMemoryBytes() {
+        int[] indexes = this.indexes;
+        long ints = 3L * docs.length + (indexes == null ? 0 : indexes.length);
+        return SearchResult.BYTES_PER_OBJECT * 5L + ints * SearchResult.BYTES_PER_INT;
+    }
+
+    public HitsArrays(int capacity) {
+        docs = new int[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+    }
+
+    /**
+     * Copy a list of hits.
+     *
+     * @param hits hits to copy
+     */
+    public HitsArrays(Collection<? extends Hit> hits) {
+        this(Math.max(hits.size(), DEFAULT_CAPACITY));
+        if (hits instanceof HitsArrays) {
+            HitsArrays source = (HitsArrays) hits;
+            int n = source.size();
+            System.arraycopy(source.docs, 0, docs, 0, n);
+            System.arraycopy(source.starts, 0, starts, 0, n);
+            System.arraycopy(source.ends, 0, ends, 0, n);
+            if (source.indexes != null) {
+                indexes = new int[docs.length];
+                System.arraycopy(source.indexes, 0, indexes, 0, n);
+            }
+            size = n;
+        } else {
+            addAll(hits);
+        }
+    }
+
+    /**
+     * Add a hit whose index equals its position in this list.
+     *
+     * @param doc document id
+     * @param start hit start
+     * @param end hit end
+     */
+    public void add(int doc, int start, int end) {
+        add(doc, start, end, size);
+    }
+
+    /**
+     * Add a hit.
+     *
+     * @param doc document id
+     * @param start hit start
+     * @param end hit end
+     * @param index hit index
+     */
+    public void add(int doc, int start, int end, int index) {
+        int n = size;
+        ensureCapacity(n + 1);
+        docs[n] = doc;
+        starts[n] = start;
+        ends[n] = end;
+        if (indexes != null)
+            indexes[n] = index;
+        else if (index != n) {
+            // First hit whose index differs from its position; start storing indexes
+            indexes = new int[docs.length];
+            for (int i = 0; i < n; i++)
+                indexes[i] = i;
+            indexes[n] = index;
+        }
+        size = n + 1; // publish
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > docs.length) {
+            docs = IntArrays.grow(docs, capacity);
+            starts = IntArrays.grow(starts, capacity);
+            ends = IntArrays.grow(ends, capacity);
+            if (indexes != null)
+                indexes = IntArrays.grow(indexes, capacity);
+        }
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+    }
+
+    public int doc(int i) {
+        checkIndex(i);
+        return docs[i];
+    }
+
+    public int start(int i) {
+        checkIndex(i);
+        return starts[i];
+    }
+
+    public int end(int i) {
+        checkIndex(i);
+        return ends[i];
+    }
+
+    public int index(int i) {
+        checkIndex(i);
+        return indexes == null ? i : indexes[i];
+    }
+
+    @Override
+    public boolean add(Hit hit) {
+        add(hit.doc(), hit.start(), hit.end(), hit.index());
+        return true;
+    }
+
+    @Override
+    public Hit get(int i) {
+        checkIndex(i);
+        return Hit.create(docs[i], starts[i], ends[i], indexes == null ? i : indexes[i]);
+    }
+
+    @Override
+    public Hit set(int i, Hit hit) {
+        Hit prev = get(i);
+        docs[i] = hit.doc();
+        starts[i] = hit.start();
+        ends[i] = hit.end();
+        if (indexes != null) {
+            indexes[i] = hit.index();
+        } else if (hit.index() != i) {
+            indexes = new int[docs.length];
+            for (int j = 0; j < size; j++)
+                indexes[j] = j;
+            indexes[i] = hit.index();
+        }
+        return prev;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        indexes = null;
+    }
+
+}
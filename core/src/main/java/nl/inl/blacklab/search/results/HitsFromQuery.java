@@ -1,7 +1,7 @@
 package nl.inl.blacklab.search.results;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -29,7 +29,7 @@ import nl.inl.blacklab.search.Span;
 import nl.inl.blacklab.search.lucene.BLSpanQuery;
 import nl.inl.blacklab.search.lucene.BLSpans;
 import nl.inl.blacklab.search.lucene.HitQueryContext;
-import nl.inl.blacklab.search.lucene.optimize.ClauseCombinerNfa;
+import nl.inl.blacklab.search.lucene.optimize.OptimizationContext;
 
 /**
  * A Hits object that is filled from a BLSpanQuery.
@@ -82,6 +82,9 @@ public class HitsFromQuery extends Hits {
 
     private boolean loggedSpans;
 
+    /** Buffer for getting captured groups from the spans (reused for each hit) */
+    private Span[] capturedGroupsBuffer;
+
     /**
      * This class holds all of the data that is modified inside the lock in ensureResultsRead.
      * All data is copied before being modified, so that it's not visible to other threads until
@@ -92,7 +95,7 @@ public class HitsFromQuery extends Hits {
      */
     private static class HitsResultsContext {
         boolean sourceSpansFullyRead;
-        List<Hit> results;
+        HitsArrays results;
         CapturedGroupsImpl capturedGroups;
         int hitsCounted;
         int docsRetrieved;
@@ -100,13 +103,13 @@ public class HitsFromQuery extends Hits {
         MaxStats maxStats;
 
         HitsResultsContext() {
-            this.results = new ArrayList<>();
+            this.results = new HitsArrays();
             this.maxStats = new MaxStats();
         }
 
         HitsResultsContext(HitsResultsContext context) {
             this.sourceSpansFullyRead = context.sourceSpansFullyRead;
-            this.results = new ArrayList<>(context.results);
+            this.results = new HitsArrays(context.results);
             this.capturedGroups = context.capturedGroups != null ? new CapturedGroupsImpl(context.capturedGroups) : null;
             this.hitsCounted = context.hitsCounted;
             this.docsRetrieved = context.docsRetrieved;
@@ -139,26 +142,10 @@ public class HitsFromQuery extends Hits {
             BlackLabIndex index = queryInfo.index();
             IndexReader reader = index.reader();
             
-            // Override FI match threshold? (debug use only!)
-            long oldFiMatchValue = ClauseCombinerNfa.getNfaThreshold();
-            if (searchSettings.fiMatchFactor() != -1) {
-                queryInfo.log(LogLevel.OPT, "setting NFA threshold for this query to " + searchSettings.fiMatchFactor());
-                ClauseCombinerNfa.setNfaThreshold(searchSettings.fiMatchFactor());
-            }
-            
+            // Optimize and rewrite the query (possibly with a different FI match threshold; debug use only!)
             sourceQuery.setQueryInfo(queryInfo);
-            queryInfo.log(LogLevel.EXPLAIN, "Query before optimize()/rewrite(): " + sourceQuery);
-            
-            BLSpanQuery optimize = sourceQuery.optimize(reader);
-            queryInfo.log(LogLevel.EXPLAIN, "Query after optimize(): " + optimize);
-
-            BLSpanQuery spanQuery = optimize.rewrite(reader);
-            queryInfo.log(LogLevel.EXPLAIN, "Query after rewrite(): " + spanQuery);
-            
-            // Restore previous FI match threshold
-            if (searchSettings.fiMatchFactor() != -1) {
-                ClauseCombinerNfa.setNfaThreshold(oldFiMatchValue);
-            }
+            OptimizationContext optimizationContext = OptimizationContext.forSearch(queryInfo, searchSettings.fiMatchFactor());
+            BLSpanQuery spanQuery = optimizationContext.optimizeAndRewrite(sourceQuery, reader);
 
             //System.err.println(spanQuery);
             termContexts = new HashMap<>();
@@ -329,13 +316,14 @@ public class HitsFromQuery extends Hits {
                         previousHitDoc = hitDoc;
                     }
                     if (!maxHitsProcessed) {
-                        Hit hit = Hit.create(currentSourceSpans.docID() + currentDocBase, currentSourceSpans.startPosition(), currentSourceSpans.endPosition(), hitsResultsContext.results.size());
+                        hitsResultsContext.results.add(hitDoc, currentSourceSpans.startPosition(), currentSourceSpans.endPosition());
                         if (hitsResultsContext.capturedGroups != null) {
-                            Span[] groups = new Span[hitQueryContext.numberOfCapturedGroups()];
-                            hitQueryContext.getCapturedGroups(groups);
-                            hitsResultsContext.capturedGroups.put(hit, groups);
+                            if (capturedGroupsBuffer == null)
+                                capturedGroupsBuffer = new Span[hitQueryContext.numberOfCapturedGroups()];
+                            Arrays.fill(capturedGroupsBuffer, null);
+                            hitQueryContext.getCapturedGroups(capturedGroupsBuffer);
+                            hitsResultsContext.capturedGroups.put(hitsResultsContext.results.size() - 1, capturedGroupsBuffer);
                         }
-                        hitsResultsContext.results.add(hit);
                         if (maxHitsToProcess >= 0 && hitsResultsContext.results.size() >= maxHitsToProcess) {
                             hitsResultsContext.maxStats.setHitsProcessedExceededMaximum();
                         }
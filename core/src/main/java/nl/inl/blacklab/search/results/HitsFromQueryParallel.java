@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -25,11 +24,10 @@ import nl.inl.blacklab.exceptions.InterruptedSearch;
 import nl.inl.blacklab.exceptions.WildcardTermTooBroad;
 import nl.inl.blacklab.requestlogging.LogLevel;
 import nl.inl.blacklab.search.BlackLabIndex;
-import nl.inl.blacklab.search.Span;
 import nl.inl.blacklab.search.lucene.BLSpanQuery;
 import nl.inl.blacklab.search.lucene.BLSpans;
 import nl.inl.blacklab.search.lucene.HitQueryContext;
-import nl.inl.blacklab.search.lucene.optimize.ClauseCombinerNfa;
+import nl.inl.blacklab.search.lucene.optimize.OptimizationContext;
 
 /**
  * A Hits object that is filled from a BLSpanQuery.
@@ -56,16 +54,18 @@ public class HitsFromQueryParallel extends Hits {
     private List<LeafReaderContext> atomicReaderContexts;
 
     /**
-     * Our Spans object, which may not have been fully read yet.
+     * Readers for each segment's hits, in segment order.
      */
     private List<SpansReader> spansReaders;
     
-    /** Iterator through our SpansReaders*/
-    private Iterator<SpansReader> itSpansReader;
+    /** Index of the SpansReader we're currently taking hits from */
+    private int currentSpansReaderIndex = 0;
     
-    private SpansReader currentSpansReader;
-    
-    private int hitIndexInCurrentSpansReader;
+    /** Number of hits we've taken from the current SpansReader */
+    private int hitIndexInCurrentSpansReader = 0;
+
+    /** Hit and document counts, updated by the SpansReaders */
+    private SpansReader.Counts counts;
 
     /**
      * Term contexts for the terms in the query.
@@ -75,8 +75,14 @@ public class HitsFromQueryParallel extends Hits {
     /**
      * Did we completely read our Spans object?
      */
-    private boolean allSourceSpansFullyRead = true;
+    private volatile boolean allSourceSpansFullyRead = true;
 
+    /**
+     * Held while adding hits from the SpansReaders to our results.
+     *
+     * The SpansReaders never take this lock, so they keep reading hits while we
+     * add the ones they've already read.
+     */
     private Lock ensureHitsReadLock = new ReentrantLock();
     
     /** Context of our query; mostly used to keep track of captured groups. */
@@ -87,10 +93,17 @@ public class HitsFromQueryParallel extends Hits {
      */
     private int previousHitDoc = -1;
 
-    private boolean parallelSpansReaderTasksStarted = false;
+    /**
+     * Number of hits per segment our tasks should read (-1 for all), or 0 if we
+     * haven't started any tasks yet. Only ever increases (or becomes -1).
+     */
+    private volatile int readTarget = 0;
+
+    /** Our tasks, one per group of segments, or null if we haven't started them yet. */
+    private ReadSpansReaders[] tasks;
 
-    /** If we've started tasks to read spans readers, here's the futures, so we can cancel them if necessary. */
-    private List<Future<?>> futures = new ArrayList<>();
+    /** Set when our tasks should stop (we're finished or were interrupted). */
+    private boolean tasksStopped = false;
 
     /**
      * Construct a Hits object from a SpanQuery.
@@ -104,32 +117,16 @@ public class HitsFromQueryParallel extends Hits {
         super(queryInfo);
         this.searchSettings = searchSettings;
         this.maxStats = new MaxStats();
-        setHitsCounted(0);
+        counts = new SpansReader.Counts(searchSettings.maxHitsToCount());
         hitQueryContext = new HitQueryContext();
         try {
             BlackLabIndex index = queryInfo.index();
             IndexReader reader = index.reader();
             
-            // Override FI match threshold? (debug use only!)
-            long oldFiMatchValue = ClauseCombinerNfa.getNfaThreshold();
-            if (searchSettings.fiMatchFactor() != -1) {
-                queryInfo.log(LogLevel.OPT, "setting NFA threshold for this query to " + searchSettings.fiMatchFactor());
-                ClauseCombinerNfa.setNfaThreshold(searchSettings.fiMatchFactor());
-            }
-            
+            // Optimize and rewrite the query (possibly with a different FI match threshold; debug use only!)
             sourceQuery.setQueryInfo(queryInfo);
-            queryInfo.log(LogLevel.EXPLAIN, "Query before optimize()/rewrite(): " + sourceQuery);
-            
-            BLSpanQuery optimize = sourceQuery.optimize(reader);
-            queryInfo.log(LogLevel.EXPLAIN, "Query after optimize(): " + optimize);
-
-            BLSpanQuery spanQuery = optimize.rewrite(reader);
-            queryInfo.log(LogLevel.EXPLAIN, "Query after rewrite(): " + spanQuery);
-            
-            // Restore previous FI match threshold
-            if (searchSettings.fiMatchFactor() != -1) {
-                ClauseCombinerNfa.setNfaThreshold(oldFiMatchValue);
-            }
+            OptimizationContext optimizationContext = OptimizationContext.forSearch(queryInfo, searchSettings.fiMatchFactor());
+            BLSpanQuery spanQuery = optimizationContext.optimizeAndRewrite(sourceQuery, reader);
 
             //System.err.println(spanQuery);
             termContexts = new HashMap<>();
@@ -156,11 +153,9 @@ public class HitsFromQueryParallel extends Hits {
                     loggedSpans = true;
                 }
                 if (spans != null)
-                    spansReaders.add(new SpansReader(spans, context, hitQueryContext));
+                    spansReaders.add(new SpansReader(spans, context, hitQueryContext, counts,
+                            searchSettings.maxHitsToProcess(), threadPauser));
             }
-            currentSpansReader = null;
-            itSpansReader = spansReaders.iterator();
-            hitIndexInCurrentSpansReader = -1;
 
             if (hitQueryContext.numberOfCapturedGroups() > 0) {
                 capturedGroups = new CapturedGroupsImpl(hitQueryContext.getCapturedGroupNames());
@@ -180,180 +175,248 @@ public class HitsFromQueryParallel extends Hits {
     /**
      * Ensure that we have read at least as many hits as specified in the parameter.
      *
+     * The SpansReaders for each segment read their hits concurrently (see
+     * {@link #startSpansReaderTasks(int)}). Here we concatenate the hits they've
+     * read so far, in segment order: we take the hits from a segment as soon as
+     * they're available, and move on to the next segment when a reader is done.
+     * If a reader doesn't have the hits we need yet, we help it read them.
+     *
      * @param number the minimum number of hits that will have been read when this
      *            method returns (unless there are fewer hits than this); if
      *            negative, reads all hits
      */
     @Override
     protected void ensureResultsRead(int number) {
-        synchronized (this) {
-            if (number < 0 && !parallelSpansReaderTasksStarted && !allSourceSpansFullyRead) {
-                // We want all the hits. Start tasks to fetch hits from all SpansReaders in parallel.
-                startParallelSpansReaderTasks();
-                parallelSpansReaderTasksStarted = true;
-            }
-        }
-        
+        // Prevent locking when not required
+        if (allSourceSpansFullyRead || (number >= 0 && getResults().size() > number))
+            return;
+
+        // At least one hit needs to be fetched.
+        // Make sure we fetch at least FETCH_HITS_MIN while we're at it, to avoid too much locking.
+        if (number >= 0 && number - getResults().size() < FETCH_HITS_MIN)
+            number = getResults().size() + FETCH_HITS_MIN;
+
+        startSpansReaderTasks(number);
+
+        ensureHitsReadLock.lock();
         try {
-            // Prevent locking when not required
-            if (allSourceSpansFullyRead || (number >= 0 && getResults().size() > number))
+            // One more check in case another thread finished the read.
+            if (allSourceSpansFullyRead || (number >= 0 && getResults().size() >= number))
                 return;
-    
-            // At least one hit needs to be fetched.
-            // Make sure we fetch at least FETCH_HITS_MIN while we're at it, to avoid too much locking.
-            if (number >= 0 && number - getResults().size() < FETCH_HITS_MIN)
-                number = getResults().size() + FETCH_HITS_MIN;
-    
-            while (!ensureHitsReadLock.tryLock()) {
-                /*
-                 * Another thread is already counting, we don't want to straight up block until it's done
-                 * as it might be counting/retrieving all results, while we might only want trying to retrieve a small fraction
-                 * So instead poll our own state, then if we're still missing results after that just count them ourselves
-                 */
-                Thread.sleep(50);
-                if (allSourceSpansFullyRead || (number >= 0 && getResults().size() >= number))
-                    return;
-            }
-            try {
-                // One more check in case another thread finished the read.
-                if (allSourceSpansFullyRead || (number >= 0 && getResults().size() >= number))
-                    return;
-
-                boolean readAllHits = number < 0;
-                int maxHitsToCount = searchSettings.maxHitsToCount();
-                int maxHitsToProcess = searchSettings.maxHitsToProcess();
-                while (readAllHits || getResults().size() < number) {
-    
-                    // Pause if asked
-                    threadPauser.waitIfPaused();
-    
-                    // Stop if we're at the maximum number of hits we want to count
-                    if (maxHitsToCount >= 0 && getHitsCounted() >= maxHitsToCount) {
-                        maxStats.setHitsCountedExceededMaximum();
-                        break;
-                    }
-    
-                    // Get the next hit from the spans, moving to the next
-                    // segment when necessary.
-                    Hit hit = null;
-                    Span[] capturedGroupsForHit = null;
-                    while (true) {
-                        
-                        if (currentSpansReader == null) {
-                            // Exhausted (or not started yet); get next segment spans.
-
-                            if (itSpansReader == null || !itSpansReader.hasNext()) {
-                                setFinished();
-                                break;
-                            }
-                            currentSpansReader = itSpansReader.next();
-                            hitIndexInCurrentSpansReader = -1;
-                        }
-                        
-                        if (allSourceSpansFullyRead)
-                            break;
-    
-                        // Advance to next hit
-                        hitIndexInCurrentSpansReader++;
-                        currentSpansReader.ensureResultsRead(hitIndexInCurrentSpansReader + 1);
-                        List<Hit> spansResults = currentSpansReader.resultsList();
-                        if (spansResults.size() <= hitIndexInCurrentSpansReader) {
-                            // Done with this one.
-                            currentSpansReader = null;
-                        } else {
-                            // We're at the next hit
-                            hit = spansResults.get(hitIndexInCurrentSpansReader);
-                            if (currentSpansReader.capturedGroups() != null) {
-                                capturedGroupsForHit = currentSpansReader.capturedGroups().get(hit);
-                            }
-                            break;
-                        }
-                    }
-                    
-                    if (allSourceSpansFullyRead)
-                        break;
-    
-                    // Count the hit and add it (unless we've reached the maximum number of hits we
-                    // want)
-                    setHitsCounted(getHitsCounted() + 1);
-                    boolean maxHitsProcessed = maxStats.hitsProcessedExceededMaximum();
-                    if (hit.doc() != previousHitDoc) {
-                        setDocsCounted(getDocsCounted() + 1);
-                        if (!maxHitsProcessed)
-                            setDocsRetrieved(getDocsRetrieved() + 1);
-                        previousHitDoc = hit.doc();
+
+            int maxHitsToProcess = searchSettings.maxHitsToProcess();
+            HitsArrays results = (HitsArrays) getResults();
+            while (currentSpansReaderIndex < spansReaders.size()) {
+
+                // Pause if asked
+                threadPauser.waitIfPaused();
+
+                boolean maxHitsProcessed = maxStats.hitsProcessedExceededMaximum();
+                if (number >= 0 && (results.size() >= number || maxHitsProcessed))
+                    break;
+
+                // Make sure the current segment has the hits we need (or all hits, if we need to count them)
+                SpansReader reader = spansReaders.get(currentSpansReaderIndex);
+                int numberNeeded = number < 0 || maxHitsProcessed ? -1 : hitIndexInCurrentSpansReader + number - results.size();
+                reader.ensureResultsRead(numberNeeded);
+
+                // Add the hits that are available now (with their index in our results, not in the segment's results)
+                HitsArrays segmentHits = reader.resultsList();
+                CapturedGroupsImpl segmentCapturedGroups = reader.capturedGroups();
+                int available = segmentHits.size();
+                while (hitIndexInCurrentSpansReader < available && !maxHitsProcessed) {
+                    int i = hitIndexInCurrentSpansReader;
+                    int doc = segmentHits.doc(i);
+                    results.add(doc, segmentHits.start(i), segmentHits.end(i));
+                    if (capturedGroups != null && segmentCapturedGroups != null)
+                        capturedGroups.put(results.size() - 1, segmentCapturedGroups, i);
+                    if (doc != previousHitDoc) {
+                        setDocsRetrieved(getDocsRetrieved() + 1);
+                        previousHitDoc = doc;
                     }
-                    if (!maxHitsProcessed) {
-                        if (capturedGroups != null && capturedGroupsForHit != null) {
-                            capturedGroups.put(hit, capturedGroupsForHit);
-                        }
-                        getResults().add(hit);
-                        if (maxHitsToProcess >= 0 && getResults().size() >= maxHitsToProcess) {
-                            maxStats.setHitsProcessedExceededMaximum();
-                        }
+                    hitIndexInCurrentSpansReader++;
+                    if (maxHitsToProcess >= 0 && results.size() >= maxHitsToProcess) {
+                        maxHitsProcessed = true;
+                        maxStats.setHitsProcessedExceededMaximum();
+                        // We have all the hits we want to store; readers only need to count from now on
+                        for (SpansReader r: spansReaders)
+                            r.stopStoring();
                     }
                 }
-            } catch (InterruptedException e) {
-                // We've stopped retrieving/counting
-                maxStats.setHitsProcessedExceededMaximum();
-                maxStats.setHitsCountedExceededMaximum();
-                
-                if (spansReaders != null) {
-                    for (SpansReader reader: spansReaders) {
-                        reader.interrupt();
-                    }
+
+                if (reader.done() && (hitIndexInCurrentSpansReader >= reader.processedSoFar() || maxHitsProcessed)) {
+                    // Done with this segment
+                    currentSpansReaderIndex++;
+                    hitIndexInCurrentSpansReader = 0;
                 }
-                
-                throw e;
-            } finally {
-                ensureHitsReadLock.unlock();
             }
+            if (counts.maxHitsCounted())
+                maxStats.setHitsCountedExceededMaximum();
+            if (currentSpansReaderIndex >= spansReaders.size())
+                setFinished();
         } catch (InterruptedException e) {
+            interrupted();
             throw new InterruptedSearch(e);
+        } catch (InterruptedSearch e) {
+            interrupted();
+            throw e;
+        } finally {
+            ensureHitsReadLock.unlock();
         }
     }
+
+    /** We've been interrupted; stop retrieving/counting. */
+    private void interrupted() {
+        maxStats.setHitsProcessedExceededMaximum();
+        maxStats.setHitsCountedExceededMaximum();
+        
+        if (spansReaders != null) {
+            for (SpansReader reader: spansReaders) {
+                reader.interrupt();
+            }
+        }
+        stopTasks();
+    }
     
-    /** Read all hits in a number of SpansReaders. */
-    private static final class ReadSpansReaders implements Runnable {
-        private List<SpansReader> readers;
+    /**
+     * Reads hits in a group of SpansReaders, up to our current read target.
+     *
+     * There's one of these per group of segments. When it has reached the read
+     * target, it ends, so it doesn't occupy a thread while nobody needs more hits;
+     * if the target is raised later, it is resubmitted.
+     */
+    final class ReadSpansReaders implements Runnable {
+        private final List<SpansReader> readers;
+
+        /** The read target we've reached so far */
+        private int targetReached = 0;
 
-        public ReadSpansReaders(List<SpansReader> readers) {
+        /** Has this task been submitted and not ended yet? (guarded by our Hits object) */
+        private boolean running = false;
+
+        /** Future for our latest submission, so we can cancel it */
+        private Future<?> future;
+
+        ReadSpansReaders(List<SpansReader> readers) {
             this.readers = readers;
         }
-        
+
         @Override
         public void run() {
-            for (SpansReader reader: readers) {
-                reader.ensureResultsRead(-1);
+            boolean endedNormally = false;
+            try {
+                int target;
+                while ((target = nextTarget()) != targetReached) {
+                    for (SpansReader reader: readers) {
+                        reader.ensureResultsRead(target);
+                    }
+                    targetReached = target;
+                }
+                endedNormally = true;
+            } finally {
+                if (!endedNormally) {
+                    synchronized (HitsFromQueryParallel.this) {
+                        running = false;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the read target to work towards next.
+         *
+         * If we've already reached it (or we should stop), we mark ourselves as no
+         * longer running, so {@link #startSpansReaderTasks(int)} will resubmit us if the
+         * target is raised.
+         *
+         * @return the current read target, or targetReached if we should end
+         */
+        private int nextTarget() {
+            synchronized (HitsFromQueryParallel.this) {
+                if (tasksStopped || readTarget == targetReached) {
+                    running = false;
+                    return targetReached;
+                }
+                return readTarget;
             }
         }
     }
     
-    private void startParallelSpansReaderTasks() {
+    /**
+     * Make sure there are tasks reading hits from our SpansReaders.
+     *
+     * We don't know how many of the first hits in doc order each segment will
+     * contribute, so we read up to the requested number of hits from each segment.
+     * Each group of segments has a single task; if a larger number is requested
+     * later, we raise the read target and resubmit any tasks that have ended.
+     *
+     * @param number number of hits to read from each segment, or -1 for all
+     */
+    private synchronized void startSpansReaderTasks(int number) {
+        if (allSourceSpansFullyRead || tasksStopped || readTarget < 0 || (number >= 0 && number <= readTarget))
+            return;
+        readTarget = number;
         if (DO_PARALLEL) {
-            int maxTasksPerSearch = queryInfo().index().blackLab().maxThreadsPerSearch();
-            int tasksToStart = Math.min(maxTasksPerSearch, spansReaders.size());
-            if (tasksToStart == 0)
-                return; // No spansReaders or maxTasksPerSearch == 0 (!?), avoid divide by zero
-            int spansReadersPerTask = (spansReaders.size() + tasksToStart - 1) / tasksToStart;
-            int currentSpansReader = 0;
-            ExecutorService executorService = queryInfo().index().blackLab().searchExecutorService();
-            for (int i = 0; i < tasksToStart; i++) {
-                List<SpansReader> readers = new ArrayList<>();
-                for (int j = 0; j < spansReadersPerTask && currentSpansReader < spansReaders.size(); j++) {
-                    readers.add(spansReaders.get(currentSpansReader));
-                    currentSpansReader++;
+            if (tasks == null) {
+                int maxTasksPerSearch = queryInfo().index().blackLab().maxThreadsPerSearch();
+                int numberOfTasks = Math.min(maxTasksPerSearch, spansReaders.size());
+                tasks = new ReadSpansReaders[Math.max(0, numberOfTasks)];
+                for (int i = 0; i < tasks.length; i++) {
+                    // Interleave the segments over the tasks, so the first segments (which we need first) are read first
+                    List<SpansReader> readers = new ArrayList<>();
+                    for (int j = i; j < spansReaders.size(); j += tasks.length) {
+                        readers.add(spansReaders.get(j));
+                    }
+                    tasks[i] = new ReadSpansReaders(readers);
                 }
-                if (!readers.isEmpty()) {
-                    ReadSpansReaders task = new ReadSpansReaders(readers);
-                    futures.add(executorService.submit(task));
+            }
+            ExecutorService executorService = queryInfo().index().blackLab().searchExecutorService();
+            for (ReadSpansReaders task: tasks) {
+                if (!task.running) {
+                    task.running = true;
+                    task.future = executorService.submit(task);
                 }
             }
-            System.err.println("PARALLEL: Started " + tasksToStart + " tasks with " + spansReadersPerTask + " spansReaders each (total " + spansReaders.size() + " readers)");
         }
     }
 
-    private void setFinished() {
+    /** Make our tasks end, and cancel any that haven't started yet. */
+    private synchronized void stopTasks() {
+        tasksStopped = true;
+        if (tasks != null) {
+            for (ReadSpansReaders task: tasks) {
+                if (task.future != null)
+                    task.future.cancel(false);
+            }
+        }
+    }
+
+    @Override
+    protected int getHitsCounted() {
+        return counts.hitsCounted();
+    }
+
+    @Override
+    protected int getDocsCounted() {
+        return counts.docsCounted();
+    }
+
+    @Override
+    public long estimateMemoryBytes() {
+        long bytes = super.estimateMemoryBytes();
+        // While we're still reading, the segments hold on to their own hits as well
+        List<SpansReader> readers = spansReaders;
+        if (readers != null) {
+            for (SpansReader reader: readers) {
+                bytes += reader.resultsList().estimateMemoryBytes();
+                if (reader.capturedGroups() != null)
+                    bytes += reader.capturedGroups().estimateMemoryBytes();
+            }
+        }
+        return bytes;
+    }
+
+    private synchronized void setFinished() {
         allSourceSpansFullyRead = true;
         
         // We no longer need these; allow them to be GC'ed
@@ -362,8 +425,8 @@ public class HitsFromQueryParallel extends Hits {
         termContexts = null;
         hitQueryContext = null;
         spansReaders = null;
-        itSpansReader = null;
-        currentSpansReader = null;
+        stopTasks();
+        tasks = null;
     }
 
     @Override
@@ -1,6 +1,5 @@
 package nl.inl.blacklab.search.results;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -9,9 +8,9 @@ import java.util.List;
 public class HitsList extends Hits {
 
     private static List<Hit> createHitList(int[] doc, int[] start, int[] end) {
-        List<Hit> hits = new ArrayList<>();
+        HitsArrays hits = new HitsArrays(doc.length);
         for (int i = 0; i < doc.length; i++) {
-            hits.add(Hit.create(doc[i], start[i], end[i], i));
+            hits.add(doc[i], start[i], end[i]);
         }
         return hits;
     }
@@ -31,7 +30,7 @@ public class HitsList extends Hits {
      */
     protected HitsList(QueryInfo queryInfo, List<Hit> hits) {
         super(queryInfo);
-        this.setResults(hits == null ? new ArrayList<>() : hits);
+        this.setResults(hits == null ? new HitsArrays() : hits);
         setHitsCounted(this.getResults().size());
         int prevDoc = -1;
         for (Hit h : this.getResults()) {
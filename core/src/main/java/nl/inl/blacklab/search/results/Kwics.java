@@ -52,6 +52,23 @@ public class Kwics {
         return kwics.get(h);
     }
 
+    /**
+     * Estimate how much memory the KWICs use.
+     *
+     * The token strings themselves are shared with the terms lists, so we only
+     * count the references to them.
+     *
+     * @return estimated memory use in bytes
+     */
+    public long estimateMemoryBytes() {
+        long bytes = SearchResult.BYTES_PER_OBJECT * 2L;
+        for (Kwic kwic: kwics.values()) {
+            bytes += SearchResult.BYTES_PER_MAP_ENTRY + SearchResult.BYTES_PER_OBJECT * 4L // entry, Hit, Kwic, fragment and token list
+                    + (long) kwic.tokens().size() * SearchResult.BYTES_PER_REFERENCE;
+        }
+        return bytes;
+    }
+
     
     /**
      * Retrieve KWICs for a (sub)list of hits.
@@ -1,6 +1,7 @@
 package nl.inl.blacklab.search.results;
 
 import nl.inl.blacklab.exceptions.InterruptedSearch;
+import nl.inl.util.ThreadPauser;
 
 public class ResultCount extends ResultsStats implements SearchResult {
     
@@ -14,6 +15,9 @@ public class ResultCount extends ResultsStats implements SearchResult {
 
     private boolean wasInterrupted = false;
 
+    /** Pauser for the count, if it has its own (otherwise, pause the results object) */
+    private ThreadPauser threadPauser = null;
+
     public ResultCount(Results<?> count, CountType type) {
         switch (type) {
         case RESULTS:
@@ -48,6 +52,35 @@ public class ResultCount extends ResultsStats implements SearchResult {
         update();
     }
 
+    /**
+     * Count the hits or documents for a query, without retrieving the hits.
+     *
+     * @param count the hit count
+     * @param type what to count: HITS or DOCS
+     */
+    public ResultCount(HitCountFromQuery count, CountType type) {
+        switch (type) {
+        case RESULTS:
+        case HITS:
+            this.count = count.hitsStats();
+            break;
+        case DOCS:
+            this.count = count.docsStats();
+            break;
+        }
+        this.threadPauser = count.threadPauser();
+        update();
+    }
+
+    /**
+     * Get the pauser for this count, if it has its own.
+     *
+     * @return pauser, or null if the count should be paused using its results object
+     */
+    public ThreadPauser threadPauser() {
+        return threadPauser;
+    }
+
     private void update() {
         if (!count.isStatic() && count.done()) {
             // Disengage from the search object and save the totals.
@@ -137,6 +170,11 @@ public class ResultCount extends ResultsStats implements SearchResult {
         return 1;
     }
 
+    @Override
+    public long estimateMemoryBytes() {
+        return BYTES_PER_OBJECT * 2L;
+    }
+
     @Override
     public boolean wasInterrupted() {
         return wasInterrupted;
@@ -2,7 +2,22 @@ package nl.inl.blacklab.search.results;
 
 // Base interface for all possible search results
 public interface SearchResult {
-    
+
+    /** Rough size of an object header, for estimating memory use */
+    int BYTES_PER_OBJECT = 16;
+
+    /** Rough size of an object reference, for estimating memory use */
+    int BYTES_PER_REFERENCE = 8;
+
+    /** Size of an int, for estimating memory use */
+    int BYTES_PER_INT = Integer.BYTES;
+
+    /** Rough size of a hash map entry (entry object plus table slot), for estimating memory use */
+    int BYTES_PER_MAP_ENTRY = BYTES_PER_OBJECT + 3 * BYTES_PER_REFERENCE + BYTES_PER_INT + BYTES_PER_REFERENCE;
+
+    /** Rough size of a group identity (PropertyValue), for estimating memory use */
+    int BYTES_PER_GROUP_IDENTITY = 64;
+
     /**
      * How many result objects does this search store?
      * 
@@ -16,5 +31,16 @@ public interface SearchResult {
      * @return how many hits are stored in this result object
      */
     int numberOfResultObjects();
+
+    /**
+     * Estimate how much memory this result object holds on to.
+     *
+     * Includes what it stores itself (e.g. hits, captured groups, groups and the
+     * hits stored in them), but not the results it was created from, even if it
+     * keeps a reference to them. Used to keep the cache within its memory budget.
+     *
+     * @return estimated memory use in bytes
+     */
+    long estimateMemoryBytes();
     
 }
@@ -1,8 +1,8 @@
 package nl.inl.blacklab.search.results;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,15 +14,119 @@ import org.apache.lucene.util.Bits;
 import nl.inl.blacklab.exceptions.BlackLabRuntimeException;
 import nl.inl.blacklab.exceptions.InterruptedSearch;
 import nl.inl.blacklab.exceptions.WildcardTermTooBroad;
+import nl.inl.blacklab.search.SearchStatistics;
 import nl.inl.blacklab.search.Span;
 import nl.inl.blacklab.search.lucene.BLSpans;
 import nl.inl.blacklab.search.lucene.HitQueryContext;
 import nl.inl.util.ThreadPauser;
 
 /**
- * A Hits object that is filled from a BLSpanQuery.
+ * Reads the hits from the Spans for a single index segment.
+ *
+ * Used by {@link HitsFromQueryParallel}, which runs several SpansReaders
+ * concurrently and concatenates their results in segment order. Each reader
+ * fills its own buffer; hits below {@link #processedSoFar()} may be read by
+ * other threads while this reader is still adding hits.
  */
 public class SpansReader {
+
+    /** Maximum number of hits to read while holding our lock. */
+    private static final int HITS_PER_BATCH = 1000;
+
+    /**
+     * Counts shared between the SpansReaders for a single search.
+     *
+     * Readers add to these after each batch of hits, so there's no need for a
+     * global lock, and the maximum number of hits to count is enforced exactly by
+     * reserving part of the counting budget before reading a batch.
+     */
+    public static class Counts {
+
+        /** Maximum number of hits to count, or -1 for no limit */
+        private final int maxHitsToCount;
+
+        /** Hits counted so far */
+        private final AtomicInteger hitsCounted = new AtomicInteger();
+
+        /** Documents counted so far (segments don't share documents, so we can just add these) */
+        private final AtomicInteger docsCounted = new AtomicInteger();
+
+        /** Hits counted plus hits readers have reserved for counting (only used if there is a limit) */
+        private final AtomicInteger hitsReserved = new AtomicInteger();
+
+        /** Set when a reader has stopped because we've reached maxHitsToCount */
+        private volatile boolean maxHitsCounted = false;
+
+        public Counts(int maxHitsToCount) {
+            this.maxHitsToCount = maxHitsToCount;
+        }
+
+        /**
+         * Reserve part of the counting budget.
+         *
+         * If the budget has been reserved completely, but other readers haven't
+         * finished their batch yet, we wait for them, as they may return part of
+         * their reservation.
+         *
+         * @param wanted number of hits we would like to count
+         * @return number of hits we may count (0 if we've reached the maximum)
+         * @throws InterruptedException if we were interrupted while waiting
+         */
+        int reserve(int wanted) throws InterruptedException {
+            if (maxHitsToCount < 0)
+                return wanted;
+            while (true) {
+                int reserved = hitsReserved.get();
+                int n = Math.min(wanted, maxHitsToCount - reserved);
+                if (n <= 0) {
+                    synchronized (this) {
+                        if (hitsCounted.get() >= maxHitsToCount) {
+                            maxHitsCounted = true;
+                            return 0;
+                        }
+                        if (hitsReserved.get() >= maxHitsToCount)
+                            wait();
+                    }
+                } else if (hitsReserved.compareAndSet(reserved, reserved + n)) {
+                    return n;
+                }
+            }
+        }
+
+        /**
+         * Add the results of a batch and return any unused part of the reservation.
+         *
+         * @param reserved number of hits reserved for this batch
+         * @param hits number of hits actually counted
+         * @param docs number of new documents counted
+         */
+        void add(int reserved, int hits, int docs) {
+            if (docs > 0)
+                docsCounted.addAndGet(docs);
+            if (maxHitsToCount < 0) {
+                hitsCounted.addAndGet(hits);
+            } else {
+                synchronized (this) {
+                    hitsCounted.addAndGet(hits);
+                    hitsReserved.addAndGet(hits - reserved);
+                    notifyAll();
+                }
+            }
+        }
+
+        public int hitsCounted() {
+            return hitsCounted.get();
+        }
+
+        public int docsCounted() {
+            return docsCounted.get();
+        }
+
+        public boolean maxHitsCounted() {
+            return maxHitsCounted;
+        }
+    }
+
     /** Our Spans object, which may not have been fully read yet. */
     private BLSpans spans;
 
@@ -32,37 +136,66 @@ public class SpansReader {
     /** liveDocs of the segment we're currently in */
     private Bits liveDocs;
 
-    private List<Hit> results = new ArrayList<>();
+    private HitsArrays results = new HitsArrays();
 
     /** Our captured groups, or null if we have none. */
     private CapturedGroupsImpl capturedGroups = null;
+
+    /** Buffer for getting captured groups from the spans (reused for each hit) */
+    private Span[] capturedGroupsBuffer;
     
     /** Did we completely read our Spans object? */
-    private boolean spansFullyRead = true;
+    private volatile boolean spansFullyRead = true;
 
+    /** Only held while reading a batch of hits, so other threads never wait long. */
     private Lock ensureHitsReadLock = new ReentrantLock();
     
     /** Context of our query; mostly used to keep track of captured groups. */
     private HitQueryContext hitQueryContext;
     
-    private ThreadPauser threadPauser = ThreadPauser.create();
+    /** Pauser of the search we're part of */
+    private ThreadPauser threadPauser;
+
+    /** Counts shared with the other readers for this search */
+    private Counts counts;
+
+    /** Maximum number of hits to store, or -1 for no limit */
+    private int maxHitsToProcess;
+
+    /** Set if we shouldn't store any more hits (but may still count them) */
+    private volatile boolean stopStoring = false;
+
+    /** Document the previous hit was in, so we can count separate documents. */
+    private int previousHitDoc = -1;
+
+    /** Hits counted in this segment so far */
+    private volatile int hitsCountedInSegment = 0;
+
+    /** Documents counted in this segment so far */
+    private volatile int docsCountedInSegment = 0;
 
     private boolean interrupted = false;
 
-    private boolean shouldCancel = false;
+    private volatile boolean shouldCancel = false;
 
     /**
-     * Construct a Hits object from a SpanQuery.
+     * Construct a SpansReader for a segment.
      *
-     * @param queryInfo query info
-     * @param sourceQuery the query to execute to get the hits
-     * @param searchSettings search settings
-     * @throws WildcardTermTooBroad if the query is overly broad (expands to too many terms)
+     * @param spans spans for this segment
+     * @param leafReaderContext the segment
+     * @param hitQueryContext query context, will be copied for these spans
+     * @param counts counts shared with the other readers for this search
+     * @param maxHitsToProcess maximum number of hits to store, or -1 for no limit
+     * @param threadPauser pauser of the search we're part of
      */
-    protected SpansReader(BLSpans spans, LeafReaderContext leafReaderContext, HitQueryContext hitQueryContext) {
+    protected SpansReader(BLSpans spans, LeafReaderContext leafReaderContext, HitQueryContext hitQueryContext,
+            Counts counts, int maxHitsToProcess, ThreadPauser threadPauser) {
         this.liveDocs = leafReaderContext.reader().getLiveDocs();
         this.docBase = leafReaderContext.docBase;
         this.spans = spans;
+        this.counts = counts;
+        this.maxHitsToProcess = maxHitsToProcess;
+        this.threadPauser = threadPauser;
         
         // Update the hit query context with our new spans,
         // and notify the spans of the hit query context
@@ -111,96 +244,181 @@ public class SpansReader {
         return results.size() >= lowerBound;
     }
 
+    /**
+     * Are we done reading?
+     *
+     * That is the case if we've read all our spans, or if the maximum number of
+     * hits to count has been reached.
+     *
+     * @return true if we won't produce any more hits
+     */
     public boolean done() {
-        return spansFullyRead;
+        return spansFullyRead || counts.maxHitsCounted();
     }
     
-    public List<Hit> resultsList() {
+    /**
+     * Have we read all our spans?
+     *
+     * Unlike {@link #done()}, this is false if we stopped because the maximum
+     * number of hits to count was reached.
+     *
+     * @return true if all spans were read
+     */
+    public boolean fullyRead() {
+        return spansFullyRead;
+    }
+
+    /**
+     * Get the number of hits counted in this segment so far.
+     *
+     * @return number of hits counted
+     */
+    public int hitsCountedInSegment() {
+        return hitsCountedInSegment;
+    }
+
+    /**
+     * Get the number of documents counted in this segment so far.
+     *
+     * @return number of documents counted
+     */
+    public int docsCountedInSegment() {
+        return docsCountedInSegment;
+    }
+
+    public HitsArrays resultsList() {
         return results;
     }
 
+    /**
+     * Stop storing hits.
+     *
+     * Called when the search has all the hits it wants to store. We will still
+     * count hits if asked to read all of them.
+     */
+    public void stopStoring() {
+        stopStoring = true;
+    }
+
+    private boolean storingHits() {
+        return !stopStoring && (maxHitsToProcess < 0 || results.size() < maxHitsToProcess);
+    }
+
+    private boolean needMoreHits(int number) {
+        if (done())
+            return false;
+        if (number < 0)
+            return true;
+        return results.size() < number && storingHits();
+    }
+
     /**
      * Ensure that we have read at least as many hits as specified in the parameter.
      *
+     * Hits are read in batches, and our lock is only held during a batch. So if
+     * another thread is reading hits from this segment, we will wait for at most
+     * one batch, after which we either have enough hits or continue reading
+     * ourselves.
+     *
      * @param number the minimum number of hits that will have been read when this
      *            method returns (unless there are fewer hits than this); if
-     *            negative (e.g. Results.NO_LIMIT), reads all hits
+     *            negative (e.g. Results.NO_LIMIT), reads (and counts) all hits
      */
     public void ensureResultsRead(int number) {
         try {
-            // Prevent locking when not required
-            if (spansFullyRead || (number >= 0 && results.size() > number))
-                return;
-    
             // At least one hit needs to be fetched.
             // Make sure we fetch at least FETCH_HITS_MIN while we're at it, to avoid too much locking.
-            if (number >= 0 && number - results.size() < Hits.FETCH_HITS_MIN)
+            if (number >= 0 && number > results.size() && number - results.size() < Hits.FETCH_HITS_MIN)
                 number = results.size() + Hits.FETCH_HITS_MIN;
-    
-            while (!ensureHitsReadLock.tryLock()) {
-                /*
-                 * Another thread is already counting, we don't want to straight up block until it's done
-                 * as it might be counting/retrieving all results, while we might only want trying to retrieve a small fraction
-                 * So instead poll our own state, then if we're still missing results after that just count them ourselves
-                 */
-                Thread.sleep(50);
-                if (spansFullyRead || (number >= 0 && results.size() >= number))
-                    return;
+
+            while (needMoreHits(number)) {
+                ensureHitsReadLock.lock();
+                try {
+                    // Check again, another thread may have read the hits we need
+                    if (needMoreHits(number))
+                        readBatch(number < 0 ? HITS_PER_BATCH : Math.min(HITS_PER_BATCH, number - results.size()));
+                } finally {
+                    ensureHitsReadLock.unlock();
+                }
             }
-            try {
-                boolean readAllHits = number < 0;
-                while (!spansFullyRead && (readAllHits || results.size() < number)) {
-    
-                    // Pause if asked
-                    threadPauser.waitIfPaused();
+        } catch (InterruptedException e) {
+            // We've stopped retrieving/counting
+            interrupted = true;
+            throw new InterruptedSearch(e);
+        } catch (IOException e) {
+            throw BlackLabRuntimeException.wrap(e);
+        }
+    }
+
+    /**
+     * Read and count a batch of hits.
+     *
+     * Must be called while holding our lock.
+     *
+     * @param batchSize maximum number of hits to read
+     */
+    private void readBatch(int batchSize) throws InterruptedException, IOException {
+        // Pause if asked
+        threadPauser.waitIfPaused();
+        
+        if (shouldCancel) {
+            // We've been asked to stop fetching hits.
+            throw new InterruptedException();
+        }
+
+        // Make sure we don't count more hits than we're allowed to
+        int reserved = counts.reserve(batchSize);
+        int hitsCounted = 0, docsCounted = 0;
+        long startTime = System.nanoTime();
+        try {
+            while (hitsCounted < reserved) {
+                // Advance to next hit
+                int start = spans.nextStartPosition();
+                if (start == Spans.NO_MORE_POSITIONS) {
                     
-                    if (shouldCancel) {
-                        // We've been asked to stop fetching hits.
-                        throw new InterruptedException();
-                    }
-    
-                    // Advance to next hit
-                    int start = spans.nextStartPosition();
-                    if (start == Spans.NO_MORE_POSITIONS) {
-                        
-                        boolean alive = false;
-                        do {
-                            int doc = spans.nextDoc();
-                            if (doc != DocIdSetIterator.NO_MORE_DOCS) {
-                                alive = liveDocs == null ? true : liveDocs.get(doc);
-                                if (alive) {
-                                    // Go to first hit in doc
-                                    start = spans.nextStartPosition();
-                                }
-                            } else {
-                                // Spans exhausted
-                                spansFullyRead = true;
+                    boolean alive = false;
+                    do {
+                        int doc = spans.nextDoc();
+                        if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+                            alive = liveDocs == null ? true : liveDocs.get(doc);
+                            if (alive) {
+                                // Go to first hit in doc
+                                start = spans.nextStartPosition();
                             }
-                        } while (!spansFullyRead && !alive);
-                    }
-
-                    if (!spansFullyRead) {
-                        // Count the hit and add it (unless we've reached the maximum number of hits we want)
-                        Hit hit = Hit.create(spans.docID() + docBase, spans.startPosition(), spans.endPosition(), 0); // TODO(lexion): fill in index if we ever use HitsInQueryParallel
-                        if (capturedGroups != null) {
-                            Span[] groups = new Span[hitQueryContext.numberOfCapturedGroups()];
-                            hitQueryContext.getCapturedGroups(groups);
-                            capturedGroups.put(hit, groups);
+                        } else {
+                            // Spans exhausted
+                            spansFullyRead = true;
                         }
-                        results.add(hit);
+                    } while (!spansFullyRead && !alive);
+                }
+                if (spansFullyRead)
+                    break;
+
+                // Count the hit and add it (unless we've reached the maximum number of hits we want)
+                hitsCounted++;
+                int doc = spans.docID() + docBase;
+                if (doc != previousHitDoc) {
+                    docsCounted++;
+                    previousHitDoc = doc;
+                }
+                if (storingHits()) {
+                    // (NOTE: hit index is the index within this segment; HitsFromQueryParallel re-indexes the hits)
+                    results.add(doc, start, spans.endPosition());
+                    if (capturedGroups != null) {
+                        if (capturedGroupsBuffer == null)
+                            capturedGroupsBuffer = new Span[hitQueryContext.numberOfCapturedGroups()];
+                        Arrays.fill(capturedGroupsBuffer, null);
+                        hitQueryContext.getCapturedGroups(capturedGroupsBuffer);
+                        capturedGroups.put(results.size() - 1, capturedGroupsBuffer);
                     }
                 }
-            } catch (InterruptedException e) {
-                // We've stopped retrieving/counting
-                interrupted = true;
-                throw e;
-            } catch (IOException e) {
-                throw BlackLabRuntimeException.wrap(e);
-            } finally {
-                ensureHitsReadLock.unlock();
             }
-        } catch (InterruptedException e) {
-            throw new InterruptedSearch(e);
+        } finally {
+            hitsCountedInSegment += hitsCounted;
+            docsCountedInSegment += docsCounted;
+            counts.add(reserved, hitsCounted, docsCounted);
+            SearchStatistics.addSpanIterationNanos(System.nanoTime() - startTime);
+            SearchStatistics.addHitsRetrieved(hitsCounted);
         }
     }
 
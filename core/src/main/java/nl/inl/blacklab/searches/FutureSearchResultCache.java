@@ -47,6 +47,14 @@ public class FutureSearchResultCache implements SearchCache {
         return future;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R extends SearchResult> Future<R> getIfPresent(Search<R> search) {
+        synchronized (searches) {
+            return (Future<R>)searches.get(search);
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public <R extends SearchResult> Future<R> remove(Search<R> search) {
@@ -65,6 +65,20 @@ public interface SearchCache {
         }
     }
     
+    /**
+     * Get a [future] result for the specified search, if it's in the cache.
+     *
+     * Unlike {@link #getAsync(Search, Supplier)}, this never starts the search.
+     *
+     * The default implementation never finds anything.
+     *
+     * @param search search we want the result for
+     * @return the future, or null if the search is not in the cache
+     */
+    default <R extends SearchResult> Future<R> getIfPresent(Search<R> search) {
+        return null;
+    }
+
     <R extends SearchResult> Future<R> remove(Search<R> search);
 
     void removeSearchesForIndex(BlackLabIndex index);
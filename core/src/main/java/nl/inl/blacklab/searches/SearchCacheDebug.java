@@ -27,6 +27,12 @@ public class SearchCacheDebug implements SearchCache {
         return result;
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public <R extends SearchResult> Future<R> getIfPresent(Search<R> search) {
+        return (CompletableFuture<R>) searches.get(search);
+    }
+
     @Override
     public <R extends SearchResult> Future<R> remove(Search<R> search) {
         System.out.println("Remove from cache: " + search);
@@ -0,0 +1,132 @@
+package nl.inl.blacklab.searches;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.search.Query;
+
+import nl.inl.blacklab.exceptions.InterruptedSearch;
+import nl.inl.blacklab.exceptions.InvalidQuery;
+import nl.inl.blacklab.search.lucene.BLSpanQuery;
+import nl.inl.blacklab.search.results.HitCountFromQuery;
+import nl.inl.blacklab.search.results.Hits;
+import nl.inl.blacklab.search.results.QueryInfo;
+import nl.inl.blacklab.search.results.ResultCount;
+import nl.inl.blacklab.search.results.ResultCount.CountType;
+import nl.inl.blacklab.search.results.SearchSettings;
+import nl.inl.blacklab.search.textpattern.TextPattern;
+
+/**
+ * A search operation that counts the hits (or documents) for a pattern.
+ *
+ * Unlike counting a {@link SearchHitsFromPattern} result, this never retrieves
+ * the hits themselves; see {@link HitCountFromQuery}. If the hits for the same
+ * pattern are already in the cache, though, we count those instead of executing
+ * the query again.
+ */
+public class SearchCountHitsFromPattern extends SearchCount {
+
+    private TextPattern pattern;
+
+    private Query filter;
+
+    private SearchSettings searchSettings;
+
+    private CountType type;
+
+    private boolean fetchAllResults;
+
+    SearchCountHitsFromPattern(QueryInfo queryInfo, TextPattern pattern, Query filter, SearchSettings searchSettings, CountType type, boolean fetchAllResults) {
+        super(queryInfo);
+        this.pattern = pattern;
+        this.filter = filter;
+        this.searchSettings = searchSettings;
+        this.type = type;
+        this.fetchAllResults = fetchAllResults;
+    }
+
+    @Override
+    protected ResultCount executeInternal() throws InvalidQuery {
+        Hits hits = cachedHits();
+        if (hits != null)
+            return new ResultCount(hits, type);
+        BLSpanQuery spanQuery = SearchHitsFromPattern.spanQuery(queryInfo(), pattern, filter);
+        SearchSettings settings = searchSettings == null ? queryInfo().index().searchSettings() : searchSettings;
+        return new ResultCount(new HitCountFromQuery(queryInfo(), spanQuery, settings), type);
+    }
+
+    /**
+     * Get the hits for our pattern, if that search is in the cache.
+     *
+     * @return the hits, or null if they're not in the cache (or that search failed)
+     */
+    private Hits cachedHits() {
+        Future<Hits> future = queryInfo().index().cache().getIfPresent(new SearchHitsFromPattern(queryInfo(), pattern, filter, searchSettings));
+        if (future == null)
+            return null;
+        try {
+            return future.get();
+        } catch (ExecutionException | CancellationException e) {
+            return null; // we'll count the hits ourselves
+        } catch (InterruptedException e) {
+            throw new InterruptedSearch(e);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = super.hashCode();
+        result = prime * result + (fetchAllResults ? 1231 : 1237);
+        result = prime * result + ((filter == null) ? 0 : filter.hashCode());
+        result = prime * result + ((pattern == null) ? 0 : pattern.hashCode());
+        result = prime * result + ((searchSettings == null) ? 0 : searchSettings.hashCode());
+        result = prime * result + ((type == null) ? 0 : type.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!super.equals(obj))
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        SearchCountHitsFromPattern other = (SearchCountHitsFromPattern) obj;
+        if (fetchAllResults != other.fetchAllResults)
+            return false;
+        if (filter == null) {
+            if (other.filter != null)
+                return false;
+        } else if (!filter.equals(other.filter))
+            return false;
+        if (pattern == null) {
+            if (other.pattern != null)
+                return false;
+        } else if (!pattern.equals(other.pattern))
+            return false;
+        if (searchSettings == null) {
+            if (other.searchSettings != null)
+                return false;
+        } else if (!searchSettings.equals(other.searchSettings))
+            return false;
+        if (type != other.type)
+            return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if (filter == null)
+            return toString("count", pattern, type, fetchAllResults);
+        return toString("count", pattern, filter, type, fetchAllResults);
+    }
+
+    @Override
+    public boolean fetchAllResults() {
+        return fetchAllResults;
+    }
+
+}
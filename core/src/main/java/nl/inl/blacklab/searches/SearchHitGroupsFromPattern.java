@@ -0,0 +1,99 @@
+package nl.inl.blacklab.searches;
+
+import org.apache.lucene.search.Query;
+
+import nl.inl.blacklab.exceptions.InvalidQuery;
+import nl.inl.blacklab.resultproperty.HitProperty;
+import nl.inl.blacklab.search.lucene.BLSpanQuery;
+import nl.inl.blacklab.search.results.HitGroups;
+import nl.inl.blacklab.search.results.QueryInfo;
+import nl.inl.blacklab.search.results.SearchSettings;
+import nl.inl.blacklab.search.textpattern.TextPattern;
+
+/**
+ * A search operation that groups the hits for a pattern.
+ *
+ * Unlike grouping a {@link SearchHitsFromPattern} result, this doesn't retrieve
+ * all hits first; see {@link HitGroups#fromQuery(QueryInfo, BLSpanQuery, SearchSettings, HitProperty, int)}.
+ */
+public class SearchHitGroupsFromPattern extends SearchHitGroups {
+
+    private TextPattern pattern;
+
+    private Query filter;
+
+    private SearchSettings searchSettings;
+
+    private HitProperty property;
+
+    private int maxHits;
+
+    SearchHitGroupsFromPattern(QueryInfo queryInfo, TextPattern pattern, Query filter, SearchSettings searchSettings, HitProperty groupBy, int maxResultsToStorePerGroup) {
+        super(queryInfo);
+        this.pattern = pattern;
+        this.filter = filter;
+        this.searchSettings = searchSettings;
+        this.property = groupBy;
+        this.maxHits = maxResultsToStorePerGroup;
+    }
+
+    @Override
+    protected HitGroups executeInternal() throws InvalidQuery {
+        BLSpanQuery spanQuery = SearchHitsFromPattern.spanQuery(queryInfo(), pattern, filter);
+        SearchSettings settings = searchSettings == null ? queryInfo().index().searchSettings() : searchSettings;
+        return HitGroups.fromQuery(queryInfo(), spanQuery, settings, property, maxHits);
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = super.hashCode();
+        result = prime * result + ((filter == null) ? 0 : filter.hashCode());
+        result = prime * result + maxHits;
+        result = prime * result + ((pattern == null) ? 0 : pattern.hashCode());
+        result = prime * result + ((property == null) ? 0 : property.hashCode());
+        result = prime * result + ((searchSettings == null) ? 0 : searchSettings.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!super.equals(obj))
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        SearchHitGroupsFromPattern other = (SearchHitGroupsFromPattern) obj;
+        if (filter == null) {
+            if (other.filter != null)
+                return false;
+        } else if (!filter.equals(other.filter))
+            return false;
+        if (maxHits != other.maxHits)
+            return false;
+        if (pattern == null) {
+            if (other.pattern != null)
+                return false;
+        } else if (!pattern.equals(other.pattern))
+            return false;
+        if (property == null) {
+            if (other.property != null)
+                return false;
+        } else if (!property.equals(other.property))
+            return false;
+        if (searchSettings == null) {
+            if (other.searchSettings != null)
+                return false;
+        } else if (!searchSettings.equals(other.searchSettings))
+            return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if (filter == null)
+            return toString("group", pattern, property, maxHits);
+        return toString("group", pattern, filter, property, maxHits);
+    }
+}
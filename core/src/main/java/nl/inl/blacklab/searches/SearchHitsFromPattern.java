@@ -5,8 +5,12 @@ import org.apache.lucene.search.Query;
 import nl.inl.blacklab.exceptions.InvalidQuery;
 import nl.inl.blacklab.exceptions.RegexpTooLarge;
 import nl.inl.blacklab.exceptions.WildcardTermTooBroad;
+import nl.inl.blacklab.resultproperty.HitProperty;
+import nl.inl.blacklab.search.lucene.BLSpanQuery;
+import nl.inl.blacklab.search.lucene.SpanQueryFiltered;
 import nl.inl.blacklab.search.results.Hits;
 import nl.inl.blacklab.search.results.QueryInfo;
+import nl.inl.blacklab.search.results.ResultCount.CountType;
 import nl.inl.blacklab.search.results.SearchSettings;
 import nl.inl.blacklab.search.textpattern.TextPattern;
 
@@ -39,7 +43,66 @@ public class SearchHitsFromPattern extends SearchHits {
     protected Hits executeInternal() throws InvalidQuery {
         return queryInfo().index().find(queryInfo(), pattern, filter, searchSettings);
     }
+
+    /**
+     * Group hits by a property.
+     *
+     * Groups without retrieving all hits first, so this uses memory proportional
+     * to the number of groups (plus the stored hits), not the number of hits.
+     *
+     * @param groupBy what to group by
+     * @param maxResultsToGatherPerGroup how many results to gather per group
+     * @return resulting operation
+     */
+    @Override
+    public SearchHitGroups group(HitProperty groupBy, int maxResultsToGatherPerGroup) {
+        return new SearchHitGroupsFromPattern(queryInfo(), pattern, filter, searchSettings, groupBy, maxResultsToGatherPerGroup);
+    }
+
+    /**
+     * Count hits.
+     *
+     * Counts without retrieving the hits, so this uses much less memory than
+     * counting the hits from this search's results.
+     *
+     * @param fetchAllResults should all results be fetched in the cache thread..?
+     * @return resulting operation
+     */
+    @Override
+    public SearchCount hitCount(boolean fetchAllResults) {
+        return new SearchCountHitsFromPattern(queryInfo(), pattern, filter, searchSettings, CountType.HITS, fetchAllResults);
+    }
+
+    /**
+     * Count docs.
+     *
+     * Counts without retrieving the hits, so this uses much less memory than
+     * counting the hits from this search's results.
+     *
+     * @param fetchAllResults should all results be fetched in the cache thread..?
+     * @return resulting operation
+     */
+    @Override
+    public SearchCount docCount(boolean fetchAllResults) {
+        return new SearchCountHitsFromPattern(queryInfo(), pattern, filter, searchSettings, CountType.DOCS, fetchAllResults);
+    }
     
+    /**
+     * Translate a pattern to a query, like BlackLabIndex.find() does.
+     *
+     * @param queryInfo query info
+     * @param pattern pattern to translate
+     * @param filter filter query, or null for none
+     * @return query
+     * @throws InvalidQuery if the pattern is invalid
+     */
+    static BLSpanQuery spanQuery(QueryInfo queryInfo, TextPattern pattern, Query filter) throws InvalidQuery {
+        BLSpanQuery spanQuery = pattern.translate(queryInfo.index().defaultExecutionContext(queryInfo.field()));
+        if (filter != null)
+            spanQuery = new SpanQueryFiltered(spanQuery, filter);
+        return spanQuery;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
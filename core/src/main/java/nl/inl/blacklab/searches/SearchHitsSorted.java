@@ -21,6 +21,18 @@ public class SearchHitsSorted extends SearchHits {
     protected Hits executeInternal() throws InvalidQuery {
         return source.execute().sort(property);
     }
+
+    @Override
+    public SearchCount hitCount(boolean fetchAllResults) {
+        // Sorting doesn't change the count
+        return source.hitCount(fetchAllResults);
+    }
+
+    @Override
+    public SearchCount docCount(boolean fetchAllResults) {
+        // Sorting doesn't change the count
+        return source.docCount(fetchAllResults);
+    }
     
     @Override
     public int hashCode() {
@@ -31,6 +31,7 @@ import nl.inl.blacklab.search.results.Hit;
 import nl.inl.blacklab.search.results.Hits;
 import nl.inl.blacklab.search.results.Kwics;
 import nl.inl.blacklab.search.results.QueryInfo;
+import nl.inl.blacklab.search.results.SearchSettings;
 import nl.inl.blacklab.testutil.DocIndexerExample;
 import nl.inl.util.UtilsForTesting;
 
@@ -219,8 +220,20 @@ public class TestIndex {
      * @return the resulting BlackLab text pattern
      */
     public Hits find(String pattern, Query filter) {
+        return find(pattern, filter, null);
+    }
+
+    /**
+     * Find hits from a Corpus Query Language query.
+     *
+     * @param pattern CorpusQL pattern to find
+     * @param filter how to filter the query
+     * @param settings search settings, or null for the defaults
+     * @return the resulting BlackLab text pattern
+     */
+    public Hits find(String pattern, Query filter, SearchSettings settings) {
         try {
-            return index.find(QueryInfo.create(index), CorpusQueryLanguageParser.parse(pattern), filter, null);
+            return index.find(QueryInfo.create(index), CorpusQueryLanguageParser.parse(pattern), filter, settings);
         } catch (InvalidQuery e) {
             throw BlackLabRuntimeException.wrap(e);
         }
@@ -0,0 +1,58 @@
+package nl.inl.blacklab.contentstore;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBlockCache {
+
+    private static String block(int length) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            b.append((char) ('a' + i % 26));
+        return b.toString();
+    }
+
+    @Test
+    public void testGetPut() {
+        BlockCache cache = new BlockCache(1_000_000);
+        Assert.assertNull(cache.get(1, 10));
+        cache.put(1, 10, "test");
+        Assert.assertEquals("test", cache.get(1, 10));
+        Assert.assertNull(cache.get(2, 10)); // different store
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(2, cache.misses());
+        Assert.assertEquals(1, cache.numberOfBlocks());
+    }
+
+    @Test
+    public void testEviction() {
+        BlockCache cache = new BlockCache(1_000_000);
+        String block = block(10_000);
+        for (int i = 0; i < 1000; i++)
+            cache.put(1, i, block);
+        Assert.assertTrue(cache.sizeBytes() <= cache.maxSizeBytes());
+        Assert.assertTrue(cache.numberOfBlocks() < 1000);
+
+        // Most recently added block should still be there
+        Assert.assertEquals(block, cache.get(1, 999));
+    }
+
+    @Test
+    public void testRemoveStore() {
+        BlockCache cache = new BlockCache(1_000_000);
+        cache.put(1, 1, "one");
+        cache.put(2, 1, "two");
+        cache.removeStore(1);
+        Assert.assertNull(cache.get(1, 1));
+        Assert.assertEquals("two", cache.get(2, 1));
+    }
+
+    @Test
+    public void testDisabled() {
+        BlockCache cache = new BlockCache(0);
+        cache.put(1, 1, "one");
+        Assert.assertNull(cache.get(1, 1));
+        Assert.assertEquals(0, cache.sizeBytes());
+    }
+
+}
@@ -111,6 +111,65 @@ public class TestContentStoreDirFixedBlock {
         Assert.assertEquals(doc[1].substring(15, 18), parts[1]);
     }
 
+    @Test
+    public void testRetrievePartsConcurrently() throws InterruptedException {
+        ensureMode(false);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Random random = new Random(34_567 + t);
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        int key = random.nextInt(doc.length) + 1;
+                        String docContents = doc[key - 1];
+                        int start = random.nextInt(docContents.length() - 1);
+                        int end = start + 1 + random.nextInt(docContents.length() - start);
+                        Assert.assertEquals(docContents.substring(start, end), store.retrievePart(key, start, end));
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread: threads)
+            thread.join();
+        Assert.assertEquals("[]", errors.toString());
+    }
+
+    @Test
+    public void testRetrieveAfterInterrupt() throws InterruptedException {
+        ensureMode(false);
+        // Make sure we actually read from the contents file
+        ContentStoreFixedBlockReader.setBlockCacheMaxSizeMegs(0);
+        try {
+            // Interrupting a thread while it reads closes the channel it's reading from
+            List<Throwable> errors = new ArrayList<>();
+            Thread thread = new Thread(() -> {
+                Thread.currentThread().interrupt();
+                try {
+                    store.retrieve(1);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            thread.start();
+            thread.join();
+            Assert.assertEquals(1, errors.size());
+
+            // Other threads should still be able to read
+            for (int i = 0; i < doc.length; i++) {
+                Assert.assertEquals(doc[i], store.retrieve(i + 1));
+            }
+        } finally {
+            ContentStoreFixedBlockReader.setBlockCacheMaxSizeMegs(ContentStoreFixedBlockReader.DEFAULT_BLOCK_CACHE_SIZE_MEGS);
+        }
+    }
+
     @Test
     public void testDelete() {
         store.delete(2);
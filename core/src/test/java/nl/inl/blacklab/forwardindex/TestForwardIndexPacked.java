@@ -0,0 +1,126 @@
+package nl.inl.blacklab.forwardindex;
+
+import java.io.File;
+import java.text.Collator;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.inl.util.UtilsForTesting;
+import nl.inl.util.VersionFile;
+
+public class TestForwardIndexPacked {
+    private AnnotationForwardIndex fi;
+
+    private File dir;
+
+    private int oldChunkSize;
+
+    // The documents to add
+    String[][] str = {
+            { "The", "quick", "brown", "fox", "jumps", "over", "the", "lazy", "dog" },
+            { "Leentje", "leerde", "Lotje", "lopen", "langs", "de", "lange", "Lindenlaan" },
+            { "The", "dog" }
+    };
+
+    @Before
+    public void setUp() {
+        // Remove any previously left over temp test dirs
+        UtilsForTesting.removeBlackLabTestDirs();
+
+        // Create new test dir
+        dir = UtilsForTesting.createBlackLabTestDir("ForwardIndexPacked");
+
+        // Use tiny chunks, so packed documents are spread over several of them
+        oldChunkSize = AnnotationForwardIndex.preferredChunkSizeBytes;
+        AnnotationForwardIndex.preferredChunkSizeBytes = 12;
+        AnnotationForwardIndex.setPackTokensFile(true);
+
+        fi = AnnotationForwardIndex.open(dir, true, Collator.getInstance(), true, null, true);
+        try {
+            for (int i = 0; i < str.length - 1; i++) {
+                Assert.assertEquals(i, fi.addDocument(Arrays.asList(str[i])));
+            }
+        } finally {
+            fi.close(); // close so everything is guaranteed to be written
+        }
+    }
+
+    @After
+    public void tearDown() {
+        AnnotationForwardIndex.setPackTokensFile(false);
+        AnnotationForwardIndex.preferredChunkSizeBytes = oldChunkSize;
+        if (fi != null)
+            fi.close();
+        // Try to remove (some files may be locked though)
+        UtilsForTesting.removeBlackLabTestDirs();
+    }
+
+    private void assertDocuments(int numberOfDocs) {
+        fi = AnnotationForwardIndex.open(dir, false, Collator.getInstance(), false, null, true);
+        for (int i = 0; i < numberOfDocs; i++) {
+            int[] retrieved = fi.retrievePartsInt(i, new int[] { -1 }, new int[] { -1 }).get(0);
+            Assert.assertEquals(str[i].length, retrieved.length);
+            for (int j = 0; j < retrieved.length; j++) {
+                Assert.assertEquals(str[i][j], fi.terms().get(retrieved[j]));
+                Assert.assertEquals(retrieved[j], fi.getToken(i, j));
+            }
+        }
+        fi.close();
+    }
+
+    @Test
+    public void testRetrieve() {
+        Assert.assertTrue(VersionFile.isTypeVersion(dir, "fi", AnnotationForwardIndex.PACKED_TOKENS_VERSION));
+        Assert.assertFalse(new File(dir, "tokens.dat").exists());
+        assertDocuments(str.length - 1);
+    }
+
+    @Test
+    public void testAddDocument() {
+        // Adding documents unpacks the tokens file, and closing packs it again
+        fi = AnnotationForwardIndex.open(dir, true, Collator.getInstance(), false, null, true);
+        try {
+            Assert.assertEquals(str.length - 1, fi.addDocument(Arrays.asList(str[str.length - 1])));
+        } finally {
+            fi.close();
+        }
+        Assert.assertTrue(VersionFile.isTypeVersion(dir, "fi", AnnotationForwardIndex.PACKED_TOKENS_VERSION));
+        assertDocuments(str.length);
+    }
+
+    @Test
+    public void testOpenWithoutChanges() {
+        // Opening in index mode without adding documents leaves the packed tokens file alone
+        File packedFile = new File(dir, "tokens-packed.dat");
+        long lastModified = packedFile.lastModified();
+        fi = AnnotationForwardIndex.open(dir, true, Collator.getInstance(), false, null, true);
+        Assert.assertEquals(str[0].length, fi.retrievePartsInt(0, new int[] { -1 }, new int[] { -1 }).get(0).length);
+        fi.close();
+        Assert.assertTrue(VersionFile.isTypeVersion(dir, "fi", AnnotationForwardIndex.PACKED_TOKENS_VERSION));
+        Assert.assertFalse(new File(dir, "tokens.dat").exists());
+        Assert.assertEquals(lastModified, packedFile.lastModified());
+        assertDocuments(str.length - 1);
+    }
+
+    @Test
+    public void testUnpacked() {
+        // Without packing, adding a document leaves us with a regular tokens file
+        // (documents must fit in a chunk of a regular tokens file)
+        AnnotationForwardIndex.preferredChunkSizeBytes = oldChunkSize;
+        AnnotationForwardIndex.setPackTokensFile(false);
+        fi = AnnotationForwardIndex.open(dir, true, Collator.getInstance(), false, null, true);
+        try {
+            Assert.assertEquals(str.length - 1, fi.addDocument(Arrays.asList(str[str.length - 1])));
+        } finally {
+            fi.close();
+        }
+        Assert.assertFalse(VersionFile.isTypeVersion(dir, "fi", AnnotationForwardIndex.PACKED_TOKENS_VERSION));
+        Assert.assertFalse(new File(dir, "tokens-packed.dat").exists());
+        assertDocuments(str.length);
+    }
+
+}
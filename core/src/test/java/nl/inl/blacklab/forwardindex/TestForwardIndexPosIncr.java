@@ -80,4 +80,19 @@ public class TestForwardIndexPosIncr {
         }
     }
 
+    @Test
+    public void testRetrieveIntoArray() {
+        setUpForwardIndex();
+
+        String[] expected = { "much", "", "" };
+        int[] dest = { -1, -1, -1, -1, -1 };
+        Assert.assertEquals(3, fi.retrievePartInt(0, 1, 4, dest, 2));
+        Assert.assertEquals(-1, dest[0]);
+        Assert.assertEquals(-1, dest[1]);
+        for (int j = 0; j < expected.length; j++) {
+            Assert.assertEquals(expected[j], fi.terms().get(dest[j + 2]));
+            Assert.assertEquals(dest[j + 2], fi.getToken(0, j + 1));
+        }
+    }
+
 }
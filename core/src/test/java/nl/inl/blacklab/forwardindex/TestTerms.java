@@ -35,6 +35,10 @@ public class TestTerms {
 
     private File dir;
 
+    private Collators colls;
+
+    private File termsFile;
+
     String[] str = { "the", "quick", "brown", "fox", "jumps", "over", "the", "lazy", "dog" };
 
     @Before
@@ -48,18 +52,18 @@ public class TestTerms {
 
         // Store some terms
         Collator coll = Collator.getInstance(new Locale("en", "GB"));
-        Collators colls = new Collators(coll, CollatorVersion.V2);
+        colls = new Collators(coll, CollatorVersion.V2);
         t = Terms.openForWriting(colls, null, true);
         if (t instanceof TermsWriter)
             ((TermsWriter) t).setMaxBlockSize(18);
         for (int i = 0; i < str.length; i++) {
             t.indexOf(str[i]);
         }
-        File f = new File(dir, "terms.dat");
-        t.write(f); // close so everything is guaranteed to be written
+        termsFile = new File(dir, "terms.dat");
+        t.write(termsFile); // close so everything is guaranteed to be written
 
         // Open for reading
-        t = Terms.openForReading(colls, f, true, true);
+        t = Terms.openForReading(colls, termsFile, true, true);
     }
 
     @After
@@ -139,4 +143,91 @@ public class TestTerms {
             Assert.assertEquals(expected[i], results.intIterator().next());
         }
     }
+
+    /**
+     * Test that the mapped terms give the same results as the terms read into memory.
+     */
+    @Test
+    public void testMapped() {
+        Assert.assertTrue(t instanceof TermsReaderMapped);
+        Assert.assertEquals(Terms.NO_TERM, t.indexOf("aap"));
+        MutableIntSet results = new IntHashSet();
+        t.indexOf(results, "THE", MatchSensitivity.INSENSITIVE);
+        Assert.assertEquals(IntHashSet.newSetWith(0), results);
+
+        // Without the term index, we read the terms into memory
+        Assert.assertTrue(TermsReaderMapped.termIndexFile(termsFile).delete());
+        Terms inMemory = Terms.openForReading(colls, termsFile, true, true);
+        Assert.assertTrue(inMemory instanceof TermsReader);
+        Assert.assertEquals(inMemory.numberOfTerms(), t.numberOfTerms());
+        for (int i = 0; i < t.numberOfTerms(); i++) {
+            Assert.assertEquals(inMemory.get(i), t.get(i));
+            Assert.assertEquals(inMemory.indexOf(t.get(i)), t.indexOf(t.get(i)));
+            for (MatchSensitivity sensitivity: new MatchSensitivity[] { MatchSensitivity.SENSITIVE, MatchSensitivity.INSENSITIVE })
+                Assert.assertEquals(inMemory.idToSortPosition(i, sensitivity), t.idToSortPosition(i, sensitivity));
+        }
+    }
+
+    /**
+     * Test that terms that are equal insensitively are found using the term index.
+     */
+    @Test
+    public void testMappedInsensitive() {
+        String[] input = { "the", "A", "The", "b", "à", "THE", "c" };
+        Terms writer = Terms.openForWriting(colls, null, true);
+        for (String term: input)
+            writer.indexOf(term);
+        File f = new File(dir, "terms-insensitive.dat");
+        writer.write(f);
+        Terms mapped = Terms.openForReading(colls, f, true, false);
+        Assert.assertTrue(mapped instanceof TermsReaderMapped);
+        String[] lookup = { "THE", "a", "B", "c", "d" };
+        IntHashSet[] expected = {
+                IntHashSet.newSetWith(0, 2, 5), IntHashSet.newSetWith(1, 4), IntHashSet.newSetWith(3),
+                IntHashSet.newSetWith(6), new IntHashSet()
+        };
+        for (int i = 0; i < lookup.length; i++) {
+            MutableIntSet results = new IntHashSet();
+            mapped.indexOf(results, lookup[i], MatchSensitivity.INSENSITIVE);
+            Assert.assertEquals(expected[i], results);
+        }
+    }
+
+    /**
+     * Test that term ids can be assigned from several threads at once.
+     */
+    @Test
+    public void testConcurrentIndexOf() throws InterruptedException {
+        Terms writer = Terms.openForWriting(colls, null, true);
+        int numberOfTerms = 1000;
+        Thread[] threads = new Thread[4];
+        int[][] ids = new int[threads.length][numberOfTerms];
+        for (int i = 0; i < threads.length; i++) {
+            int thread = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < numberOfTerms; j++) {
+                    int term = (j + thread * 250) % numberOfTerms; // start at a different term in each thread
+                    ids[thread][term] = writer.indexOf("term" + term);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread: threads)
+            thread.join();
+
+        // Every thread got the same id for a term, and the ids are unique and consecutive
+        boolean[] seen = new boolean[numberOfTerms];
+        for (int term = 0; term < numberOfTerms; term++) {
+            for (int[] threadIds: ids)
+                Assert.assertEquals(ids[0][term], threadIds[term]);
+            Assert.assertFalse(seen[ids[0][term]]);
+            seen[ids[0][term]] = true;
+        }
+
+        File f = new File(dir, "terms-concurrent.dat");
+        writer.write(f);
+        Terms reader = Terms.openForReading(colls, f, true, false);
+        for (int term = 0; term < numberOfTerms; term++)
+            Assert.assertEquals("term" + term, reader.get(ids[0][term]));
+    }
 }
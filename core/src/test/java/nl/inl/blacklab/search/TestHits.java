@@ -26,6 +26,7 @@ import nl.inl.blacklab.mocks.MockBlackLabIndex;
 import nl.inl.blacklab.mocks.MockSpans;
 import nl.inl.blacklab.search.results.Hit;
 import nl.inl.blacklab.search.results.Hits;
+import nl.inl.blacklab.search.results.HitsArrays;
 
 public class TestHits {
 
@@ -47,6 +48,26 @@ public class TestHits {
         }
     }
 
+    @Test
+    public void testHitsArrays() {
+        HitsArrays hits = new HitsArrays(1);
+        hits.add(1, 2, 3);
+        hits.add(Hit.create(4, 5, 6, 1));
+        Assert.assertEquals(2, hits.size());
+        Assert.assertEquals(Hit.create(1, 2, 3, 0), hits.get(0));
+        Assert.assertEquals(4, hits.doc(1));
+        Assert.assertEquals(5, hits.start(1));
+        Assert.assertEquals(6, hits.end(1));
+
+        // Hits whose index differs from their position keep their index
+        hits.add(Hit.create(7, 8, 9, 42));
+        Assert.assertEquals(Hit.create(7, 8, 9, 42), hits.get(2));
+        Assert.assertEquals(1, hits.index(1));
+        HitsArrays copy = new HitsArrays(hits);
+        Assert.assertEquals(hits, copy);
+        Assert.assertEquals(42, copy.index(2));
+    }
+
     @Test
     public void testMockSpans() throws IOException {
         int[] aDoc = { 1, 2 };
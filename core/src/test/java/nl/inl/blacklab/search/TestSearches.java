@@ -1,7 +1,10 @@
 package nl.inl.blacklab.search;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.TermQuery;
@@ -12,17 +15,44 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import nl.inl.blacklab.TestIndex;
+import nl.inl.blacklab.exceptions.InvalidQuery;
 import nl.inl.blacklab.forwardindex.Terms;
+import nl.inl.blacklab.mocks.MockTerms;
+import nl.inl.blacklab.queryParser.corpusql.CorpusQueryLanguageParser;
+import nl.inl.blacklab.resultproperty.DocProperty;
+import nl.inl.blacklab.resultproperty.DocPropertyAnnotatedFieldLength;
+import nl.inl.blacklab.resultproperty.DocPropertyStoredField;
 import nl.inl.blacklab.resultproperty.HitProperty;
+import nl.inl.blacklab.resultproperty.HitPropertyDocumentStoredField;
 import nl.inl.blacklab.resultproperty.HitPropertyHitText;
 import nl.inl.blacklab.resultproperty.HitPropertyLeftContext;
 import nl.inl.blacklab.resultproperty.HitPropertyMultiple;
 import nl.inl.blacklab.resultproperty.PropertyValue;
 import nl.inl.blacklab.resultproperty.PropertyValueContextWords;
 import nl.inl.blacklab.search.indexmetadata.Annotation;
+import nl.inl.blacklab.search.indexmetadata.AnnotationSensitivity;
 import nl.inl.blacklab.search.indexmetadata.MatchSensitivity;
+import nl.inl.blacklab.search.lucene.BLSpanQuery;
 import nl.inl.blacklab.search.lucene.BLSpanTermQuery;
 import nl.inl.blacklab.search.lucene.SpanQueryFiltered;
+import nl.inl.blacklab.search.results.DocGroup;
+import nl.inl.blacklab.search.results.DocGroups;
+import nl.inl.blacklab.search.results.DocResult;
+import nl.inl.blacklab.search.results.DocResults;
+import nl.inl.blacklab.search.results.Facets;
+import nl.inl.blacklab.search.results.Hit;
+import nl.inl.blacklab.search.results.HitCountFromQuery;
+import nl.inl.blacklab.search.results.HitGroups;
+import nl.inl.blacklab.search.results.Hits;
+import nl.inl.blacklab.search.results.QueryInfo;
+import nl.inl.blacklab.search.results.ResultCount;
+import nl.inl.blacklab.search.results.ResultCount.CountType;
+import nl.inl.blacklab.search.results.Results;
+import nl.inl.blacklab.search.results.SearchSettings;
+import nl.inl.blacklab.searches.FutureSearchResultCache;
+import nl.inl.blacklab.searches.SearchCache;
+import nl.inl.blacklab.searches.SearchHits;
+import nl.inl.util.LuceneUtil;
 
 public class TestSearches {
 
@@ -415,6 +445,172 @@ public class TestSearches {
         Assert.assertEquals(expected, testIndex.findConc("'noot'+ [word != 'noot']+ group:('aap')+", prop, value));
     }
 
+    @Test
+    public void testCapturedGroups() {
+        Hits hits = testIndex.find(" A:[pos='adj'] [pos='nou'] ");
+        Assert.assertEquals(2, hits.size());
+        Assert.assertTrue(hits.hasCapturedGroups());
+        for (Hit hit: hits) {
+            Span[] groups = hits.capturedGroups().get(hit);
+            Assert.assertEquals(hit.start(), groups[0].start());
+            Assert.assertEquals(hit.start() + 1, groups[0].end());
+        }
+
+        // Derived hits share the captured groups, looked up by hit index
+        Hits window = hits.window(1, 1);
+        Hit hit = window.get(0);
+        Assert.assertEquals(hit.start(), window.capturedGroups().get(hit)[0].start());
+        Hits sorted = hits.sort(new HitPropertyHitText(testIndex.index(), MatchSensitivity.INSENSITIVE));
+        for (Hit h: sorted) {
+            Assert.assertEquals(h.start(), sorted.capturedGroups().getMap(h).get("A").start());
+        }
+    }
+
+    @Test
+    public void testMaxHits() {
+        // 4 hits in 3 docs; store 2 and count 3 of them
+        Hits hits = testIndex.find(" 'the' ", null, SearchSettings.get(2, 3));
+        Assert.assertEquals(2, hits.size());
+        Assert.assertEquals(3, hits.hitsStats().countedTotal());
+        Assert.assertTrue(hits.maxStats().hitsProcessedExceededMaximum());
+        Assert.assertTrue(hits.maxStats().hitsCountedExceededMaximum());
+
+        // Reading a window first shouldn't change the outcome
+        hits = testIndex.find(" 'the' ", null, SearchSettings.get(3, -1));
+        Assert.assertEquals(1, hits.window(0, 1).size());
+        Assert.assertEquals(3, hits.size());
+        Assert.assertEquals(4, hits.hitsStats().countedTotal());
+        Assert.assertEquals(3, hits.docsStats().countedTotal());
+        Assert.assertFalse(hits.maxStats().hitsCountedExceededMaximum());
+    }
+
+    @Test
+    public void testCountWithoutHits() throws InvalidQuery {
+        int[][] limits = { { -1, -1 }, { 2, 3 }, { 3, -1 }, { 1, 10 } };
+        for (int[] limit: limits) {
+            SearchSettings settings = SearchSettings.get(limit[0], limit[1]);
+            Hits hits = testIndex.find(" 'the' ", null, settings);
+            BlackLabIndex index = testIndex.index();
+            BLSpanQuery query = CorpusQueryLanguageParser.parse(" 'the' ").translate(index.defaultExecutionContext(index.mainAnnotatedField()));
+            ResultCount hitCount = new ResultCount(new HitCountFromQuery(QueryInfo.create(index), query, settings), CountType.HITS);
+            ResultCount docCount = new ResultCount(new HitCountFromQuery(QueryInfo.create(index), query, settings), CountType.DOCS);
+            Assert.assertEquals(hits.hitsStats().countedTotal(), hitCount.countedTotal());
+            Assert.assertEquals(hits.hitsStats().processedTotal(), hitCount.processedTotal());
+            Assert.assertEquals(hits.docsStats().countedTotal(), docCount.countedTotal());
+            Assert.assertEquals(hits.docsStats().processedTotal(), docCount.processedTotal());
+            Assert.assertEquals(hits.maxStats(), hitCount.maxStats());
+        }
+    }
+
+    @Test
+    public void testCountFromCachedHits() throws InvalidQuery {
+        BlackLabIndex index = testIndex.index();
+        SearchCache oldCache = index.cache();
+        index.setCache(new FutureSearchResultCache());
+        try {
+            SearchSettings settings = SearchSettings.get(2, 3);
+            SearchHits search = index.search().find(" 'the' ", null, settings);
+            Hits hits = search.execute();
+            ResultCount hitCount = search.hitCount(false).execute();
+            ResultCount docCount = search.docCount(false).execute();
+            // Counted from the cached hits, so the counts don't have a pauser of their own
+            Assert.assertNull(hitCount.threadPauser());
+            Assert.assertEquals(hits.hitsStats().countedTotal(), hitCount.countedTotal());
+            Assert.assertEquals(hits.docsStats().processedTotal(), docCount.processedTotal());
+        } finally {
+            index.setCache(oldCache);
+        }
+    }
+
+    @Test
+    public void testEstimateMemoryBytes() {
+        Hits fewHits = testIndex.find(" 'the' [] ");
+        Hits moreHits = testIndex.find(" [] ");
+        // Only hits that have actually been retrieved count
+        Assert.assertTrue(moreHits.size() > fewHits.size());
+        Assert.assertTrue(fewHits.estimateMemoryBytes() > 0);
+        Assert.assertTrue(moreHits.estimateMemoryBytes() > fewHits.estimateMemoryBytes());
+
+        HitGroups groups = moreHits.group(new HitPropertyHitText(testIndex.index(), MatchSensitivity.INSENSITIVE), Results.NO_LIMIT);
+        HitGroups groupsWithoutHits = moreHits.group(new HitPropertyHitText(testIndex.index(), MatchSensitivity.INSENSITIVE), 0);
+        Assert.assertTrue(groups.estimateMemoryBytes() > groupsWithoutHits.estimateMemoryBytes());
+    }
+
+    @Test
+    public void testFacets() {
+        BlackLabIndex index = testIndex.index();
+        DocResults docs = testIndex.find(" 'the' ").perDocResults(0);
+        List<DocProperty> props = Arrays.asList(
+                new DocPropertyStoredField(index, "fromInputFile"),
+                new DocPropertyAnnotatedFieldLength(index, index.mainAnnotatedField().tokenLengthField()));
+        Assert.assertTrue(((DocPropertyStoredField) props.get(0)).hasDocValues()); // counted by ordinal
+        Facets facets = new Facets(docs, props);
+        for (DocProperty prop: props) {
+            DocGroups expectedGroups = docs.group(prop, 0);
+            DocGroups groups = facets.countsPerFacet().get(prop);
+            Assert.assertEquals(expectedGroups.size(), groups.size());
+            for (DocGroup expectedGroup: expectedGroups) {
+                DocGroup group = groups.get(expectedGroup.identity());
+                Assert.assertNotNull(group);
+                Assert.assertEquals(expectedGroup.size(), group.size());
+                Assert.assertEquals(expectedGroup.totalTokens(), group.totalTokens());
+            }
+        }
+    }
+
+    @Test
+    public void testSortOnStoredField() {
+        BlackLabIndex index = testIndex.index();
+        DocPropertyStoredField prop = new DocPropertyStoredField(index, "fromInputFile");
+        Assert.assertTrue(prop.hasDocValues()); // compared by ordinal
+
+        List<String> values = new ArrayList<>();
+        for (DocResult doc: testIndex.find(" [] ").perDocResults(0).sort(prop.reverse()))
+            values.add(prop.get(doc.identity().id()));
+        Assert.assertEquals(Arrays.asList("test4", "test3", "test2", "test1"), values);
+
+        values.clear();
+        for (Hit hit: testIndex.find(" 'the' ").sort(new HitPropertyDocumentStoredField(index, "fromInputFile").reverse()))
+            values.add(prop.get(hit.doc()));
+        Assert.assertEquals(Arrays.asList("test3", "test2", "test1", "test1"), values);
+    }
+
+    @Test
+    public void testTermFrequencies() {
+        BlackLabIndex index = testIndex.index();
+        TermQuery filter = new TermQuery(new Term("contents%word@i", "the"));
+        for (MatchSensitivity sensitivity: Arrays.asList(MatchSensitivity.INSENSITIVE, MatchSensitivity.SENSITIVE)) {
+            AnnotationSensitivity annotSensitivity = index.mainAnnotatedField().annotation("word").sensitivity(sensitivity);
+            // Compare with counting the terms from the term vectors
+            Map<String, Integer> expectedFreq = LuceneUtil.termFrequencies(index.searcher(), filter, annotSensitivity, null);
+            TermFrequencyList freq = index.termFrequencies(annotSensitivity, filter, null);
+            Assert.assertEquals(expectedFreq.size(), freq.size());
+            for (Map.Entry<String, Integer> e: expectedFreq.entrySet())
+                Assert.assertEquals(e.getKey(), (long) e.getValue(), freq.frequency(e.getKey()));
+        }
+        AnnotationSensitivity annotSensitivity = index.mainAnnotatedField().annotation("word").sensitivity(MatchSensitivity.INSENSITIVE);
+        TermFrequencyList freq = index.termFrequencies(annotSensitivity, filter, new HashSet<>(Arrays.asList("the", "find", "aap")));
+        Assert.assertEquals(3, freq.size());
+        Assert.assertEquals(4, freq.frequency("the"));
+        Assert.assertEquals(2, freq.frequency("find"));
+        Assert.assertEquals(0, freq.frequency("aap"));
+    }
+
+    @Test
+    public void testTermFrequenciesDash() {
+        // The collator may consider these equal, but they are different terms
+        Terms terms = new MockTerms("co-op", "coop", "Coop") {
+            @Override
+            public int idToSortPosition(int id, MatchSensitivity sensitivity) {
+                return 0;
+            }
+        };
+        Map<String, Integer> freq = TermFrequencyCounter.termFrequencies(terms, MatchSensitivity.INSENSITIVE, new int[] { 1, 2, 3 });
+        Assert.assertEquals(2, freq.size());
+        Assert.assertEquals(Integer.valueOf(1), freq.get("co-op"));
+        Assert.assertEquals(Integer.valueOf(5), freq.get("coop"));
+    }
+
     // Backreferences not implemented yet
     @Ignore
     @Test
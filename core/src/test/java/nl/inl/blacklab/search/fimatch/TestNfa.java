@@ -21,6 +21,11 @@ public class TestNfa {
             return 1;
         }
 
+        @Override
+        public int numberOfTerms(int annotIndex) {
+            return Character.MAX_VALUE + 1;
+        }
+
         @Override
         public void getTermNumbers(MutableIntSet results, int annotNumber, String annotValue,
                 MatchSensitivity sensitivity) {
@@ -71,6 +76,9 @@ public class TestNfa {
 
         private String input;
 
+        /** How often getTermString() was called */
+        int termStringsRetrieved = 0;
+
         ForwardIndexDocumentString(String input) {
             this.input = input;
         }
@@ -93,6 +101,7 @@ public class TestNfa {
         public String getTermString(int annotIndex, int termId) {
             if (annotIndex != 0)
                 throw new BlackLabRuntimeException("only 0 is valid annotation");
+            termStringsRetrieved++;
             return Character.toString((char) termId);
         }
 
@@ -145,4 +154,25 @@ public class TestNfa {
         Assert.assertTrue(start.matches(new ForwardIndexDocumentString("ideaal"), 3, -1));
     }
 
+    @Test
+    public void testNfaRegex() {
+        // Test NFA matching [a-c]e
+        NfaState start = new NfaStateRegex("contents%word@i", "[a-c]", NfaState.token("contents%word@i", "e", null));
+        start.finish(new HashSet<NfaState>());
+        start.lookupPropertyNumbers(new MockFiAccessor(), new IdentityHashMap<NfaState, Boolean>());
+
+        ForwardIndexDocumentString fiDoc = new ForwardIndexDocumentString("becede");
+        Assert.assertTrue(start.matches(fiDoc, 0, 1));
+        Assert.assertFalse(start.matches(fiDoc, 1, 1));
+        Assert.assertTrue(start.matches(fiDoc, 2, 1));
+        Assert.assertFalse(start.matches(fiDoc, 4, 1));
+        Assert.assertEquals(4, fiDoc.termStringsRetrieved); // b, e, c, d
+
+        // Terms we've seen before aren't matched again
+        ForwardIndexDocumentString fiDoc2 = new ForwardIndexDocumentString("cede");
+        Assert.assertTrue(start.matches(fiDoc2, 0, 1));
+        Assert.assertFalse(start.matches(fiDoc2, 2, 1));
+        Assert.assertEquals(0, fiDoc2.termStringsRetrieved);
+    }
+
 }
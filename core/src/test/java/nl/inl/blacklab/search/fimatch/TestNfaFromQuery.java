@@ -99,12 +99,12 @@ public class TestNfaFromQuery {
                 }
 
                 @Override
-                public int[] getChunk(int annotIndex, int docId, int start, int end) {
+                public void getChunk(int annotIndex, int docId, int start, int end, int[] dest) {
                     if (annotIndex != 0)
                         throw new IllegalArgumentException("Unknown annotation " + annotIndex);
                     if (docId != 0)
                         throw new IllegalArgumentException("Unknown document " + docId);
-                    return Arrays.copyOfRange(termIds, start, end);
+                    System.arraycopy(termIds, start, dest, 0, end - start);
                 }
 
                 @Override
@@ -15,6 +15,8 @@
  *******************************************************************************/
 package nl.inl.blacklab.search.fimatch;
 
+import java.io.IOException;
+
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -29,6 +31,7 @@ import nl.inl.blacklab.search.BlackLabIndex;
 import nl.inl.blacklab.search.QueryExplanation;
 import nl.inl.blacklab.search.lucene.BLSpanQuery;
 import nl.inl.blacklab.search.lucene.optimize.ClauseCombinerNfa;
+import nl.inl.blacklab.search.lucene.optimize.OptimizationContext;
 import nl.inl.blacklab.search.results.QueryInfo;
 import nl.inl.blacklab.search.textpattern.TextPattern;
 
@@ -91,6 +94,19 @@ public class TestQueryRewriteNfa {
                 "FISEQ(FISEQ(AND(TERM(contents%word@i:quick), TERM(contents%lemma@i:quick)), NFA:#1:TOKEN(brown,DANGLING), 1), NFA:#1:TOKEN(the,DANGLING), -1)");
     }
 
+    @Test
+    public void testRewriteWithContext() throws IOException, InvalidQuery {
+        String cql = "\"the\" [word=\"quick\" & lemma=\"quick\"] [lemma=\"brown\"]";
+        BLSpanQuery query = index.explain(QueryInfo.create(index), getPatternFromCql(cql), null).originalQuery();
+
+        // A search may switch off NFA matching without affecting other searches
+        OptimizationContext context = OptimizationContext.defaults().withNfaThreshold(ClauseCombinerNfa.NO_NFA_MATCHING);
+        BLSpanQuery rewritten = context.optimizeAndRewrite(query, index.reader());
+        Assert.assertFalse(rewritten.toString().contains("FISEQ"));
+        Assert.assertEquals(ClauseCombinerNfa.MAX_NFA_MATCHING, OptimizationContext.current().nfaThreshold());
+        Assert.assertTrue(OptimizationContext.current().optimizeAndRewrite(query, index.reader()).toString().contains("FISEQ"));
+    }
+
     @Ignore // hard to test properly with tiny indices
     @Test
     public void testRewriteSuffix() {
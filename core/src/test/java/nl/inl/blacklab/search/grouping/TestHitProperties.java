@@ -1,24 +1,43 @@
 package nl.inl.blacklab.search.grouping;
 
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import nl.inl.blacklab.TestIndex;
+import nl.inl.blacklab.exceptions.InvalidQuery;
+import nl.inl.blacklab.forwardindex.FiidLookup;
 import nl.inl.blacklab.forwardindex.Terms;
 import nl.inl.blacklab.mocks.MockTerms;
+import nl.inl.blacklab.queryParser.corpusql.CorpusQueryLanguageParser;
 import nl.inl.blacklab.resultproperty.HitProperty;
 import nl.inl.blacklab.resultproperty.HitPropertyContextWords;
+import nl.inl.blacklab.resultproperty.HitPropertyDocumentId;
+import nl.inl.blacklab.resultproperty.HitPropertyHitPosition;
 import nl.inl.blacklab.resultproperty.HitPropertyHitText;
+import nl.inl.blacklab.resultproperty.HitPropertyLeftContext;
+import nl.inl.blacklab.resultproperty.HitPropertyMultiple;
+import nl.inl.blacklab.resultproperty.HitPropertyRightContext;
+import nl.inl.blacklab.resultproperty.HitPropertyWordLeft;
+import nl.inl.blacklab.resultproperty.HitPropertyWordRight;
 import nl.inl.blacklab.resultproperty.PropertyValueContextWords;
 import nl.inl.blacklab.search.BlackLabIndex;
+import nl.inl.blacklab.search.Span;
 import nl.inl.blacklab.search.indexmetadata.Annotation;
 import nl.inl.blacklab.search.indexmetadata.MatchSensitivity;
+import nl.inl.blacklab.search.lucene.BLSpanQuery;
+import nl.inl.blacklab.search.results.Contexts;
+import nl.inl.blacklab.search.results.Hit;
 import nl.inl.blacklab.search.results.HitGroup;
 import nl.inl.blacklab.search.results.HitGroups;
 import nl.inl.blacklab.search.results.Hits;
+import nl.inl.blacklab.search.results.QueryInfo;
 import nl.inl.blacklab.search.results.Results;
+import nl.inl.blacklab.search.results.SearchSettings;
 
 public class TestHitProperties {
 
@@ -94,6 +113,76 @@ public class TestHitProperties {
         Assert.assertEquals(1, group.size());
     }
 
+    @Test
+    public void testSortKeysAgreeWithCompare() {
+        Hits hits = testIndex.find(" [] ");
+        List<HitProperty> props = Arrays.asList(
+                new HitPropertyLeftContext(index, MatchSensitivity.INSENSITIVE),
+                new HitPropertyRightContext(index, MatchSensitivity.SENSITIVE),
+                new HitPropertyHitText(index, MatchSensitivity.INSENSITIVE).reverse(),
+                new HitPropertyMultiple(new HitPropertyWordRight(index), new HitPropertyHitPosition()),
+                new HitPropertyMultiple(true, new HitPropertyDocumentId(), new HitPropertyHitPosition()));
+        for (HitProperty p: props) {
+            Hits sorted = hits.sort(p);
+            Assert.assertEquals(hits.size(), sorted.size());
+            List<Annotation> annotations = p.needsContext();
+            HitProperty withContext = p.copyWith(sorted, annotations == null ? null
+                    : new Contexts(sorted, annotations, p.needsContextSize(index), FiidLookup.getList(annotations, index.reader())));
+            for (int i = 1; i < sorted.size(); i++)
+                Assert.assertTrue(p.toString(), withContext.compare(sorted.get(i - 1), sorted.get(i)) <= 0);
+        }
+    }
+
+    @Test
+    public void testGroupFromQueryMatchesGroupFromHits() throws InvalidQuery {
+        BLSpanQuery query = CorpusQueryLanguageParser.parse(" [] ").translate(index.defaultExecutionContext(index.mainAnnotatedField()));
+        List<HitProperty> props = Arrays.asList(
+                new HitPropertyHitText(index, MatchSensitivity.INSENSITIVE),
+                new HitPropertyLeftContext(index, MatchSensitivity.SENSITIVE),
+                new HitPropertyWordLeft(index, wordAnnotation, MatchSensitivity.INSENSITIVE),
+                new HitPropertyContextWords(index, wordAnnotation, MatchSensitivity.SENSITIVE, "L1;H1"),
+                new HitPropertyMultiple(new HitPropertyWordRight(index), new HitPropertyDocumentId()));
+        List<SearchSettings> settings = Arrays.asList(SearchSettings.get(-1, -1), SearchSettings.get(20, -1));
+        for (SearchSettings s: settings) {
+            Hits hits = testIndex.find(" [] ", null, s);
+            for (HitProperty p: props) {
+                HitGroups expected = hits.group(p, 2);
+                HitGroups actual = HitGroups.fromQuery(QueryInfo.create(index), query, s, p, 2);
+                Assert.assertEquals(p.toString(), expected.size(), actual.size());
+                Assert.assertEquals(p.toString(), expected.sumOfGroupSizes(), actual.sumOfGroupSizes());
+                for (HitGroup group: expected) {
+                    HitGroup other = actual.get(group.identity());
+                    Assert.assertNotNull(p + " " + group.identity(), other);
+                    Assert.assertEquals(group.size(), other.size());
+                    Assert.assertEquals(group.storedResults().size(), other.storedResults().size());
+                    for (int i = 0; i < group.storedResults().size(); i++) {
+                        Hit a = group.storedResults().get(i), b = other.storedResults().get(i);
+                        Assert.assertEquals(a.doc(), b.doc());
+                        Assert.assertEquals(a.start(), b.start());
+                        Assert.assertEquals(a.end(), b.end());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGroupFromQueryCapturedGroups() throws InvalidQuery {
+        BLSpanQuery query = CorpusQueryLanguageParser.parse(" a:[] 'fox' ").translate(index.defaultExecutionContext(index.mainAnnotatedField()));
+        HitProperty prop = new HitPropertyHitText(index, MatchSensitivity.INSENSITIVE);
+        HitGroups groups = HitGroups.fromQuery(QueryInfo.create(index), query, SearchSettings.get(-1, -1), prop, Results.NO_LIMIT);
+        Assert.assertTrue(groups.size() > 0);
+        for (HitGroup group: groups) {
+            Hits stored = group.storedResults();
+            Assert.assertTrue(stored.hasCapturedGroups());
+            for (Hit hit: stored) {
+                Span a = stored.capturedGroups().get(hit)[0];
+                Assert.assertEquals(hit.start(), a.start());
+                Assert.assertEquals(hit.start() + 1, a.end());
+            }
+        }
+    }
+
     @Test
     public void testTermSerialization() {
         String[] words = { "aap", "~", "~~", "" };
@@ -1,5 +1,6 @@
 package nl.inl.blacklab.server;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
@@ -22,6 +23,7 @@ import org.apache.logging.log4j.Logger;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 
+import nl.inl.blacklab.config.BLConfigLog;
 import nl.inl.blacklab.exceptions.InsufficientMemoryAvailable;
 import nl.inl.blacklab.exceptions.InterruptedSearch;
 import nl.inl.blacklab.search.BlackLab;
@@ -40,6 +42,7 @@ import nl.inl.blacklab.server.requesthandlers.RequestHandler;
 import nl.inl.blacklab.server.requesthandlers.Response;
 import nl.inl.blacklab.server.requesthandlers.SearchParameters;
 import nl.inl.blacklab.server.search.SearchManager;
+import nl.inl.blacklab.server.util.DeferredCommitWriter;
 import nl.inl.blacklab.server.util.ServletUtil;
 
 public class BlackLabServer extends HttpServlet {
@@ -55,6 +58,9 @@ public class BlackLabServer extends HttpServlet {
 
     static final Charset OUTPUT_ENCODING = Charset.forName("utf-8");
 
+    /** Buffer size for the response stream (once we start streaming) */
+    private static final int RESPONSE_STREAM_BUFFER_SIZE = 65536;
+
     /** Manages all our searches */
     private SearchManager searchManager;
 
@@ -98,18 +104,21 @@ public class BlackLabServer extends HttpServlet {
                 BlackLab.setConfig(config.getBLConfig());
                 ElementNames.setUseOldElementNames(config.getProtocol().isUseOldElementNames());
                 searchManager = new SearchManager(config);
+                Metrics.start();
+                Metrics.bindSearchQueue(searchManager.blackLabInstance().searchExecutorService());
             } catch (IOException e) {
                 throw new ConfigurationException("Error reading config file: " + configFile.getConfigFileRead(), e);
             }
 
             // Open log database
             try {
-                String sqliteDatabase = searchManager.config().getLog().getSqliteDatabase();
+                BLConfigLog logConfig = searchManager.config().getLog();
+                String sqliteDatabase = logConfig.getSqliteDatabase();
                 if (sqliteDatabase != null) {
                     File dbFile = new File(sqliteDatabase);
                     String url = "jdbc:sqlite:" + dbFile.getCanonicalPath().replaceAll("\\\\", "/");
                     Class.forName("org.sqlite.JDBC");
-                    logDatabase = new LogDatabaseImpl(url);
+                    logDatabase = new LogDatabaseImpl(url, logConfig.getSqliteQueueSize(), logConfig.isSqliteDropWhenQueueFull());
                     searchManager.setLogDatabase(logDatabase);
                 }
             } catch (IOException | ClassNotFoundException e) {
@@ -255,9 +264,24 @@ public class BlackLabServer extends HttpServlet {
 
         String rootEl = requestHandler.omitBlackLabResponseRootElement() ? null : BLACKLAB_RESPONSE_ROOT_ELEMENT;
 
+        // === Write the response headers
+        // (they're only sent when the response is committed, so the status can still change until then)
+
+        // Write HTTP headers (encoding, content type and cache)
+        responseObject.setCharacterEncoding(OUTPUT_ENCODING.name().toLowerCase());
+        responseObject.setContentType(ServletUtil.getContentType(outputType));
+        String allowOrigin = searchManager.config().getProtocol().getAccessControlAllowOrigin();
+        if (allowOrigin != null)
+            responseObject.addHeader("Access-Control-Allow-Origin", allowOrigin);
+        ServletUtil.writeCacheHeaders(responseObject, cacheTime);
+
         // === Handle the request
-        StringWriter buf = new StringWriter();
-        PrintWriter out = new PrintWriter(buf);
+        // The response is buffered until it grows too large; after that, it is streamed.
+        // (if we have to start streaming, we assume the request will succeed, i.e. status 200 OK)
+        int bufferSizeKb = searchManager.config().getProtocol().getResponseBufferSizeKb();
+        DeferredCommitWriter responseWriter = new DeferredCommitWriter(bufferSizeKb < 0 ? -1 : bufferSizeKb * 1024,
+                () -> new BufferedWriter(new OutputStreamWriter(responseObject.getOutputStream(), OUTPUT_ENCODING), RESPONSE_STREAM_BUFFER_SIZE));
+        PrintWriter out = new PrintWriter(responseWriter);
         DataStream ds = DataStream.create(outputType, out, prettyPrint, callbackFunction);
         ds.setOmitEmptyProperties(searchManager.config().getProtocol().isOmitEmptyProperties());
         ds.startDocument(rootEl);
@@ -267,50 +291,65 @@ public class BlackLabServer extends HttpServlet {
         es.outputProlog();
         int errorBufLengthBefore = errorBuf.getBuffer().length();
         int httpCode;
+        String errorCode = null; // (only used if we have to report an error after committing the response)
         if (isJsonp && !callbackFunction.matches("[_a-zA-Z][_a-zA-Z0-9]+")) {
             // Illegal JSONP callback name
             httpCode = Response.badRequest(es, "JSONP_ILLEGAL_CALLBACK",
                     "Illegal JSONP callback function name. Must be a valid Javascript name.");
             callbackFunction = "";
         } else {
+            long startTime = System.nanoTime();
             try {
                 httpCode = requestHandler.handle(ds);
             } catch (InternalServerError e) {
                 String msg = ServletUtil.internalErrorMessage(e, debugMode, e.getInternalErrorCode());
-                httpCode = Response.error(es, e.getBlsErrorCode(), msg, e.getHttpStatusCode());
+                errorCode = e.getBlsErrorCode();
+                httpCode = Response.error(es, errorCode, msg, e.getHttpStatusCode());
             } catch (BlsException e) {
-                httpCode = Response.error(es, e.getBlsErrorCode(), e.getMessage(), e.getHttpStatusCode());
+                errorCode = e.getBlsErrorCode();
+                httpCode = Response.error(es, errorCode, e.getMessage(), e.getHttpStatusCode());
             } catch (InterruptedSearch e) {
-                httpCode = Response.error(es, "INTERRUPTED", "Search was interrupted", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                errorCode = "INTERRUPTED";
+                httpCode = Response.error(es, errorCode, "Search was interrupted", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
             } catch (InsufficientMemoryAvailable e) {
-                httpCode = Response.error(es, "INSUFFICIENT_MEMORY", e.getMessage(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                errorCode = "INSUFFICIENT_MEMORY";
+                httpCode = Response.error(es, errorCode, e.getMessage(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             } catch (RuntimeException e) {
-                httpCode = Response.internalError(es, e, debugMode, "INTERR_HANDLING_REQUEST");
+                errorCode = "INTERR_HANDLING_REQUEST";
+                httpCode = Response.internalError(es, e, debugMode, errorCode);
             } finally {
                 requestHandler.cleanup(); // close logger
             }
+            Metrics.recordRequest(requestHandler.getClass().getSimpleName(), httpCode, System.nanoTime() - startTime);
         }
-        ds.endDocument(rootEl);
-
-        // === Write the response headers
+        boolean errorOccurred = errorBuf.getBuffer().length() > errorBufLengthBefore;
+        if (!errorOccurred)
+            ds.endDocument(rootEl);
+        out.flush();
 
-        // Write HTTP headers (status code, encoding, content type and cache)
-        if (!isJsonp) // JSONP request always returns 200 OK because otherwise script doesn't load
-            responseObject.setStatus(httpCode);
-        responseObject.setCharacterEncoding(OUTPUT_ENCODING.name().toLowerCase());
-        responseObject.setContentType(ServletUtil.getContentType(outputType));
-        String allowOrigin = searchManager.config().getProtocol().getAccessControlAllowOrigin();
-        if (allowOrigin != null)
-            responseObject.addHeader("Access-Control-Allow-Origin", allowOrigin);
-        ServletUtil.writeCacheHeaders(responseObject, cacheTime);
-
-        // === Write the response that was captured in buf
+        // === Write the (rest of the) response
         try {
-            Writer realOut = new OutputStreamWriter(responseObject.getOutputStream(), OUTPUT_ENCODING);
-            boolean errorOccurred = errorBuf.getBuffer().length() > errorBufLengthBefore;
-            StringWriter writeWhat = errorOccurred ? errorBuf : buf;
-            realOut.write(writeWhat.toString());
-            realOut.flush();
+            if (!responseWriter.isCommitted()) {
+                // We haven't sent anything yet, so we can still set the status and/or send the error instead
+                if (!isJsonp) // JSONP request always returns 200 OK because otherwise script doesn't load
+                    responseObject.setStatus(httpCode);
+                if (errorOccurred) {
+                    responseWriter.discardBuffer();
+                    responseWriter.write(errorBuf.toString());
+                }
+            } else if (errorOccurred) {
+                // We've already sent part of the response with status 200. Don't append a second
+                // document; add a trailer that doesn't change the document (if the format allows it),
+                // and abort the response, so the client sees it was truncated.
+                logger.warn("Error after response was committed (status " + httpCode + ", " + errorCode + "); aborting response");
+                writeErrorTrailer(responseWriter, outputType, errorCode);
+                responseWriter.flush();
+                // Don't close the writer, as that would properly end the (chunked) response.
+                throw new ResponseAbortedException("Error after response was committed: " + errorCode);
+            } else if (httpCode != HttpServletResponse.SC_OK && !isJsonp) {
+                logger.warn("Couldn't set status " + httpCode + ", response was already committed");
+            }
+            responseWriter.close();
         } catch (IOException e) {
             // Client cancelled the request midway through.
             // This is okay, don't raise the alarm.
@@ -319,6 +358,41 @@ public class BlackLabServer extends HttpServlet {
         }
     }
 
+    /**
+     * Thrown to make the servlet container abort a response that was already
+     * committed, instead of ending it properly.
+     */
+    private static class ResponseAbortedException extends RuntimeException {
+        ResponseAbortedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Write a trailer that marks a committed response as incomplete.
+     *
+     * XML gets a comment and CSV a marker line. JSON has no comments, so there we
+     * only rely on the response being truncated.
+     *
+     * @param out where to write the trailer
+     * @param outputType response format
+     * @param errorCode error that occurred
+     * @throws IOException on error
+     */
+    private static void writeErrorTrailer(Writer out, DataFormat outputType, String errorCode) throws IOException {
+        switch (outputType) {
+        case XML:
+            out.write("\n<!-- BLACKLAB ERROR: " + errorCode.replace("--", "- -") + "; response is incomplete -->\n");
+            break;
+        case CSV:
+            out.write("\n# BLACKLAB ERROR: " + errorCode + "; response is incomplete\n");
+            break;
+        case JSON:
+        default:
+            break;
+        }
+    }
+
     @Override
     public void destroy() {
 
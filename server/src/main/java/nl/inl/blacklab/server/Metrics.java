@@ -3,12 +3,17 @@ package nl.inl.blacklab.server;
 import io.micrometer.cloudwatch2.CloudWatchConfig;
 import io.micrometer.cloudwatch2.CloudWatchMeterRegistry;
 import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
 import io.micrometer.core.instrument.binder.jvm.*;
 import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
 import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
 import io.micrometer.prometheus.PrometheusConfig;
 import io.micrometer.prometheus.PrometheusMeterRegistry;
 import io.prometheus.client.exporter.common.TextFormat;
+import nl.inl.blacklab.search.SearchStatistics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import software.amazon.awssdk.regions.Region;
@@ -31,7 +36,12 @@ import java.io.IOException;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
 
 public class Metrics {
     private static final Logger logger = LogManager.getLogger(Metrics.class);
@@ -95,15 +105,39 @@ public class Metrics {
     }
 
     /**
-     * Registry for metrics. Define to metrics backend
+     * Registry for metrics.
+     *
+     * Meters can be registered right away; they are passed on to the metrics
+     * backend(s) once {@link #start()} has added them.
      **/
-    final static CompositeMeterRegistry metricsRegistry = init();
+    final static CompositeMeterRegistry metricsRegistry = new CompositeMeterRegistry();
 
-    private static CompositeMeterRegistry init() {
-        CompositeMeterRegistry registry = new CompositeMeterRegistry();
+    /** Have we added the metrics backends yet? */
+    private static boolean started = false;
+
+    /** Request timers per handler and HTTP status */
+    private static final Map<String, Timer> requestTimers = new ConcurrentHashMap<>();
+
+    /** Cache event counters per event type */
+    private static final Map<String, Counter> cacheEventCounters = new ConcurrentHashMap<>();
+
+    /**
+     * Add the metrics backends and JVM metrics to the registry.
+     *
+     * Done explicitly by the servlet instead of on class initialization, because
+     * finding out where to publish involves a call to the EC2 metadata service.
+     */
+    public static synchronized void start() {
+        if (started)
+            return;
+        started = true;
+        addBackends(metricsRegistry);
+    }
+
+    private static void addBackends(CompositeMeterRegistry registry) {
         if (!metricsEnabled()) {
             logger.info("Metrics are disabled. No metrics will be published.");
-            return registry;
+            return;
         }
 
 
@@ -123,7 +157,94 @@ public class Metrics {
         new JvmHeapPressureMetrics().bindTo(registry);
         new JvmThreadMetrics().bindTo(registry);
         new ProcessorMetrics().bindTo(registry);
-        return registry;
+        bindSearchStatistics(registry);
+    }
+
+    /**
+     * Publish BlackLab's search counters (see {@link SearchStatistics}).
+     *
+     * Rates (e.g. hits retrieved per second) are computed by the metrics backend.
+     */
+    private static void bindSearchStatistics(CompositeMeterRegistry registry) {
+        FunctionCounter.builder("blacklab.hits.retrieved", SearchStatistics.class, c -> SearchStatistics.hitsRetrieved())
+                .description("Hits read from the index")
+                .register(registry);
+        FunctionCounter.builder("blacklab.query.optimize.time", SearchStatistics.class, c -> SearchStatistics.optimizeRewriteNanos() / 1e9)
+                .description("Time spent optimizing and rewriting queries")
+                .baseUnit("seconds")
+                .register(registry);
+        FunctionCounter.builder("blacklab.query.spans.time", SearchStatistics.class, c -> SearchStatistics.spanIterationNanos() / 1e9)
+                .description("Time spent iterating over spans to find hits")
+                .baseUnit("seconds")
+                .register(registry);
+        FunctionCounter.builder("blacklab.forwardindex.read", SearchStatistics.class, c -> SearchStatistics.forwardIndexBytesRead())
+                .description("Bytes read from forward indexes")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("blacklab.contentstore.read", SearchStatistics.class, c -> SearchStatistics.contentStoreBytesRead())
+                .description("Bytes read from content stores")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * Publish the number of searches waiting for a thread.
+     *
+     * @param searchExecutorService the executor searches run on
+     */
+    public static void bindSearchQueue(ExecutorService searchExecutorService) {
+        if (searchExecutorService instanceof ForkJoinPool) {
+            Gauge.builder("blacklab.searches.queued", (ForkJoinPool) searchExecutorService, ForkJoinPool::getQueuedSubmissionCount)
+                    .description("Search tasks waiting for a thread")
+                    .register(metricsRegistry);
+        }
+    }
+
+    /**
+     * Record how long a request took.
+     *
+     * @param handler name of the request handler
+     * @param httpCode HTTP status we responded with
+     * @param nanos how long it took
+     */
+    public static void recordRequest(String handler, int httpCode, long nanos) {
+        Timer timer = requestTimers.computeIfAbsent(handler + " " + httpCode,
+                k -> Timer.builder("blacklab.request.duration")
+                        .description("Time taken to handle a request")
+                        .tag("handler", handler)
+                        .tag("status", Integer.toString(httpCode))
+                        .publishPercentileHistogram()
+                        .register(metricsRegistry));
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Count a search cache event.
+     *
+     * @param event what happened: hit, miss, eviction, pause or abort
+     */
+    public static void countCacheEvent(String event) {
+        Counter counter = cacheEventCounters.computeIfAbsent(event,
+                k -> Counter.builder("blacklab.cache.events")
+                        .description("Search cache hits, misses, evictions, pauses and aborts")
+                        .tag("event", event)
+                        .register(metricsRegistry));
+        counter.increment();
+    }
+
+    /**
+     * Publish a gauge, e.g. the number of running searches.
+     *
+     * @param name gauge name
+     * @param description description
+     * @param obj object to get the value from
+     * @param value how to get the value
+     * @param <T> object type
+     */
+    public static <T> void gauge(String name, String description, T obj, ToDoubleFunction<T> value) {
+        Gauge.builder(name, obj, value)
+                .description(description)
+                .register(metricsRegistry);
     }
 
     public static boolean metricsEnabled() {
@@ -33,6 +33,16 @@ public class BLSConfigProtocol {
         this.accessControlAllowOrigin = accessControlAllowOrigin;
     }
 
+    private int responseBufferSizeKb = 256;
+
+    public int getResponseBufferSizeKb() {
+        return responseBufferSizeKb;
+    }
+
+    public void setResponseBufferSizeKb(int responseBufferSizeKb) {
+        this.responseBufferSizeKb = responseBufferSizeKb;
+    }
+
     public boolean isUseOldElementNames() {
         return useOldElementNames;
     }
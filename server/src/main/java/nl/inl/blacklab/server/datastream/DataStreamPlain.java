@@ -18,6 +18,18 @@ public class DataStreamPlain extends DataStream {
         super(out, prettyPrint);
     }
 
+    /**
+     * Get the writer we write to.
+     *
+     * Allows large plain responses (e.g. CSV exports) to be written directly
+     * instead of being built in memory and passed to {@link #plain(String)}.
+     *
+     * @return our writer
+     */
+    public PrintWriter writer() {
+        return out;
+    }
+
     @Override
     public DataStream startDocument(String rootEl) {
         return this;
@@ -59,4 +59,18 @@ public interface LogDatabase {
     void addCacheInfo(List<BlsCacheEntry<? extends SearchResult>> snapshot, int numberOfSearches, int numberRunning, int numberPaused, long sizeBytes, long freeMemoryBytes,
             long largestEntryBytes, int oldestEntryAgeSec);
 
+    /**
+     * How many writes are waiting to be written to the database?
+     *
+     * @return number of waiting writes
+     */
+    int queueDepth();
+
+    /**
+     * How many writes were dropped because the queue was full?
+     *
+     * @return number of dropped writes
+     */
+    long droppedWrites();
+
 }
@@ -89,4 +89,14 @@ public class LogDatabaseDummy implements LogDatabase {
         // NOP
     }
 
+    @Override
+    public int queueDepth() {
+        return 0;
+    }
+
+    @Override
+    public long droppedWrites() {
+        return 0;
+    }
+
 }
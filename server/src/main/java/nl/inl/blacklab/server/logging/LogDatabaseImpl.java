@@ -19,6 +19,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
@@ -29,9 +34,14 @@ import nl.inl.blacklab.exceptions.LogException;
 import nl.inl.blacklab.requestlogging.LogLevel;
 import nl.inl.blacklab.requestlogging.SearchLogger;
 import nl.inl.blacklab.search.results.SearchResult;
-import nl.inl.blacklab.server.search.BlsCache;
 import nl.inl.blacklab.server.search.BlsCacheEntry;
 
+/**
+ * Logs requests and cache stats to an SQLite database.
+ *
+ * Writes are queued and performed by a background thread in batched
+ * transactions, so request threads don't have to wait for SQLite.
+ */
 public class LogDatabaseImpl implements Closeable, LogDatabase {
 
     private static final Logger logger = LogManager.getLogger(LogDatabaseImpl.class);
@@ -40,6 +50,24 @@ public class LogDatabaseImpl implements Closeable, LogDatabase {
     
     private static final long THREE_MONTHS_MS = 3L * 31 * 24 * 3600 * 1000;
 
+    /** Default maximum number of writes waiting for the writer thread */
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    /** Maximum number of writes to perform in one transaction */
+    private static final int MAX_BATCH_SIZE = 500;
+
+    /** How long to wait for the writer thread to finish when closing */
+    private static final long CLOSE_TIMEOUT_MS = 10000;
+
+    /** How long to wait for the writer thread to stop after interrupting it */
+    private static final long ABORT_TIMEOUT_MS = 1000;
+
+    /** A write to perform on the database. */
+    @FunctionalInterface
+    private interface Write {
+        void perform(Connection conn) throws SQLException;
+    }
+
     static String encode(String s) {
         try {
             return URLEncoder.encode(s, StandardCharsets.UTF_8.name());
@@ -78,8 +106,44 @@ public class LogDatabaseImpl implements Closeable, LogDatabase {
     }
     
     private SQLiteConnPool pool;
-    
+
+    /** Writes waiting to be performed by the writer thread */
+    private BlockingQueue<Write> queue;
+
+    /** If the queue is full, drop the write (true) or wait for room (false)? */
+    private boolean dropWhenQueueFull;
+
+    /** Number of writes dropped because the queue was full */
+    private AtomicLong droppedWrites = new AtomicLong();
+
+    /** Performs the queued writes */
+    private Thread writerThread;
+
+    /** Set when we're closing; the writer thread finishes the queue, then stops */
+    private volatile boolean closing = false;
+
+    /** Set if the writer thread didn't finish in time; it stops without finishing the queue */
+    private volatile boolean aborted = false;
+
+    /** Last request id assigned (we assign ids ourselves so we don't have to wait for the insert) */
+    private AtomicInteger lastRequestId;
+
+    /** Last cache stats id assigned */
+    private AtomicInteger lastCacheStatsId;
+
     public LogDatabaseImpl(String url) throws IOException {
+        this(url, DEFAULT_QUEUE_SIZE, true);
+    }
+
+    /**
+     * Open the log database.
+     *
+     * @param url JDBC url for the database
+     * @param queueSize maximum number of writes waiting for the writer thread
+     * @param dropWhenQueueFull if the queue is full, drop the write (true) or wait for room (false)?
+     * @throws IOException on error
+     */
+    public LogDatabaseImpl(String url, int queueSize, boolean dropWhenQueueFull) throws IOException {
         
         // actually uses /var/cache/tomcat/temp/..
         final File tmp = new File(System.getProperty("java.io.tmpdir"));
@@ -165,10 +229,108 @@ public class LogDatabaseImpl implements Closeable, LogDatabase {
                     conn.setAutoCommit(true);
                 }
             }
+            lastRequestId = new AtomicInteger(maxId("requests"));
+            lastCacheStatsId = new AtomicInteger(maxId("cache_stats"));
         
         } catch (SQLException e) {
             throw new IOException(e);
         }
+
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.dropWhenQueueFull = dropWhenQueueFull;
+        writerThread = new Thread(this::performWrites, "LogDatabaseWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private int maxId(String table) throws SQLException {
+        try (Connection conn = pool.getConnection()) {
+            try (Statement stmt = conn.createStatement()) {
+                try (ResultSet rs = stmt.executeQuery("SELECT max(id) FROM " + table)) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue a write for the writer thread.
+     *
+     * @param write write to perform
+     */
+    private void enqueue(Write write) {
+        if (closing) {
+            droppedWrites.incrementAndGet();
+            return;
+        }
+        if (dropWhenQueueFull) {
+            if (!queue.offer(write))
+                droppedWrites.incrementAndGet();
+        } else {
+            try {
+                queue.put(write);
+            } catch (InterruptedException e) {
+                droppedWrites.incrementAndGet();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Writer thread: perform the queued writes in batches, until we're closed
+     * and the queue is empty.
+     */
+    private void performWrites() {
+        List<Write> batch = new ArrayList<>();
+        while (!aborted && (!closing || !queue.isEmpty())) {
+            try {
+                Write write = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (write == null)
+                    continue;
+                batch.add(write);
+            } catch (InterruptedException e) {
+                // We're being closed; finish the queue first, unless we're aborted
+                closing = true;
+                continue;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            try (Connection conn = pool.getConnection()) {
+                try {
+                    conn.setAutoCommit(false);
+                    for (Write write: batch) {
+                        write.perform(conn);
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    // Don't lose the whole batch because of one bad write; retry them one by one
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                    for (Write write: batch) {
+                        try {
+                            write.perform(conn);
+                        } catch (SQLException e2) {
+                            // don't take BL down because SQLite logging isn't working right
+                            logger.error("Error writing to log database", e2);
+                        }
+                    }
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                logger.error("Error writing " + batch.size() + " entries to log database", e);
+            }
+            batch.clear();
+        }
+    }
+
+    @Override
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public long droppedWrites() {
+        return droppedWrites.get();
     }
     
     private void execute(String sql) throws SQLException {
@@ -245,63 +407,57 @@ public class LogDatabaseImpl implements Closeable, LogDatabase {
 
     @Override
     public void close() throws IOException {
+        closing = true;
+        try {
+            writerThread.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            // Don't close the pool from under the writer; stop it first
+            aborted = true;
+            writerThread.interrupt();
+            try {
+                writerThread.join(ABORT_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<Write> dropped = new ArrayList<>();
+            queue.drainTo(dropped);
+            logger.warn("Log database writer didn't finish in time; dropped " + dropped.size() + " queued writes" +
+                    (writerThread.isAlive() ? " (writer thread still busy)" : ""));
+        }
         pool.close();
     }
     
     @Override
     public SearchLogger addRequest(String corpus, String type, Map<String, String[]> parameters) {
-        try (Connection conn = pool.getConnection()) {
-            try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO requests (corpus, type, parameters, time, timestamp) VALUES (?, ?, ?, ?, ?)")) {
-                stmt.setString(1, corpus);
-                stmt.setString(2, type);
-                String strParameters = mapToQueryStringArray(parameters);
-                stmt.setString(3, strParameters);
-                long now = now();
-                stmt.setLong(4, now);
-                stmt.setString(5, timestamp(now));
+        int id = lastRequestId.incrementAndGet();
+        String strParameters = mapToQueryStringArray(parameters);
+        long now = now();
+        enqueue(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO requests (id, corpus, type, parameters, time, timestamp) VALUES (?, ?, ?, ?, ?, ?)")) {
+                stmt.setInt(1, id);
+                stmt.setString(2, corpus);
+                stmt.setString(3, type);
+                stmt.setString(4, strParameters);
+                stmt.setLong(5, now);
+                stmt.setString(6, timestamp(now));
                 stmt.executeUpdate();
-                try (ResultSet rs = stmt.getGeneratedKeys()) {
-                    if (rs.next()) {
-                        return new SearchLoggerImpl(this, rs.getInt(1));
-                    } else {
-                        throw new LogException("Insert didn't generate an id!");
-                    }
-                }
             }
-        } catch (SQLException e) {
-            // don't take BL down because SQLite logging isn't working right (happens when doing lots of requests at once)
-            e.printStackTrace();
-            return new SearchLogger() {
-                @Override
-                public void log(LogLevel level, String line) {
-                    // NOP
-                }
-
-                @Override
-                public void setResultsFound(int resultsFound) {
-                    // NOP
-                }
-
-                @Override
-                public void close() throws IOException {
-                    // NOP
-                }
-            };
-        }
+        });
+        return new SearchLoggerImpl(this, id);
     }
 
     void requestFinalize(int requestId, int resultsFound, long durationMs) {
-        try (Connection conn = pool.getConnection()) {
+        enqueue(conn -> {
             try (PreparedStatement stmt = conn.prepareStatement("UPDATE requests SET duration_ms = ?, results_found = ? WHERE id = ?")) {
                 stmt.setLong(1, durationMs);
                 stmt.setInt(2, resultsFound);
                 stmt.setInt(3, requestId);
                 stmt.executeUpdate();
             }
-        } catch (SQLException e) {
-            // don't take BL down because SQLite logging isn't working right (happens when doing lots of requests at once)
-            e.printStackTrace();
-        }
+        });
     }
     
     /**
@@ -311,60 +467,54 @@ public class LogDatabaseImpl implements Closeable, LogDatabase {
      * @param line log line
      */
     void requestAddLogLine(int requestId, LogLevel level, String line) {
-        try (Connection conn = pool.getConnection()) {
+        long now = now();
+        int l = level.intValue();
+        enqueue(conn -> {
             try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO request_logs (request, time, timestamp, level, line) VALUES (?, ?, ?, ?, ?)")) {
                 stmt.setInt(1, requestId);
-                long now = now();
                 stmt.setLong(2, now);
                 stmt.setString(3, timestamp(now));
-                int l = level.intValue();
                 stmt.setInt(4, l);
                 stmt.setString(5, StringUtils.repeat("    ", l - 1) + line);
                 stmt.executeUpdate();
             }
-        } catch (SQLException e) {
-            // don't take BL down because SQLite logging isn't working right (happens when doing lots of requests at once)
-            e.printStackTrace();
-        }
+        });
     }
     
     @Override
     public void addCacheInfo(List<BlsCacheEntry<? extends SearchResult>> snapshot, int numberOfSearches, int numberRunning, int numberPaused, long sizeBytes, long freeMemoryBytes, long largestEntryBytes, int oldestEntryAgeSec) {
-        try (Connection conn = pool.getConnection()) {
-            try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO cache_stats (snapshot, time, timestamp, num_searches, num_running, num_paused, size_bytes, free_mem_bytes, " +
-                    "largest_entry_bytes, oldest_entry_sec) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
-                long now = now();
-                stmt.setInt   ( 1, snapshot != null ? 1 : 0);
-                stmt.setLong  ( 2, now);
-                stmt.setString( 3, timestamp(now));
-                stmt.setInt   ( 4, numberOfSearches);
-                stmt.setInt   ( 5, numberRunning);
-                stmt.setInt   ( 6, numberPaused);
-                stmt.setLong  ( 7, sizeBytes);
-                stmt.setLong  ( 8, freeMemoryBytes);
-                stmt.setLong  ( 9, largestEntryBytes);
-                stmt.setInt   (10, oldestEntryAgeSec);
-                stmt.executeUpdate();
-                if (snapshot != null) {
-                    try (ResultSet rs = stmt.getGeneratedKeys()) {
-                        if (rs.next()) {
-                            int cacheStatsId = rs.getInt(1);
-                            for (BlsCacheEntry<? extends SearchResult> entry: snapshot) {
-                                addCacheSnapshotRecord(cacheStatsId, entry);
-                            }
-                        } else {
-                            throw new LogException("Insert didn't generate an id!");
-                        }
-                    }
-                }
+        int cacheStatsId = lastCacheStatsId.incrementAndGet();
+        long now = now();
+        // Capture the state of the entries now, not when the writer thread gets to it
+        List<Write> entryWrites = new ArrayList<>();
+        if (snapshot != null) {
+            for (BlsCacheEntry<? extends SearchResult> entry: snapshot) {
+                entryWrites.add(cacheSnapshotRecord(cacheStatsId, entry));
             }
-        } catch (SQLException e) {
-            // don't take BL down because SQLite logging isn't working right (happens when doing lots of requests at once)
-            e.printStackTrace();
         }
+        enqueue(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO cache_stats (id, snapshot, time, timestamp, num_searches, num_running, num_paused, size_bytes, free_mem_bytes, " +
+                    "largest_entry_bytes, oldest_entry_sec) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                stmt.setInt   ( 1, cacheStatsId);
+                stmt.setInt   ( 2, snapshot != null ? 1 : 0);
+                stmt.setLong  ( 3, now);
+                stmt.setString( 4, timestamp(now));
+                stmt.setInt   ( 5, numberOfSearches);
+                stmt.setInt   ( 6, numberRunning);
+                stmt.setInt   ( 7, numberPaused);
+                stmt.setLong  ( 8, sizeBytes);
+                stmt.setLong  ( 9, freeMemoryBytes);
+                stmt.setLong  (10, largestEntryBytes);
+                stmt.setInt   (11, oldestEntryAgeSec);
+                stmt.executeUpdate();
+            }
+            for (Write entryWrite: entryWrites) {
+                entryWrite.perform(conn);
+            }
+        });
     }
 
-    private void addCacheSnapshotRecord(int cacheStatsId, BlsCacheEntry<? extends SearchResult> entry) {
+    private static Write cacheSnapshotRecord(int cacheStatsId, BlsCacheEntry<? extends SearchResult> entry) {
         /*cache_entry\" (",
                             "  `cache_stats_id` INTEGER NOT NULL,",
                             "  `search` TEXT NOT NULL,",
@@ -377,24 +527,29 @@ public class LogDatabaseImpl implements Closeable, LogDatabase {
                             "  `not_accessed_for_sec` INTEGER NOT NULL,",
                             "  FOREIGN KEY(`cache_stats_id`) REFERENCES cache_stats ( id )",
          * */
-        try (Connection conn = pool.getConnection()) {
+        String search = entry.search().toString();
+        String status = entry.status();
+        boolean cancelled = entry.isCancelled();
+        String futureStatus = entry.futureStatus();
+        String exceptionStacktrace = entry.exceptionStacktrace();
+        long sizeBytes = entry.estimateMemoryBytes();
+        long timeUserWaited = entry.timeUserWaited();
+        long timeSinceLastAccess = entry.timeSinceLastAccess();
+        return conn -> {
             try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO cache_entry (cache_stats_id, search, status, cancelled, " +
                     "future_status, exception_thrown, size_bytes, total_time_ms, not_accessed_for_ms) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
                 stmt.setInt   (1, cacheStatsId);
-                stmt.setString(2, entry.search().toString());
-                stmt.setString(3, entry.status());
-                stmt.setInt   (4, entry.isCancelled() ? 1 : 0);
-                stmt.setString(5, entry.futureStatus());
-                stmt.setString(6, entry.exceptionStacktrace());
-                stmt.setInt   (7, entry.numberOfStoredHits() * BlsCache.SIZE_OF_HIT);
-                stmt.setLong  (8, entry.timeUserWaited());
-                stmt.setLong  (9, entry.timeSinceLastAccess());
+                stmt.setString(2, search);
+                stmt.setString(3, status);
+                stmt.setInt   (4, cancelled ? 1 : 0);
+                stmt.setString(5, futureStatus);
+                stmt.setString(6, exceptionStacktrace);
+                stmt.setLong  (7, sizeBytes);
+                stmt.setLong  (8, timeUserWaited);
+                stmt.setLong  (9, timeSinceLastAccess);
                 stmt.executeUpdate();
             }
-        } catch (SQLException e) {
-            // don't take BL down because SQLite logging isn't working right (happens when doing lots of requests at once)
-            e.printStackTrace();
-        }
+        };
     }
 
     static long now() {
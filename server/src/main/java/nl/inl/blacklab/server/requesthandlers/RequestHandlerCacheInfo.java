@@ -2,10 +2,13 @@ package nl.inl.blacklab.server.requesthandlers;
 
 import javax.servlet.http.HttpServletRequest;
 
+import nl.inl.blacklab.contentstore.BlockCache;
+import nl.inl.blacklab.contentstore.ContentStoreFixedBlockReader;
 import nl.inl.blacklab.server.BlackLabServer;
 import nl.inl.blacklab.server.datastream.DataStream;
 import nl.inl.blacklab.server.exceptions.BlsException;
 import nl.inl.blacklab.server.jobs.User;
+import nl.inl.blacklab.server.logging.LogDatabase;
 
 /**
  * Display the contents of the cache.
@@ -31,9 +34,32 @@ public class RequestHandlerCacheInfo extends RequestHandler {
         ds.endEntry()
                 .startEntry("cacheContents");
         searchMan.getBlackLabCache().dataStreamContents(ds, debugInfo);
+        ds.endEntry()
+                .startEntry("contentStoreBlockCache");
+        dataStreamBlockCacheStatus(ds, ContentStoreFixedBlockReader.blockCache());
+        ds.endEntry()
+                .startEntry("logDatabase");
+        dataStreamLogDatabaseStatus(ds, servlet.logDatabase());
         ds.endEntry()
                 .endMap();
         return HTTP_OK;
     }
 
+    private static void dataStreamBlockCacheStatus(DataStream ds, BlockCache blockCache) {
+        ds.startMap()
+                .entry("maxSizeBytes", blockCache.maxSizeBytes())
+                .entry("sizeBytes", blockCache.sizeBytes())
+                .entry("numberOfBlocks", blockCache.numberOfBlocks())
+                .entry("hits", blockCache.hits())
+                .entry("misses", blockCache.misses())
+                .endMap();
+    }
+
+    private static void dataStreamLogDatabaseStatus(DataStream ds, LogDatabase logDatabase) {
+        ds.startMap()
+                .entry("queueDepth", logDatabase.queueDepth())
+                .entry("droppedWrites", logDatabase.droppedWrites())
+                .endMap();
+    }
+
 }
@@ -35,6 +35,10 @@ import nl.inl.blacklab.server.jobs.User;
  * Request handler for hit results.
  */
 public class RequestHandlerDocsCsv extends RequestHandler {
+
+    /** How many documents to write before flushing and checking if the client is still there */
+    private static final int CSV_BATCH_SIZE = 1000;
+
     private static class Result {
         public final DocResults docs;
         public final DocGroups groups;
@@ -139,10 +143,12 @@ public class RequestHandlerDocsCsv extends RequestHandler {
         return searchParam.getBoolean("csvsepline");
     }
 
-    private CSVPrinter createHeader(List<String> row) throws IOException {
+    private CSVPrinter createHeader(List<String> row, DataStreamPlain ds) throws IOException {
         // Create the header, then explicitly declare the separator, as excel normally uses a locale-dependent CSV-separator...
+        if (declareSeparator())
+            ds.writer().print("sep=,\r\n");
         CSVFormat format = CSVFormat.EXCEL.withHeader(row.toArray(new String[0]));
-        CSVPrinter printer = format.print(new StringBuilder(declareSeparator() ? "sep=,\r\n" : ""));
+        CSVPrinter printer = format.print(ds.writer());
 
         return printer;
     }
@@ -164,7 +170,7 @@ public class RequestHandlerDocsCsv extends RequestHandler {
                 row.add("subcorpusSize.documents");
             }
 
-            CSVPrinter printer = createHeader(row);
+            CSVPrinter printer = createHeader(row, ds);
             if (includeSearchParameters()) {
                 addSummaryCsvDocs(printer, row.size(), inputDocsForGroups, groups, subcorpusResults.subcorpusSize());
             }
@@ -192,7 +198,6 @@ public class RequestHandlerDocsCsv extends RequestHandler {
             }
 
             printer.flush();
-            ds.plain(printer.getOut().toString());
         } catch (IOException e) {
             throw new InternalServerError("Cannot write response: " + e.getMessage(), "INTERR_WRITING_DOCS_CSV1");
         }
@@ -222,12 +227,13 @@ public class RequestHandlerDocsCsv extends RequestHandler {
 
             row.addAll(metadataFieldIds); // NOTE: use the raw field IDs for headers, not the display names, CSVPrinter can't handle duplicate names
 
-            CSVPrinter printer = createHeader(row);
+            CSVPrinter printer = createHeader(row, ds);
             addSummaryCsvDocs(printer, row.size(), docs, fromGroups, globalSubcorpusSize.subcorpusSize());
 
             StringBuilder sb = new StringBuilder();
 
             int subtractClosingToken = 1;
+            int rowsWritten = 0;
             for (DocResult docResult : docs) {
                 Document doc = docResult.identity().luceneDoc();
                 row.clear();
@@ -290,10 +296,19 @@ public class RequestHandlerDocsCsv extends RequestHandler {
                     app.append(cell).append(',');
                 }
                 printer.println();
+
+                rowsWritten++;
+                if (rowsWritten % CSV_BATCH_SIZE == 0) {
+                    printer.flush();
+                    if (ds.writer().checkError()) {
+                        // Client went away; no use producing the rest of the export
+                        logger.debug("Client disconnected during CSV export, stopping");
+                        break;
+                    }
+                }
             }
 
             printer.flush();
-            ds.plain(printer.getOut().toString());
         } catch (IOException e) {
             throw new InternalServerError("Cannot write response: " + e.getMessage(), "INTERR_WRITING_DOCS_CSV2");
         }
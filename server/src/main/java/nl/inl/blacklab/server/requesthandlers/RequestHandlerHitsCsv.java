@@ -43,6 +43,10 @@ import nl.inl.blacklab.server.search.BlsCacheEntry;
  * Request handler for hit results.
  */
 public class RequestHandlerHitsCsv extends RequestHandler {
+
+    /** How many hits to write per batch (KWICs and documents are retrieved per batch) */
+    private static final int CSV_BATCH_SIZE = 1000;
+
     private static class Result {
         public final Hits hits;
         public final HitGroups groups;
@@ -165,7 +169,7 @@ public class RequestHandlerHitsCsv extends RequestHandler {
                 row.add("subcorpusSize.tokens");
             }
 
-            CSVPrinter printer = createHeader(row);
+            CSVPrinter printer = createHeader(row, ds);
             if (this.includeSearchParameters()) {
                 addSummaryCsvHits(printer, row.size(), inputHitsForGroups, groups, subcorpusResults.subcorpusSize());
             }
@@ -191,16 +195,17 @@ public class RequestHandlerHitsCsv extends RequestHandler {
             }
 
             printer.flush();
-            ds.plain(printer.getOut().toString());
         } catch (IOException e) {
             throw new InternalServerError("Cannot write response: " + e.getMessage(), "INTERR_WRITING_HITS_CSV1");
         }
     }
 
-    private CSVPrinter createHeader(List<String> row) throws IOException {
+    private CSVPrinter createHeader(List<String> row, DataStreamPlain ds) throws IOException {
         // Create the header, then explicitly declare the separator, as excel normally uses a locale-dependent CSV-separator...
+        if (declareSeparator())
+            ds.writer().print("sep=,\r\n");
         CSVFormat format = CSVFormat.EXCEL.withHeader(row.toArray(new String[0]));
-        CSVPrinter printer = format.print(new StringBuilder(declareSeparator() ? "sep=,\r\n" : ""));
+        CSVPrinter printer = format.print(ds.writer());
         return printer;
     }
 
@@ -275,25 +280,35 @@ public class RequestHandlerHitsCsv extends RequestHandler {
                  row.add(f.name());
             }
 
-            CSVPrinter printer = createHeader(row);
+            CSVPrinter printer = createHeader(row, ds);
             if (includeSearchParameters()) {
                 hits.hitsStats().countedTotal(); // block for a bit
                 addSummaryCsvHits(printer, row.size(), hits, groups, subcorpusResults.subcorpusSize());
             }
 
+            // Write the hits in batches, so we only need the KWICs and documents for one batch at a time,
+            // and the client starts receiving rows while we're still working.
             Map<Integer, Document> luceneDocs = new HashMap<>();
-            Kwics kwics = hits.kwics(blIndex().defaultContextSize());
-            for (Hit hit : hits) {
-                Document doc = luceneDocs.get(hit.doc());
-                if (doc == null) {
-                    doc = blIndex().doc(hit.doc()).luceneDoc();
-                    luceneDocs.put(hit.doc(), doc);
+            for (int start = 0; start < hits.size(); start += CSV_BATCH_SIZE) {
+                Hits batch = hits.window(start, CSV_BATCH_SIZE);
+                Kwics kwics = batch.kwics(blIndex().defaultContextSize());
+                luceneDocs.clear();
+                for (Hit hit : batch) {
+                    Document doc = luceneDocs.get(hit.doc());
+                    if (doc == null) {
+                        doc = blIndex().doc(hit.doc()).luceneDoc();
+                        luceneDocs.put(hit.doc(), doc);
+                    }
+                    writeHit(kwics.get(hit), doc, mainTokenProperty, annotationsToWrite, getDocumentPid(blIndex(), hit.doc(), doc), metadataFieldsToWrite, row);
+                    printer.printRecord(row);
+                }
+                printer.flush();
+                if (ds.writer().checkError()) {
+                    // Client went away; no use producing the rest of the export
+                    logger.debug("Client disconnected during CSV export, stopping");
+                    break;
                 }
-                writeHit(kwics.get(hit), doc, mainTokenProperty, annotationsToWrite, getDocumentPid(blIndex(), hit.doc(), doc), metadataFieldsToWrite, row);
-                printer.printRecord(row);
             }
-            printer.flush();
-            ds.plain(printer.getOut().toString());
         } catch (IOException e) {
             throw new InternalServerError("Cannot write response: " + e.getMessage(), "INTERR_WRITING_HITS_CSV2");
         } catch (BlsException e) {
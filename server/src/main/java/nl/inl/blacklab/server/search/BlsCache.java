@@ -22,6 +22,7 @@ import nl.inl.blacklab.search.results.SearchResult;
 import nl.inl.blacklab.searches.Search;
 import nl.inl.blacklab.searches.SearchCache;
 import nl.inl.blacklab.searches.SearchCount;
+import nl.inl.blacklab.server.Metrics;
 import nl.inl.blacklab.server.config.BLSConfig;
 import nl.inl.blacklab.server.config.BLSConfigCache;
 import nl.inl.blacklab.server.config.BLSConfigPerformance;
@@ -39,8 +40,6 @@ public class BlsCache implements SearchCache {
     
     public static final boolean ENABLE_NEW_CACHE = true;
 
-    /** Very rough measure of how large result objects are, based on a Hit (3 ints + 12 bytes object overhead) */
-    public static final int SIZE_OF_HIT = 24;
 
     protected Map<Search<?>, BlsCacheEntry<? extends SearchResult>> searches = new HashMap<>();
     
@@ -55,6 +54,9 @@ public class BlsCache implements SearchCache {
         initLoadManagement(cacheConfig, config.getPerformance());
         this.trace = config.getLog().getTrace().isCache();
         cacheDisabled = cacheConfig.getMaxNumberOfJobs() == 0 || cacheConfig.getMaxJobAgeSec() == 0 || cacheConfig.getMaxSizeMegs() == 0;
+        Metrics.gauge("blacklab.searches.running", "Searches that are running (not paused)", this, BlsCache::numberOfRunningSearches);
+        Metrics.gauge("blacklab.searches.paused", "Searches that have been paused by load management", this, BlsCache::numberOfPausedSearches);
+        Metrics.gauge("blacklab.cache.searches", "Searches in the cache", this, BlsCache::numberOfSearches);
     }
 
     public void setLogDatabase(LogDatabase logDatabase) {
@@ -137,6 +139,7 @@ public class BlsCache implements SearchCache {
         synchronized (this) {
             future = useCache ? (BlsCacheEntry<R>) searches.get(search) : null;
             if (future == null) {
+                Metrics.countCacheEvent("miss");
                 search.log(LogLevel.BASIC, "not found in cache, starting search: " + search);
                 try {
                     checkFreeMemory(); // check that we have sufficient available memory
@@ -145,12 +148,14 @@ public class BlsCache implements SearchCache {
                     throw e;
                 }
                 future = new BlsCacheEntry<>(search, searchTask);
+                future.updateLastAccess(inflation);
                 created = true;
                 if (!cacheDisabled && useCache)
                     searches.put(search, future);
                 if (!block)
                     future.start(false);
             } else {
+                Metrics.countCacheEvent("hit");
                 search.log(LogLevel.BASIC, "found in cache (" + future.status() + "): " + search);
             }
         }
@@ -162,11 +167,28 @@ public class BlsCache implements SearchCache {
         } else {
             if (trace)
                 logger.info("-- FOUND: " + search);
-            future.updateLastAccess();
+            future.updateLastAccess(inflation);
         }
         return future;
     }
     
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R extends SearchResult> BlsCacheEntry<R> getIfPresent(Search<R> search) {
+        if (!search.queryInfo().useCache())
+            return null;
+        BlsCacheEntry<R> future;
+        synchronized (this) {
+            future = (BlsCacheEntry<R>) searches.get(search);
+        }
+        if (future != null) {
+            if (trace)
+                logger.info("-- FOUND: " + search);
+            future.updateLastAccess(inflation);
+        }
+        return future;
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public <R extends SearchResult> BlsCacheEntry<R> remove(Search<R> search) {
@@ -233,7 +255,15 @@ public class BlsCache implements SearchCache {
     
     private Comparator<BlsCacheEntry<?>> wortinessComparator;
 
-    private int resultsObjectsInCache;
+    /** Estimated memory used by the cached results, in bytes */
+    private long cacheSizeBytes;
+
+    /**
+     * Inflation value for GreedyDual-Size eviction: the cache priority of the
+     * last search we evicted. Searches accessed after that get a head start over
+     * searches that weren't. See {@link BlsCacheEntry#calculateWorthiness()}.
+     */
+    private volatile double inflation = 0;
 
     private LoadManagerThread loadManagerThread;
 
@@ -254,6 +284,10 @@ public class BlsCache implements SearchCache {
         wortinessComparator = new Comparator<BlsCacheEntry<?>>() {
             @Override
             public int compare(BlsCacheEntry<?> o1, BlsCacheEntry<?> o2) {
+                if (o1.worthiness() == o2.worthiness() && o1.worthiness() <= 1) {
+                    // Both finished; compare cache priority
+                    return Double.compare(o2.cachePriority(), o1.cachePriority());
+                }
                 long result = o2.worthiness() - o1.worthiness();
                 return result == 0 ? 0 : (result < 0 ? -1 : 1);
             }
@@ -263,13 +297,13 @@ public class BlsCache implements SearchCache {
         loadManagerThread.start();
     }
 
-    private synchronized int determineCacheSize() {
+    private synchronized long determineCacheSize() {
         // Estimate the total cache size
-        resultsObjectsInCache = 0;
+        cacheSizeBytes = 0;
         for (BlsCacheEntry<?> search : searches.values()) {
-            resultsObjectsInCache += search.numberOfStoredHits();
+            cacheSizeBytes += search.estimateMemoryBytes();
         }
-        return resultsObjectsInCache;
+        return cacheSizeBytes;
     }
     
     /**
@@ -278,8 +312,7 @@ public class BlsCache implements SearchCache {
      */
     synchronized void performLoadManagement() {
         
-        determineCacheSize();
-        long cacheSizeBytes = (long)resultsObjectsInCache * SIZE_OF_HIT;
+        long cacheSizeBytes = determineCacheSize();
 
         List<BlsCacheEntry<?>> searches = new ArrayList<>(this.searches.values());
         int numberOfSearchesInCache = searches.size();
@@ -287,15 +320,15 @@ public class BlsCache implements SearchCache {
         // Log cache state every 60s
         if (logDatabase != null && System.currentTimeMillis() - lastCacheLog > ONE_MINUTE_MS) {
             int numberRunning = 0, numberPaused = 0;
-            int largestEntryHits = 0;
+            long largestEntryBytes = 0;
             long oldestEntryAgeMs = 0;
             for (BlsCacheEntry<?> s: searches) {
                 if (!s.isSearchDone())
                     numberRunning++;
                 if (s.threadPauser().isPaused())
                     numberPaused++;
-                if (s.numberOfStoredHits() > largestEntryHits)
-                    largestEntryHits = s.numberOfStoredHits();
+                if (s.estimateMemoryBytes() > largestEntryBytes)
+                    largestEntryBytes = s.estimateMemoryBytes();
                 if (s.timeSinceCreation() > oldestEntryAgeMs)
                     oldestEntryAgeMs = s.timeSinceCreation();
             }
@@ -306,7 +339,7 @@ public class BlsCache implements SearchCache {
                 snapshot = searches;
                 lastCacheSnapshot = lastCacheLog;
             }
-            logDatabase.addCacheInfo(snapshot, searches.size(), numberRunning, numberPaused, cacheSizeBytes, MemoryUtil.getFree(), (long)largestEntryHits * SIZE_OF_HIT, (int)(oldestEntryAgeMs / 1000));
+            logDatabase.addCacheInfo(snapshot, searches.size(), numberRunning, numberPaused, cacheSizeBytes, MemoryUtil.getFree(), largestEntryBytes, (int)(oldestEntryAgeMs / 1000));
         }
 
         // Sort the searches based on descending "worthiness"
@@ -319,7 +352,7 @@ public class BlsCache implements SearchCache {
 
         // If we're low on memory, remove searches from cache until we're not.
         long freeMegs = MemoryUtil.getFree() / 1000000;
-        long memoryToFreeUp = config.getTargetFreeMemMegs() - freeMegs;
+        long memoryToFreeUp = (config.getTargetFreeMemMegs() - freeMegs) * 1000000;
 
         // Look at searches from least worthy to worthiest.
         // Get rid of old searches
@@ -336,10 +369,11 @@ public class BlsCache implements SearchCache {
                     logger.debug("  Cancelling searchjob: " + search1);
                 }
                 remove(search1.search());
-                cacheSizeBytes -= search1.numberOfStoredHits() * SIZE_OF_HIT;
+                cacheSizeBytes -= search1.estimateMemoryBytes();
                 numberOfSearchesInCache--;
                 removed.add(search1);
                 search1.cancelSearch();
+                Metrics.countCacheEvent("abort");
             } else if (search1.isDone()) {
                 // Finished search
                 boolean removeBecauseOfCacheSizeOrAge = false;
@@ -361,7 +395,8 @@ public class BlsCache implements SearchCache {
                                 && search1.timeUnused() > config.getMaxJobAgeSec() * 1000L;
                         isSearchTooOld = tooOld;
                     }
-                    removeBecauseOfCacheSizeOrAge = isCacheTooBig || isSearchTooOld;
+                    // (recently accessed searches are only removed if we're low on memory)
+                    removeBecauseOfCacheSizeOrAge = (isCacheTooBig || isSearchTooOld) && !search1.isProtectedFromEviction();
                 }
                 if (memoryToFreeUp > 0 || removeBecauseOfCacheSizeOrAge) {
                     // Search is too old or cache is too big. Keep removing searches until that's no
@@ -383,10 +418,14 @@ public class BlsCache implements SearchCache {
                         logger.debug("  Removing searchjob: " + search1);
                     }
                     remove(search1.search());
-                    cacheSizeBytes -= search1.numberOfStoredHits() * SIZE_OF_HIT;
+                    long entrySizeBytes = search1.estimateMemoryBytes();
+                    cacheSizeBytes -= entrySizeBytes;
                     numberOfSearchesInCache--;
                     removed.add(search1);
-                    memoryToFreeUp -= search1.numberOfStoredHits() * SIZE_OF_HIT;
+                    memoryToFreeUp -= entrySizeBytes;
+                    if (search1.cachePriority() > inflation)
+                        inflation = search1.cachePriority(); // GreedyDual-Size: age the remaining searches
+                    Metrics.countCacheEvent("eviction");
                     
                 } else {
                     // Cache is no longer too big and these searches are not too old. Stop checking
@@ -470,6 +509,7 @@ public class BlsCache implements SearchCache {
                 if (trace)
                     logger.debug("LOADMGR: Pausing search: " + search + " (" + reason + ")");
                 threadPauser.pause(true);
+                Metrics.countCacheEvent("pause");
             }
             break;
         case ABORT:
@@ -479,6 +519,7 @@ public class BlsCache implements SearchCache {
                     logger.warn("LOADMGR: Aborting search: " + search + " (" + reason + ")");
                 remove(search.search());
                 search.cancelSearch();
+                Metrics.countCacheEvent("abort");
             }
             break;
         }
@@ -498,6 +539,28 @@ public class BlsCache implements SearchCache {
         // logger.debug("Enough free memory: " + freeMegs + "M");
     }
     
+    private synchronized int numberOfSearches() {
+        return searches.size();
+    }
+
+    private synchronized int numberOfRunningSearches() {
+        int n = 0;
+        for (BlsCacheEntry<?> search: searches.values()) {
+            if (!search.isSearchDone() && !search.threadPauser().isPaused())
+                n++;
+        }
+        return n;
+    }
+
+    private synchronized int numberOfPausedSearches() {
+        int n = 0;
+        for (BlsCacheEntry<?> search: searches.values()) {
+            if (!search.isSearchDone() && search.threadPauser().isPaused())
+                n++;
+        }
+        return n;
+    }
+
     /**
      * Dump information about the cache status.
      * @param ds where to write information to
@@ -509,7 +572,7 @@ public class BlsCache implements SearchCache {
                 .entry("maxSizeBytes", maxSizeBytes)
                 .entry("maxNumberOfSearches", config.getMaxNumberOfJobs())
                 .entry("maxSearchAgeSec", config.getMaxJobAgeSec())
-                .entry("sizeBytes", resultsObjectsInCache * SIZE_OF_HIT)
+                .entry("sizeBytes", cacheSizeBytes)
                 .entry("numberOfSearches", searches.size())
                 .entry("freeMemory", MemoryUtil.getFree())
                 .endMap();
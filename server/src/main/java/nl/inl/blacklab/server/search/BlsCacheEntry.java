@@ -30,6 +30,13 @@ public class BlsCacheEntry<T extends SearchResult> implements Future<T> {
      * back burner if the system is overloaded.
      */
     public static final int YOUTH_THRESHOLD_SEC = 20;
+
+    /**
+     * How long after its last access a finished search is protected from being
+     * evicted (unless we're running out of memory). This gives the user a chance
+     * to page through the results without having to run the search again.
+     */
+    public static final int MIN_UNUSED_MS_BEFORE_EVICTION = 60000;
     
     /** id for the next job started */
     private static Long nextEntryId = 0L;
@@ -71,6 +78,9 @@ public class BlsCacheEntry<T extends SearchResult> implements Future<T> {
                     if (isResultsInstance) {
                         // Make sure our results object can be paused
                         pausing.setThreadPauser(((Results<?>)result).threadPauser());
+                    } else if (result instanceof ResultCount && ((ResultCount) result).threadPauser() != null) {
+                        // Counts that don't retrieve results have their own pauser
+                        pausing.setThreadPauser(((ResultCount) result).threadPauser());
                     }
                 } finally {
                     initialSearchDone = true;
@@ -146,6 +156,16 @@ public class BlsCacheEntry<T extends SearchResult> implements Future<T> {
     /** Worthiness of this search in the cache, once calculated */
     private long worthiness = 0;
 
+    /**
+     * Cache inflation value when this entry was last accessed (GreedyDual-Size).
+     *
+     * See {@link #calculateWorthiness()}.
+     */
+    private volatile double inflationAtLastAccess = 0;
+
+    /** Cache priority of this finished search (GreedyDual-Size), once calculated */
+    private double cachePriority = 0;
+
     private Future<?> future;
 
     /**
@@ -195,6 +215,16 @@ public class BlsCacheEntry<T extends SearchResult> implements Future<T> {
         return worthiness;
     }
 
+    /**
+     * Cache priority of this finished search, as calculated by
+     * {@link #calculateWorthiness()}.
+     *
+     * @return cache priority (only meaningful for finished searches)
+     */
+    public double cachePriority() {
+        return cachePriority;
+    }
+
     public ThreadPauser threadPauser() {
         return pausing;
     }
@@ -250,6 +280,15 @@ public class BlsCacheEntry<T extends SearchResult> implements Future<T> {
         return now() - lastAccessTime;
     }
 
+    /**
+     * Was this search accessed too recently to be evicted?
+     *
+     * @return true if this search shouldn't be evicted yet
+     */
+    public boolean isProtectedFromEviction() {
+        return timeSinceLastAccess() < MIN_UNUSED_MS_BEFORE_EVICTION;
+    }
+
     /**
      * How long ago did the search finish?
      * 
@@ -348,9 +387,12 @@ public class BlsCacheEntry<T extends SearchResult> implements Future<T> {
 
     /**
      * Set the last accessed time to now.
+     *
+     * @param cacheInflation the cache's current inflation value (GreedyDual-Size)
      */
-    public void updateLastAccess() {
+    public void updateLastAccess(double cacheInflation) {
         this.lastAccessTime = now();
+        this.inflationAtLastAccess = cacheInflation;
     }
 
     /**
@@ -365,31 +407,24 @@ public class BlsCacheEntry<T extends SearchResult> implements Future<T> {
      * 'Worthiness' is a measure indicating how important a job is, and determines
      * what jobs get the CPU and what jobs are paused or aborted. It also determines
      * what finished jobs are removed from the cache.
+     *
+     * Finished jobs all get worthiness 0 and are ordered by their cache priority,
+     * using GreedyDual-Size: priority = L + cost / size, where cost is the time
+     * it would take to run the search again, size is the memory its results use,
+     * and L is the cache's inflation value when the search was last accessed
+     * (the priority of the last search evicted). So expensive, small and
+     * recently used results are kept longest. Searches accessed in the last
+     * minute get worthiness 1, so they are ordered before all other finished
+     * searches (see also {@link #isProtectedFromEviction()}).
      */
     public void calculateWorthiness() {
         if (isDone()) {
-            // 0 ... 9999 : search is finished
-            // (the more recently used, the worthier)
-            
-            // Size score from 1-100; 1M per unit, so 100 corresponds to 100M or larger
-            int sizeScore = Math.max(1, Math.min(100, numberOfStoredHits() * BlsCache.SIZE_OF_HIT / 1000000));
-            
-            // Run time score from 1-10000; 0.03s per unit, so 10000 corresponds to 5 minutes or longer 
-            long runTimeScore = Math.max(1, Math.min(10000, timeRunning() * 10 / 300));
-            
-            // Last accessed score from 1-100: 3s per unit, so 100 corresponds to 5 minutes or longer
-            long lastAccessScore = Math.max(1, Math.min(100, timeSinceLastAccess() / 3000));
-            
-            if (timeSinceLastAccess() < 60000) {
-                // For the first minute of the search, pretend it's a search that took really long
-                // and is really small, so it won't be eliminated from the cache right away.
-                worthiness = 10000 / lastAccessScore;
-            } else {
-                // After a minute, start taking into account the size of the results set and
-                // and the time it will take to recreate it.
-                worthiness = (long)((double)runTimeScore / lastAccessScore / sizeScore);
-            }
-            
+            // 0 : search is finished (ordered by cachePriority)
+            // 1 : search is finished, but was accessed recently (ordered by cachePriority)
+            worthiness = isProtectedFromEviction() ? 1 : 0;
+            long sizeBytes = Math.max(1, estimateMemoryBytes());
+            long cost = Math.max(1, timeRunning());
+            cachePriority = inflationAtLastAccess + (double) cost / sizeBytes;
         } else if (timeRunning() > YOUTH_THRESHOLD_SEC) {
             // 10000 ... 19999: search has been running for a long time and is counting hits
             // 20000 ... 29999: search has been running for a long time and is retrieving hits
@@ -486,6 +521,17 @@ public class BlsCacheEntry<T extends SearchResult> implements Future<T> {
             return 0;
         return result.numberOfResultObjects();
     }
+
+    /**
+     * Estimate how much memory the results of this search use.
+     *
+     * @return estimated memory use in bytes, or 0 if there's no result (yet)
+     */
+    public long estimateMemoryBytes() {
+        if (result == null)
+            return 0;
+        return result.estimateMemoryBytes();
+    }
     
     public String status() {
         if (isSearchDone())
@@ -508,7 +554,7 @@ public class BlsCacheEntry<T extends SearchResult> implements Future<T> {
                 .entry("cancelled", cancelled)
                 .entry("futureStatus", futureStatus())
                 .entry("exceptionThrown", exceptionThrown == null ? "" : exceptionThrown.getClass().getSimpleName())
-                .entry("sizeBytes", numberOfStoredHits() * BlsCache.SIZE_OF_HIT)
+                .entry("sizeBytes", estimateMemoryBytes())
                 .entry("userWaitTime", timeUserWaited() / 1000.0)
                 .entry("totalExecTime", timeRunning() / 1000.0)
                 .entry("notAccessedFor", timeSinceLastAccess() / 1000.0)
@@ -0,0 +1,129 @@
+package nl.inl.blacklab.server.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that buffers the start of a response, and only starts sending it when
+ * it grows too large (or when we're done).
+ *
+ * Until the response is committed, we can still change the HTTP status and
+ * replace the response with an error message. After that, the rest of the
+ * response is streamed, so large responses don't have to be kept in memory and
+ * the client gets the first bytes sooner.
+ */
+public class DeferredCommitWriter extends Writer {
+
+    /** Opens the real output when we commit the response */
+    @FunctionalInterface
+    public interface Output {
+        Writer open() throws IOException;
+    }
+
+    /** Size of the chunks we copy our buffer to the real output in */
+    private static final int COPY_CHUNK_SIZE = 8192;
+
+    /** How to open the real output */
+    private Output output;
+
+    /** Maximum number of characters to buffer before committing (-1 for no limit) */
+    private int maxBufferSize;
+
+    /** Start of the response, while we haven't committed yet */
+    private StringBuilder buffer = new StringBuilder();
+
+    /** The real output, or null if we haven't committed yet */
+    private Writer out = null;
+
+    /**
+     * Create the writer.
+     *
+     * @param maxBufferSize maximum number of characters to buffer before committing (-1 for no limit)
+     * @param output how to open the real output when we commit
+     */
+    public DeferredCommitWriter(int maxBufferSize, Output output) {
+        this.maxBufferSize = maxBufferSize;
+        this.output = output;
+    }
+
+    /**
+     * Have we started sending the response?
+     *
+     * @return true if the response was committed
+     */
+    public boolean isCommitted() {
+        return out != null;
+    }
+
+    /**
+     * Discard the buffered response, e.g. to replace it with an error message.
+     *
+     * @throws IllegalStateException if the response was already committed
+     */
+    public void discardBuffer() {
+        if (isCommitted())
+            throw new IllegalStateException("Response already committed");
+        buffer.setLength(0);
+    }
+
+    /**
+     * Open the real output and send what we've buffered so far.
+     *
+     * @throws IOException on error
+     */
+    public void commit() throws IOException {
+        if (isCommitted())
+            return;
+        out = output.open();
+        char[] chunk = new char[COPY_CHUNK_SIZE];
+        for (int i = 0; i < buffer.length(); i += COPY_CHUNK_SIZE) {
+            int n = Math.min(COPY_CHUNK_SIZE, buffer.length() - i);
+            buffer.getChars(i, i + n, chunk, 0);
+            out.write(chunk, 0, n);
+        }
+        buffer = null;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (isCommitted()) {
+            out.write(cbuf, off, len);
+        } else {
+            buffer.append(cbuf, off, len);
+            if (maxBufferSize >= 0 && buffer.length() > maxBufferSize)
+                commit();
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (isCommitted()) {
+            out.write(str, off, len);
+        } else {
+            buffer.append(str, off, off + len);
+            if (maxBufferSize >= 0 && buffer.length() > maxBufferSize)
+                commit();
+        }
+    }
+
+    /**
+     * Flush the real output, if we've committed.
+     *
+     * Doesn't commit the response; use {@link #commit()} for that.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (isCommitted())
+            out.flush();
+    }
+
+    /**
+     * Commit (if we haven't yet) and close the real output.
+     */
+    @Override
+    public void close() throws IOException {
+        commit();
+        out.close();
+    }
+
+}
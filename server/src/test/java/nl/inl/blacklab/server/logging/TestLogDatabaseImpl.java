@@ -0,0 +1,68 @@
+package nl.inl.blacklab.server.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.inl.blacklab.requestlogging.LogLevel;
+import nl.inl.blacklab.requestlogging.SearchLogger;
+
+public class TestLogDatabaseImpl {
+
+    private static int queryInt(String url, String sql) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url);
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery(sql)) {
+            Assert.assertTrue(rs.next());
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    public void testQueuedWritesArePerformed() throws IOException, SQLException {
+        File dbFile = File.createTempFile("bls-log", ".db");
+        try {
+            String url = "jdbc:sqlite:" + dbFile.getCanonicalPath().replaceAll("\\\\", "/");
+            int lastId;
+            try (LogDatabaseImpl log = new LogDatabaseImpl(url, 100, false)) {
+                for (int i = 0; i < 10; i++) {
+                    try (SearchLogger req = log.addRequest("test", "hits", Collections.emptyMap())) {
+                        req.log(LogLevel.BASIC, "line 1");
+                        req.log(LogLevel.BASIC, "line 2");
+                        req.setResultsFound(i);
+                    }
+                }
+                log.addCacheInfo(Collections.emptyList(), 0, 0, 0, 0, 0, 0, 0);
+                try (SearchLogger req = log.addRequest("test", "docs", Collections.emptyMap())) {
+                    lastId = ((SearchLoggerImpl) req).id();
+                }
+                Assert.assertEquals(0, log.droppedWrites());
+            }
+            // Closing waits for the queue to be written
+            Assert.assertEquals(11, queryInt(url, "SELECT count(*) FROM requests"));
+            Assert.assertEquals(20, queryInt(url, "SELECT count(*) FROM request_logs"));
+            Assert.assertEquals(1, queryInt(url, "SELECT count(*) FROM cache_stats"));
+            Assert.assertEquals(45, queryInt(url, "SELECT sum(results_found) FROM requests WHERE type = 'hits'"));
+            Assert.assertEquals(0, queryInt(url, "SELECT count(*) FROM request_logs l WHERE (SELECT count(*) FROM requests r WHERE r.id = l.request) = 0"));
+
+            // Reopening continues assigning ids where we left off
+            try (LogDatabaseImpl log = new LogDatabaseImpl(url)) {
+                try (SearchLogger req = log.addRequest("test", "hits", Collections.emptyMap())) {
+                    Assert.assertEquals(lastId + 1, ((SearchLoggerImpl) req).id());
+                }
+            }
+            Assert.assertEquals(12, queryInt(url, "SELECT count(*) FROM requests"));
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package nl.inl.blacklab.server.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestDeferredCommitWriter {
+
+    @Test
+    public void testSmallResponseIsBuffered() throws IOException {
+        StringWriter target = new StringWriter();
+        DeferredCommitWriter w = new DeferredCommitWriter(10, () -> target);
+        w.write("hello");
+        Assert.assertFalse(w.isCommitted());
+        Assert.assertEquals("", target.toString());
+        w.discardBuffer();
+        w.write("error");
+        w.close();
+        Assert.assertEquals("error", target.toString());
+    }
+
+    @Test
+    public void testLargeResponseIsStreamed() throws IOException {
+        StringWriter target = new StringWriter();
+        DeferredCommitWriter w = new DeferredCommitWriter(10, () -> target);
+        w.write("hello ");
+        w.write("world, ");
+        Assert.assertTrue(w.isCommitted());
+        Assert.assertEquals("hello world, ", target.toString());
+        w.write("bye".toCharArray(), 0, 3);
+        w.close();
+        Assert.assertEquals("hello world, bye", target.toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCannotDiscardAfterCommit() throws IOException {
+        DeferredCommitWriter w = new DeferredCommitWriter(0, () -> new StringWriter());
+        w.write("x");
+        w.discardBuffer();
+    }
+
+}